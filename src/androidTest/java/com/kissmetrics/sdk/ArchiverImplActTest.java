@@ -17,12 +17,14 @@
 
 package com.kissmetrics.sdk;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -48,6 +50,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
   static QueryEncoder queryEncoder;
 
   static String key = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+  static String productKey = "yyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyy";
   static String userAgent = Connection.USER_AGENT;
   static String clientType = "mobile_app";
 
@@ -133,14 +136,13 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  @SuppressWarnings("unchecked")
-  public List<String> uth_getSendQueue() {
+  public SendQueue uth_getSendQueue() {
     Field f;
-    List<String> r = null;
+    SendQueue r = null;
     try {
       f = ArchiverImpl.class.getDeclaredField("sendQueue");
       f.setAccessible(true);
-      r = (List<String>) f.get(ArchiverImpl.sharedArchiver());
+      r = (SendQueue) f.get(ArchiverImpl.sharedArchiver());
     } catch (SecurityException e) {
       e.printStackTrace();
     } catch (NoSuchFieldException e) {
@@ -155,37 +157,33 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  public void uth_unarchiveIdentity() {
-    Method method = null;
+  public void uth_awaitLegacyQueueMigration() {
+    Field f;
     try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("unarchiveIdentity", new Class[]{});
+      f = ArchiverImpl.class.getDeclaredField("legacyQueueMigrator");
+      f.setAccessible(true);
+      Thread migrator = (Thread) f.get(ArchiverImpl.sharedArchiver());
+      if (migrator != null) {
+        migrator.join();
+      }
     } catch (SecurityException e) {
       e.printStackTrace();
-    } catch (NoSuchMethodException e) {
+    } catch (NoSuchFieldException e) {
+      e.printStackTrace();
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+    } catch (IllegalAccessException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
       e.printStackTrace();
-    }
-
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
     }
   }
 
 
-  public void uth_archiveSavedIdEvents() {
+  public void uth_archiveState() {
     Method method = null;
     try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("archiveSavedIdEvents", new Class[]{});
+      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("archiveState", new Class[]{});
     } catch (SecurityException e) {
       e.printStackTrace();
     } catch (NoSuchMethodException e) {
@@ -209,41 +207,29 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  public void uth_unarchiveSavedIdEvents() {
-    Method method = null;
-    try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("unarchiveSavedIdEvents", new Class[]{});
-    } catch (SecurityException e) {
-      e.printStackTrace();
-    } catch (NoSuchMethodException e) {
-      e.printStackTrace();
-    }
+  /**
+   * Reads the StateStore from the file system directly.
+   */
+  public StateStore.State uth_getArchivedState() {
+    return new StateStore(getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsState")).read();
+  }
 
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
-    }
+
+  /**
+   * Writes the StateStore to the file system directly.
+   */
+  public void uth_writeArchivedState(StateStore.State state) {
+    new StateStore(getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsState")).write(state);
   }
 
 
-  @SuppressWarnings("unchecked")
-  public List<String> uth_getSavedIdEvents() {
+  public FingerprintSet uth_getSavedIdEvents() {
     Field f;
-    List<String> r = null;
+    FingerprintSet r = null;
     try {
       f = ArchiverImpl.class.getDeclaredField("savedIdEvents");
       f.setAccessible(true);
-      r = (List<String>) f.get(ArchiverImpl.sharedArchiver());
+      r = (FingerprintSet) f.get(ArchiverImpl.sharedArchiver());
     } catch (SecurityException e) {
       e.printStackTrace();
     } catch (NoSuchFieldException e) {
@@ -258,68 +244,13 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  public void uth_archiveSavedInstallEvents() {
-    Method method = null;
-    try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("archiveSavedInstallEvents", new Class[]{});
-    } catch (SecurityException e) {
-      e.printStackTrace();
-    } catch (NoSuchMethodException e) {
-      e.printStackTrace();
-    }
-
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
-
-  public void uth_unarchiveSavedInstallEvents() {
-    Method method = null;
-    try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("unarchiveSavedInstallEvents", new Class[]{});
-    } catch (SecurityException e) {
-      e.printStackTrace();
-    } catch (NoSuchMethodException e) {
-      e.printStackTrace();
-    }
-
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
-
-  @SuppressWarnings("unchecked")
-  public List<String> uth_getSavedInstallEvents() {
+  public FingerprintSet uth_getSavedInstallEvents() {
     Field f;
-    List<String> r = null;
+    FingerprintSet r = null;
     try {
       f = ArchiverImpl.class.getDeclaredField("savedInstallEvents");
       f.setAccessible(true);
-      r = (List<String>) f.get(ArchiverImpl.sharedArchiver());
+      r = (FingerprintSet) f.get(ArchiverImpl.sharedArchiver());
     } catch (SecurityException e) {
       e.printStackTrace();
     } catch (NoSuchFieldException e) {
@@ -334,68 +265,13 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  public void uth_archiveSavedProperties() {
-    Method method = null;
-    try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("archiveSavedProperties", new Class[]{});
-    } catch (SecurityException e) {
-      e.printStackTrace();
-    } catch (NoSuchMethodException e) {
-      e.printStackTrace();
-    }
-
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
-
-  public void uth_unarchiveSavedProperties() {
-    Method method = null;
-    try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("unarchiveSavedProperties", new Class[]{});
-    } catch (SecurityException e) {
-      e.printStackTrace();
-    } catch (NoSuchMethodException e) {
-      e.printStackTrace();
-    }
-
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
-
-  @SuppressWarnings("unchecked")
-  public HashMap<String, String> uth_getSavedProperties() {
+  public FingerprintMap uth_getSavedProperties() {
     Field f;
-    HashMap<String, String> r = null;
+    FingerprintMap r = null;
     try {
       f = ArchiverImpl.class.getDeclaredField("savedProperties");
       f.setAccessible(true);
-      r = (HashMap<String, String>) f.get(ArchiverImpl.sharedArchiver());
+      r = (FingerprintMap) f.get(ArchiverImpl.sharedArchiver());
     } catch (SecurityException e) {
       e.printStackTrace();
     } catch (NoSuchFieldException e) {
@@ -410,42 +286,63 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  public void uth_archiveSendQueue() {
-    Method method = null;
+  @SuppressWarnings("unchecked")
+  public void uth_resetProductArchivers() {
+    Field instance;
     try {
-      method = ArchiverImpl.sharedArchiver().getClass().getDeclaredMethod("archiveSendQueue", new Class[]{});
+      instance = ArchiverImpl.class.getDeclaredField("productArchivers");
+      instance.setAccessible(true);
+      ((HashMap<String, ArchiverImpl>) instance.get(null)).clear();
     } catch (SecurityException e) {
       e.printStackTrace();
-    } catch (NoSuchMethodException e) {
+    } catch (NoSuchFieldException e) {
+      e.printStackTrace();
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+    } catch (IllegalAccessException e) {
       e.printStackTrace();
     }
+  }
 
-    if (method != null) {
-      if (!method.isAccessible()) {
-        method.setAccessible(true);
-      }
-      try {
-        method.invoke(ArchiverImpl.sharedArchiver(), new Object[]{});
-      } catch (IllegalArgumentException e) {
-        e.printStackTrace();
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-      } catch (InvocationTargetException e) {
-        e.printStackTrace();
-      }
-    }
+
+  /**
+   * Drops the ArchiverImpl singleton and creates a new one from what was archived to
+   * Internal Storage, as happens when an application is relaunched.
+   */
+  public void uth_reloadSharedArchiver() {
+    uth_resetSingleton();
+    ArchiverImpl.sharedArchiver(key, getInstrumentation().getTargetContext());
+  }
+
+
+  public void uth_reloadSharedArchiver(KISSmetricsOptions options) {
+    uth_resetSingleton();
+    ArchiverImpl.sharedArchiver(key, getInstrumentation().getTargetContext(), options);
   }
 
 
   public void uth_cleanSlate() {
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsState");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedIdEventIndex");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedInstallEventIndex");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedPropertyIndex");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsIdentities");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsProductKey");
+
+    // Legacy identity, settings and saved events and properties
     SharedPreferences pref = getInstrumentation().getTargetContext().getSharedPreferences("KISSmetricsIdentity", Activity.MODE_PRIVATE);
     pref.edit().clear().commit();
-
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSettings");
-    getInstrumentation().getTargetContext().deleteFile("KISSmetricsActions");
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedEvents");
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedInstallEvents");
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedProperties");
+
+    for (String fileName : getInstrumentation().getTargetContext().fileList()) {
+      // Legacy send queue, journal segments and ring, and every file of a product archiver
+      if (fileName.startsWith("KISSmetricsActions") || fileName.contains("-" + productKey)) {
+        getInstrumentation().getTargetContext().deleteFile(fileName);
+      }
+    }
   }
 
 
@@ -464,6 +361,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
   protected void tearDown() throws Exception {
     uth_cleanSlate();
     uth_resetSingleton();
+    uth_resetProductArchivers();
 
     super.tearDown();
   }
@@ -486,7 +384,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     expectedMap.put("doTrack", true);
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("Correct default settings are applied on class init", expectedMap, archivedMap);
   }
@@ -499,7 +397,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveInstallUuid(testInstallUuid);
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("archiveInstallUuid retains integrity upon archiving", testInstallUuid, archivedMap.get("installUuid"));
   }
@@ -523,7 +421,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveDoTrack(false);
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("archiveDoTrack retains integrity upon archiving", false, archivedMap.get("doTrack"));
   }
@@ -547,7 +445,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveDoSend(true);
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("archiveDoSend retains integrity upon archiving", true, archivedMap.get("doSend"));
   }
@@ -574,7 +472,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveBaseUrl(expectedBaseUrl);
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("archiveBaseUrl retains integrity upon archiving", expectedBaseUrl, archivedMap.get("baseUrl"));
   }
@@ -601,7 +499,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveVerificationExpDate(expectedDate);
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("archiveVerificationExpDate retains integrity upon archiving", expectedDate, archivedMap.get("verification_exp_date"));
   }
@@ -624,9 +522,10 @@ public class ArchiverImplActTest extends ActivityTestCase {
   public final void testArchiveHasGenerticIdentity() {
 
     ArchiverImpl.sharedArchiver().archiveHasGenericIdentity(false);
+    this.uth_archiveState();
 
     // Read from the file system directly
-    HashMap<String, Object> archivedMap = (HashMap<String, Object>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSettings");
+    HashMap<String, Object> archivedMap = this.uth_getArchivedState().settings;
 
     assertEquals("archiveHasGenericIdentity retains integrity upon archiving", false, archivedMap.get("hasGenericIdentity"));
   }
@@ -649,8 +548,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveFirstIdentity(expectedIdentity);
 
     // Read from the file system directly
-    SharedPreferences pref = getInstrumentation().getTargetContext().getSharedPreferences("KISSmetricsIdentity", Activity.MODE_PRIVATE);
-    String archivedIdentity = pref.getString("identity", "");
+    String archivedIdentity = this.uth_getArchivedState().identity;
 
     assertEquals("archiveFirstIdentity retains integrity upon archiving", expectedIdentity, archivedIdentity);
   }
@@ -668,15 +566,14 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  @SuppressWarnings("unchecked")
   public final void testArchiveFirstIdentityDoesNotCreateRecord() {
 
     ArchiverImpl.sharedArchiver().archiveFirstIdentity("someTestIdentity");
 
-    // Read from the file system directly
-    List<String> archivedActions = (List<String>) this.uth_getInternalStorageObjectOfType(ArrayList.class, getInstrumentation().getTargetContext(), "KISSmetricsActions");
+    // Replay the archived send queue
+    this.uth_reloadSharedArchiver();
 
-    assertEquals("archiveFirst identity doesn't create an identify record", 0, archivedActions.size());
+    assertEquals("archiveFirst identity doesn't create an identify record", 0, ArchiverImpl.sharedArchiver().getQueueCount());
   }
 
 
@@ -687,8 +584,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveFirstIdentity(null);
 
     // Read from the file system directly
-    SharedPreferences pref = getInstrumentation().getTargetContext().getSharedPreferences("KISSmetricsIdentity", Activity.MODE_PRIVATE);
-    String archivedIdentity = pref.getString("identity", "");
+    String archivedIdentity = this.uth_getArchivedState().identity;
 
     assertEquals("archiveFirstIdentity ignores null values", expectedIdentity, archivedIdentity);
   }
@@ -701,8 +597,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveFirstIdentity("");
 
     // Read from the file system directly
-    SharedPreferences pref = getInstrumentation().getTargetContext().getSharedPreferences("KISSmetricsIdentity", Activity.MODE_PRIVATE);
-    String archivedIdentity = pref.getString("identity", "");
+    String archivedIdentity = this.uth_getArchivedState().identity;
 
     assertEquals("archiveFirstIdentity ignores empty values", expectedIdentity, archivedIdentity);
   }
@@ -730,7 +625,7 @@ public class ArchiverImplActTest extends ActivityTestCase {
 
     ArchiverImpl.sharedArchiver().archiveIdentity(identity);
 
-    uth_unarchiveIdentity();
+    this.uth_reloadSharedArchiver();
 
     assertEquals("unarchiveIdentiy sets lastIdentity value", identity, ArchiverImpl.sharedArchiver().getIdentity());
   }
@@ -749,7 +644,6 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  @SuppressWarnings("unchecked")
   public final void testArchiveIdentityDoesNotCreateAliasQueryWhenLastIdentityWasNotGeneric() {
     ArchiverImpl.sharedArchiver().archiveFirstIdentity("someUnknownGenericIdentity");
 
@@ -757,10 +651,10 @@ public class ArchiverImplActTest extends ActivityTestCase {
 
     ArchiverImpl.sharedArchiver().archiveIdentity("someKnownIdentity@example.com");
 
-    // Read from the file system directly
-    List<String> archivedActions = (List<String>) this.uth_getInternalStorageObjectOfType(ArrayList.class, getInstrumentation().getTargetContext(), "KISSmetricsActions");
+    // Replay the archived send queue
+    this.uth_reloadSharedArchiver();
 
-    assertEquals("No query is created for the archived identity", 0, archivedActions.size());
+    assertEquals("No query is created for the archived identity", 0, ArchiverImpl.sharedArchiver().getQueueCount());
   }
 
 
@@ -768,15 +662,8 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveFirstIdentity("someUnknownGenericIdentity");
     ArchiverImpl.sharedArchiver().archiveIdentity("someKnownIdentity@example.com");
 
-    // Populate and directly archive the test events
-    List<String> expectedEvents = new ArrayList<String>();
-    expectedEvents.add("testEvent");
-
-    // Write to the file system directly
-    uth_writeObjectToInternalStorageFile(expectedEvents, "KISSmetricsSavedEvents");
-
-    // Unarchive saved events
-    uth_unarchiveSavedIdEvents();
+    // Populate the test events
+    this.uth_getSavedIdEvents().add("testEvent");
 
     ArchiverImpl.sharedArchiver().archiveIdentity("aDifferentUser@example.com");
 
@@ -788,14 +675,8 @@ public class ArchiverImplActTest extends ActivityTestCase {
     ArchiverImpl.sharedArchiver().archiveFirstIdentity("someUnknownGenericIdentity");
     ArchiverImpl.sharedArchiver().archiveIdentity("someKnownIdentity@example.com");
 
-    // Populate and directly archive the test events
-    HashMap<String, String> expectedProperties = new HashMap<String, String>();
-    expectedProperties.put("testProperty", "testValue");
-
-    // Write to the file system directly
-    uth_writeObjectToInternalStorageFile(expectedProperties, "KISSmetricsSavedProperties");
-
-    uth_unarchiveSavedProperties();
+    // Populate the test properties
+    this.uth_getSavedProperties().put("testProperty", "testValue");
 
     ArchiverImpl.sharedArchiver().archiveIdentity("aDifferentUser@example.com");
 
@@ -839,8 +720,8 @@ public class ArchiverImplActTest extends ActivityTestCase {
     long timestamp = System.currentTimeMillis() / 1000;
     String expectedUrlString = queryEncoder.createEventQuery("testGetFirstRecordReturnsRecord", null, "testuser@example.com", timestamp);
 
-    List<String> sendQueue = this.uth_getSendQueue();
-    sendQueue.add(expectedUrlString);
+    SendQueue sendQueue = this.uth_getSendQueue();
+    sendQueue.add(QueueRecord.raw(expectedUrlString).encode());
 
     assertEquals("getFirstRecord returns the record at the top of the stack", expectedUrlString, ArchiverImpl.sharedArchiver().getQueryString(0));
   }
@@ -852,17 +733,17 @@ public class ArchiverImplActTest extends ActivityTestCase {
 
 
   public final void testRemoveFirstRecord() {
-    List<String> sendQueue = this.uth_getSendQueue();
+    SendQueue sendQueue = this.uth_getSendQueue();
 
     // First add 1 new record
     long timestamp1 = System.currentTimeMillis() / 1000;
     String testRecord1 = queryEncoder.createEventQuery("firstRecord", null, "testuser@example.com", timestamp1);
-    sendQueue.add(testRecord1);
+    sendQueue.add(QueueRecord.raw(testRecord1).encode());
 
     // And add 2nd new record
     long timestamp2 = System.currentTimeMillis() / 1000;
     String testRecord2 = queryEncoder.createEventQuery("secondRecord", null, "testuser@example.com", timestamp2);
-    sendQueue.add(testRecord2);
+    sendQueue.add(QueueRecord.raw(testRecord2).encode());
 
     ArchiverImpl.sharedArchiver().removeQueryString(0);
 
@@ -876,8 +757,8 @@ public class ArchiverImplActTest extends ActivityTestCase {
 
 
   public final void testGetQueueCountForOne() {
-    List<String> sendQueue = this.uth_getSendQueue();
-    sendQueue.add("AnyTestStringWorks");
+    SendQueue sendQueue = this.uth_getSendQueue();
+    sendQueue.add(QueueRecord.raw("AnyTestStringWorks").encode());
 
     assertEquals("getQueueCount returns correct count", 1, ArchiverImpl.sharedArchiver().getQueueCount());
   }
@@ -1054,18 +935,46 @@ public class ArchiverImplActTest extends ActivityTestCase {
   }
 
 
-  @SuppressWarnings("unchecked")
   public final void testArchiveSavedIdEvents() {
 
-    List<String> savedIdEvents = this.uth_getSavedIdEvents();
-    savedIdEvents.add("testIdEvent");
+    ArchiverImpl.sharedArchiver().archiveEvent("testIdEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
 
-    this.uth_archiveSavedIdEvents();
+    // Replay the archived saved events
+    this.uth_reloadSharedArchiver();
+
+    assertTrue("archiveSavedEvents must retain integrity upon archiving", this.uth_getSavedIdEvents().contains("testIdEvent"));
+  }
 
-    // Read from the file system directly
-    List<String> archivedIdEvents = (List<String>) this.uth_getInternalStorageObjectOfType(ArrayList.class, getInstrumentation().getTargetContext(), "KISSmetricsSavedEvents");
 
-    assertEquals("archiveSavedEvents must retain integrity upon archiving", savedIdEvents, archivedIdEvents);
+  public final void testSavingEventAppendsOneEntry() {
+
+    File index = getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsSavedIdEventIndex");
+    ArchiverImpl.sharedArchiver().archiveEvent("firstIdEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
+    long length = index.length();
+
+    ArchiverImpl.sharedArchiver().archiveEvent("secondIdEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
+    ArchiverImpl.sharedArchiver().archiveEvent("secondIdEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
+
+    assertEquals("Saving an event appends its fingerprint", length + 8, index.length());
+  }
+
+
+  public final void testIsEventSaved() {
+
+    ArchiverImpl.sharedArchiver().archiveEvent("testIdEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
+
+    assertTrue("Saved events are reported", ArchiverImpl.sharedArchiver().isEventSaved("testIdEvent", RecordCondition.RECORD_ONCE_PER_IDENTITY));
+    assertFalse("Events are saved per condition", ArchiverImpl.sharedArchiver().isEventSaved("testIdEvent", RecordCondition.RECORD_ONCE_PER_INSTALL));
+    assertFalse("Events recorded always are never saved", ArchiverImpl.sharedArchiver().isEventSaved("testIdEvent", RecordCondition.RECORD_ALWAYS));
+  }
+
+
+  public final void testIsDistinctPropertySaved() {
+
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("distinctProperty", "testDistinctValue");
+
+    assertTrue("Saved values are reported", ArchiverImpl.sharedArchiver().isDistinctPropertySaved("distinctProperty", "testDistinctValue"));
+    assertFalse("Other values are not reported", ArchiverImpl.sharedArchiver().isDistinctPropertySaved("distinctProperty", "testNewDistinctValue"));
   }
 
 
@@ -1076,41 +985,39 @@ public class ArchiverImplActTest extends ActivityTestCase {
     expectedIdEvents.add("testIdEvent");
 
     // Write to the file system directly
-    uth_writeObjectToInternalStorageFile(expectedIdEvents, "KISSmetricsSavedEvents");
+    StateStore.State state = new StateStore.State();
+    state.savedIdEvents = expectedIdEvents;
+    uth_writeArchivedState(state);
 
     // Unarchive saved events
-    uth_unarchiveSavedIdEvents();
-    List<String> savedEvents = uth_getSavedIdEvents();
+    this.uth_reloadSharedArchiver();
 
-    assertEquals("archiveSavedEvents must retain integrity upon unarchiving", expectedIdEvents, savedEvents);
+    assertTrue("archiveSavedEvents must retain integrity upon unarchiving", uth_getSavedIdEvents().contains("testIdEvent"));
+    assertNull("Saved events are moved out of the state store", this.uth_getArchivedState().savedIdEvents);
   }
 
 
   public final void testClearSavedIdEvents() {
 
-    List<String> savedIdEvents = this.uth_getSavedIdEvents();
-    savedIdEvents.add("testIdEvent");
-
-    this.uth_archiveSavedIdEvents();
+    ArchiverImpl.sharedArchiver().archiveEvent("testIdEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
 
     ArchiverImpl.sharedArchiver().clearSavedIdEvents();
 
     assertEquals("clearSavedIdEvents empties the savedEvents array", 0, this.uth_getSavedIdEvents().size());
+
+    this.uth_reloadSharedArchiver();
+    assertEquals("clearSavedIdEvents empties the archived savedEvents", 0, this.uth_getSavedIdEvents().size());
   }
 
 
-  @SuppressWarnings("unchecked")
   public final void testArchiveSavedInstallEvents() {
 
-    List<String> savedInstallEvents = this.uth_getSavedInstallEvents();
-    savedInstallEvents.add("testInstallEvent");
+    ArchiverImpl.sharedArchiver().archiveEvent("testInstallEvent", null, RecordCondition.RECORD_ONCE_PER_INSTALL);
 
-    this.uth_archiveSavedInstallEvents();
-
-    // Read from the file system directly
-    List<String> archivedInstallEvents = (List<String>) this.uth_getInternalStorageObjectOfType(ArrayList.class, getInstrumentation().getTargetContext(), "KISSmetricsSavedInstallEvents");
+    // Replay the archived saved events
+    this.uth_reloadSharedArchiver();
 
-    assertEquals("archiveSavedInstallEvents must retain integrity upon archiving", savedInstallEvents, archivedInstallEvents);
+    assertTrue("archiveSavedInstallEvents must retain integrity upon archiving", this.uth_getSavedInstallEvents().contains("testInstallEvent"));
   }
 
 
@@ -1121,28 +1028,39 @@ public class ArchiverImplActTest extends ActivityTestCase {
     expectedInstallEvents.add("testInstallEvent");
 
     // Write to the file system directly
-    uth_writeObjectToInternalStorageFile(expectedInstallEvents, "KISSmetricsSavedInstallEvents");
+    StateStore.State state = new StateStore.State();
+    state.savedInstallEvents = expectedInstallEvents;
+    uth_writeArchivedState(state);
 
     // Unarchive saved events
-    uth_unarchiveSavedInstallEvents();
-    List<String> savedInstallEvents = uth_getSavedInstallEvents();
+    this.uth_reloadSharedArchiver();
 
-    assertEquals("archiveSavedEvents must retain integrity upon unarchiving", expectedInstallEvents, savedInstallEvents);
+    assertTrue("archiveSavedEvents must retain integrity upon unarchiving", uth_getSavedInstallEvents().contains("testInstallEvent"));
+    assertNull("Saved events are moved out of the state store", this.uth_getArchivedState().savedInstallEvents);
   }
 
 
-  @SuppressWarnings("unchecked")
   public final void testArchiveSavedProperties() {
 
-    HashMap<String, String> expectedProperties = this.uth_getSavedProperties();
-    expectedProperties.put("testProperty", "testValue");
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("testProperty", "testValue");
 
-    this.uth_archiveSavedProperties();
+    // Replay the archived saved properties
+    this.uth_reloadSharedArchiver();
 
-    // Read from the file system directly
-    HashMap<String, String> archivedProperties = (HashMap<String, String>) this.uth_getInternalStorageObjectOfType(HashMap.class, getInstrumentation().getTargetContext(), "KISSmetricsSavedProperties");
+    assertTrue("archiveSavedProperties must retain integrity upon archiving", this.uth_getSavedProperties().containsEntry("testProperty", "testValue"));
+  }
 
-    assertEquals("archiveSavedProperties must retain integrity upon archiving", expectedProperties, archivedProperties);
+
+  public final void testSavingPropertyAppendsOneEntry() {
+
+    File index = getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsSavedPropertyIndex");
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("firstProperty", "firstValue");
+    long length = index.length();
+
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("secondProperty", "secondValue");
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("secondProperty", "secondValue");
+
+    assertEquals("Saving a property appends its key and value fingerprints", length + 16, index.length());
   }
 
 
@@ -1153,38 +1071,733 @@ public class ArchiverImplActTest extends ActivityTestCase {
     expectedProperties.put("testProperty", "testValue");
 
     // Write to the file system directly
-    uth_writeObjectToInternalStorageFile(expectedProperties, "KISSmetricsSavedProperties");
+    StateStore.State state = new StateStore.State();
+    state.savedProperties = expectedProperties;
+    uth_writeArchivedState(state);
 
-    uth_unarchiveSavedProperties();
-    HashMap<String, String> savedProperties = uth_getSavedProperties();
+    this.uth_reloadSharedArchiver();
 
-    assertEquals("archiveSavedProperties must retain integrity upon unarchiving", expectedProperties, savedProperties);
+    assertTrue("archiveSavedProperties must retain integrity upon unarchiving", uth_getSavedProperties().containsEntry("testProperty", "testValue"));
+    assertNull("Saved properties are moved out of the state store", this.uth_getArchivedState().savedProperties);
   }
 
 
   public final void testClearSavedProperties() {
 
-    HashMap<String, String> savedProperties = uth_getSavedProperties();
-    savedProperties.put("testProperty", "testValue");
-    this.uth_archiveSavedProperties();
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("testProperty", "testValue");
 
     ArchiverImpl.sharedArchiver().clearSavedProperties();
 
-    assertEquals("clearSavedProperties empties the savedProperties HashMap", 0, uth_getSavedProperties().size());
+    assertEquals("clearSavedProperties empties savedProperties", 0, uth_getSavedProperties().size());
+
+    this.uth_reloadSharedArchiver();
+    assertEquals("Cleared saved properties are archived", 0, uth_getSavedProperties().size());
   }
 
 
-  @SuppressWarnings("unchecked")
   public final void testArchiveData() {
 
-    List<String> expectedSendQueue = this.uth_getSendQueue();
-    expectedSendQueue.add("https://trc.kissmetrics.io/a?_k=b8f68fe5004d29bcd21d3138b43ae755a16c12cf&_x=ios/2.0&_p=testnewuser%40example.com&_n=testolduser%40example.com");
+    String expectedRecord = "https://trc.kissmetrics.io/a?_k=b8f68fe5004d29bcd21d3138b43ae755a16c12cf&_x=ios/2.0&_p=testnewuser%40example.com&_n=testolduser%40example.com";
+    this.uth_getSendQueue().add(QueueRecord.raw(expectedRecord).encode());
 
-    this.uth_archiveSendQueue();
+    // Replay the archived send queue
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("archiveData retains the sendQueue after archiving", expectedRecord, ArchiverImpl.sharedArchiver().getQueryString(0));
+  }
+
+
+  public final void testRemovedRecordsStayRemovedAfterReload() {
+
+    SendQueue sendQueue = this.uth_getSendQueue();
+    sendQueue.add(QueueRecord.raw("firstRecord").encode());
+    sendQueue.add(QueueRecord.raw("secondRecord").encode());
+    sendQueue.add(QueueRecord.raw("thirdRecord").encode());
+
+    ArchiverImpl.sharedArchiver().removeQueryString(0);
+
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("Removed records are not replayed", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Remaining records keep their order", "secondRecord", ArchiverImpl.sharedArchiver().getQueryString(0));
+  }
+
+
+  public final void testLegacySendQueueIsMovedToJournal() {
+
+    List<String> legacySendQueue = new ArrayList<String>();
+    legacySendQueue.add("legacyRecordOne");
+    legacySendQueue.add("legacyRecordTwo");
+
+    // Write to the file system directly
+    uth_writeObjectToInternalStorageFile(legacySendQueue, "KISSmetricsActions");
+
+    this.uth_reloadSharedArchiver();
+    this.uth_awaitLegacyQueueMigration();
+
+    assertEquals("Legacy records are moved to the journal", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Legacy records keep their order", "legacyRecordOne", ArchiverImpl.sharedArchiver().getQueryString(0));
+    assertEquals("The legacy send queue file is removed", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsActions").exists());
+  }
+
+
+  public final void testLegacySendQueueMigrationResumes() {
+
+    List<String> legacySendQueue = new ArrayList<String>();
+    for (int i = 0; i < LegacyQueueMigrator.CHUNK_SIZE * 2 + 10; i++) {
+      legacySendQueue.add("legacyRecord" + i);
+    }
+    uth_writeObjectToInternalStorageFile(legacySendQueue, "KISSmetricsActions");
+
+    // Simulate a migration killed after staging its first chunk
+    SendQueueJournal staging = new SendQueueJournal(getInstrumentation().getTargetContext().getFilesDir(), "KISSmetricsActionsMigration");
+    staging.load();
+    for (int i = 0; i < LegacyQueueMigrator.CHUNK_SIZE; i++) {
+      staging.add(QueueRecord.raw("legacyRecord" + i).encode());
+    }
+    staging.close();
+
+    this.uth_reloadSharedArchiver();
+    this.uth_awaitLegacyQueueMigration();
+
+    assertEquals("Every legacy record is moved once", legacySendQueue.size(), ArchiverImpl.sharedArchiver().getQueueCount());
+    for (int i = 0; i < legacySendQueue.size(); i += 100) {
+      assertEquals("Legacy records keep their order", "legacyRecord" + i, ArchiverImpl.sharedArchiver().getQueryString(i));
+    }
+    assertEquals("The legacy send queue file is removed", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsActions").exists());
+    assertEquals("The staged records are removed", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsActionsMigration.0001").exists());
+  }
+
+
+  public final void testStagedRecordsAreMovedAfterLegacyFileIsDeleted() {
+
+    // Simulate a migration killed after verifying its staged records
+    SendQueueJournal staging = new SendQueueJournal(getInstrumentation().getTargetContext().getFilesDir(), "KISSmetricsActionsMigration");
+    staging.load();
+    staging.add(QueueRecord.raw("stagedRecordOne").encode());
+    staging.add(QueueRecord.raw("stagedRecordTwo").encode());
+    staging.close();
+
+    this.uth_reloadSharedArchiver();
+    this.uth_awaitLegacyQueueMigration();
+
+    assertEquals("Staged records are moved", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Staged records keep their order", "stagedRecordOne", ArchiverImpl.sharedArchiver().getQueryString(0));
+  }
+
+
+  public final void testMappedRingReplaysRecords() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setQueueEngine(KISSmetricsOptions.QueueEngine.MAPPED_RING);
+    this.uth_reloadSharedArchiver(options);
+
+    ArchiverImpl.sharedArchiver().archiveEvent("ringEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("secondRingEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().removeQueryString(0);
+
+    this.uth_reloadSharedArchiver(options);
+
+    assertEquals("Acknowledged ring records are not replayed", 1, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("Ring records are replayed", ArchiverImpl.sharedArchiver().getQueryString(0).contains("secondRingEvent"));
+  }
+
+
+  public final void testFullRingEvictsThroughTheArchiver() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setQueueEngine(KISSmetricsOptions.QueueEngine.MAPPED_RING)
+        .setRingCapacity(1024);
+    this.uth_reloadSharedArchiver(options);
+
+    ArchiverImpl.sharedArchiver().archiveEvent("inFlightEvent", null, RecordCondition.RECORD_ALWAYS);
+    SendRequest request = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+    for (int i = 0; i < 50; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("ringEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+
+    int count = ArchiverImpl.sharedArchiver().getQueueCount();
+    assertTrue("Records are evicted to make room in the ring", ArchiverImpl.sharedArchiver().getEvictedRecordCount() > 0);
+    assertTrue("The newest record is kept", ArchiverImpl.sharedArchiver().getQueryString(count - 1).contains("ringEvent49"));
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(request.sequence, true);
+    assertEquals("Acknowledging an evicted record removes no unsent record", count, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+
+  public final void testSwitchingQueueEngineKeepsRecords() {
+
+    this.uth_getSendQueue().add(QueueRecord.raw("journalRecord").encode());
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setQueueEngine(KISSmetricsOptions.QueueEngine.MAPPED_RING);
+    this.uth_reloadSharedArchiver(options);
+    this.uth_getSendQueue().add(QueueRecord.raw("ringRecord").encode());
+
+    assertEquals("Journal records are moved to the ring", "journalRecord", ArchiverImpl.sharedArchiver().getQueryString(0));
+
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("Ring records are moved back to the journal", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Records keep their order", "ringRecord", ArchiverImpl.sharedArchiver().getQueryString(1));
+    assertEquals("The ring file is removed", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsActionsRing").exists());
+  }
+
+
+  public final void testWriteBehindWritesOnFlush() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setDurability(KISSmetricsOptions.Durability.WRITE_BEHIND)
+        .setFlushInterval(60000)
+        .setFlushMutations(1000);
+    this.uth_reloadSharedArchiver(options);
+    ArchiverImpl writeBehindArchiver = ArchiverImpl.sharedArchiver();
+
+    for (int i = 0; i < 50; i++) {
+      writeBehindArchiver.archiveEvent("burstEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+    writeBehindArchiver.archiveDoTrack(false);
+
+    assertEquals("Records are held until flushed", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsActions.0001").exists());
+
+    this.uth_reloadSharedArchiver();
+    assertEquals("Records are held until flushed", 0, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Settings are held until flushed", true, ArchiverImpl.sharedArchiver().getDoTrack());
+
+    writeBehindArchiver.flush();
+
+    this.uth_reloadSharedArchiver();
+    assertEquals("Flush writes every held record", 50, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Flush writes held settings", false, ArchiverImpl.sharedArchiver().getDoTrack());
+  }
+
+
+  public final void testWriteBehindFlushesAfterMutationCount() throws InterruptedException {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setDurability(KISSmetricsOptions.Durability.WRITE_BEHIND)
+        .setFlushInterval(60000)
+        .setFlushMutations(10);
+    this.uth_reloadSharedArchiver(options);
+
+    for (int i = 0; i < 10; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("burstEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+
+    File segment = getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsActions.0001");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!segment.exists() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    Thread.sleep(100);
+
+    this.uth_reloadSharedArchiver();
+    assertEquals("Reaching the flush mutation count writes held records", 10, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+
+  public final void testArchivingReplacesFilesAtomically() {
+
+    ArchiverImpl.sharedArchiver().archiveDoTrack(false);
+
+    assertEquals("Archiving leaves no temp file", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsState.tmp").exists());
+
+    // An interrupted write leaves a partial temp file behind
+    uth_writeObjectToInternalStorageFile("partial", "KISSmetricsState.tmp");
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("Settings are read from the replaced file", false, ArchiverImpl.sharedArchiver().getDoTrack());
+
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsState.tmp");
+  }
+
+
+  public final void testLegacyStoresAreMigrated() {
+
+    HashMap<String, Object> legacySettings = new HashMap<String, Object>();
+    legacySettings.put("doTrack", false);
+    legacySettings.put("baseUrl", "http://legacy.example.com");
+    legacySettings.put("verification_exp_date", 8675309L);
+
+    List<String> legacyIdEvents = new ArrayList<String>();
+    legacyIdEvents.add("legacyIdEvent");
+    List<String> legacyInstallEvents = new ArrayList<String>();
+    legacyInstallEvents.add("legacyInstallEvent");
+    HashMap<String, String> legacyProperties = new HashMap<String, String>();
+    legacyProperties.put("legacyProperty", "legacyValue");
+
+    // Stores as written by a previous SDK version
+    uth_cleanSlate();
+    uth_writeObjectToInternalStorageFile(legacySettings, "KISSmetricsSettings");
+    uth_writeObjectToInternalStorageFile(legacyIdEvents, "KISSmetricsSavedEvents");
+    uth_writeObjectToInternalStorageFile(legacyInstallEvents, "KISSmetricsSavedInstallEvents");
+    uth_writeObjectToInternalStorageFile(legacyProperties, "KISSmetricsSavedProperties");
+    SharedPreferences pref = getInstrumentation().getTargetContext().getSharedPreferences("KISSmetricsIdentity", Activity.MODE_PRIVATE);
+    pref.edit().putString("identity", "legacyIdentity").commit();
+
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("Legacy settings are migrated", false, ArchiverImpl.sharedArchiver().getDoTrack());
+    assertEquals("Legacy settings are migrated", "http://legacy.example.com", ArchiverImpl.sharedArchiver().getBaseUrl());
+    assertEquals("Legacy identity is migrated", "legacyIdentity", ArchiverImpl.sharedArchiver().getIdentity());
+    assertTrue("Legacy saved events are migrated", this.uth_getSavedIdEvents().contains("legacyIdEvent"));
+    assertTrue("Legacy saved events are migrated", this.uth_getSavedInstallEvents().contains("legacyInstallEvent"));
+    assertTrue("Legacy saved properties are migrated", this.uth_getSavedProperties().containsEntry("legacyProperty", "legacyValue"));
+
+    StateStore.State archivedState = this.uth_getArchivedState();
+    assertEquals("Migrated state is archived", "legacyIdentity", archivedState.identity);
+    assertEquals("Migrated state is archived", 8675309L, archivedState.settings.get("verification_exp_date"));
+
+    assertEquals("Legacy stores are deleted", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsSettings").exists());
+    assertEquals("Legacy stores are deleted", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsSavedEvents").exists());
+    assertEquals("Legacy stores are deleted", false, getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsSavedProperties").exists());
+    assertEquals("Legacy identity is deleted", null, pref.getString("identity", null));
+  }
+
+
+  public final void testIdentityChangeIsArchivedWithSavedState() {
+
+    ArchiverImpl.sharedArchiver().archiveFirstIdentity("someUnknownGenericIdentity");
+    ArchiverImpl.sharedArchiver().archiveIdentity("someKnownIdentity@example.com");
+    ArchiverImpl.sharedArchiver().archiveEvent("onceEvent", null, RecordCondition.RECORD_ONCE_PER_IDENTITY);
+    ArchiverImpl.sharedArchiver().archiveDistinctProperty("distinctProperty", "distinctValue");
+
+    ArchiverImpl.sharedArchiver().archiveIdentity("aDifferentUser@example.com");
+
+    StateStore.State archivedState = this.uth_getArchivedState();
+    assertEquals("The new identity is archived", "aDifferentUser@example.com", archivedState.identity);
+    assertEquals("hasGenericIdentity is archived", false, archivedState.settings.get("hasGenericIdentity"));
+
+    this.uth_reloadSharedArchiver();
+    assertEquals("Cleared saved events are archived", 0, this.uth_getSavedIdEvents().size());
+    assertEquals("Cleared saved properties are archived", 0, this.uth_getSavedProperties().size());
+  }
+
+
+  public final void testStateFailingChecksumIsReplacedWithDefaults() throws Exception {
+
+    ArchiverImpl.sharedArchiver().archiveDoTrack(false);
+
+    // Flip a byte inside the stored state
+    RandomAccessFile raf = new RandomAccessFile(getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsState"), "rw");
+    raf.seek(20);
+    int b = raf.read();
+    raf.seek(20);
+    raf.write(b ^ 0xff);
+    raf.close();
+
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("Unreadable state is replaced with defaults", true, ArchiverImpl.sharedArchiver().getDoTrack());
+    assertEquals("Defaults are archived", true, this.uth_getArchivedState().settings.get("doTrack"));
+  }
+
+
+  public final void testDropOldestEvictsHeadRecords() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(3);
+    this.uth_reloadSharedArchiver(options);
+
+    for (int i = 0; i < 5; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("quotaEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+
+    assertEquals("The queue is kept within the record quota", 3, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("The oldest records are evicted", ArchiverImpl.sharedArchiver().getQueryString(0).contains("quotaEvent2"));
+    assertEquals("Evictions are counted", 2, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+    assertEquals("No new records are dropped", 0, ArchiverImpl.sharedArchiver().getDroppedRecordCount());
+  }
 
-    // Read from the file system directly
-    List<String> returnedSendQueue = (List<String>) this.uth_getInternalStorageObjectOfType(ArrayList.class, getInstrumentation().getTargetContext(), "KISSmetricsActions");
 
-    assertEquals("archiveData retains the sendQueue after archiving", expectedSendQueue, returnedSendQueue);
+  public final void testDropNewestKeepsHeadRecords() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(3)
+        .setEvictionPolicy(KISSmetricsOptions.EvictionPolicy.DROP_NEWEST);
+    this.uth_reloadSharedArchiver(options);
+
+    for (int i = 0; i < 5; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("quotaEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+
+    assertEquals("The queue is kept within the record quota", 3, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("The oldest records are kept", ArchiverImpl.sharedArchiver().getQueryString(0).contains("quotaEvent0"));
+    assertTrue("The newest records are dropped", ArchiverImpl.sharedArchiver().getQueryString(2).contains("quotaEvent2"));
+    assertEquals("Drops are counted", 2, ArchiverImpl.sharedArchiver().getDroppedRecordCount());
+    assertEquals("No records are evicted", 0, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+  }
+
+
+  public final void testDropByPriorityKeepsHigherPriorityRecords() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(2)
+        .setEvictionPolicy(KISSmetricsOptions.EvictionPolicy.DROP_BY_PRIORITY)
+        .setEventPriority("purchase", 10);
+    this.uth_reloadSharedArchiver(options);
+
+    ArchiverImpl.sharedArchiver().archiveEvent("purchase", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("scroll", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("scroll", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Records of equal priority evict the oldest", 1, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+    assertEquals("Records of equal priority evict the oldest", 0, ArchiverImpl.sharedArchiver().getDroppedRecordCount());
+    assertTrue("Higher priority records are kept", ArchiverImpl.sharedArchiver().getQueryString(0).contains("purchase"));
+
+    ArchiverImpl.sharedArchiver().archiveEvent("purchase", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Lower priority records behind the head are evicted", 2, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+    assertEquals("The queue is kept within the record quota", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("Higher priority records are kept", ArchiverImpl.sharedArchiver().getQueryString(1).contains("purchase"));
+
+    ArchiverImpl.sharedArchiver().archiveEvent("scroll", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Lower priority records do not evict higher priority ones", 1, ArchiverImpl.sharedArchiver().getDroppedRecordCount());
+    assertEquals("Lower priority records do not evict higher priority ones", 2, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+  }
+
+
+  public final void testDropByPriorityKeepsRecordsInFlight() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(2)
+        .setEvictionPolicy(KISSmetricsOptions.EvictionPolicy.DROP_BY_PRIORITY)
+        .setEventPriority("purchase", 10);
+    this.uth_reloadSharedArchiver(options);
+
+    ArchiverImpl.sharedArchiver().archiveEvent("scroll", null, RecordCondition.RECORD_ALWAYS);
+    assertNotNull(ArchiverImpl.sharedArchiver().nextSendRequest(1, Integer.MAX_VALUE));
+    ArchiverImpl.sharedArchiver().archiveEvent("purchase", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("purchase", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Records of equal priority evict the oldest", 1, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+    assertTrue("Records in flight are not evicted", ArchiverImpl.sharedArchiver().getQueryString(0).contains("scroll"));
+    assertTrue("Records not in flight are evicted", ArchiverImpl.sharedArchiver().getQueryString(1).contains("purchase"));
+
+    ArchiverImpl.sharedArchiver().archiveEvent("scroll", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Records in flight do not make room for new records", 1, ArchiverImpl.sharedArchiver().getDroppedRecordCount());
+  }
+
+
+  public final void testDownsampleKeepsOneInRate() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(5)
+        .setEvictionPolicy(KISSmetricsOptions.EvictionPolicy.DOWNSAMPLE)
+        .setDownsampleRate(4);
+    this.uth_reloadSharedArchiver(options);
+
+    for (int i = 0; i < 13; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("quotaEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+
+    // quotaEvent5 and quotaEvent9 are kept of the 8 records added over quota
+    assertEquals("The queue is kept within the record quota", 5, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("One in every rate records evicts the oldest", 2, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+    assertEquals("The other records are dropped", 6, ArchiverImpl.sharedArchiver().getDroppedRecordCount());
+    assertTrue("Sampled records are queued", ArchiverImpl.sharedArchiver().getQueryString(4).contains("quotaEvent9"));
+  }
+
+
+  public final void testByteQuotaEvictsHeadRecords() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedBytes(1024);
+    this.uth_reloadSharedArchiver(options);
+
+    for (int i = 0; i < 200; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("quotaEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+
+    int count = ArchiverImpl.sharedArchiver().getQueueCount();
+    assertTrue("The queue is kept within the byte quota", count > 0 && count < 200);
+    assertEquals("Every record over quota evicts", 200 - count, ArchiverImpl.sharedArchiver().getEvictedRecordCount());
+    assertTrue("The newest record is queued", ArchiverImpl.sharedArchiver().getQueryString(count - 1).contains("quotaEvent199"));
+  }
+
+
+  public final void testEvictingSendingRecordIsNotAcknowledgedTwice() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(2);
+    this.uth_reloadSharedArchiver(options);
+
+    ArchiverImpl.sharedArchiver().archiveEvent("sendingEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("secondEvent", null, RecordCondition.RECORD_ALWAYS);
+    // The Sender starts sending the head
+    ArchiverImpl.sharedArchiver().getQueryString(0);
+    ArchiverImpl.sharedArchiver().archiveEvent("thirdEvent", null, RecordCondition.RECORD_ALWAYS);
+    // The Sender acknowledges the evicted head
+    ArchiverImpl.sharedArchiver().removeQueryString(0);
+
+    assertEquals("Unsent records are kept", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("Unsent records are kept", ArchiverImpl.sharedArchiver().getQueryString(0).contains("secondEvent"));
+  }
+
+
+  public final void testEvictingBatchedRecordsIsNotAcknowledgedTwice() {
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setMaxQueuedRecords(3);
+    this.uth_reloadSharedArchiver(options);
+
+    ArchiverImpl.sharedArchiver().archiveEvent("firstEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("secondEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("thirdEvent", null, RecordCondition.RECORD_ALWAYS);
+    // The Sender starts sending a batch of the first two records
+    SendRequest batch = ArchiverImpl.sharedArchiver().nextSendRequest(2, 64 * 1024);
+    assertEquals("Batches are limited to the most records", 2, batch.queries.size());
+    assertTrue("Batches are taken from the head in order", batch.queries.get(1).contains("secondEvent"));
+
+    ArchiverImpl.sharedArchiver().archiveEvent("fourthEvent", null, RecordCondition.RECORD_ALWAYS);
+    // The Sender acknowledges the batch, one of which was evicted
+    ArchiverImpl.sharedArchiver().completeSendRequest(batch.sequence, true);
+
+    assertEquals("Unsent records are kept", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("Unsent records are kept", ArchiverImpl.sharedArchiver().getQueryString(0).contains("thirdEvent"));
+  }
+
+
+  public final void testBatchesAreLimitedToMostBytes() {
+
+    ArchiverImpl.sharedArchiver().archiveEvent("firstEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("secondEvent", null, RecordCondition.RECORD_ALWAYS);
+
+    SendRequest batch = ArchiverImpl.sharedArchiver().nextSendRequest(10, 1);
+    assertEquals("A record longer than the most bytes is sent alone", 1, batch.queries.size());
+
+    String first = ArchiverImpl.sharedArchiver().getQueryString(0);
+    String second = ArchiverImpl.sharedArchiver().getQueryString(1);
+    ArchiverImpl.sharedArchiver().completeSendRequest(batch.sequence, false);
+
+    batch = ArchiverImpl.sharedArchiver().nextSendRequest(10, first.length() + second.length() + 2);
+    assertEquals("Records up to the most bytes are batched", 2, batch.queries.size());
+  }
+
+
+  public final void testRequestsCompletingOutOfOrderRemoveRecordsInOrder() {
+
+    for (int i = 0; i < 4; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("pipelinedEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+    SendRequest first = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+    SendRequest second = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+    SendRequest third = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+    assertTrue("Requests take the records behind those in flight", third.queries.get(0).contains("pipelinedEvent2"));
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(second.sequence, true);
+    assertEquals("Records wait for the requests before them", 4, ArchiverImpl.sharedArchiver().getQueueCount());
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(first.sequence, true);
+    assertEquals("Records are removed once the requests before them complete", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(third.sequence, false);
+    SendRequest retry = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+    assertTrue("Records of a failed request are sent again", retry.queries.get(0).contains("pipelinedEvent2"));
+  }
+
+
+  public final void testRecordsAcknowledgedBehindFailedRequestAreNotSentAgain() {
+
+    for (int i = 0; i < 3; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("pipelinedEvent" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+    SendRequest first = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+    SendRequest second = ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024);
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(first.sequence, false);
+    assertNull("Nothing is sent behind a failed request", ArchiverImpl.sharedArchiver().nextSendRequest(1, 64 * 1024));
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(second.sequence, true);
+    assertEquals("Acknowledged records are removed", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+
+    SendRequest retry = ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024);
+    assertEquals("Only unacknowledged records are sent again", 2, retry.queries.size());
+    assertTrue("Records of a failed request are sent again", retry.queries.get(0).contains("pipelinedEvent0"));
+    assertTrue("Records of a failed request are sent again", retry.queries.get(1).contains("pipelinedEvent2"));
+  }
+
+
+  public final void testRecordsAcknowledgedBehindFailedRequestAreRemovedTogether() {
+
+    for (int i = 0; i < 7; i++) {
+      ArchiverImpl.sharedArchiver().archiveEvent("pipelinedBatch" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+    SendRequest first = ArchiverImpl.sharedArchiver().nextSendRequest(2, 64 * 1024);
+    SendRequest second = ArchiverImpl.sharedArchiver().nextSendRequest(2, 64 * 1024);
+    SendRequest third = ArchiverImpl.sharedArchiver().nextSendRequest(2, 64 * 1024);
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(third.sequence, true);
+    ArchiverImpl.sharedArchiver().completeSendRequest(first.sequence, false);
+    ArchiverImpl.sharedArchiver().completeSendRequest(second.sequence, true);
+    assertEquals("Every acknowledged record is removed", 3, ArchiverImpl.sharedArchiver().getQueueCount());
+
+    SendRequest retry = ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024);
+    assertEquals("Only unacknowledged records are sent again", 3, retry.queries.size());
+    assertTrue("Records keep their order", retry.queries.get(0).contains("pipelinedBatch0"));
+    assertTrue("Records keep their order", retry.queries.get(1).contains("pipelinedBatch1"));
+    assertTrue("Records keep their order", retry.queries.get(2).contains("pipelinedBatch6"));
+  }
+
+
+  public final void testAliasIsSentAloneBetweenRequests() {
+
+    ArchiverImpl.sharedArchiver().archiveEvent("beforeAlias", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveAlias("pipelinedAlias", "pipelinedIdentity");
+    ArchiverImpl.sharedArchiver().archiveEvent("afterAlias", null, RecordCondition.RECORD_ALWAYS);
+
+    SendRequest before = ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024);
+    assertEquals("Batches end before an alias", 1, before.queries.size());
+    assertNull("An alias waits for the requests before it", ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024));
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(before.sequence, true);
+    SendRequest alias = ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024);
+    assertEquals("An alias is sent alone", 1, alias.queries.size());
+    assertTrue("An alias is sent alone", alias.queries.get(0).contains("pipelinedAlias"));
+    assertNull("Records behind an alias wait for it", ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024));
+
+    ArchiverImpl.sharedArchiver().completeSendRequest(alias.sequence, true);
+    SendRequest after = ArchiverImpl.sharedArchiver().nextSendRequest(10, 64 * 1024);
+    assertTrue("Records behind an alias are sent once it is accepted", after.queries.get(0).contains("afterAlias"));
+  }
+
+
+  public final void testExpiredRecordsAreNotSent() {
+
+    long now = System.currentTimeMillis() / 1000L;
+    this.uth_getSendQueue().add(QueueRecord.event("expiredOnLoad", null, "identity", now - 7200).encode());
+
+    KISSmetricsOptions options = new KISSmetricsOptions()
+        .setTimeToLive(3600 * 1000L);
+    this.uth_reloadSharedArchiver(options);
+
+    assertEquals("Expired records are dropped on load", 0, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Expired records are counted", 1, ArchiverImpl.sharedArchiver().getExpiredRecordCount());
+
+    this.uth_getSendQueue().add(QueueRecord.event("expiredWhileQueued", null, "identity", now - 7200).encode());
+    ArchiverImpl.sharedArchiver().archiveEvent("freshEvent", null, RecordCondition.RECORD_ALWAYS);
+
+    assertTrue("Expired head records are not sent", ArchiverImpl.sharedArchiver().getQueryString(0).contains("freshEvent"));
+    assertEquals("Expired records are counted", 2, ArchiverImpl.sharedArchiver().getExpiredRecordCount());
+  }
+
+
+  public final void testProductArchiversKeepSeparateState() {
+    Context context = getInstrumentation().getTargetContext();
+    ArchiverImpl productArchiver = ArchiverImpl.productArchiver(productKey, context, null);
+
+    assertNotSame("Products other than the singleton's have their own archiver", ArchiverImpl.sharedArchiver(), productArchiver);
+    assertSame("Each product has one archiver", productArchiver, ArchiverImpl.productArchiver(productKey, context, null));
+    assertSame("The singleton's product uses the singleton", ArchiverImpl.sharedArchiver(), ArchiverImpl.productArchiver(key, context, null));
+
+    ArchiverImpl.sharedArchiver().archiveFirstIdentity("sharedIdentity");
+    productArchiver.archiveFirstIdentity("productIdentity");
+    ArchiverImpl.sharedArchiver().archiveEvent("sharedEvent", null, RecordCondition.RECORD_ONCE_PER_INSTALL);
+    productArchiver.archiveEvent("productEvent", null, RecordCondition.RECORD_ALWAYS);
+    productArchiver.archiveEvent("productEvent", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Each product queues its own records", 1, ArchiverImpl.sharedArchiver().getQueueCount());
+    assertEquals("Each product queues its own records", 2, productArchiver.getQueueCount());
+    assertFalse("Each product saves its own events", productArchiver.isEventSaved("sharedEvent", RecordCondition.RECORD_ONCE_PER_INSTALL));
+    assertTrue("Each product encodes records with its own key", productArchiver.getQueryString(0).contains(productKey));
+    assertTrue("Each product's files are named for it", context.getFileStreamPath("KISSmetricsState-" + productKey).exists());
+
+    uth_resetProductArchivers();
+    this.uth_reloadSharedArchiver();
+    productArchiver = ArchiverImpl.productArchiver(productKey, context, null);
+
+    assertEquals("Each product's identity is reloaded", "sharedIdentity", ArchiverImpl.sharedArchiver().getIdentity());
+    assertEquals("Each product's identity is reloaded", "productIdentity", productArchiver.getIdentity());
+    assertEquals("Each product's records are reloaded", 2, productArchiver.getQueueCount());
+  }
+
+
+  public final void testSharedArchiverAdoptsProductArchiver() {
+    Context context = getInstrumentation().getTargetContext();
+    uth_resetSingleton();
+    ArchiverImpl productArchiver = ArchiverImpl.productArchiver(productKey, context, null);
+    productArchiver.archiveEvent("productEvent", null, RecordCondition.RECORD_ALWAYS);
+
+    assertSame("A product's archiver becomes the singleton", productArchiver, ArchiverImpl.sharedArchiver(productKey, context));
+    assertSame("The product keeps one archiver", productArchiver, ArchiverImpl.productArchiver(productKey, context, null));
+    assertEquals("Records archived before the singleton was created are kept", 1, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+
+  public final void testProductKeepsItsFilesWhicheverArchiverIsCreatedFirst() {
+    Context context = getInstrumentation().getTargetContext();
+
+    // Created as a product's archiver, then as the singleton on the next launch
+    uth_resetSingleton();
+    ArchiverImpl.productArchiver(productKey, context, null).archiveFirstIdentity("productIdentity");
+    ArchiverImpl.productArchiver(productKey, context, null).archiveEvent("productEvent", null, RecordCondition.RECORD_ALWAYS);
+    uth_resetProductArchivers();
+
+    ArchiverImpl.sharedArchiver(productKey, context);
+    assertEquals("The singleton keeps the product's identity", "productIdentity", ArchiverImpl.sharedArchiver().getIdentity());
+    assertEquals("The singleton keeps the product's records", 1, ArchiverImpl.sharedArchiver().getQueueCount());
+
+    // Created as the singleton, then as a product's archiver on the next launch
+    uth_resetSingleton();
+    uth_cleanSlate();
+    ArchiverImpl.sharedArchiver(productKey, context).archiveFirstIdentity("sharedIdentity");
+    uth_resetSingleton();
+
+    assertEquals("The product's archiver keeps the singleton's identity", "sharedIdentity",
+            ArchiverImpl.productArchiver(productKey, context, null).getIdentity());
+  }
+
+
+  public final void testQueuedRecordsReferToInternedIdentities() throws Exception {
+    String identity = "internedIdentity@example.com";
+    ArchiverImpl.sharedArchiver().archiveFirstIdentity(identity);
+    ArchiverImpl.sharedArchiver().archiveEvent("firstEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveEvent("secondEvent", null, RecordCondition.RECORD_ALWAYS);
+
+    byte[] record = this.uth_getSendQueue().get(1);
+    assertEquals("Queued events refer to their identity by id", QueueRecord.TYPE_EVENT_BY_ID, record[0]);
+    assertTrue("Queued events do not repeat the identity", record.length < identity.length());
+
+    this.uth_reloadSharedArchiver();
+
+    String query = ArchiverImpl.sharedArchiver().getQueryString(1);
+    assertTrue("Identities are resolved when records are sent", query.contains("secondEvent"));
+    assertTrue("Identities are resolved when records are sent", query.contains("internedIdentity"));
+  }
+
+  public final void testPurgeIdentityRemovesOnlyItsRecords() throws Exception {
+    String purged = "purgedIdentity@example.com";
+    String kept = "keptIdentity@example.com";
+    ArchiverImpl.sharedArchiver().archiveFirstIdentity(purged);
+    ArchiverImpl.sharedArchiver().archiveEvent("purgedEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveFirstIdentity(kept);
+    ArchiverImpl.sharedArchiver().archiveEvent("keptEvent", null, RecordCondition.RECORD_ALWAYS);
+    ArchiverImpl.sharedArchiver().archiveAlias("purgedAlias", purged);
+    HashMap<String, String> properties = new HashMap<String, String>();
+    properties.put("keptProperty", "value");
+    ArchiverImpl.sharedArchiver().archiveProperties(properties);
+    ArchiverImpl.sharedArchiver().archiveFirstIdentity(purged);
+    ArchiverImpl.sharedArchiver().archiveEvent("purgedEvent", null, RecordCondition.RECORD_ALWAYS);
+
+    assertEquals("Purge removes the identity's events and aliases", 3,
+            ArchiverImpl.sharedArchiver().purgeIdentity(purged));
+
+    this.uth_reloadSharedArchiver();
+
+    assertEquals("Purged records are removed from storage", 2,
+            ArchiverImpl.sharedArchiver().getQueueCount());
+    assertTrue("Other identities are kept",
+            ArchiverImpl.sharedArchiver().getQueryString(0).contains("keptEvent"));
+    assertTrue("Other identities are kept",
+            ArchiverImpl.sharedArchiver().getQueryString(1).contains("keptProperty"));
+
+    IdentityTable identities = new IdentityTable(
+            getInstrumentation().getTargetContext().getFileStreamPath("KISSmetricsIdentities"));
+    identities.load();
+    assertEquals("Purged identity is forgotten", -1, identities.idOf(purged));
+    assertTrue("Other identities are kept", identities.idOf(kept) >= 0);
+    identities.close();
   }
 }
@@ -23,6 +23,12 @@ import org.apache.cactus.mock.MockHttpURLConnection;
 import java.io.ByteArrayInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import org.junit.After;
 import org.junit.Before;
@@ -35,6 +41,8 @@ import android.util.Log;
 
 //Class test helpers
 import com.kissmetrics.sdk.ConnectionDelegate;
+import com.kissmetrics.sdk.ConnectionDelegate.BatchRejection;
+import com.kissmetrics.sdk.ConnectionDelegate.Outcome;
 import com.kissmetrics.sdk.ConnectionImpl;
 import com.kissmetrics.sdk.TestableConnectionImpl;
 
@@ -45,8 +53,10 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
   MockHttpURLConnection mockConnection = null;
 
   String resultUrl = null;
-  boolean resultSuccess = false;
-  boolean resultMalformed = false;
+  Outcome resultOutcome = null;
+  long resultRetryAfter = -1;
+  int resultRecordCount = 0;
+  BatchRejection resultRejection = null;
 
 
   @Before
@@ -71,8 +81,7 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
   public final void testConnectionResponseHeader200() {
     // Since we're testing the value of a local bool,
     // set it to the incorrect value before we test.
-    resultSuccess = false;
-    resultMalformed = true;
+    resultOutcome = null;
 
     mockConnection.setExpectedGetHeaderField("HTTP/1.1 200 OK");
 
@@ -84,13 +93,11 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
     connectionImpl.sendRecord("https://www.kissmetrics.io", this);
 
     // Assert values returned via callback
-    assertEquals("A 200 response is reported as successful", true, resultSuccess);
-    assertEquals("A 200 response is not malformed", false, resultMalformed);
+    assertEquals("A 200 response is reported as successful", Outcome.SUCCESS, resultOutcome);
   }
 
   public final void testConnectionResponseHeader304() {
-    resultSuccess = false;
-    resultMalformed = true;
+    resultOutcome = null;
 
     mockConnection.setExpectedGetHeaderField("HTTP/1.1 304 Not Modified");
 
@@ -101,13 +108,11 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
     connectionImpl.sendRecord("https://www.kissmetrics.io", this);
 
     // Assert values returned via callback
-    assertEquals("A 304 response is reported as successful", true, resultSuccess);
-    assertEquals("A 304 response is not malformed", false, resultMalformed);
+    assertEquals("A 304 response is reported as successful", Outcome.SUCCESS, resultOutcome);
   }
 
   public final void testConnectionResponseHeader404() {
-    resultSuccess = true;
-    resultMalformed = true;
+    resultOutcome = null;
 
     mockConnection.setExpectedGetHeaderField("HTTP/1.1 404 Not Found");
 
@@ -118,13 +123,11 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
     connectionImpl.sendRecord("https://www.kissmetrics.io", this);
 
     // Assert values returned via callback
-    assertEquals("A 404 response is reported as unsuccessful", false, resultSuccess);
-    assertEquals("A 404 response is not malformed", false, resultMalformed);
+    assertEquals("A 404 response is retried", Outcome.RETRYABLE_FAILURE, resultOutcome);
   }
 
   public final void testConnectionResponseHeader503() {
-    resultSuccess = true;
-    resultMalformed = true;
+    resultOutcome = null;
 
     mockConnection.setExpectedGetHeaderField("HTTP/1.1 503 Service Unavailable");
 
@@ -135,13 +138,11 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
     connectionImpl.sendRecord("https://www.kissmetrics.io", this);
 
     // Assert values returned via callback
-    assertEquals("A 503 response is reported as unsuccessful", false, resultSuccess);
-    assertEquals("A 503 response is not malformed", false, resultMalformed);
+    assertEquals("A 503 response is throttled", Outcome.THROTTLED, resultOutcome);
   }
 
   public final void testMalformedURL() {
-    resultSuccess = true;
-    resultMalformed = false;
+    resultOutcome = null;
 
     // No need to mock for malformedURL
     ConnectionImpl connectionImpl = new ConnectionImpl();
@@ -150,20 +151,239 @@ public class ConnectionImplTest extends ActivityTestCase implements ConnectionDe
     connectionImpl.sendRecord("htt.ps://www.kissmetrics.io", this);
 
     // Assert values returned via callback
-    assertEquals("A malformedURL is not successful", false, resultSuccess);
-    assertEquals("A malformedURL is malformed", true, resultMalformed);
+    assertEquals("A malformedURL is a permanent failure", Outcome.PERMANENT_FAILURE,
+            resultOutcome);
+  }
+
+  private List<String> uth_batch() {
+    List<String> queries = new ArrayList<String>();
+    queries.add("/e?_k=key&_p=identity&_n=firstEvent");
+    queries.add("/e?_k=key&_p=identity&_n=secondEvent");
+    return queries;
+  }
+
+  public final void testBatchIsPostedInOneRequest() throws Exception {
+    resultOutcome = null;
+    resultRejection = null;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    try {
+      // Method under test
+      new ConnectionImpl().sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+
+      assertEquals("An accepted batch is reported as successful", Outcome.SUCCESS, resultOutcome);
+      assertEquals("An accepted batch is not rejected", BatchRejection.NONE, resultRejection);
+      assertEquals("Every record of the batch is reported", 2, resultRecordCount);
+
+      List<TestableEndpoint.Request> requests = endpoint.requests();
+      assertEquals("A batch is a single request", 1, requests.size());
+      assertEquals("A batch is posted", "POST", requests.get(0).method);
+      assertEquals("A batch is posted to the batch URL", "/batch", requests.get(0).path);
+      assertEquals("Each record is a line of the body",
+              "/e?_k=key&_p=identity&_n=firstEvent\n/e?_k=key&_p=identity&_n=secondEvent\n",
+              requests.get(0).body);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testBatchNotFoundIsRejected() throws Exception {
+    resultOutcome = null;
+    resultRejection = null;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setBatchStatus(404);
+    try {
+      // Method under test
+      new ConnectionImpl().sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+
+      assertEquals("A 404 batch response is reported as unsuccessful", Outcome.PERMANENT_FAILURE,
+              resultOutcome);
+      assertEquals("A 404 batch response rejects batches", BatchRejection.UNSUPPORTED,
+              resultRejection);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testBatchTooLargeIsRejectedAsTooLarge() throws Exception {
+    resultRejection = null;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setBatchStatus(413);
+    try {
+      // Method under test
+      new ConnectionImpl().sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+
+      assertEquals("A 413 batch response asks for smaller batches", BatchRejection.TOO_LARGE,
+              resultRejection);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testBadBatchIsRejectedAsMalformed() throws Exception {
+    resultRejection = null;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setBatchStatus(400);
+    try {
+      // Method under test
+      new ConnectionImpl().sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+
+      assertEquals("A 400 batch response is sent again one record at a time", BatchRejection.MALFORMED,
+              resultRejection);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testBatchUnavailableIsNotRejected() throws Exception {
+    resultOutcome = null;
+    resultRejection = null;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setBatchStatus(503);
+    try {
+      // Method under test
+      new ConnectionImpl().sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+
+      assertEquals("A 503 batch response is throttled", Outcome.THROTTLED, resultOutcome);
+      assertEquals("A 503 batch response does not reject batches", BatchRejection.NONE,
+              resultRejection);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testKeepAliveReusesConnection() throws Exception {
+    TestableEndpoint endpoint = new TestableEndpoint();
+    try {
+      ConnectionImpl connectionImpl = new ConnectionImpl(true);
+
+      // Method under test
+      for (int i = 0; i < 3; i++) {
+        resultOutcome = null;
+        connectionImpl.sendRecord(endpoint.baseUrl() + "/e?_n=keepAlive" + i, this);
+        assertEquals("A 200 response is reported as successful", Outcome.SUCCESS, resultOutcome);
+      }
+      connectionImpl.sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+      assertEquals("An accepted batch is reported as successful", Outcome.SUCCESS, resultOutcome);
+
+      assertEquals("Every request is received", 4, endpoint.requests().size());
+      assertEquals("Requests reuse a single connection", 1, endpoint.connectionCount());
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testConnectionsAreClosedByDefault() throws Exception {
+    TestableEndpoint endpoint = new TestableEndpoint();
+    try {
+      ConnectionImpl connectionImpl = new ConnectionImpl();
+
+      // Method under test
+      for (int i = 0; i < 3; i++) {
+        connectionImpl.sendRecord(endpoint.baseUrl() + "/e?_n=close" + i, this);
+      }
+
+      assertEquals("Every request is received", 3, endpoint.requests().size());
+      assertEquals("Each request opens a new connection", 3, endpoint.connectionCount());
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testBadRequestIsPermanentFailure() throws Exception {
+    resultOutcome = null;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setRecordStatus(400);
+    try {
+      // Method under test
+      new ConnectionImpl().sendRecord(endpoint.baseUrl() + "/e?_n=bad", this);
+
+      assertEquals("A 400 response is a permanent failure", Outcome.PERMANENT_FAILURE,
+              resultOutcome);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testTooManyRequestsReportsRetryAfter() throws Exception {
+    resultOutcome = null;
+    resultRetryAfter = -1;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setRecordStatus(429);
+    endpoint.setRetryAfter("7");
+    try {
+      // Method under test
+      new ConnectionImpl().sendRecord(endpoint.baseUrl() + "/e?_n=throttled", this);
+
+      assertEquals("A 429 response is throttled", Outcome.THROTTLED, resultOutcome);
+      assertEquals("Retry-After seconds are reported in milliseconds", 7000, resultRetryAfter);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testRetryAfterDateIsReported() throws Exception {
+    resultRetryAfter = -1;
+
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setBatchStatus(503);
+    endpoint.setRetryAfter(format.format(new Date(System.currentTimeMillis() + 60000)));
+    try {
+      // Method under test
+      new ConnectionImpl().sendBatch(endpoint.baseUrl() + "/batch", uth_batch(), this);
+
+      assertEquals("A 503 batch response is throttled", Outcome.THROTTLED, resultOutcome);
+      assertTrue("A Retry-After date is reported as the wait until it",
+              resultRetryAfter > 55000 && resultRetryAfter <= 60000);
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  public final void testRetryAfterIsNotReportedWithoutHeader() throws Exception {
+    resultRetryAfter = 0;
+
+    TestableEndpoint endpoint = new TestableEndpoint();
+    endpoint.setRecordStatus(503);
+    try {
+      // Method under test
+      new ConnectionImpl().sendRecord(endpoint.baseUrl() + "/e?_n=unavailable", this);
+
+      assertEquals("No wait is reported without Retry-After", -1, resultRetryAfter);
+    } finally {
+      endpoint.close();
+    }
   }
 
   // ConnectionImpl uses a callback to return results.
   // Pickup the completion callback here and record the results.
   // We'll check these values as part of each test.
   @Override
-  public void connectionComplete(String urlString, boolean success, boolean malformed) {
+  public void connectionComplete(String urlString, Outcome outcome, long retryAfter) {
     Log.d("KISSmetricsAPI", "ConnectionImplTest as ConnectionDelegate received connectionComplete callback");
 
     // Set our results for testing
     this.resultUrl = urlString;
-    this.resultSuccess = success;
-    this.resultMalformed = malformed;
+    this.resultOutcome = outcome;
+    this.resultRetryAfter = retryAfter;
+  }
+
+  @Override
+  public void batchComplete(String urlString, int recordCount, Outcome outcome,
+                            BatchRejection rejection, long retryAfter) {
+    this.resultUrl = urlString;
+    this.resultRecordCount = recordCount;
+    this.resultOutcome = outcome;
+    this.resultRejection = rejection;
+    this.resultRetryAfter = retryAfter;
   }
 }
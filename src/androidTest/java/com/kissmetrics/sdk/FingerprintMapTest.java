@@ -0,0 +1,221 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+
+import android.test.ActivityTestCase;
+
+/**
+ * FingerprintMap Integration tests
+ */
+public class FingerprintMapTest extends ActivityTestCase {
+  static String mapName = "KISSmetricsTestFingerprintMap";
+
+  File mapFile;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    mapFile = getInstrumentation().getTargetContext().getFileStreamPath(mapName);
+    mapFile.delete();
+  }
+
+  protected void tearDown() throws Exception {
+    mapFile.delete();
+    super.tearDown();
+  }
+
+  private FingerprintMap uth_open(boolean writeBehind) {
+    FingerprintMap map = new FingerprintMap(mapFile, writeBehind);
+    map.load();
+    return map;
+  }
+
+  private FingerprintMap uth_reopen(FingerprintMap map) {
+    map.close();
+    return uth_open(false);
+  }
+
+  public final void testPutEntriesSurviveReload() {
+    FingerprintMap map = uth_open(false);
+    assertTrue("New values are put", map.put("propertyOne", "valueOne"));
+    assertTrue("New values are put", map.put("propertyTwo", "valueTwo"));
+    assertFalse("Unchanged values are not put again", map.put("propertyOne", "valueOne"));
+
+    map = uth_reopen(map);
+
+    assertEquals("Entries are replayed", 2, map.size());
+    assertTrue("Entries are replayed", map.containsEntry("propertyOne", "valueOne"));
+    assertTrue("Entries are replayed", map.containsEntry("propertyTwo", "valueTwo"));
+    assertFalse("Only put values are contained", map.containsEntry("propertyOne", "valueTwo"));
+    assertFalse("Only put keys are contained", map.containsEntry("propertyThree", "valueOne"));
+    map.close();
+  }
+
+  public final void testLaterValuesReplaceEarlierOnes() {
+    FingerprintMap map = uth_open(false);
+    map.put("property", "valueOne");
+    assertTrue("Changed values are put", map.put("property", "valueTwo"));
+    assertTrue("Values can be toggled back", map.put("property", "valueOne"));
+
+    map = uth_reopen(map);
+
+    assertEquals("Each key is kept once", 1, map.size());
+    assertTrue("The last value is replayed", map.containsEntry("property", "valueOne"));
+    assertFalse("Replaced values are not contained", map.containsEntry("property", "valueTwo"));
+    map.close();
+  }
+
+  public final void testNullValuesAreNeverContained() {
+    FingerprintMap map = uth_open(false);
+    map.put("property", "value");
+
+    assertTrue("Null values are always put", map.put("property", null));
+    assertTrue("Null values are always put", map.put("property", null));
+    assertFalse("Null values are never contained", map.containsEntry("property", null));
+    assertFalse("Null values replace earlier values", map.containsEntry("property", "value"));
+    map.close();
+  }
+
+  public final void testPuttingAppendsOneEntry() {
+    FingerprintMap map = uth_open(false);
+    map.put("propertyOne", "valueOne");
+    map.put("propertyTwo", "valueTwo");
+    map.put("propertyTwo", "valueTwo");
+
+    assertEquals("Each changed value appends one entry", FingerprintMap.HEADER_SIZE + 2 * FingerprintMap.ENTRY_SIZE, mapFile.length());
+    map.close();
+  }
+
+  public final void testTableGrows() {
+    FingerprintMap map = uth_open(false);
+    for (int i = 0; i < 1000; i++) {
+      map.put("property" + i, "value" + i);
+    }
+
+    map = uth_reopen(map);
+    assertEquals("Every entry is kept", 1000, map.size());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue("Every entry is kept", map.containsEntry("property" + i, "value" + i));
+    }
+    map.close();
+  }
+
+  public final void testReplacedEntriesAreCompacted() {
+    FingerprintMap map = uth_open(false);
+    for (int i = 0; i < FingerprintMap.COMPACT_MIN_ENTRIES * 4; i++) {
+      map.put("property" + (i % 4), "value" + i);
+    }
+
+    assertTrue("Replaced entries are compacted", map.logSize() < FingerprintMap.COMPACT_MIN_ENTRIES);
+    assertEquals("The log matches its entry count", FingerprintMap.HEADER_SIZE + map.logSize() * FingerprintMap.ENTRY_SIZE, mapFile.length());
+
+    map = uth_reopen(map);
+    assertEquals("Compacted entries are replayed", 4, map.size());
+    int last = FingerprintMap.COMPACT_MIN_ENTRIES * 4 - 1;
+    assertTrue("Compacted entries keep the last value", map.containsEntry("property" + (last % 4), "value" + last));
+    map.close();
+  }
+
+  public final void testClearEmptiesMap() {
+    FingerprintMap map = uth_open(false);
+    map.put("propertyOne", "valueOne");
+    map.clear();
+
+    assertFalse("Cleared entries are removed", map.containsEntry("propertyOne", "valueOne"));
+    assertEquals("Clearing truncates the file", FingerprintMap.HEADER_SIZE, mapFile.length());
+
+    map.put("propertyTwo", "valueTwo");
+    map = uth_reopen(map);
+    assertEquals("Entries put after clearing are replayed", 1, map.size());
+    assertTrue("Entries put after clearing are replayed", map.containsEntry("propertyTwo", "valueTwo"));
+    map.close();
+  }
+
+  public final void testTruncatedEntryIsDropped() throws Exception {
+    FingerprintMap map = uth_open(false);
+    map.put("propertyOne", "valueOne");
+    map.put("propertyTwo", "valueTwo");
+    map.close();
+
+    // Simulate a process killed part way through appending propertyTwo
+    RandomAccessFile raf = new RandomAccessFile(mapFile, "rw");
+    raf.setLength(raf.length() - 5);
+    raf.close();
+
+    map = uth_open(false);
+    assertEquals("Complete entries are kept", 1, map.size());
+    assertTrue("Complete entries are kept", map.containsEntry("propertyOne", "valueOne"));
+
+    map.put("propertyThree", "valueThree");
+    map = uth_reopen(map);
+    assertTrue("Appends after recovery are readable", map.containsEntry("propertyThree", "valueThree"));
+    map.close();
+  }
+
+  public final void testWriteBehindHoldsChangesUntilFlush() {
+    FingerprintMap map = uth_open(false);
+    map.put("propertyOne", "valueOne");
+    map.close();
+
+    map = uth_open(true);
+    map.clear();
+    map.put("propertyTwo", "valueTwo");
+
+    assertEquals("Changes are held until flushed", FingerprintMap.HEADER_SIZE + FingerprintMap.ENTRY_SIZE, mapFile.length());
+
+    map.flush();
+    map = uth_reopen(map);
+    assertFalse("Entries cleared before the flush are removed", map.containsEntry("propertyOne", "valueOne"));
+    assertTrue("Entries put after clearing are written", map.containsEntry("propertyTwo", "valueTwo"));
+    map.close();
+  }
+
+  public final void testReadsDoNotWaitOnTheLog() throws Exception {
+    final FingerprintMap map = uth_open(false);
+    Field field = FingerprintMap.class.getDeclaredField("fileLock");
+    field.setAccessible(true);
+    Object fileLock = field.get(map);
+
+    Thread writer;
+    synchronized (fileLock) {
+      // Stands in for a slow write or compaction of the log
+      writer = new Thread(new Runnable() {
+        public void run() {
+          map.put("property", "value");
+        }
+      });
+      writer.start();
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!map.containsEntry("property", "value") && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue("Entries are read while the log is written",
+              map.containsEntry("property", "value"));
+    }
+    writer.join();
+
+    FingerprintMap reopened = uth_reopen(map);
+    assertTrue("The entry is written once the log is free",
+            reopened.containsEntry("property", "value"));
+    reopened.close();
+  }
+}
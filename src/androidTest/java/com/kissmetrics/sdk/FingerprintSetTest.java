@@ -0,0 +1,188 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+
+import android.test.ActivityTestCase;
+
+/**
+ * FingerprintSet Integration tests
+ */
+public class FingerprintSetTest extends ActivityTestCase {
+  static String setName = "KISSmetricsTestFingerprints";
+
+  File setFile;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    setFile = getInstrumentation().getTargetContext().getFileStreamPath(setName);
+    setFile.delete();
+  }
+
+  protected void tearDown() throws Exception {
+    setFile.delete();
+    super.tearDown();
+  }
+
+  private FingerprintSet uth_open(boolean writeBehind) {
+    FingerprintSet set = new FingerprintSet(setFile, writeBehind);
+    set.load();
+    return set;
+  }
+
+  private FingerprintSet uth_reopen(FingerprintSet set) {
+    set.close();
+    return uth_open(false);
+  }
+
+  public final void testAddedStringsSurviveReload() {
+    FingerprintSet set = uth_open(false);
+    assertTrue("New strings are added", set.add("eventOne"));
+    assertTrue("New strings are added", set.add("eventTwo"));
+    assertFalse("Strings are only added once", set.add("eventOne"));
+
+    set = uth_reopen(set);
+
+    assertEquals("Strings are replayed", 2, set.size());
+    assertTrue("Strings are replayed", set.contains("eventOne"));
+    assertTrue("Strings are replayed", set.contains("eventTwo"));
+    assertFalse("Only added strings are contained", set.contains("eventThree"));
+    set.close();
+  }
+
+  public final void testAddingAppendsOneEntry() {
+    FingerprintSet set = uth_open(false);
+    set.add("eventOne");
+    set.add("eventTwo");
+    set.add("eventTwo");
+
+    assertEquals("Each new string appends one entry", FingerprintSet.HEADER_SIZE + 2 * FingerprintSet.ENTRY_SIZE, setFile.length());
+    set.close();
+  }
+
+  public final void testTableGrows() {
+    FingerprintSet set = uth_open(false);
+    for (int i = 0; i < 1000; i++) {
+      set.add("event" + i);
+    }
+
+    set = uth_reopen(set);
+    assertEquals("Every string is kept", 1000, set.size());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue("Every string is kept", set.contains("event" + i));
+    }
+    set.close();
+  }
+
+  public final void testClearEmptiesSet() {
+    FingerprintSet set = uth_open(false);
+    set.add("eventOne");
+    set.clear();
+
+    assertFalse("Cleared strings are removed", set.contains("eventOne"));
+    assertEquals("Clearing truncates the file", FingerprintSet.HEADER_SIZE, setFile.length());
+
+    set.add("eventTwo");
+    set = uth_reopen(set);
+    assertEquals("Strings added after clearing are replayed", 1, set.size());
+    assertTrue("Strings added after clearing are replayed", set.contains("eventTwo"));
+    set.close();
+  }
+
+  public final void testTruncatedEntryIsDropped() throws Exception {
+    FingerprintSet set = uth_open(false);
+    set.add("eventOne");
+    set.add("eventTwo");
+    set.close();
+
+    // Simulate a process killed part way through appending eventTwo
+    RandomAccessFile raf = new RandomAccessFile(setFile, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    set = uth_open(false);
+    assertEquals("Complete entries are kept", 1, set.size());
+    assertTrue("Complete entries are kept", set.contains("eventOne"));
+
+    set.add("eventThree");
+    set = uth_reopen(set);
+    assertTrue("Appends after recovery are readable", set.contains("eventThree"));
+    set.close();
+  }
+
+  public final void testWriteBehindHoldsAppendsUntilFlush() {
+    FingerprintSet set = uth_open(true);
+    set.add("eventOne");
+    set.add("eventTwo");
+
+    assertEquals("Appends are held until flushed", FingerprintSet.HEADER_SIZE, setFile.length());
+
+    set.flush();
+    set = uth_reopen(set);
+    assertEquals("Flushed strings are replayed", 2, set.size());
+    set.close();
+  }
+
+  public final void testWriteBehindHoldsClearUntilFlush() {
+    FingerprintSet set = uth_open(false);
+    set.add("eventOne");
+    set.close();
+
+    set = uth_open(true);
+    set.clear();
+    set.add("eventTwo");
+    set.flush();
+
+    set = uth_reopen(set);
+    assertFalse("Strings cleared before the flush are removed", set.contains("eventOne"));
+    assertTrue("Strings added after clearing are written", set.contains("eventTwo"));
+    set.close();
+  }
+
+  public final void testReadsDoNotWaitOnTheFile() throws Exception {
+    final FingerprintSet set = uth_open(false);
+    Field field = FingerprintSet.class.getDeclaredField("fileLock");
+    field.setAccessible(true);
+    Object fileLock = field.get(set);
+
+    Thread writer;
+    synchronized (fileLock) {
+      // Stands in for a slow write to the file
+      writer = new Thread(new Runnable() {
+        public void run() {
+          set.add("eventName");
+        }
+      });
+      writer.start();
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!set.contains("eventName") && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue("Strings are read while the file is written", set.contains("eventName"));
+    }
+    writer.join();
+
+    FingerprintSet reopened = uth_reopen(set);
+    assertTrue("The string is written once the file is free", reopened.contains("eventName"));
+    reopened.close();
+  }
+}
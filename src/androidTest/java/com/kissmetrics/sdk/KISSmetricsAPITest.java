@@ -37,8 +37,10 @@ import org.junit.Before;
 
 import com.kissmetrics.sdk.ArchiverImpl;
 import com.kissmetrics.sdk.KISSmetricsAPI;
+import com.kissmetrics.sdk.KISSmetricsAPI.RecordCondition;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.test.ActivityTestCase;
 
@@ -84,11 +86,22 @@ public class KISSmetricsAPITest extends ActivityTestCase {
   }
 
   public void uth_cleanSlate() {
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsState");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedIdEventIndex");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedInstallEventIndex");
+    getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedPropertyIndex");
+
+    // Legacy identity, settings and saved events and properties
     SharedPreferences pref = getInstrumentation().getTargetContext().getSharedPreferences("KISSmetricsIdentity", Activity.MODE_PRIVATE);
     pref.edit().clear().commit();
 
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSettings");
-    getInstrumentation().getTargetContext().deleteFile("KISSmetricsActions");
+    for (String fileName : getInstrumentation().getTargetContext().fileList()) {
+      // Legacy send queue and its segments
+      if (fileName.startsWith("KISSmetricsActions")) {
+        getInstrumentation().getTargetContext().deleteFile(fileName);
+      }
+    }
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedEvents");
     getInstrumentation().getTargetContext().deleteFile("KISSmetricsSavedProperties");
   }
@@ -368,4 +381,111 @@ public class KISSmetricsAPITest extends ActivityTestCase {
     Thread.sleep(1000);
     assertEquals("Ignores second call to set distinct property with the same value", 1, ArchiverImpl.sharedArchiver().getQueueCount());
   }
+
+  public final void testSetDistinctPropertyAllowsValueToggling() throws InterruptedException {
+    startApiWithTrackingAndResponseHeader("true", "HTTP/1.1 503 SERVICE UNAVAILABLE");
+
+    ArchiverImpl.sharedArchiver().clearSavedProperties();
+
+    KISSmetricsAPI.sharedAPI().setDistinct("testSetDistinctToggledProperty", "testValue");
+    Thread.sleep(1000);
+    KISSmetricsAPI.sharedAPI().setDistinct("testSetDistinctToggledProperty", "testNewValue");
+    Thread.sleep(1000);
+    KISSmetricsAPI.sharedAPI().setDistinct("testSetDistinctToggledProperty", "testValue");
+    KISSmetricsAPI.sharedAPI().setDistinct("testSetDistinctToggledProperty", "testValue");
+
+    Thread.sleep(1000);
+    assertEquals("Toggled distinct property values are recorded", 3, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+  public final void testRecordOncePerIdentityAfterClearIdentity() throws InterruptedException {
+    startApiWithTrackingAndResponseHeader("true", "HTTP/1.1 503 SERVICE UNAVAILABLE");
+
+    KISSmetricsAPI.sharedAPI().record("testRecordOnceAfterClearIdentity", RecordCondition.RECORD_ONCE_PER_IDENTITY);
+    Thread.sleep(1000);
+    KISSmetricsAPI.sharedAPI().record("testRecordOnceAfterClearIdentity", RecordCondition.RECORD_ONCE_PER_IDENTITY);
+
+    KISSmetricsAPI.sharedAPI().clearIdentity();
+    Thread.sleep(1000);
+    KISSmetricsAPI.sharedAPI().record("testRecordOnceAfterClearIdentity", RecordCondition.RECORD_ONCE_PER_IDENTITY);
+
+    Thread.sleep(1000);
+    assertEquals("Events are recorded once per identity", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+  public final void testCallsMadeDuringInitializationAreKept() throws InterruptedException {
+    mockVerificationResponse("true");
+    mockResponse("HTTP/1.1 503 SERVICE UNAVAILABLE");
+
+    // Called before the archive has finished loading in the background
+    KISSmetricsAPI.sharedAPI(key, this.getInstrumentation().getTargetContext()).record("testCallsMadeDuringInitializationAreKept");
+
+    HashMap<String, String> propertyHash = new HashMap<String, String>();
+    propertyHash.put("testCallsMadeDuringInitializationAreKept", "1");
+    KISSmetricsAPI.sharedAPI().set(propertyHash);
+
+    assertNotNull("identity waits for the archive to be loaded", KISSmetricsAPI.sharedAPI().identity());
+
+    Thread.sleep(1000);
+    assertEquals("Calls made during initialization are recorded", 2, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+  public final void testCallsBeyondThePreInitBufferAreKept() throws InterruptedException {
+    mockVerificationResponse("true");
+    mockResponse("HTTP/1.1 503 SERVICE UNAVAILABLE");
+
+    // More calls than are buffered without waiting for the archive to load
+    KISSmetricsAPI api = KISSmetricsAPI.sharedAPI(key, this.getInstrumentation().getTargetContext());
+    for (int i = 0; i < 600; i++) {
+      api.record("testCallsBeyondThePreInitBufferAreKept" + i);
+    }
+
+    Thread.sleep(2000);
+    assertEquals("Calls beyond the pre-init buffer are recorded", 600, ArchiverImpl.sharedArchiver().getQueueCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  public final void testCallsAfterFailedInitializationAreIgnored() throws Exception {
+    String failedKey = "testCallsAfterFailedInitializationAreIgnored";
+    // Loading the archive fails without a context
+    KISSmetricsAPI api = KISSmetricsAPI.productAPI(failedKey, null);
+    try {
+      api.record("testCallsAfterFailedInitializationAreIgnored");
+      api.flush();
+
+      assertNull("identity is null once initializing failed", api.identity());
+      assertEquals("Counts are 0 once initializing failed", 0, api.droppedRecordCount());
+
+      for (int i = 0; i < 600; i++) {
+        api.record("testCallsAfterFailedInitializationAreIgnored" + i);
+      }
+      Field preInitBuffer = KISSmetricsAPI.class.getDeclaredField("preInitBuffer");
+      preInitBuffer.setAccessible(true);
+      assertNull("Calls are not buffered once initializing failed", preInitBuffer.get(api));
+    } finally {
+      Field productAPIs = KISSmetricsAPI.class.getDeclaredField("productAPIs");
+      productAPIs.setAccessible(true);
+      ((HashMap<String, KISSmetricsAPI>) productAPIs.get(null)).remove(failedKey);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public final void testSharedAPIAdoptsProductAPI() throws Exception {
+    Context context = this.getInstrumentation().getTargetContext();
+    KISSmetricsAPI productApi = KISSmetricsAPI.productAPI(key, context);
+    try {
+      assertSame("A product's instance becomes the singleton", productApi, KISSmetricsAPI.sharedAPI(key, context));
+      assertSame("The product keeps one instance", productApi, KISSmetricsAPI.productAPI(key, context));
+    } finally {
+      Thread.sleep(500);
+      Field productArchivers = ArchiverImpl.class.getDeclaredField("productArchivers");
+      productArchivers.setAccessible(true);
+      ((HashMap<String, ArchiverImpl>) productArchivers.get(null)).clear();
+      for (String fileName : context.fileList()) {
+        if (fileName.contains("-" + key)) {
+          context.deleteFile(fileName);
+        }
+      }
+    }
+  }
 }
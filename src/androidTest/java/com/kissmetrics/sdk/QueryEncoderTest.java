@@ -17,6 +17,7 @@
 
 package com.kissmetrics.sdk;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 
@@ -187,4 +188,71 @@ public class QueryEncoderTest extends AndroidTestCase {
     assertEquals("URL incorrect", expectedQuery, createdQuery);
   }
 
+  public final void test_createQueryFromEventRecord() throws Exception {
+    LinkedHashMap<String, String> properties = new LinkedHashMap<String, String>();
+    properties.put("propertyOne", "testPropertyOne");
+    properties.put("propertyTwo", "testPropertyTwo");
+    long timestamp = System.currentTimeMillis() / 1000;
+
+    byte[] record = QueueRecord.event("testEvent", properties, "testuser@example.com", timestamp).encode();
+
+    String expectedQuery = cut.createEventQuery("testEvent", properties, "testuser@example.com", timestamp);
+
+    assertEquals("URL incorrect", expectedQuery, cut.createQuery(QueueRecord.decode(record)));
+  }
+
+  public final void test_createQueryFromPropertiesRecord() throws Exception {
+    LinkedHashMap<String, String> properties = new LinkedHashMap<String, String>();
+    properties.put("propertyOne", "testPropertyOne");
+    properties.put("_d", "1");
+    properties.put("_t", "1400000000");
+    long timestamp = System.currentTimeMillis() / 1000;
+
+    byte[] record = QueueRecord.properties(properties, "testuser@example.com", timestamp).encode();
+
+    String expectedQuery = cut.createPropertiesQuery(properties, "testuser@example.com", timestamp);
+
+    assertEquals("URL incorrect", expectedQuery, cut.createQuery(QueueRecord.decode(record)));
+  }
+
+  public final void test_createQueryFromAliasRecord() throws Exception {
+    byte[] record = QueueRecord.alias("testolduser@example.com", "testnewuser@example.com").encode();
+
+    String expectedQuery = cut.createAliasQuery("testolduser@example.com", "testnewuser@example.com");
+
+    assertEquals("URL incorrect", expectedQuery, cut.createQuery(QueueRecord.decode(record)));
+  }
+
+  public final void test_createQueryFromRawRecords() throws Exception {
+    String queryString = "/e?_k=xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx&_n=testEvent";
+
+    assertEquals("Raw records are sent as is", queryString,
+        cut.createQuery(QueueRecord.decode(QueueRecord.raw(queryString).encode())));
+    assertEquals("Plain query strings are read as raw records", queryString,
+        cut.createQuery(QueueRecord.decode(queryString.getBytes("UTF-8"))));
+  }
+
+  public final void test_recordsOmitRepeatedQueryPrefix() {
+    long timestamp = System.currentTimeMillis() / 1000;
+    String query = cut.createEventQuery("testEvent", null, "testuser@example.com", timestamp);
+    byte[] record = QueueRecord.event("testEvent", null, "testuser@example.com", timestamp).encode();
+
+    assertTrue("Records are smaller than their query strings", record.length < query.length() / 2);
+  }
+
+  public final void test_decodeTruncatedRecordFails() {
+    HashMap<String, String> properties = new HashMap<String, String>();
+    properties.put("propertyOne", "testPropertyOne");
+    byte[] record = QueueRecord.event("testEvent", properties, "testuser@example.com", 1L).encode();
+
+    byte[] truncated = new byte[record.length - 3];
+    System.arraycopy(record, 0, truncated, 0, truncated.length);
+
+    try {
+      QueueRecord.decode(truncated);
+      fail("Truncated records are rejected");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
 }
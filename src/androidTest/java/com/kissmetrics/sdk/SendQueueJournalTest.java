@@ -0,0 +1,643 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import android.test.ActivityTestCase;
+
+/**
+ * SendQueueJournal Integration tests
+ */
+public class SendQueueJournalTest extends ActivityTestCase {
+  static String journalName = "KISSmetricsTestJournal";
+  static String largeRecord = "https://trc.kissmetrics.io/e?_n=record";
+
+  File directory;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = getInstrumentation().getTargetContext().getFilesDir();
+    uth_deleteSegments();
+  }
+
+  protected void tearDown() throws Exception {
+    uth_deleteSegments();
+    super.tearDown();
+  }
+
+  private void uth_deleteSegments() {
+    for (File file : uth_segmentFiles()) {
+      file.delete();
+    }
+  }
+
+  private File[] uth_segmentFiles() {
+    File[] files = directory.listFiles();
+    int count = 0;
+    for (File file : files) {
+      if (file.getName().startsWith(journalName + ".")) {
+        files[count++] = file;
+      }
+    }
+
+    File[] segmentFiles = new File[count];
+    System.arraycopy(files, 0, segmentFiles, 0, count);
+    return segmentFiles;
+  }
+
+  private static byte[] uth_bytes(String record) {
+    try {
+      return record.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String uth_string(byte[] record) {
+    try {
+      return new String(record, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private File uth_segment(int number) {
+    return new File(directory, String.format("%s.%04d", journalName, number));
+  }
+
+  private SendQueueJournal uth_open() {
+    SendQueueJournal journal = new SendQueueJournal(directory, journalName);
+    journal.load();
+    return journal;
+  }
+
+  private SendQueueJournal uth_reopen(SendQueueJournal journal) {
+    journal.close();
+    return uth_open();
+  }
+
+  private SendQueueJournal uth_openWindowed(boolean writeBehind, int window) {
+    SendQueueJournal journal = new SendQueueJournal(directory, journalName, writeBehind, window);
+    journal.load();
+    return journal;
+  }
+
+  // Adds records until the journal spans the given number of segments.
+  private int uth_fillSegments(SendQueueJournal journal, int segmentCount) {
+    int count = 0;
+    while (!uth_segment(segmentCount).exists()) {
+      journal.add(uth_bytes(largeRecord + count));
+      count++;
+    }
+    return count;
+  }
+
+  public final void testAddedRecordsSurviveReload() {
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_bytes("recordOne"));
+    journal.add(uth_bytes("recordTwo"));
+
+    journal = uth_reopen(journal);
+
+    assertEquals("Records are replayed", 2, journal.size());
+    assertEquals("Records keep their order", "recordOne", uth_string(journal.get(0)));
+    assertEquals("Records keep their order", "recordTwo", uth_string(journal.get(1)));
+    assertTrue("Records are stored in numbered segments", uth_segment(1).exists());
+    journal.close();
+  }
+
+  public final void testAcknowledgedRecordsAreNotReplayed() {
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_bytes("recordOne"));
+    journal.add(uth_bytes("recordTwo"));
+    journal.remove(0);
+
+    journal = uth_reopen(journal);
+
+    assertEquals("Acknowledged records are skipped", 1, journal.size());
+    assertEquals("The read cursor points to the next record", "recordTwo", uth_string(journal.get(0)));
+    journal.close();
+  }
+
+  public final void testAcknowledgingDoesNotRewriteJournal() {
+    SendQueueJournal journal = uth_open();
+    for (int i = 0; i < 100; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+    long length = uth_segment(1).length();
+
+    for (int i = 0; i < 50; i++) {
+      journal.remove(0);
+    }
+
+    assertEquals("Acknowledging only advances the read cursor", length, uth_segment(1).length());
+    assertEquals("Acknowledged records are removed", "record50", uth_string(journal.get(0)));
+    journal.close();
+  }
+
+  public final void testSegmentsAreRolledAtSegmentSize() {
+    SendQueueJournal journal = uth_open();
+    int count = uth_fillSegments(journal, 3);
+
+    assertTrue("Closed segments do not grow far past the segment size",
+        uth_segment(1).length() < SendQueueJournal.SEGMENT_SIZE + 1024);
+
+    journal = uth_reopen(journal);
+    assertEquals("Records in every segment are replayed", count, journal.size());
+    assertEquals("Records keep their order across segments", largeRecord + (count - 1),
+        uth_string(journal.get(count - 1)));
+    journal.close();
+  }
+
+  public final void testFullyAcknowledgedSegmentIsDeleted() {
+    SendQueueJournal journal = uth_open();
+    int count = uth_fillSegments(journal, 2);
+    int firstSegmentCount = count - 1;
+
+    for (int i = 0; i < firstSegmentCount; i++) {
+      journal.remove(0);
+    }
+
+    assertFalse("Fully acknowledged segment is deleted", uth_segment(1).exists());
+    assertTrue("Segment with pending records is kept", uth_segment(2).exists());
+
+    journal = uth_reopen(journal);
+    assertEquals("Only pending records are replayed", 1, journal.size());
+    assertEquals("Only pending records are replayed", largeRecord + firstSegmentCount,
+        uth_string(journal.get(0)));
+    journal.close();
+  }
+
+  public final void testDrainingLargeBacklogDeletesSegments() {
+    SendQueueJournal journal = uth_open();
+    for (int i = 0; i < 10000; i++) {
+      journal.add(uth_bytes(largeRecord + i));
+    }
+
+    for (int i = 0; i < 9999; i++) {
+      journal.remove(0);
+    }
+
+    assertEquals("One record remains", 1, journal.size());
+    assertEquals("The remaining record is the last added", largeRecord + 9999, uth_string(journal.get(0)));
+    assertEquals("Drained segments are deleted", 1, uth_segmentFiles().length);
+
+    journal = uth_reopen(journal);
+    assertEquals("The remaining record is replayed", largeRecord + 9999, uth_string(journal.get(0)));
+    journal.close();
+  }
+
+  public final void testPartiallyAcknowledgedSegmentIsCompactedInBackground() throws Exception {
+    SendQueueJournal journal = uth_open();
+    int count = uth_fillSegments(journal, 2);
+    int acknowledged = (count - 1) * 3 / 4;
+
+    for (int i = 0; i < acknowledged; i++) {
+      journal.remove(0);
+    }
+    long length = uth_segment(1).length();
+
+    journal = uth_reopen(journal);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (uth_segment(1).length() == length && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+
+    assertTrue("Acknowledged records are compacted away", uth_segment(1).length() < length / 2);
+    assertEquals("Pending records are kept", count - acknowledged, journal.size());
+    assertEquals("Pending records are kept", largeRecord + acknowledged, uth_string(journal.get(0)));
+
+    journal.remove(0);
+    journal = uth_reopen(journal);
+    assertEquals("Acknowledging after compaction advances the new cursor",
+        largeRecord + (acknowledged + 1), uth_string(journal.get(0)));
+    assertEquals("Acknowledging after compaction advances the new cursor",
+        count - acknowledged - 1, journal.size());
+    journal.close();
+  }
+
+  public final void testTruncatedEntryIsDropped() throws Exception {
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_bytes("recordOne"));
+    journal.add(uth_bytes("recordTwo"));
+    journal.close();
+
+    // Simulate a process killed part way through appending recordTwo
+    RandomAccessFile raf = new RandomAccessFile(uth_segment(1), "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    journal = uth_open();
+    assertEquals("Complete records are kept", 1, journal.size());
+
+    journal.add(uth_bytes("recordThree"));
+    journal = uth_reopen(journal);
+    assertEquals("Appends after recovery are readable", "recordThree", uth_string(journal.get(1)));
+    journal.close();
+  }
+
+  public final void testClearEmptiesJournal() {
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_bytes("recordOne"));
+    journal.clear();
+
+    journal = uth_reopen(journal);
+    assertEquals("Cleared records are not replayed", 0, journal.size());
+    journal.close();
+  }
+
+  public final void testWriteBehindHoldsAppendsUntilFlush() {
+    SendQueueJournal journal = new SendQueueJournal(directory, journalName, true);
+    journal.load();
+    for (int i = 0; i < 50; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+
+    assertFalse("Appends are held until flushed", uth_segment(1).exists());
+
+    journal.flush();
+    assertEquals("Flush writes held appends", 1, uth_segmentFiles().length);
+
+    journal = uth_reopen(journal);
+    assertEquals("Flushed records are replayed", 50, journal.size());
+    assertEquals("Flushed records keep their order", "record49", uth_string(journal.get(49)));
+    journal.close();
+  }
+
+  public final void testWriteBehindAcknowledgesHeldRecords() {
+    SendQueueJournal journal = new SendQueueJournal(directory, journalName, true);
+    journal.load();
+    journal.add(uth_bytes("recordOne"));
+    journal.flush();
+    journal.add(uth_bytes("recordTwo"));
+    journal.add(uth_bytes("recordThree"));
+
+    // Acknowledges a written record, then a held one
+    journal.remove(0);
+    journal.remove(0);
+    journal.flush();
+
+    journal = uth_reopen(journal);
+    assertEquals("Acknowledged records are not replayed", 1, journal.size());
+    assertEquals("Held records are written after acknowledged ones", "recordThree",
+        uth_string(journal.get(0)));
+    journal.close();
+  }
+
+  public final void testRecordFailingChecksumEndsRecovery() throws Exception {
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_bytes("recordOne"));
+    journal.add(uth_bytes("recordTwo"));
+    journal.add(uth_bytes("recordThree"));
+    journal.close();
+
+    // Flip a byte inside recordTwo
+    RandomAccessFile raf = new RandomAccessFile(uth_segment(1), "rw");
+    raf.seek(12 + 8 + "recordOne".length() + 8 + 2);
+    raf.write('X');
+    raf.close();
+
+    journal = uth_open();
+    assertEquals("Records before the corrupt record are recovered", 1, journal.size());
+    assertEquals("Records before the corrupt record are recovered", "recordOne",
+        uth_string(journal.get(0)));
+
+    journal.add(uth_bytes("recordFour"));
+    journal = uth_reopen(journal);
+    assertEquals("Appends after recovery are readable", "recordFour", uth_string(journal.get(1)));
+    journal.close();
+  }
+
+  public final void testSegmentWithoutChecksumsIsUpgraded() throws Exception {
+    // A segment written before entries carried a CRC
+    RandomAccessFile raf = new RandomAccessFile(uth_segment(1), "rw");
+    raf.writeInt(0x4b4d4a31);
+    raf.writeLong(12);
+    raf.writeInt("recordOne".length());
+    raf.write(uth_bytes("recordOne"));
+    raf.close();
+
+    SendQueueJournal journal = uth_open();
+    assertEquals("Records without checksums are read", "recordOne", uth_string(journal.get(0)));
+    assertFalse("Segments without checksums are replaced", uth_segment(1).exists());
+
+    journal = uth_reopen(journal);
+    assertEquals("Replaced records are replayed", 1, journal.size());
+    assertEquals("Replaced records are replayed", "recordOne", uth_string(journal.get(0)));
+    journal.close();
+  }
+
+  public final void testMemoryWindowHoldsOnlyHeadRecords() {
+    SendQueueJournal journal = uth_openWindowed(false, 10);
+    for (int i = 0; i < 10000; i++) {
+      journal.add(uth_bytes(largeRecord + i));
+    }
+
+    assertEquals("Every record is queued", 10000, journal.size());
+    assertEquals("Only the window is held in memory", 10, journal.heldInMemory());
+
+    journal.close();
+    journal = uth_openWindowed(false, 10);
+    assertEquals("Every record is replayed", 10000, journal.size());
+    assertEquals("Only the window is replayed into memory", 10, journal.heldInMemory());
+
+    for (int i = 0; i < 10000; i++) {
+      assertEquals("Records are read back in order", largeRecord + i, uth_string(journal.get(0)));
+      journal.remove(0);
+      assertTrue("The window is never exceeded", journal.heldInMemory() <= 10);
+    }
+
+    assertEquals("Every record is drained", 0, journal.size());
+    assertEquals("Drained segments are deleted", 1, uth_segmentFiles().length);
+    journal.close();
+  }
+
+  public final void testMemoryWindowWithWriteBehind() {
+    SendQueueJournal journal = uth_openWindowed(true, 5);
+    for (int i = 0; i < 20; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+
+    // Held records are read back before they are written
+    assertEquals("Held records are read back in order", "record7", uth_string(journal.get(7)));
+    journal.remove(0);
+    journal.flush();
+
+    for (int i = 20; i < 30; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+    journal.flush();
+
+    journal.close();
+    journal = uth_openWindowed(true, 5);
+    assertEquals("Flushed records are replayed", 29, journal.size());
+    for (int i = 1; i < 30; i++) {
+      assertEquals("Records are read back in order", "record" + i, uth_string(journal.get(0)));
+      journal.remove(0);
+    }
+    journal.close();
+  }
+
+  public final void testRemovingRecordBehindHeadWithMemoryWindow() {
+    SendQueueJournal journal = uth_openWindowed(false, 5);
+    for (int i = 0; i < 20; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+
+    journal.remove(2);
+    journal.remove(10);
+
+    journal.close();
+    journal = uth_openWindowed(false, 5);
+    assertEquals("Removed records are not replayed", 18, journal.size());
+    assertEquals("Records before the removed record are kept", "record1", uth_string(journal.get(1)));
+    assertEquals("Records after the removed record are kept", "record3", uth_string(journal.get(2)));
+    assertEquals("Records not held in memory are removed", "record12", uth_string(journal.get(10)));
+    journal.close();
+  }
+
+  public final void testUnreadableRecordsBehindMemoryWindowAreKept() {
+    SendQueueJournal journal = uth_openWindowed(false, 2);
+    for (int i = 0; i < 5; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+
+    // Simulate a segment that cannot be opened for now
+    File moved = new File(directory, journalName + ".moved");
+    assertTrue(uth_segment(1).renameTo(moved));
+    assertNull("Records that cannot be read are not returned", journal.get(2));
+    assertEquals("Records that cannot be read are kept", 5, journal.size());
+
+    assertTrue(moved.renameTo(uth_segment(1)));
+    assertEquals("Kept records are read once readable", "record2", uth_string(journal.get(2)));
+    assertEquals("Kept records are read once readable", "record4", uth_string(journal.get(4)));
+    journal.close();
+  }
+
+  public final void testCorruptRecordBehindMemoryWindowEndsItsSegment() throws Exception {
+    SendQueueJournal journal = uth_openWindowed(false, 1);
+    int count = uth_fillSegments(journal, 2);
+
+    // Flip a byte inside the second record of the first segment
+    RandomAccessFile raf = new RandomAccessFile(uth_segment(1), "rw");
+    raf.seek(12 + 8 + uth_bytes(largeRecord + 0).length + 8 + 2);
+    raf.write('X');
+    raf.close();
+
+    assertEquals("Records of later segments take the place of a corrupt record",
+        largeRecord + (count - 1), uth_string(journal.get(1)));
+    assertEquals("Records after a corrupt record in its segment are dropped", 2, journal.size());
+
+    journal.add(uth_bytes("recordLast"));
+    journal.close();
+    journal = uth_openWindowed(false, 1);
+    assertEquals("Records before the corrupt record are replayed", 3, journal.size());
+    assertEquals("Records before the corrupt record are replayed", largeRecord + 0,
+        uth_string(journal.get(0)));
+    assertEquals("Appends after recovery are replayed", "recordLast", uth_string(journal.get(2)));
+    journal.close();
+  }
+
+  public final void testSegmentWithoutChecksumsIsUpgradedWithMemoryWindow() throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(uth_segment(1), "rw");
+    raf.writeInt(0x4b4d4a31);
+    raf.writeLong(12);
+    for (int i = 0; i < 5; i++) {
+      raf.writeInt(("record" + i).length());
+      raf.write(uth_bytes("record" + i));
+    }
+    raf.close();
+
+    SendQueueJournal journal = uth_openWindowed(false, 2);
+    assertFalse("Segments without checksums are replaced", uth_segment(1).exists());
+
+    journal.close();
+    journal = uth_openWindowed(false, 2);
+    assertEquals("Replaced records are replayed", 5, journal.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("Replaced records keep their order", "record" + i, uth_string(journal.get(0)));
+      journal.remove(0);
+    }
+    journal.close();
+  }
+
+  public final void testByteSizeCountsQueuedEntries() {
+    SendQueueJournal journal = uth_openWindowed(false, 5);
+    assertEquals("An empty queue uses no bytes", 0, journal.byteSize());
+
+    for (int i = 0; i < 20; i++) {
+      journal.add(uth_bytes(largeRecord + i));
+    }
+    long size = journal.byteSize();
+    assertTrue("Every entry is counted", size > 20 * largeRecord.length());
+
+    journal.remove(0);
+    long sizeAfterSending = journal.byteSize();
+    assertTrue("Sent entries are no longer counted", sizeAfterSending < size);
+
+    journal.close();
+    journal = uth_openWindowed(false, 5);
+    assertEquals("Spilled entries are counted on load", sizeAfterSending, journal.byteSize());
+    journal.close();
+  }
+
+
+  private SendQueueJournal uth_openExpiring(long timeToLive) {
+    SendQueueJournal journal = new SendQueueJournal(directory, journalName, false, 0, timeToLive);
+    journal.load();
+    return journal;
+  }
+
+  private static byte[] uth_event(String name, long timestamp) {
+    return QueueRecord.event(name, null, "identity", timestamp).encode();
+  }
+
+  public final void testExpiredHeadRecordsAreSkippedOnLoad() throws Exception {
+    long now = System.currentTimeMillis() / 1000L;
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_event("expiredEvent", now - 7200));
+    journal.add(QueueRecord.alias("alias", "identity").encode());
+    journal.add(uth_event("expiredEvent", now - 7200));
+    journal.add(uth_event("freshEvent", now));
+    journal.add(uth_event("expiredAfterFreshEvent", now - 7200));
+    journal.close();
+
+    journal = uth_openExpiring(3600);
+    assertEquals("Expired head records are dropped", 3, journal.expiredOnLoad());
+    assertEquals("Records from the first fresh record are kept", 2, journal.size());
+    assertEquals("Records from the first fresh record are kept", "freshEvent", QueueRecord.decode(journal.get(0)).name);
+    journal.close();
+
+    journal = uth_open();
+    assertEquals("Expired records stay acknowledged", 2, journal.size());
+    journal.close();
+  }
+
+  public final void testUntimedRecordsAfterExpiredRecordsAreKept() throws Exception {
+    long now = System.currentTimeMillis() / 1000L;
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_event("expiredEvent", now - 7200));
+    journal.add(QueueRecord.alias("alias", "identity").encode());
+    journal.close();
+
+    journal = uth_openExpiring(3600);
+    assertEquals("Only timestamped records expire", 1, journal.expiredOnLoad());
+    assertEquals("Records without a timestamp are kept", 1, journal.size());
+    assertEquals("Records without a timestamp are kept", QueueRecord.TYPE_ALIAS, QueueRecord.decode(journal.get(0)).type);
+    journal.close();
+  }
+
+  public final void testFullyExpiredSegmentsAreDeletedOnLoad() {
+    long now = System.currentTimeMillis() / 1000L;
+    SendQueueJournal journal = uth_open();
+    int count = 0;
+    while (uth_segmentFiles().length < 3) {
+      journal.add(uth_event("expiredEvent" + count++, now - 7200));
+    }
+    journal.add(uth_event("freshEvent", now));
+    journal.close();
+
+    journal = uth_openExpiring(3600);
+    assertEquals("Every expired record is dropped", count, journal.expiredOnLoad());
+    assertEquals("Segments of only expired records are deleted", 1, uth_segmentFiles().length);
+    assertEquals("Fresh records are kept", 1, journal.size());
+    journal.close();
+  }
+
+  public final void testRemoveAllWithMemoryWindow() {
+    SendQueueJournal journal = uth_openWindowed(true, 5);
+    for (int i = 0; i < 30; i++) {
+      journal.add(uth_bytes((i % 3 == 0 ? "purged" : "kept") + i));
+    }
+    journal.flush();
+    for (int i = 30; i < 33; i++) {
+      journal.add(uth_bytes((i % 3 == 0 ? "purged" : "kept") + i));
+    }
+
+    int removed = journal.removeAll(new SendQueue.RecordFilter() {
+      public boolean matches(int index, byte[] record) {
+        return uth_string(record).startsWith("purged");
+      }
+    });
+
+    assertEquals("Every matching record is removed, written or not", 11, removed);
+    assertEquals("Other records are kept", 22, journal.size());
+    assertTrue("The window is never exceeded", journal.heldInMemory() <= 5);
+
+    journal = uth_reopen(journal);
+    assertEquals("Removals are stored", 22, journal.size());
+    for (int i = 0; i < 33; i++) {
+      if (i % 3 != 0) {
+        assertEquals("Records are kept in order", "kept" + i, uth_string(journal.get(0)));
+        journal.remove(0);
+      }
+    }
+    journal.close();
+  }
+
+  public final void testFailedRewriteKeepsOldSegments() {
+    SendQueueJournal journal = uth_open();
+    journal.add(uth_bytes("recordOne"));
+    journal.add(uth_bytes("recordTwo"));
+    journal.add(uth_bytes("recordThree"));
+
+    // The new segment cannot be created where a directory stands
+    File blocker = uth_segment(2);
+    assertTrue(blocker.mkdir());
+    journal.remove(1);
+
+    assertEquals("The record is removed from memory", 2, journal.size());
+    assertTrue("The old segment is kept when the rewrite fails", uth_segment(1).exists());
+    SendQueueJournal other = uth_open();
+    assertEquals("The old segment still holds every record", 3, other.size());
+    other.close();
+
+    // The next write retries the rewrite
+    blocker.delete();
+    journal.flush();
+    journal = uth_reopen(journal);
+    assertEquals("The retried rewrite removes the record", 2, journal.size());
+    assertEquals("Records keep their order", "recordThree", uth_string(journal.get(1)));
+    journal.close();
+  }
+
+  public final void testRemoveAllByIndexWithMemoryWindow() {
+    SendQueueJournal journal = uth_openWindowed(false, 3);
+    for (int i = 0; i < 10; i++) {
+      journal.add(uth_bytes("record" + i));
+    }
+
+    int removed = journal.removeAll(new SendQueue.RecordFilter() {
+      public boolean matches(int index, byte[] record) {
+        return index == 1 || index == 4 || index == 8;
+      }
+    });
+
+    assertEquals("Records are selected by index", 3, removed);
+    journal = uth_reopen(journal);
+    assertEquals("Removed records are not replayed", 7, journal.size());
+    assertEquals("Records keep their order", "record2", uth_string(journal.get(1)));
+    assertEquals("Records keep their order", "record5", uth_string(journal.get(3)));
+    assertEquals("Records keep their order", "record9", uth_string(journal.get(6)));
+    journal.close();
+  }
+}
@@ -0,0 +1,278 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import android.test.ActivityTestCase;
+
+/**
+ * SendQueueRing Integration tests
+ */
+public class SendQueueRingTest extends ActivityTestCase {
+  static String ringName = "KISSmetricsTestRing";
+  static int capacity = 256;
+
+  File ringFile;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    ringFile = getInstrumentation().getTargetContext().getFileStreamPath(ringName);
+    ringFile.delete();
+  }
+
+  protected void tearDown() throws Exception {
+    ringFile.delete();
+    super.tearDown();
+  }
+
+  private static byte[] uth_bytes(String record) {
+    try {
+      return record.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String uth_string(byte[] record) {
+    try {
+      return new String(record, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private SendQueueRing uth_open(int ringCapacity) {
+    SendQueueRing ring = new SendQueueRing(ringFile, ringCapacity);
+    ring.load();
+    return ring;
+  }
+
+  private SendQueueRing uth_reopen(SendQueueRing ring) {
+    ring.close();
+    return uth_open(capacity);
+  }
+
+  public final void testAddedRecordsSurviveReload() {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.add(uth_bytes("recordTwo"));
+
+    ring = uth_reopen(ring);
+
+    assertEquals("Records are replayed", 2, ring.size());
+    assertEquals("Records keep their order", "recordOne", uth_string(ring.get(0)));
+    assertEquals("Records keep their order", "recordTwo", uth_string(ring.get(1)));
+  }
+
+  public final void testAcknowledgedRecordsAreNotReplayed() {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.add(uth_bytes("recordTwo"));
+    ring.remove(0);
+
+    ring = uth_reopen(ring);
+
+    assertEquals("Acknowledged records are skipped", 1, ring.size());
+    assertEquals("The head points to the next record", "recordTwo", uth_string(ring.get(0)));
+  }
+
+  public final void testRecordsWrapAroundTheRing() {
+    SendQueueRing ring = uth_open(capacity);
+
+    // Cycle enough records through the ring that entries straddle the end of the body
+    for (int i = 0; i < 100; i++) {
+      ring.add(uth_bytes("wrappingRecord" + i));
+      if (ring.size() > 3) {
+        ring.remove(0);
+      }
+    }
+
+    assertEquals("File size stays fixed", 24 + capacity, ringFile.length());
+
+    ring = uth_reopen(ring);
+    assertEquals("Wrapped records are replayed", 3, ring.size());
+    assertEquals("Wrapped records keep their order", "wrappingRecord97", uth_string(ring.get(0)));
+    assertEquals("Wrapped records keep their order", "wrappingRecord99", uth_string(ring.get(2)));
+  }
+
+  public final void testFullRingKeepsOldestRecords() {
+    SendQueueRing ring = uth_open(capacity);
+
+    for (int i = 0; i < 50; i++) {
+      if (ring.hasRoomFor(uth_bytes("record" + i).length)) {
+        ring.add(uth_bytes("record" + i));
+      }
+    }
+    int size = ring.size();
+    assertTrue("The ring fills up", size < 50);
+    assertFalse("A full ring has no room", ring.hasRoomFor(uth_bytes("record49").length));
+
+    ring.add(uth_bytes("record49"));
+    assertEquals("A record added without room is dropped", size, ring.size());
+    assertEquals("The oldest records are kept", "record0", uth_string(ring.get(0)));
+
+    ring.remove(0);
+    assertTrue("Removing records makes room", ring.hasRoomFor(uth_bytes("record49").length));
+  }
+
+  public final void testOversizedRecordIsDropped() {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+
+    StringBuilder oversized = new StringBuilder();
+    for (int i = 0; i < capacity; i++) {
+      oversized.append('x');
+    }
+    ring.add(uth_bytes(oversized.toString()));
+
+    assertEquals("Records that can never fit are dropped", 1, ring.size());
+    assertEquals("Existing records are kept", "recordOne", uth_string(ring.get(0)));
+  }
+
+  public final void testChangingCapacityKeepsRecords() {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.add(uth_bytes("recordTwo"));
+    ring.close();
+
+    ring = uth_open(capacity * 2);
+
+    assertEquals("File is resized", 24 + capacity * 2, ringFile.length());
+    assertEquals("Records are kept", 2, ring.size());
+    assertEquals("Records keep their order", "recordTwo", uth_string(ring.get(1)));
+  }
+
+  public final void testCorruptEntryIsDropped() throws Exception {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.add(uth_bytes("recordTwo"));
+    ring.close();
+
+    // Overwrite recordTwo's length prefix with a length that runs past the tail
+    RandomAccessFile raf = new RandomAccessFile(ringFile, "rw");
+    raf.seek(24 + 8 + "recordOne".length());
+    raf.writeInt(1000);
+    raf.close();
+
+    ring = uth_open(capacity);
+    assertEquals("Complete records are kept", 1, ring.size());
+
+    ring.add(uth_bytes("recordThree"));
+    ring = uth_reopen(ring);
+    assertEquals("Appends after recovery are readable", "recordThree", uth_string(ring.get(1)));
+  }
+
+  public final void testRemovedRecordsAreNotReplayed() {
+    SendQueueRing ring = uth_open(capacity);
+    for (int i = 0; i < 5; i++) {
+      ring.add(uth_bytes("record" + i));
+    }
+    ring.remove(1);
+    ring.removeAll(new SendQueue.RecordFilter() {
+      public boolean matches(int index, byte[] record) {
+        return "record3".equals(uth_string(record));
+      }
+    });
+    ring.add(uth_bytes("record5"));
+
+    ring = uth_reopen(ring);
+    assertEquals("Removed records are skipped", 4, ring.size());
+    assertEquals("Kept records keep their order", "record0", uth_string(ring.get(0)));
+    assertEquals("Kept records keep their order", "record2", uth_string(ring.get(1)));
+    assertEquals("Kept records keep their order", "record4", uth_string(ring.get(2)));
+    assertEquals("Records are added after the kept records", "record5", uth_string(ring.get(3)));
+  }
+
+  public final void testRecordsSurviveInterruptedRemoval() throws Exception {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.add(uth_bytes("recordTwo"));
+    ring.add(uth_bytes("recordThree"));
+    ring.close();
+
+    RandomAccessFile raf = new RandomAccessFile(ringFile, "rw");
+    raf.seek(8);
+    long head = raf.readLong();
+    long tail = raf.readLong();
+    raf.close();
+
+    ring = uth_open(capacity);
+    ring.remove(1);
+    ring.close();
+
+    // Put back the positions as they were before the head moved, as if the process had been
+    // killed part way through the removal
+    raf = new RandomAccessFile(ringFile, "rw");
+    raf.seek(8);
+    raf.writeLong(head);
+    raf.writeLong(tail);
+    raf.close();
+
+    ring = uth_open(capacity);
+    assertEquals("Records are kept until the head moves past them", 3, ring.size());
+    assertEquals("Records are kept until the head moves past them", "recordTwo",
+            uth_string(ring.get(1)));
+  }
+
+  public final void testRemovingFromFullRingKeepsRecords() {
+    SendQueueRing ring = uth_open(capacity);
+    for (int i = 0; i < 50; i++) {
+      ring.add(uth_bytes("record" + i));
+    }
+    int size = ring.size();
+    String last = uth_string(ring.get(size - 1));
+    String second = uth_string(ring.get(2));
+
+    ring.remove(1);
+
+    ring = uth_reopen(ring);
+    assertEquals("Only the removed record is dropped", size - 1, ring.size());
+    assertEquals("Kept records keep their order", second, uth_string(ring.get(1)));
+    assertEquals("Kept records keep their order", last, uth_string(ring.get(size - 2)));
+  }
+
+  public final void testClearEmptiesRing() {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.clear();
+
+    ring = uth_reopen(ring);
+    assertEquals("Cleared records are not replayed", 0, ring.size());
+  }
+
+  public final void testRecordFailingChecksumIsDropped() throws Exception {
+    SendQueueRing ring = uth_open(capacity);
+    ring.add(uth_bytes("recordOne"));
+    ring.add(uth_bytes("recordTwo"));
+    ring.add(uth_bytes("recordThree"));
+    ring.close();
+
+    // Flip a byte inside recordTwo
+    RandomAccessFile raf = new RandomAccessFile(ringFile, "rw");
+    raf.seek(24 + 8 + "recordOne".length() + 8 + 2);
+    raf.write('X');
+    raf.close();
+
+    ring = uth_open(capacity);
+    assertEquals("Records before the corrupt record are recovered", 1, ring.size());
+    assertEquals("Records before the corrupt record are recovered", "recordOne", uth_string(ring.get(0)));
+  }
+}
@@ -0,0 +1,255 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import android.test.ActivityTestCase;
+
+/**
+ * SendQueueShared Integration tests
+ * <p/>
+ * Separate instances opened on the same file stand in for the app's processes.
+ */
+public class SendQueueSharedTest extends ActivityTestCase {
+  static String queueName = "KISSmetricsTestShared";
+
+  File queueFile;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    queueFile = getInstrumentation().getTargetContext().getFileStreamPath(queueName);
+    uth_deleteFiles();
+  }
+
+  protected void tearDown() throws Exception {
+    uth_deleteFiles();
+    super.tearDown();
+  }
+
+  private void uth_deleteFiles() {
+    queueFile.delete();
+    new File(queueFile.getPath() + ".lock").delete();
+    new File(queueFile.getPath() + ".tmp").delete();
+    new File(queueFile.getPath() + ".purge").delete();
+  }
+
+  private static byte[] uth_bytes(String record) {
+    try {
+      return record.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String uth_string(byte[] record) {
+    try {
+      return new String(record, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private SendQueueShared uth_open() {
+    SendQueueShared queue = new SendQueueShared(queueFile);
+    queue.load();
+    return queue;
+  }
+
+  public final void testAddedRecordsSurviveReload() {
+    SendQueueShared queue = uth_open();
+    queue.add(uth_bytes("recordOne"));
+    queue.add(uth_bytes("recordTwo"));
+    queue.close();
+
+    queue = uth_open();
+    assertEquals("Records are replayed", 2, queue.size());
+    assertEquals("Records are replayed in order", "recordOne", uth_string(queue.get(0)));
+    assertEquals("Records are replayed in order", "recordTwo", uth_string(queue.get(1)));
+    queue.close();
+  }
+
+  public final void testAppendsFromEveryProcessAreKept() {
+    SendQueueShared main = uth_open();
+    SendQueueShared sync = uth_open();
+
+    main.add(uth_bytes("mainOne"));
+    sync.add(uth_bytes("syncOne"));
+    main.add(uth_bytes("mainTwo"));
+
+    assertEquals("Records appended by other processes are seen", 3, main.size());
+    assertEquals("Records appended by other processes are seen", 3, sync.size());
+    assertEquals("Records are kept in append order", "mainOne", uth_string(sync.get(0)));
+    assertEquals("Records are kept in append order", "syncOne", uth_string(main.get(1)));
+    assertEquals("Records are kept in append order", "mainTwo", uth_string(sync.get(2)));
+    main.close();
+    sync.close();
+  }
+
+  public final void testAcknowledgedRecordsAreRemovedForEveryProcess() {
+    SendQueueShared main = uth_open();
+    SendQueueShared sync = uth_open();
+
+    sync.add(uth_bytes("recordOne"));
+    sync.add(uth_bytes("recordTwo"));
+    main.remove(0);
+
+    assertEquals("Acknowledged records are removed for other processes", 1, sync.size());
+    assertEquals("Acknowledged records are removed for other processes", "recordTwo", uth_string(sync.get(0)));
+    main.close();
+    sync.close();
+  }
+
+  public final void testClearEmptiesQueueForEveryProcess() {
+    SendQueueShared main = uth_open();
+    SendQueueShared sync = uth_open();
+
+    sync.add(uth_bytes("recordOne"));
+    main.clear();
+    assertEquals("Cleared records are removed for other processes", 0, sync.size());
+
+    sync.add(uth_bytes("recordTwo"));
+    assertEquals("Records appended after clearing are seen", 1, main.size());
+    assertEquals("Records appended after clearing are seen", "recordTwo", uth_string(main.get(0)));
+    main.close();
+    sync.close();
+  }
+
+  public final void testAcknowledgedRecordsAreCompacted() {
+    SendQueueShared main = uth_open();
+    SendQueueShared sync = uth_open();
+
+    byte[] record = new byte[1024];
+    int count = (int) (SendQueueShared.COMPACT_MIN_BYTES / record.length) + 8;
+    for (int i = 0; i < count; i++) {
+      sync.add(record);
+    }
+    sync.add(uth_bytes("lastRecord"));
+
+    for (int i = 0; i < count; i++) {
+      main.remove(0);
+    }
+    assertTrue("Acknowledged records are compacted", queueFile.length() < SendQueueShared.COMPACT_MIN_BYTES);
+
+    // The other process reopens the compacted file before appending
+    sync.add(uth_bytes("afterCompaction"));
+    assertEquals("Records survive compaction", 2, main.size());
+    assertEquals("Records survive compaction", "lastRecord", uth_string(main.get(0)));
+    assertEquals("Appends after compaction are seen", "afterCompaction", uth_string(main.get(1)));
+    main.close();
+    sync.close();
+
+    main = uth_open();
+    assertEquals("Compacted records are replayed", 2, main.size());
+    main.close();
+  }
+
+  public final void testTornEntryIsTruncated() throws Exception {
+    SendQueueShared queue = uth_open();
+    queue.add(uth_bytes("recordOne"));
+    queue.add(uth_bytes("recordTwo"));
+    queue.close();
+
+    // Simulate a process killed part way through appending recordTwo
+    RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    queue = uth_open();
+    assertEquals("Complete entries are kept", 1, queue.size());
+    queue.add(uth_bytes("recordThree"));
+    queue.close();
+
+    queue = uth_open();
+    assertEquals("Appends after recovery are readable", 2, queue.size());
+    assertEquals("Appends after recovery are readable", "recordThree", uth_string(queue.get(1)));
+    queue.close();
+  }
+
+  public final void testOnlyCorruptRecordsAreDropped() throws Exception {
+    SendQueueShared queue = uth_open();
+    queue.add(uth_bytes("recordOne"));
+    queue.add(uth_bytes("recordTwo"));
+    queue.add(uth_bytes("recordThree"));
+
+    // Corrupt recordTwo once it has been indexed
+    RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+    raf.seek(16 + 8 + "recordOne".length() + 8);
+    raf.write('X');
+    raf.close();
+
+    assertEquals("Intact records are read", "recordOne", uth_string(queue.get(0)));
+    assertNull("A corrupt record is not read", queue.get(1));
+    assertEquals("A corrupt record is dropped", 2, queue.size());
+    assertEquals("Records behind a corrupt record are kept", "recordThree", uth_string(queue.get(1)));
+    queue.close();
+  }
+
+  public final void testDrainLockIsKeptByTheProcess() {
+    SendQueueShared main = uth_open();
+    SendQueueShared other = uth_open();
+
+    assertTrue("The first process to ask drains the queue", main.tryDrain());
+    assertTrue("The drain lock is held for the life of the process", other.tryDrain());
+    main.close();
+    other.close();
+  }
+
+  public final void testDrainLockIsReleasedForAnotherDrainer() {
+    SendQueueShared main = uth_open();
+    SendQueueShared other = uth_open();
+
+    assertTrue("The first process to ask drains the queue", main.tryDrain());
+    assertTrue("The process drains the queue", other.isDraining());
+
+    main.releaseDrain();
+    assertFalse("Releasing the drain lock stops draining the queue", main.isDraining());
+    assertFalse("Releasing the drain lock stops draining the queue", other.isDraining());
+
+    assertTrue("A released drain lock can be taken again", other.tryDrain());
+    assertTrue("A released drain lock can be taken again", main.isDraining());
+
+    other.releaseDrain();
+    main.close();
+    other.close();
+  }
+
+  public final void testPurgeRequestsAreTakenByTheDrainerOnce() {
+    SendQueueShared drainer = uth_open();
+    SendQueueShared sync = uth_open();
+    drainer.add(uth_bytes("recordOne"));
+
+    assertTrue("No purge is requested at first", drainer.takePurges().isEmpty());
+
+    sync.requestPurge("identityOne");
+    sync.requestPurge("identityTwo");
+    assertEquals("Requesting a purge leaves the queue untouched", 1, sync.size());
+
+    List<String> purges = drainer.takePurges();
+    assertEquals("Every requested purge is taken", 2, purges.size());
+    assertEquals("Purges are taken in order", "identityOne", purges.get(0));
+    assertEquals("Purges are taken in order", "identityTwo", purges.get(1));
+    assertTrue("Purges are only taken once", drainer.takePurges().isEmpty());
+
+    drainer.close();
+    sync.close();
+  }
+}
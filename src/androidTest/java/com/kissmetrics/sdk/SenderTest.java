@@ -0,0 +1,340 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.List;
+
+import com.kissmetrics.sdk.KISSmetricsAPI.RecordCondition;
+
+import android.test.ActivityTestCase;
+
+/**
+ * Sender Integration tests
+ * <p/>
+ * Records are sent from a product's ArchiverImpl to a local stand-in endpoint.
+ */
+public class SenderTest extends ActivityTestCase {
+  static String productKey = "ssssssssssssssssssssssssssssssssssssssss";
+
+  TestableEndpoint endpoint;
+  ArchiverImpl archiver;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    uth_cleanSlate();
+    endpoint = new TestableEndpoint();
+  }
+
+  protected void tearDown() throws Exception {
+    endpoint.close();
+    uth_cleanSlate();
+    super.tearDown();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void uth_cleanSlate() {
+    try {
+      Field instance = ArchiverImpl.class.getDeclaredField("productArchivers");
+      instance.setAccessible(true);
+      ((HashMap<String, ArchiverImpl>) instance.get(null)).clear();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+    for (String fileName : getInstrumentation().getTargetContext().fileList()) {
+      if (fileName.contains("-" + productKey)) {
+        getInstrumentation().getTargetContext().deleteFile(fileName);
+      }
+    }
+  }
+
+  private Sender uth_sender(KISSmetricsOptions options) {
+    archiver = ArchiverImpl.productArchiver(productKey,
+            getInstrumentation().getTargetContext(), options);
+    archiver.archiveBaseUrl(endpoint.baseUrl());
+    return new Sender(false, archiver, options);
+  }
+
+  private void uth_recordEvents(int count) {
+    for (int i = 0; i < count; i++) {
+      archiver.archiveEvent("senderTest_" + i, null, RecordCondition.RECORD_ALWAYS);
+    }
+  }
+
+  // Waits for the Sender to return to the ready state
+  private void uth_awaitReady(Sender sender) throws InterruptedException {
+    uth_awaitState(sender, sender.getReadyState());
+  }
+
+  private void uth_awaitState(Sender sender, SenderState state) throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      synchronized (sender) {
+        if (sender.state == state) {
+          return;
+        }
+      }
+      Thread.sleep(50);
+    }
+    fail("The Sender did not finish sending");
+  }
+
+  private int uth_count(String method) {
+    int count = 0;
+    for (TestableEndpoint.Request request : endpoint.requests()) {
+      if (method.equals(request.method)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public final void testOneRecordPerRequestByDefault() throws Exception {
+    Sender sender = uth_sender(new KISSmetricsOptions());
+    uth_recordEvents(3);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    assertEquals("Each record is sent in its own GET", 3, uth_count("GET"));
+    assertEquals("No batches are sent", 0, uth_count("POST"));
+  }
+
+  public final void testRecordsAreSentInBatches() throws Exception {
+    Sender sender = uth_sender(new KISSmetricsOptions().setBatchMaxRecords(4));
+    uth_recordEvents(10);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    // The last two records are sent in a batch of their own
+    assertEquals("Records are sent up to the most records per batch", 3, uth_count("POST"));
+    assertEquals("Only batches are sent", 0, uth_count("GET"));
+
+    List<TestableEndpoint.Request> requests = endpoint.requests();
+    String[] lines = requests.get(0).body.split("\n");
+    assertEquals("A batch holds the most records", 4, lines.length);
+    assertTrue("Records are batched in order", lines[0].contains("senderTest_0"));
+    assertTrue("Records are batched in order", lines[3].contains("senderTest_3"));
+  }
+
+  public final void testRejectedBatchFallsBackToOneRecordPerRequest() throws Exception {
+    endpoint.setBatchStatus(404);
+    Sender sender = uth_sender(new KISSmetricsOptions().setBatchMaxRecords(10));
+    uth_recordEvents(5);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    assertEquals("A rejected batch is not retried", 1, uth_count("POST"));
+    assertEquals("Each record is then sent in its own GET", 5, uth_count("GET"));
+  }
+
+  public final void testRejectedBatchesAreTriedAgainAfterSuccess() throws Exception {
+    endpoint.setBatchStatus(404);
+    Sender sender = uth_sender(new KISSmetricsOptions().setBatchMaxRecords(10));
+    uth_recordEvents(3);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+    assertEquals("Records are sent one at a time", 3, uth_count("GET"));
+
+    endpoint.setBatchStatus(200);
+    uth_recordEvents(3);
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    assertEquals("Batches are sent again once a request succeeds", 2, uth_count("POST"));
+    assertEquals("No more records are sent one at a time", 3, uth_count("GET"));
+  }
+
+  public final void testTooLargeBatchIsHalved() throws Exception {
+    endpoint.setBatchMaxRecords(4);
+    Sender sender = uth_sender(new KISSmetricsOptions().setBatchMaxRecords(8));
+    uth_recordEvents(8);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    assertEquals("The records are sent again in two halves", 3, uth_count("POST"));
+    assertEquals("Records are not sent one at a time", 0, uth_count("GET"));
+    assertEquals("A half holds half the records", 4,
+            endpoint.requests().get(1).body.split("\n").length);
+  }
+
+  public final void testMalformedBatchIsSentOneRecordAtATime() throws Exception {
+    endpoint.setMalformed("senderTest_1");
+    Sender sender = uth_sender(new KISSmetricsOptions().setBatchMaxRecords(3)
+            .setMaxInFlightRequests(1));
+    uth_recordEvents(6);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent or dropped", 0, archiver.getQueueCount());
+    assertEquals("Only the records of the malformed batch are sent one at a time", 3,
+            uth_count("GET"));
+    assertEquals("Later records are still batched", 2, uth_count("POST"));
+  }
+
+  public final void testFailedBatchKeepsRecords() throws Exception {
+    endpoint.setBatchStatus(503);
+    Sender sender = uth_sender(new KISSmetricsOptions().setBatchMaxRecords(10));
+    uth_recordEvents(5);
+
+    sender.startSending();
+    uth_awaitState(sender, sender.getBackoffState());
+
+    assertEquals("Records of a failed batch are kept", 5, archiver.getQueueCount());
+    assertEquals("Sending stops after a failed batch", 1, uth_count("POST"));
+    assertEquals("Records are not sent one at a time", 0, uth_count("GET"));
+  }
+
+  public final void testKeepAliveSendsOverOneConnection() throws Exception {
+    Sender sender = uth_sender(new KISSmetricsOptions().setKeepAlive(true));
+    uth_recordEvents(5);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    assertEquals("Each record is sent in its own GET", 5, uth_count("GET"));
+    assertEquals("Records are sent over a single connection", 1, endpoint.connectionCount());
+  }
+
+  public final void testRequestsArePipelined() throws Exception {
+    endpoint.setResponseDelay(200);
+    Sender sender = uth_sender(new KISSmetricsOptions().setMaxInFlightRequests(4));
+    uth_recordEvents(8);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    assertEquals("Each record is sent once", 8, uth_count("GET"));
+    assertEquals("Requests are sent up to the most in flight", 4, endpoint.maxConcurrentRequests());
+  }
+
+  public final void testPipelinedAliasIsSentBetweenRequests() throws Exception {
+    endpoint.setResponseDelay(100);
+    Sender sender = uth_sender(new KISSmetricsOptions().setMaxInFlightRequests(4));
+    uth_recordEvents(3);
+    archiver.archiveAlias("senderTestAlias", "senderTestIdentity");
+    uth_recordEvents(3);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Every record is sent", 0, archiver.getQueueCount());
+    List<TestableEndpoint.Request> requests = endpoint.requests();
+    assertEquals("Each record is sent once", 7, requests.size());
+    assertTrue("The alias is sent after the records before it", requests.get(3).path.startsWith("/a?"));
+  }
+
+  public final void testFailedSendIsRetriedAfterBackoff() throws Exception {
+    endpoint.setRecordStatus(503);
+    Sender sender = uth_sender(new KISSmetricsOptions().setRetryBaseDelay(500));
+    uth_recordEvents(1);
+
+    sender.startSending();
+    uth_awaitState(sender, sender.getBackoffState());
+    assertEquals("The failed record is kept", 1, archiver.getQueueCount());
+
+    uth_recordEvents(2);
+    sender.startSending();
+    sender.startSending();
+    assertEquals("Sends while backing off wait for the retry", 1, uth_count("GET"));
+
+    endpoint.setRecordStatus(200);
+    uth_awaitReady(sender);
+
+    assertEquals("The retry sends every record", 0, archiver.getQueueCount());
+    assertEquals("Each record is sent once by the retry", 4, uth_count("GET"));
+    assertEquals("Success resets the backoff", 0, sender.failureCount);
+  }
+
+  public final void testRetryDelayBacksOffExponentially() throws Exception {
+    Sender sender = uth_sender(new KISSmetricsOptions()
+            .setRetryBaseDelay(1000)
+            .setRetryMaxDelay(8000));
+
+    long[] expected = { 1000, 2000, 4000, 8000, 8000 };
+    for (int i = 0; i < expected.length; i++) {
+      long delay = sender.retryDelay(i + 1, -1);
+      assertTrue("Jitter spreads the delay from half", delay >= expected[i] / 2);
+      assertTrue("The delay doubles up to the max delay", delay <= expected[i]);
+    }
+    assertTrue("The delay stays at the max delay", sender.retryDelay(100, -1) <= 8000);
+
+    long delay = sender.retryDelay(1, 20000);
+    assertTrue("Retry-After is waited in full", delay >= 20000);
+    assertTrue("Jitter of up to the base delay is added", delay <= 21000);
+  }
+
+  public final void testDisablingCancelsRetry() throws Exception {
+    endpoint.setRecordStatus(503);
+    Sender sender = uth_sender(new KISSmetricsOptions().setRetryBaseDelay(200));
+    uth_recordEvents(1);
+
+    sender.startSending();
+    uth_awaitState(sender, sender.getBackoffState());
+    sender.disableSending();
+    Thread.sleep(400);
+
+    assertEquals("The retry is cancelled", sender.getDisabledState(), sender.state);
+    assertEquals("Nothing is sent once disabled", 1, uth_count("GET"));
+  }
+
+  public final void testThrottledSendingPausesForRetryAfter() throws Exception {
+    endpoint.setRecordStatus(429);
+    endpoint.setRetryAfter("2");
+    Sender sender = uth_sender(new KISSmetricsOptions().setRetryBaseDelay(50));
+    uth_recordEvents(2);
+
+    sender.startSending();
+    uth_awaitState(sender, sender.getBackoffState());
+    assertEquals("Nothing is sent behind a throttled request", 1, uth_count("GET"));
+
+    endpoint.setRecordStatus(200);
+    Thread.sleep(1000);
+    assertEquals("Sending pauses for the Retry-After wait", sender.getBackoffState(), sender.state);
+    assertEquals("Records are kept while throttled", 2, archiver.getQueueCount());
+
+    uth_awaitReady(sender);
+    assertEquals("Every record is sent after the wait", 0, archiver.getQueueCount());
+  }
+
+  public final void testPermanentFailureDropsRecords() throws Exception {
+    endpoint.setRecordStatus(400);
+    Sender sender = uth_sender(new KISSmetricsOptions());
+    uth_recordEvents(2);
+
+    sender.startSending();
+    uth_awaitReady(sender);
+
+    assertEquals("Records that will never be accepted are dropped", 0, archiver.getQueueCount());
+    assertEquals("Each record is sent once", 2, uth_count("GET"));
+    assertEquals("A permanent failure does not back off", 0, sender.failureCount);
+  }
+}
@@ -0,0 +1,227 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+//TestableEndpoint
+//
+//Local stand-in for the KISSmetrics tracking endpoint. Answers GET requests with the record
+//status and POST requests with the batch status, and keeps every request it receives.
+//
+final class TestableEndpoint {
+  static final class Request {
+    final String method;
+    final String path;
+    final String body;
+
+    Request(String method, String path, String body) {
+      this.method = method;
+      this.path = path;
+      this.body = body;
+    }
+  }
+
+  private final ServerSocket serverSocket;
+  private final List<Request> requests = new ArrayList<Request>();
+  private volatile int recordStatus = 200;
+  private volatile int batchStatus = 200;
+  private volatile long responseDelay;
+  private volatile String retryAfter;
+  private volatile int batchMaxRecords = Integer.MAX_VALUE;
+  private volatile String malformed;
+  private int connectionCount;
+  private int concurrentRequests;
+  private int maxConcurrentRequests;
+
+  TestableEndpoint() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+    Thread acceptThread = new Thread(new Runnable() {
+      public void run() {
+        while (!serverSocket.isClosed()) {
+          try {
+            final Socket socket = serverSocket.accept();
+            synchronized (TestableEndpoint.this) {
+              connectionCount++;
+            }
+
+            new Thread(new Runnable() {
+              public void run() {
+                serve(socket);
+              }
+            }).start();
+          } catch (IOException e) {
+            // Closed
+          }
+        }
+      }
+    });
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  String baseUrl() {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort();
+  }
+
+  void setRecordStatus(int status) {
+    recordStatus = status;
+  }
+
+  void setBatchStatus(int status) {
+    batchStatus = status;
+  }
+
+  // Batches of more records are answered with 413
+  void setBatchMaxRecords(int records) {
+    batchMaxRecords = records;
+  }
+
+  // Requests holding the text are answered with 400, or null for none
+  void setMalformed(String text) {
+    malformed = text;
+  }
+
+  // Sent as the Retry-After header of every response, or null for none
+  void setRetryAfter(String value) {
+    retryAfter = value;
+  }
+
+  void setResponseDelay(long millis) {
+    responseDelay = millis;
+  }
+
+  synchronized int maxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+
+  synchronized List<Request> requests() {
+    return new ArrayList<Request>(requests);
+  }
+
+  synchronized int connectionCount() {
+    return connectionCount;
+  }
+
+  void close() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // Nothing more we can do
+    }
+  }
+
+  // Serves requests on a connection until the client closes it
+  private void serve(Socket socket) {
+    try {
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+
+      while (true) {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+          break;
+        }
+
+        int contentLength = 0;
+        boolean close = false;
+        String header;
+        while ((header = readLine(in)) != null && header.length() > 0) {
+          String lower = header.toLowerCase();
+          if (lower.startsWith("content-length:")) {
+            contentLength = Integer.parseInt(header.substring(15).trim());
+          } else if (lower.startsWith("connection:") && lower.contains("close")) {
+            close = true;
+          }
+        }
+
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+          int count = in.read(body, read, contentLength - read);
+          if (count < 0) {
+            break;
+          }
+          read += count;
+        }
+
+        String[] parts = requestLine.split(" ");
+        synchronized (this) {
+          requests.add(new Request(parts[0], parts[1], new String(body, "UTF-8")));
+          concurrentRequests++;
+          maxConcurrentRequests = Math.max(maxConcurrentRequests, concurrentRequests);
+        }
+
+        try {
+          Thread.sleep(responseDelay);
+        } catch (InterruptedException e) {
+          // Respond now
+        }
+        synchronized (this) {
+          concurrentRequests--;
+        }
+
+        String bodyString = new String(body, "UTF-8");
+        int status = "POST".equals(parts[0]) ? batchStatus : recordStatus;
+        if ("POST".equals(parts[0]) && bodyString.split("\n").length > batchMaxRecords) {
+          status = 413;
+        } else if (malformed != null && (parts[1] + bodyString).contains(malformed)) {
+          status = 400;
+        }
+        String retryAfterHeader = retryAfter != null ? "Retry-After: " + retryAfter + "\r\n" : "";
+        out.write(("HTTP/1.1 " + status + " Status\r\n" + retryAfterHeader
+                + "Content-Length: 0\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+
+        if (close) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // Client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing more we can do
+      }
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == '\n') {
+        String string = line.toString("UTF-8");
+        return string.endsWith("\r") ? string.substring(0, string.length() - 1) : string;
+      }
+      line.write(b);
+    }
+    return line.size() > 0 ? line.toString("UTF-8") : null;
+  }
+}
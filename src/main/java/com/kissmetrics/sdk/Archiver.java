@@ -45,12 +45,18 @@ public interface Archiver {
 
   void archiveDistinctProperty(String name, String value);
 
+  boolean isEventSaved(String name, RecordCondition condition);
+
+  boolean isDistinctPropertySaved(String name, String value);
+
   void archiveIdentity(String identity);
 
   void archiveAlias(String alias, String identity);
 
   void clearSendQueue();
 
+  int purgeIdentity(String identity);
+
   void clearSavedIdEvents();
 
   void clearSavedProperties();
@@ -59,8 +65,22 @@ public interface Archiver {
 
   void removeQueryString(int index);
 
+  SendRequest nextSendRequest(int maxRecords, int maxBytes);
+
+  void completeSendRequest(long sequence, boolean acknowledged);
+
   int getQueueCount();
 
+  boolean canSend();
+
+  void finishSending();
+
+  long getEvictedRecordCount();
+
+  long getDroppedRecordCount();
+
+  long getExpiredRecordCount();
+
   String getInstallUuid();
 
   long getVerificationExpDate();
@@ -76,4 +96,6 @@ public interface Archiver {
   boolean getDoSend();
 
   boolean getDoTrack();
+
+  void flush();
 }
@@ -17,14 +17,21 @@
 
 package com.kissmetrics.sdk;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.kissmetrics.sdk.KISSmetricsAPI.RecordCondition;
 
@@ -34,12 +41,13 @@ import android.util.Log;
 
 /**
  * Handles read/write of settings, identity, recorded events and properties.
+ * Settings and identity are stored together in a StateStore, events recorded once per
+ * identity or install in FingerprintSets, and distinct property values in a FingerprintMap.
  * Recorded events and properties are URL encoded before being saved to a send queue.
  */
 public class ArchiverImpl implements Archiver {
   private static final String CLIENT_TYPE = "mobile_app";
-  private static final String IDENTITY_PREF = "KISSmetricsIdentity";
-  private static final String SETTINGS_FILE = "KISSmetricsSettings";
+  private static final String STATE_FILE = "KISSmetricsState";
   private static final String INSTALL_UUID_KEY = "installUuid";
   private static final String HAS_GENERIC_IDENTITY_KEY = "hasGenericIdentity";
   private static final String VERIFICATION_EXP_DATE_KEY = "verification_exp_date";
@@ -48,45 +56,131 @@ public class ArchiverImpl implements Archiver {
   private static final String BASE_URL_KEY = "baseUrl";
   private static final String APP_VERSION_KEY = "appVersionKey";
   private static final String ACTIONS_FILE = "KISSmetricsActions";
-  private static final String SAVED_ID_EVENTS_FILE = "KISSmetricsSavedEvents";
-  private static final String SAVED_INSTALL_EVENTS_FILE = "KISSmetricsSavedInstallEvents";
-  private static final String SAVED_PROPERTIES_FILE = "KISSmetricsSavedProperties";
+  private static final String ACTIONS_RING_FILE = "KISSmetricsActionsRing";
+  private static final String ACTIONS_SHARED_FILE = "KISSmetricsActionsShared";
+  private static final String MIGRATED_ACTIONS_FILE = "KISSmetricsActionsMigration";
+  private static final String SAVED_ID_EVENTS_FILE = "KISSmetricsSavedIdEventIndex";
+  private static final String SAVED_INSTALL_EVENTS_FILE = "KISSmetricsSavedInstallEventIndex";
+  private static final String SAVED_PROPERTIES_FILE = "KISSmetricsSavedPropertyIndex";
+  private static final String IDENTITIES_FILE = "KISSmetricsIdentities";
+  // Key of the product archived in the files without a suffix
+  private static final String PRODUCT_KEY_FILE = "KISSmetricsProductKey";
   private static final long VERIFICATION_EXP_DATE_DEFAULT = 0L;
   private static final boolean HAS_GENERIC_IDENTITY_DEFAULT = false;
   private static final boolean DO_TRACK_DEFAULT = true;
   private static final boolean DO_SEND_DEFAULT = false;
   private static final String BASE_URL_DEFAULT = "https://trc.kissmetrics.io";
+  // Query strings of alias records, and of legacy alias queries
+  private static final String ALIAS_QUERY_PREFIX = "/a?";
+
+  // Stores replaced by the STATE_FILE, only read to migrate their contents
+  private static final String LEGACY_IDENTITY_PREF = "KISSmetricsIdentity";
+  private static final String LEGACY_SETTINGS_FILE = "KISSmetricsSettings";
+  private static final String LEGACY_SAVED_ID_EVENTS_FILE = "KISSmetricsSavedEvents";
+  private static final String LEGACY_SAVED_INSTALL_EVENTS_FILE = "KISSmetricsSavedInstallEvents";
+  private static final String LEGACY_SAVED_PROPERTIES_FILE = "KISSmetricsSavedProperties";
+
+  // State waiting to be written by the write-behind flusher
+  private static final int DIRTY_STATE = 1;
+  private static final int DIRTY_SEND_QUEUE = 1 << 1;
+  private static final int DIRTY_SAVED_INDEXES = 1 << 2;
+
+  // Interned identities are only dropped once at least this many are held
+  private static final int IDENTITIES_COMPACT_MIN = 64;
 
   private static ArchiverImpl sharedArchiver = null;
+  // Archivers of products other than the sharedArchiver's, by product key
+  private static final HashMap<String, ArchiverImpl> productArchivers =
+          new HashMap<String, ArchiverImpl>();
 
   private String key;
+  // Appended to the name of every file, empty for the files without a suffix
+  private String fileSuffix;
   private Context context;
+  private KISSmetricsOptions options;
   private QueryEncoder queryEncoder;
+  private StateStore stateStore;
   private HashMap<String, Object> settings;
   private String lastIdentity;
-  private List<String> sendQueue;
-  private List<String> savedIdEvents;
-  private List<String> savedInstallEvents;
-  private HashMap<String, String> savedProperties;
+  private SendQueue sendQueue;
+  // The sendQueue when it is shared with the app's other processes
+  private SendQueueShared sharedQueue;
+  // Identities of the records in a sendQueue kept by this process alone
+  private IdentityTable identities;
+  private FingerprintSet savedIdEvents;
+  private FingerprintSet savedInstallEvents;
+  private FingerprintMap savedProperties;
+  private Thread legacyQueueMigrator;
+
+  // Send queue quota counters for this session
+  private long evictedRecords;
+  private long droppedRecords;
+  private long expiredRecords;
+  private int recordsOverQuota;
+  // Requests in flight, in the order of their records at the head of the sendQueue
+  private final List<InFlightRequest> inFlight = new ArrayList<InFlightRequest>();
+  private long nextSequence;
+  // Request of the head record returned by getQueryString(0), or -1
+  private long headSequence = -1;
+
+  private boolean writeBehind;
+  private int dirtyState;
+  private int pendingMutations;
+  private boolean flushScheduled;
+  private ScheduledExecutorService flusher;
+  private final Object flushLock = new Object();
+  private final Runnable flushRunnable = new Runnable() {
+    public void run() {
+      flush();
+    }
+  };
 
   /**
-   * Initializes the private singleton.
+   * Records of a request in flight, at the head of the sendQueue behind the records of the
+   * requests put in flight before it.
+   */
+  private static final class InFlightRequest {
+    final long sequence;
+    // Alias requests are sent alone, and requests behind them wait for them to be accepted
+    final boolean alias;
+    // Records of the request still in the sendQueue, as some may be evicted while it is sent
+    int count;
+    boolean acknowledged;
+    boolean failed;
+
+    InFlightRequest(long sequence, int count, boolean alias) {
+      this.sequence = sequence;
+      this.count = count;
+      this.alias = alias;
+    }
+  }
+
+  /**
+   * Initializes the private singleton or a product's archiver.
    *
    * @param key                KISSmetrics product key
+   * @param fileSuffix         Appended to the name of every file, empty for the files without
+   *                           a suffix
    * @param applicationContext Android application context
+   * @param options            SDK configuration
    */
-  private ArchiverImpl(String key, Context applicationContext) {
+  private ArchiverImpl(String key, String fileSuffix, Context applicationContext,
+                       KISSmetricsOptions options) {
     this.key = key;
+    this.fileSuffix = fileSuffix;
     this.context = applicationContext;
+    this.options = options != null ? options : new KISSmetricsOptions();
+    this.writeBehind =
+            this.options.getDurability() == KISSmetricsOptions.Durability.WRITE_BEHIND;
     this.queryEncoder = new QueryEncoder(this.key, CLIENT_TYPE, Connection.USER_AGENT);
 
     synchronized (this) {
-      unarchiveSettings();
-      unarchiveIdentity();
+      unarchiveState();
       unarchiveSendQueue();
-      unarchiveSavedInstallEvents();
-      unarchiveSavedIdEvents();
-      unarchiveSavedProperties();
+    }
+
+    if (!isProductArchiver() && !key.equals(readProductKey(applicationContext))) {
+      writeProductKey(applicationContext, key);
     }
   }
 
@@ -101,12 +195,61 @@ public class ArchiverImpl implements Archiver {
   public static synchronized ArchiverImpl sharedArchiver(String productKey,
                                                          Context applicationContext)
   {
+    return sharedArchiver(productKey, applicationContext, new KISSmetricsOptions());
+  }
+
+  /**
+   * Initializes and/or returns the ArchiverImpl singleton instance. This method must be called
+   * before making any other calls.
+   *
+   * @param productKey         KISSmetrics product key
+   * @param applicationContext Android application context
+   * @param options            SDK configuration, only applied when the singleton is created
+   * @return Archiver singleton instance, the product's archiver if productArchiver already
+   * created one
+   */
+  public static synchronized ArchiverImpl sharedArchiver(String productKey,
+                                                         Context applicationContext,
+                                                         KISSmetricsOptions options)
+  {
+    if (sharedArchiver == null) {
+      // A product archived by productArchiver keeps its archiver, and the files it has loaded
+      sharedArchiver = productArchivers.remove(productKey);
+    }
     if (sharedArchiver == null) {
-      sharedArchiver = new ArchiverImpl(productKey, applicationContext);
+      sharedArchiver = new ArchiverImpl(productKey,
+              fileSuffixOf(productKey, applicationContext, true), applicationContext, options);
     }
     return sharedArchiver;
   }
 
+  /**
+   * Initializes and/or returns the archiver of a product reported to alongside the
+   * sharedArchiver's. Each product's settings, identity and send queue are kept in files of
+   * their own.
+   *
+   * @param productKey         KISSmetrics product key
+   * @param applicationContext Android application context
+   * @param options            SDK configuration, only applied when the archiver is created
+   * @return The product's archiver, or the sharedArchiver if it archives the product
+   */
+  public static synchronized ArchiverImpl productArchiver(String productKey,
+                                                          Context applicationContext,
+                                                          KISSmetricsOptions options)
+  {
+    if (sharedArchiver != null && sharedArchiver.key.equals(productKey)) {
+      return sharedArchiver;
+    }
+
+    ArchiverImpl archiver = productArchivers.get(productKey);
+    if (archiver == null) {
+      archiver = new ArchiverImpl(productKey,
+              fileSuffixOf(productKey, applicationContext, false), applicationContext, options);
+      productArchivers.put(productKey, archiver);
+    }
+    return archiver;
+  }
+
   /**
    * @return ArchiverImpl singleton instance
    */
@@ -125,271 +268,1069 @@ public class ArchiverImpl implements Archiver {
    ************************************************/
 
   /**
-   * Unarchives settings from Internal Storage or establishes defaults.
-   * Sets value of mSettings with unarchived settings.
-   * <p/>
-   * Suppresses warnings for ObjectInputStream readObject cast to HashMap<String, Object>.
+   * @param productKey KISSmetrics product key
+   * @return The product key with any character not safe in a file name replaced.
+   */
+  private static String fileSuffixFor(String productKey) {
+    return productKey.replaceAll("[^A-Za-z0-9_]", "_");
+  }
+
+  /**
+   * Chooses the files of a product's archiver, so that a product keeps the same files
+   * whichever of sharedArchiver and productArchiver creates its archiver first.
+   * The files without a suffix belong to the product last archived in them. The singleton
+   * also takes them over when its product has no files of its own and no other product's
+   * archiver has them open, as earlier SDK versions only archived the singleton's product
+   * there.
+   *
+   * @param productKey KISSmetrics product key
+   * @param context    Android application context
+   * @param singleton  True for the sharedArchiver
+   * @return The suffix of the product's files, empty for the files without a suffix.
+   */
+  private static String fileSuffixOf(String productKey, Context context, boolean singleton) {
+    // Not synch'd as should always be called inside of a sync block !!
+    String suffix = "-" + fileSuffixFor(productKey);
+    if (productKey.equals(readProductKey(context))) {
+      return "";
+    }
+    if (!singleton || context.getFileStreamPath(STATE_FILE + suffix).exists()) {
+      return suffix;
+    }
+    for (ArchiverImpl archiver : productArchivers.values()) {
+      if (!archiver.isProductArchiver()) {
+        return suffix;
+      }
+    }
+    return "";
+  }
+
+  /**
+   * @param context Android application context
+   * @return Key of the product archived in the files without a suffix, or null if unknown.
+   */
+  private static String readProductKey(Context context) {
+    File file = context.getFileStreamPath(PRODUCT_KEY_FILE);
+    if (!file.exists()) {
+      return null;
+    }
+
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        byte[] bytes = new byte[(int) file.length()];
+        int read = 0;
+        while (read < bytes.length) {
+          int count = in.read(bytes, read, bytes.length - read);
+          if (count < 0) {
+            break;
+          }
+          read += count;
+        }
+        return new String(bytes, 0, read, "UTF-8");
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to read archived product key", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param context    Android application context
+   * @param productKey Key of the product archived in the files without a suffix
+   */
+  private static void writeProductKey(Context context, String productKey) {
+    try {
+      FileOutputStream out = new FileOutputStream(context.getFileStreamPath(PRODUCT_KEY_FILE));
+      try {
+        out.write(productKey.getBytes("UTF-8"));
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to archive product key", e);
+    }
+  }
+
+  /**
+   * @return true if this archiver's files have a suffix, so were never archived by an earlier
+   * SDK version.
+   */
+  private boolean isProductArchiver() {
+    return this.fileSuffix.length() > 0;
+  }
+
+  /**
+   * @param baseName Name of a file of the sharedArchiver
+   * @return The name of the file for this archiver's product.
+   */
+  private String fileName(String baseName) {
+    return baseName + this.fileSuffix;
+  }
+
+  /**
+   * Unarchives settings and identity from the StateStore, saved events from their
+   * FingerprintSets and saved properties from their FingerprintMap.
+   * Migrates them from the stores used by previous SDK versions when there is no StateStore,
+   * and establishes defaults for anything not found.
+   */
+  private void unarchiveState() {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.savedIdEvents = new FingerprintSet(
+            this.context.getFileStreamPath(fileName(SAVED_ID_EVENTS_FILE)), this.writeBehind);
+    this.savedIdEvents.load();
+    this.savedInstallEvents = new FingerprintSet(
+            this.context.getFileStreamPath(fileName(SAVED_INSTALL_EVENTS_FILE)),
+            this.writeBehind);
+    this.savedInstallEvents.load();
+    this.savedProperties = new FingerprintMap(
+            this.context.getFileStreamPath(fileName(SAVED_PROPERTIES_FILE)), this.writeBehind);
+    this.savedProperties.load();
+
+    this.stateStore = new StateStore(this.context.getFileStreamPath(fileName(STATE_FILE)));
+    StateStore.State state = this.stateStore.read();
+    boolean migrating = state == null;
+
+    if (migrating) {
+      // The file doesn't exist yet or there was an error in reading the file.
+      // Previous SDK versions only archived the sharedArchiver's product.
+      state = isProductArchiver() ? new StateStore.State() : unarchiveLegacyState();
+    }
+
+    // Saved events and properties kept as lists and maps by previous versions are moved into
+    // the FingerprintSets and FingerprintMap
+    boolean hasSavedCollections = state.savedIdEvents != null ||
+            state.savedInstallEvents != null || state.savedProperties != null;
+    if (state.savedIdEvents != null) {
+      for (String name : state.savedIdEvents) {
+        this.savedIdEvents.add(name);
+      }
+      this.savedIdEvents.flush();
+    }
+    if (state.savedInstallEvents != null) {
+      for (String name : state.savedInstallEvents) {
+        this.savedInstallEvents.add(name);
+      }
+      this.savedInstallEvents.flush();
+    }
+    if (state.savedProperties != null) {
+      for (Map.Entry<String, String> property : state.savedProperties.entrySet()) {
+        this.savedProperties.put(property.getKey(), property.getValue());
+      }
+      this.savedProperties.flush();
+    }
+
+    boolean complete = state.settings != null && !hasSavedCollections;
+
+    this.settings = state.settings != null ? state.settings : defaultSettings();
+
+    // We should not have to protect against a null identity here.
+    // Upon the next true launch of an application an empty unarchived identity will trigger the
+    // creation of a new anon identity.
+    this.lastIdentity = state.identity != null ? state.identity : "";
+
+    if (migrating || !complete) {
+      // Written right away, even when writing behind, as migrated stores are deleted once
+      // their contents are stored.
+      if (this.stateStore.write(copyState()) && migrating && !isProductArchiver() &&
+              isMigrated(state)) {
+        deleteLegacyState();
+      }
+    }
+  }
+
+  /**
+   * Reads the migrated state back from storage before the legacy stores are deleted.
+   *
+   * @param legacy State read from the legacy stores
+   * @return true if every part of the legacy state was stored.
+   */
+  private boolean isMigrated(StateStore.State legacy) {
+    // Not synch'd as should always be called inside of a sync block !!
+    StateStore.State stored = this.stateStore.read();
+    if (stored == null || !this.settings.equals(stored.settings) ||
+            !this.lastIdentity.equals(stored.identity)) {
+      return false;
+    }
+
+    return isMigrated(legacy.savedIdEvents, SAVED_ID_EVENTS_FILE) &&
+            isMigrated(legacy.savedInstallEvents, SAVED_INSTALL_EVENTS_FILE) &&
+            isMigrated(legacy.savedProperties);
+  }
+
+  private boolean isMigrated(List<String> names, String fileName) {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (names == null) {
+      return true;
+    }
+
+    FingerprintSet stored = new FingerprintSet(this.context.getFileStreamPath(fileName), false);
+    stored.load();
+    try {
+      for (String name : names) {
+        if (!stored.contains(name)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      stored.close();
+    }
+  }
+
+  private boolean isMigrated(Map<String, String> properties) {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (properties == null) {
+      return true;
+    }
+
+    FingerprintMap stored = new FingerprintMap(
+            this.context.getFileStreamPath(fileName(SAVED_PROPERTIES_FILE)), false);
+    stored.load();
+    try {
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+        // Null values are never contained
+        if (property.getValue() != null &&
+                !stored.containsEntry(property.getKey(), property.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      stored.close();
+    }
+  }
+
+  /**
+   * Reads the settings, identity and saved events and properties archived by SDK versions
+   * that stored each in its own file, and the identity in Shared Preferences.
+   *
+   * @return The legacy state. Stores that do not exist or cannot be read are null.
    */
   @SuppressWarnings("unchecked")
-  private void unarchiveSettings() {
+  private StateStore.State unarchiveLegacyState() {
     // Not synch'd as should always be called inside of a sync block !!
+    StateStore.State state = new StateStore.State();
+
+    Object settings = unarchiveLegacyObject(LEGACY_SETTINGS_FILE, "settings");
+    if (settings instanceof HashMap) {
+      state.settings = (HashMap<String, Object>) settings;
+    }
+
+    Object savedIdEvents = unarchiveLegacyObject(LEGACY_SAVED_ID_EVENTS_FILE,
+            "saved identity events");
+    if (savedIdEvents instanceof List) {
+      state.savedIdEvents = (List<String>) savedIdEvents;
+    }
+
+    Object savedInstallEvents = unarchiveLegacyObject(LEGACY_SAVED_INSTALL_EVENTS_FILE,
+            "saved install events");
+    if (savedInstallEvents instanceof List) {
+      state.savedInstallEvents = (List<String>) savedInstallEvents;
+    }
+
+    Object savedProperties = unarchiveLegacyObject(LEGACY_SAVED_PROPERTIES_FILE,
+            "saved properties");
+    if (savedProperties instanceof HashMap) {
+      state.savedProperties = (HashMap<String, String>) savedProperties;
+    }
+
+    SharedPreferences pref = this.context.getSharedPreferences(LEGACY_IDENTITY_PREF,
+            Context.MODE_PRIVATE);
+    state.identity = pref.getString("identity", null);
+
+    return state;
+  }
+
+  /**
+   * @param fileName    Internal Storage file name
+   * @param description Description of the object for logging
+   * @return The object serialized to the file, or null.
+   */
+  private Object unarchiveLegacyObject(String fileName, String description) {
+    if (!this.context.getFileStreamPath(fileName).exists()) {
+      return null;
+    }
+
     try {
-      FileInputStream fis = this.context.openFileInput(SETTINGS_FILE);
+      FileInputStream fis = this.context.openFileInput(fileName);
       ObjectInputStream ois = new ObjectInputStream(fis);
-      this.settings = (HashMap<String, Object>) ois.readObject();
+      Object object = ois.readObject();
       ois.close();
+      return object;
     } catch (Exception e) {
       // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we define default settings
-      // and carry on.
-      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive saved settings", e);
+      // If an IOException arises we carry on with the default value.
+      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive saved " + description, e);
+      return null;
     }
+  }
+
+  /**
+   * Deletes the stores migrated to the StateStore.
+   */
+  private void deleteLegacyState() {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.context.deleteFile(LEGACY_SETTINGS_FILE);
+    this.context.deleteFile(LEGACY_SAVED_ID_EVENTS_FILE);
+    this.context.deleteFile(LEGACY_SAVED_INSTALL_EVENTS_FILE);
+    this.context.deleteFile(LEGACY_SAVED_PROPERTIES_FILE);
 
-    // The file doesn't exist yet or there was an error in reading the file.
-    // Create the settings file with default values.
-    if (this.settings == null) {
-      archiveDefaultSettings();
+    SharedPreferences pref = this.context.getSharedPreferences(LEGACY_IDENTITY_PREF,
+            Context.MODE_PRIVATE);
+    if (pref.contains("identity")) {
+      pref.edit().clear().commit();
     }
   }
 
   /**
-   * Defines mSettings with default values and archives to Internal Storage.
+   * @return A new settings HashMap with default values.
    */
-  private void archiveDefaultSettings() {
-    this.settings = new HashMap<String, Object>();
+  private HashMap<String, Object> defaultSettings() {
+    HashMap<String, Object> defaults = new HashMap<String, Object>();
 
     // Apply default settings
-    this.settings.put(DO_TRACK_KEY, DO_TRACK_DEFAULT);
-    this.settings.put(DO_SEND_KEY, DO_SEND_DEFAULT);
-    this.settings.put(BASE_URL_KEY, BASE_URL_DEFAULT);
-    this.settings.put(VERIFICATION_EXP_DATE_KEY, VERIFICATION_EXP_DATE_DEFAULT);
-    this.settings.put(HAS_GENERIC_IDENTITY_KEY, HAS_GENERIC_IDENTITY_DEFAULT);
+    defaults.put(DO_TRACK_KEY, DO_TRACK_DEFAULT);
+    defaults.put(DO_SEND_KEY, DO_SEND_DEFAULT);
+    defaults.put(BASE_URL_KEY, BASE_URL_DEFAULT);
+    defaults.put(VERIFICATION_EXP_DATE_KEY, VERIFICATION_EXP_DATE_DEFAULT);
+    defaults.put(HAS_GENERIC_IDENTITY_KEY, HAS_GENERIC_IDENTITY_DEFAULT);
+
+    return defaults;
+  }
+
+  /**
+   * Archives settings and identity to the StateStore in a single write.
+   */
+  private void archiveState() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.writeBehind) {
+      markDirty(DIRTY_STATE);
+      return;
+    }
+    this.stateStore.write(copyState());
+  }
+
+  /**
+   * @return A copy of the state kept in the StateStore, safe to write outside of a sync block.
+   */
+  private StateStore.State copyState() {
+    // Not synch'd as should always be called inside of a sync block !!
+    StateStore.State state = new StateStore.State();
+    state.settings = new HashMap<String, Object>(this.settings);
+    state.identity = this.lastIdentity;
+    return state;
+  }
+
+  /**
+   * Schedules a write-behind flush of the saved events FingerprintSets and saved properties
+   * FingerprintMap, which hold their own changes until flushed.
+   */
+  private void markSavedIndexesDirty() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.writeBehind) {
+      markDirty(DIRTY_SAVED_INDEXES);
+    }
+  }
+
+  /**
+   * Marks state as waiting to be written by the write-behind flusher. Schedules a flush at the
+   * end of the flush interval, or right away once enough changes have accumulated.
+   *
+   * @param state DIRTY_ flags of the changed state
+   */
+  private void markDirty(int state) {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.dirtyState |= state;
+    this.pendingMutations++;
+
+    if (this.flusher == null) {
+      this.flusher = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    if (this.pendingMutations == this.options.getFlushMutations()) {
+      this.flusher.execute(this.flushRunnable);
+    } else if (!this.flushScheduled) {
+      this.flushScheduled = true;
+      this.flusher.schedule(this.flushRunnable, this.options.getFlushInterval(),
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Replays the sendQueue from Internal Storage using the configured queue engine.
+   * Records left in the other engines' files are moved into the sendQueue, and a send queue
+   * archived by a previous SDK version is moved into it in the background.
+   * <p/>
+   * A SHARED_JOURNAL sendQueue is only filled from the other engines' files by the process
+   * that drains it, as those files belong to that process alone.
+   */
+  private void unarchiveSendQueue() {
+    // Not synch'd as should always be called inside of a synch block !!
+    File ringFile = this.context.getFileStreamPath(fileName(ACTIONS_RING_FILE));
+    File sharedFile = this.context.getFileStreamPath(fileName(ACTIONS_SHARED_FILE));
+    SendQueue ring = new SendQueueRing(ringFile, this.options.getRingCapacity());
+
+    this.identities = new IdentityTable(
+            this.context.getFileStreamPath(fileName(IDENTITIES_FILE)));
+    this.identities.load();
+
+    if (this.options.getQueueEngine() == KISSmetricsOptions.QueueEngine.SHARED_JOURNAL) {
+      this.sharedQueue = new SendQueueShared(sharedFile);
+      this.sendQueue = this.sharedQueue;
+      this.sendQueue.load();
+      if (!this.sharedQueue.tryDrain()) {
+        return;
+      }
+
+      moveSendQueue(new SendQueueJournal(this.context.getFilesDir(), fileName(ACTIONS_FILE)));
+      if (ringFile.exists()) {
+        moveSendQueue(ring);
+        this.context.deleteFile(fileName(ACTIONS_RING_FILE));
+      }
+      // No record left in this process' queues refers to an interned identity
+      this.identities.clear();
+      migrateLegacySendQueue();
+      return;
+    }
+
+    if (this.options.getQueueEngine() == KISSmetricsOptions.QueueEngine.MAPPED_RING) {
+      this.sendQueue = ring;
+      this.sendQueue.load();
+      moveSendQueue(new SendQueueJournal(this.context.getFilesDir(), fileName(ACTIONS_FILE)));
+    } else {
+      SendQueueJournal journal = new SendQueueJournal(this.context.getFilesDir(),
+              fileName(ACTIONS_FILE), this.writeBehind, this.options.getMemoryWindow(),
+              timeToLiveSeconds());
+      this.sendQueue = journal;
+      this.sendQueue.load();
+      this.expiredRecords += journal.expiredOnLoad();
+      if (ringFile.exists()) {
+        moveSendQueue(ring);
+        this.context.deleteFile(fileName(ACTIONS_RING_FILE));
+      }
+    }
+
+    if (sharedFile.exists()) {
+      moveSendQueue(new SendQueueShared(sharedFile));
+      this.context.deleteFile(fileName(ACTIONS_SHARED_FILE));
+    }
+
+    if (this.sendQueue.size() == 0) {
+      this.identities.clear();
+    }
+
+    migrateLegacySendQueue();
+  }
+
+  /**
+   * Starts moving a send queue archived by a previous SDK version, or one whose migration was
+   * interrupted, into the sendQueue on a background thread. Converting a large legacy send
+   * queue does not hold up loading the archive.
+   */
+  private void migrateLegacySendQueue() {
+    // Not synch'd as should always be called inside of a synch block !!
+    boolean staged = false;
+    for (String fileName : this.context.fileList()) {
+      staged |= fileName.startsWith(fileName(MIGRATED_ACTIONS_FILE) + ".");
+    }
+
+    File legacyFile = this.context.getFileStreamPath(fileName(ACTIONS_FILE));
+    if (!staged && !legacyFile.exists()) {
+      return;
+    }
+
+    SendQueueJournal staging = new SendQueueJournal(this.context.getFilesDir(),
+            fileName(MIGRATED_ACTIONS_FILE), true, LegacyQueueMigrator.CHUNK_SIZE);
+    this.legacyQueueMigrator = new Thread(new LegacyQueueMigrator(legacyFile, staging, this));
+    this.legacyQueueMigrator.start();
+  }
 
-    this.archiveSettings();
+  /**
+   * Appends records moved from a legacy send queue, and stores them before returning.
+   *
+   * @param records Encoded records
+   */
+  void addMigratedRecords(List<byte[]> records) {
+    synchronized (this) {
+      for (byte[] bytes : records) {
+        try {
+          addToSendQueue(QueueRecord.decode(bytes), bytes);
+        } catch (IOException e) {
+          Log.w(KISSmetricsAPI.TAG, "Dropping unreadable send queue record", e);
+        }
+      }
+
+      // Moved records must be stored before their source is acknowledged
+      this.sendQueue.flush();
+    }
+  }
+
+  /**
+   * Moves the records of another queue engine to the end of the sendQueue.
+   * Records moved to a shared sendQueue keep their identity rather than this process'
+   * identity ids.
+   *
+   * @param otherQueue Queue engine no longer in use
+   */
+  private void moveSendQueue(SendQueue otherQueue) {
+    // Not synch'd as should always be called inside of a synch block !!
+    otherQueue.load();
+
+    for (int i = 0; i < otherQueue.size(); i++) {
+      byte[] record = recordAt(otherQueue, i);
+      if (record == null) {
+        if (i < otherQueue.size()) {
+          // Deleted with the queue engine, as it could not be read back from storage
+          this.droppedRecords++;
+        }
+        continue;
+      }
+
+      if (this.sharedQueue != null) {
+        try {
+          record = QueueRecord.decode(record, this.identities).encode();
+        } catch (IOException e) {
+          Log.w(KISSmetricsAPI.TAG, "Dropping unreadable send queue record", e);
+          continue;
+        }
+      }
+      // A ring smaller than the moved queue evicts records as any full sendQueue does
+      if (!makeRoomFor(priorityOf(record), record.length)) {
+        this.droppedRecords++;
+        continue;
+      }
+      this.sendQueue.add(record);
+    }
+
+    // Moved records must be stored before their source is deleted
+    this.sendQueue.flush();
+    otherQueue.clear();
+    otherQueue.close();
+  }
+
+  /**
+   * Appends a record to the sendQueue.
+   *
+   * @param record Event, properties or alias record
+   */
+  private void addToSendQueue(QueueRecord record) {
+    // Not synch'd as should always be called inside of a sync block !!
+    // Identity ids are only known to this process
+    addToSendQueue(record, record.encode(this.sharedQueue == null ? this.identities : null));
+  }
+
+  /**
+   * Appends a record to the sendQueue.
+   *
+   * @param record Event, properties or alias record
+   * @param bytes  The record's binary form
+   */
+  private void addToSendQueue(QueueRecord record, byte[] bytes) {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (!makeRoomFor(priorityOf(record), bytes.length)) {
+      this.droppedRecords++;
+      return;
+    }
+
+    this.sendQueue.add(bytes);
+    if (this.writeBehind) {
+      markDirty(DIRTY_SEND_QUEUE);
+    }
+  }
+
+  /**
+   * @param length Length of an encoded record
+   * @return true if adding the record would exceed the maximum queued records or bytes, or
+   * the room left in the sendQueue's storage.
+   */
+  private boolean exceedsQuota(int length) {
+    // Not synch'd as should always be called inside of a sync block !!
+    int maxRecords = this.options.getMaxQueuedRecords();
+    long maxBytes = this.options.getMaxQueuedBytes();
+
+    return (maxRecords > 0 && this.sendQueue.size() >= maxRecords) ||
+            (maxBytes > 0 && this.sendQueue.byteSize() + length > maxBytes) ||
+            !this.sendQueue.hasRoomFor(length);
+  }
+
+  /**
+   * Applies the eviction policy when adding a record would exceed a sendQueue quota.
+   *
+   * @param priority The record's priority under the DROP_BY_PRIORITY policy
+   * @param length   Length of the encoded record
+   * @return false if the record should be dropped instead of added.
+   */
+  private boolean makeRoomFor(int priority, int length) {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (!exceedsQuota(length)) {
+      this.recordsOverQuota = 0;
+      return true;
+    }
+
+    // Only the process draining a shared sendQueue removes records from it. A process that is
+    // not sending drains it for no longer than the eviction.
+    boolean draining = isDraining();
+    if (!canSend()) {
+      return false;
+    }
+
+    boolean room = evictFor(priority, length);
+    if (!draining) {
+      finishSending();
+    }
+    return room;
+  }
+
+  /**
+   * Evicts records under the eviction policy to make room for a new record.
+   *
+   * @param priority The record's priority under the DROP_BY_PRIORITY policy
+   * @param length   Length of the encoded record
+   * @return false if the record should be dropped instead of added.
+   */
+  private boolean evictFor(int priority, int length) {
+    // Not synch'd as should always be called inside of a sync block !!
+    switch (this.options.getEvictionPolicy()) {
+      case DROP_NEWEST:
+        return false;
+
+      case DOWNSAMPLE:
+        if (this.recordsOverQuota++ % this.options.getDownsampleRate() != 0) {
+          return false;
+        }
+        break;
+
+      case DROP_BY_PRIORITY:
+        return evictByPriority(priority, length);
+
+      default:
+        break;
+    }
+
+    while (exceedsQuota(length) && this.sendQueue.size() > 0) {
+      evictHead();
+    }
+    // A record larger than the byte quota never fits
+    return !exceedsQuota(length);
+  }
+
+  /**
+   * Evicts the lowest priority records not in flight, oldest first among records of the same
+   * priority, to make room for a new record. Records of higher priority than the new record
+   * are kept.
+   *
+   * @param priority The record's priority under the DROP_BY_PRIORITY policy
+   * @param length   Length of the encoded record
+   * @return false if the record should be dropped instead of added.
+   */
+  private boolean evictByPriority(int priority, int length) {
+    // Not synch'd as should always be called inside of a sync block !!
+    // Priority and index of each record that may be evicted
+    List<int[]> candidates = new ArrayList<int[]>();
+    int size = this.sendQueue.size();
+    for (int i = sendingCount(); i < size; i++) {
+      byte[] record = this.sendQueue.get(i);
+      if (record == null) {
+        // The records behind it may have moved
+        break;
+      }
+
+      int recordPriority = priorityOf(record);
+      if (recordPriority <= priority) {
+        candidates.add(new int[] {recordPriority, i});
+      }
+    }
+
+    Collections.sort(candidates, new Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        if (a[0] != b[0]) {
+          return a[0] < b[0] ? -1 : 1;
+        }
+        return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+      }
+    });
+
+    List<Integer> evicted = new ArrayList<Integer>();
+    for (int[] candidate : candidates) {
+      if (!exceedsQuota(length)) {
+        break;
+      }
+
+      // Records behind an evicted record move up
+      int index = candidate[1];
+      for (Integer evictedIndex : evicted) {
+        if (evictedIndex < candidate[1]) {
+          index--;
+        }
+      }
+      removeFromSendQueue(index);
+      this.evictedRecords++;
+      evicted.add(candidate[1]);
+    }
+    return !exceedsQuota(length);
+  }
+
+  /**
+   * Removes the oldest record from the sendQueue to make room for a new one.
+   */
+  private void evictHead() {
+    // Not synch'd as should always be called inside of a sync block !!
+    dropHead();
+    this.evictedRecords++;
+  }
+
+  /**
+   * Removes the head of the sendQueue without it being sent.
+   */
+  private void dropHead() {
+    // Not synch'd as should always be called inside of a sync block !!
+    removeFromSendQueue(0);
+
+    // The Sender acknowledges the records it sent by their request, which no longer holds the
+    // evicted record
+    untrack(0);
+  }
+
+  /**
+   * @return Seconds a record waits to be sent before it expires, or 0 if records never expire.
+   */
+  private long timeToLiveSeconds() {
+    long millis = this.options.getTimeToLive();
+    return millis > 0 ? Math.max(1L, millis / 1000L) : 0L;
+  }
+
+  /**
+   * @param record An encoded record
+   * @return true if the record has waited longer than the time to live to be sent.
+   */
+  private boolean isExpired(byte[] record) {
+    // Not synch'd as should always be called inside of a sync block !!
+    long timeToLive = timeToLiveSeconds();
+    if (timeToLive == 0) {
+      return false;
+    }
+
+    long timestamp = QueueRecord.timestampOf(record);
+    return timestamp != 0 && timestamp < currentTimeSeconds() - timeToLive;
+  }
+
+  /**
+   * @param record An encoded record
+   * @return The record's priority under the DROP_BY_PRIORITY policy.
+   */
+  private int priorityOf(byte[] record) {
+    // Not synch'd as should always be called inside of a sync block !!
+    try {
+      return priorityOf(QueueRecord.decode(record, this.identities));
+    } catch (IOException e) {
+      // Unreadable records are evicted first
+      return Integer.MIN_VALUE;
+    }
+  }
+
+  /**
+   * @param record A record
+   * @return The record's priority under the DROP_BY_PRIORITY policy. Properties and aliases
+   * are kept over any event.
+   */
+  private int priorityOf(QueueRecord record) {
+    if (record.type != QueueRecord.TYPE_EVENT) {
+      return Integer.MAX_VALUE;
+    }
+    return this.options.getEventPriority(record.name);
   }
 
   /**
-   * Archives mSettings to Internal Storage
+   * Removes a record from the sendQueue.
+   *
+   * @param index Record index in the sendQueue
    */
-  private void archiveSettings() {
-    try {
-      FileOutputStream fos = this.context.openFileOutput(SETTINGS_FILE,
-              Context.MODE_PRIVATE);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      oos.writeObject(this.settings);
-      oos.flush();
-      oos.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we ignore it.
-      Log.w(KISSmetricsAPI.TAG, "Unable to archive settings", e);
+  private void removeFromSendQueue(int index) {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.sendQueue.remove(index);
+    compactIdentities();
+    if (this.writeBehind) {
+      markDirty(DIRTY_SEND_QUEUE);
     }
   }
 
   /**
-   * Unarchive's identity from Shared Preferences.
-   * Sets value of mLastIdentity with unarchived identity.
+   * Drops the interned identities once the sendQueue is empty, so the table only grows with
+   * the identities of records waiting to be sent.
    */
-  private void unarchiveIdentity() {
+  private void compactIdentities() {
     // Not synch'd as should always be called inside of a sync block !!
-    SharedPreferences pref = this.context.getSharedPreferences(IDENTITY_PREF,
-            Context.MODE_PRIVATE);
+    if (this.sharedQueue != null || this.sendQueue.size() > 0 ||
+            this.identities.size() < IDENTITIES_COMPACT_MIN) {
+      return;
+    }
 
-    // We should not have to protect against a null identity here.
-    // If preferences are cleared by the user while an application is running we will continue
-    // to use mLastIdentity.
-    // Upon the next true launch of an application a null unarchived identity will trigger the
-    // creation of a new anon identity.
-    this.lastIdentity = pref.getString("identity", "");
+    // The removals must be stored before the identities their records referred to are dropped
+    this.sendQueue.flush();
+    this.identities.clear();
   }
 
   /**
-   * Unarchives saved install events from Internal Storage or establishes a new List object.
-   * Sets value of mSavedInstallEvents with unarchived saved events.
-   * <p/>
-   * Suppresses warnings for ObjectInputStream readObject cast to List<String>.
+   * Reads a record. A corrupt record is dropped by the queue, and the record moved to its
+   * index read instead.
+   *
+   * @param queue Queue engine to read.
+   * @param index Record index in the queue.
+   * @return Encoded record at the index once corrupt records are dropped, or null if there is
+   * none or it could not be read for now.
    */
-  @SuppressWarnings("unchecked")
-  private void unarchiveSavedInstallEvents() {
-    // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileInputStream fis = this.context.openFileInput(SAVED_INSTALL_EVENTS_FILE);
-      ObjectInputStream ois = new ObjectInputStream(fis);
-      this.savedInstallEvents = (List<String>) ois.readObject();
-      ois.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we define mSavedInstallEvents
-      // as a new ArrayList and carry on.
-      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive saved install events", e);
-    }
+  private static byte[] recordAt(SendQueue queue, int index) {
+    int size = queue.size();
+    while (index < size) {
+      byte[] record = queue.get(index);
+      if (record != null) {
+        return record;
+      }
 
-    if (this.savedInstallEvents == null) {
-      // The file doesn't exist yet or there was an error in reading the file.
-      // Create the savedInstallEvents file with a new Array List.
-      this.savedInstallEvents = new ArrayList<String>();
-      this.archiveSavedInstallEvents();
+      int remaining = queue.size();
+      if (remaining >= size) {
+        // Kept by the queue to be read again
+        return null;
+      }
+      // Dropped as it could not be read back from storage
+      size = remaining;
     }
+    return null;
   }
 
   /**
-   * Archives mSavedInstallEvents from Internal Storage.
+   * Returns the query string of a record without putting it in flight.
+   *
+   * @param index Record index in the sendQueue.
+   * @return Query string of the record at the index once unreadable and expired records are
+   * dropped, or null if there is none.
    */
-  private void archiveSavedInstallEvents() {
+  private String queryStringAt(int index) {
     // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileOutputStream fos = this.context.openFileOutput(SAVED_INSTALL_EVENTS_FILE,
-              Context.MODE_PRIVATE);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      oos.writeObject(this.savedInstallEvents);
-      oos.flush();
-      oos.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we ignore it.
-      Log.w(KISSmetricsAPI.TAG, "Unable to archive saved install events", e);
+    while (index < sendQueue.size()) {
+      byte[] record = recordAt(this.sendQueue, index);
+      if (record == null) {
+        // Read again on the next attempt to send
+        return null;
+      }
+
+      if (index == 0 && isExpired(record)) {
+        dropHead();
+        this.expiredRecords++;
+        continue;
+      }
+
+      try {
+        return this.queryEncoder.createQuery(QueueRecord.decode(record, this.identities));
+      } catch (IOException e) {
+        // A record that can never be sent would block the sendQueue.
+        Log.w(KISSmetricsAPI.TAG, "Dropping unreadable send queue record", e);
+        untrack(index);
+        removeFromSendQueue(index);
+      }
     }
+    return null;
   }
 
   /**
-   * Unarchives saved events from Internal Storage or establishes a new List object.
-   * Sets value of mSavedIdEvents with unarchived saved events.
-   * <p/>
-   * Suppresses warnings for ObjectInputStream readObject cast to List<String>.
+   * Puts the records behind those already in flight in flight as a new request.
+   *
+   * @param maxRecords Most query strings in the request.
+   * @param maxBytes   Most bytes of query strings in the request.
+   * @return The request, or null if no record can be put in flight now.
    */
-  @SuppressWarnings("unchecked")
-  private void unarchiveSavedIdEvents() {
+  private SendRequest openRequest(int maxRecords, int maxBytes) {
     // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileInputStream fis = this.context.openFileInput(SAVED_ID_EVENTS_FILE);
-      ObjectInputStream ois = new ObjectInputStream(fis);
-      this.savedIdEvents = (List<String>) ois.readObject();
-      ois.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we define mSavedIdEvents as a new
-      // ArrayList and carry on.
-      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive saved identity events", e);
+    for (InFlightRequest request : this.inFlight) {
+      // Records behind a failed request wait for it to be sent again, and records behind an
+      // alias wait for it to be accepted
+      if (request.failed || request.alias) {
+        return null;
+      }
     }
 
-    if (this.savedIdEvents == null) {
-      // The file doesn't exist yet or there was an error in reading the file.
-      // Create the savedIdEvents file with a new Array List.
-      this.savedIdEvents = new ArrayList<String>();
-      this.archiveSavedIdEvents();
+    int start = sendingCount();
+    List<String> queries = new ArrayList<String>();
+    boolean alias = false;
+    int bytes = 0;
+
+    while (queries.size() < maxRecords) {
+      String query = queryStringAt(start + queries.size());
+      if (query == null) {
+        break;
+      }
+
+      if (query.startsWith(ALIAS_QUERY_PREFIX)) {
+        // Sent alone once every request before it has completed
+        if (queries.isEmpty() && this.inFlight.isEmpty()) {
+          queries.add(query);
+          alias = true;
+        }
+        break;
+      }
+
+      bytes += query.length() + 1;
+      if (!queries.isEmpty() && bytes > maxBytes) {
+        break;
+      }
+      queries.add(query);
+    }
+
+    if (queries.isEmpty()) {
+      return null;
     }
+
+    InFlightRequest request = new InFlightRequest(this.nextSequence++, queries.size(), alias);
+    this.inFlight.add(request);
+    return new SendRequest(request.sequence, queries);
   }
 
   /**
-   * Archives mSavedIdEvents from Internal Storage.
+   * Records the outcome of a request in flight and removes the records it is the last to hold
+   * back.
+   *
+   * @param sequence     The request's sequence number.
+   * @param acknowledged True if the request's records were sent.
    */
-  private void archiveSavedIdEvents() {
+  private void completeRequest(long sequence, boolean acknowledged) {
     // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileOutputStream fos = this.context.openFileOutput(SAVED_ID_EVENTS_FILE,
-              Context.MODE_PRIVATE);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      oos.writeObject(this.savedIdEvents);
-      oos.flush();
-      oos.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we ignore it.
-      Log.w(KISSmetricsAPI.TAG, "Unable to archive saved identity events", e);
+    InFlightRequest completed = null;
+    for (InFlightRequest request : this.inFlight) {
+      if (request.sequence == sequence) {
+        completed = request;
+        break;
+      }
+    }
+    if (completed == null) {
+      return;
+    }
+
+    if (acknowledged) {
+      completed.acknowledged = true;
+    } else {
+      completed.failed = true;
+    }
+
+    // Records are removed from the head as every request before them completes
+    while (!this.inFlight.isEmpty() && this.inFlight.get(0).acknowledged) {
+      InFlightRequest head = this.inFlight.remove(0);
+      for (int i = 0; i < head.count && sendQueue.size() > 0; i++) {
+        removeFromSendQueue(0);
+      }
+    }
+
+    for (InFlightRequest request : this.inFlight) {
+      if (!request.acknowledged && !request.failed) {
+        return;
+      }
+    }
+
+    // Nothing is in flight but failed requests and the requests acknowledged behind them.
+    // Acknowledged records are removed where they are, in a single rewrite of the sendQueue,
+    // and failed records are sent again.
+    final boolean[] acknowledgedAt = new boolean[sendingCount()];
+    int start = 0;
+    for (InFlightRequest request : this.inFlight) {
+      if (request.acknowledged) {
+        Arrays.fill(acknowledgedAt, start, start + request.count, true);
+      }
+      start += request.count;
+    }
+    this.inFlight.clear();
+
+    int removed = this.sendQueue.removeAll(new SendQueue.RecordFilter() {
+      public boolean matches(int index, byte[] record) {
+        return index < acknowledgedAt.length && acknowledgedAt[index];
+      }
+    });
+    compactIdentities();
+    if (removed > 0 && this.writeBehind) {
+      markDirty(DIRTY_SEND_QUEUE);
     }
   }
 
   /**
-   * Unarchives saved properties from Internal Storage or establishes new a HashMap object.
-   * Sets value of mSavedProperties with unarchived saved properties.
-   * <p/>
-   * Suppresses warnings for ObjectInputStream readObject cast to HashMap<String, String>.
+   * @return Number of records at the head of the sendQueue held by requests in flight.
    */
-  @SuppressWarnings("unchecked")
-  private void unarchiveSavedProperties() {
+  private int sendingCount() {
     // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileInputStream fis = this.context.openFileInput(SAVED_PROPERTIES_FILE);
-      ObjectInputStream ois = new ObjectInputStream(fis);
-      this.savedProperties = (HashMap<String, String>) ois.readObject();
-      ois.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we define mSavedProperites as a new
-      // HashMap and carry on.
-      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive saved properties", e);
-    }
-
-    if (this.savedProperties == null) {
-      // The file doesn't exist yet or there was an error in reading the file.
-      // Create the savedProperties file with a new HashMap.
-      this.savedProperties = new HashMap<String, String>();
-      this.archiveSavedProperties();
+    int count = 0;
+    for (InFlightRequest request : this.inFlight) {
+      count += request.count;
     }
+    return count;
   }
 
   /**
-   * Archives mSavedProperties to Internal Storage.
+   * Releases a record about to be removed without being sent from the request holding it.
+   *
+   * @param index Record index in the sendQueue
    */
-  private void archiveSavedProperties() {
+  private void untrack(int index) {
     // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileOutputStream fos = this.context.openFileOutput(SAVED_PROPERTIES_FILE,
-              Context.MODE_PRIVATE);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      oos.writeObject(this.savedProperties);
-      oos.flush();
-      oos.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we ignore it.
-      Log.w(KISSmetricsAPI.TAG, "Unable to archive saved properties", e);
+    int start = 0;
+    for (InFlightRequest request : this.inFlight) {
+      if (index < start + request.count) {
+        request.count--;
+        return;
+      }
+      start += request.count;
     }
   }
 
   /**
-   * Unarchives sendQueue from Internal Storage or establishes a new List<String, String> object.
-   * Sets value of mSendQueue with unarchived sendQueue.
-   * <p/>
-   * Suppresses warnings for ObjectInputStream readObject cast to List<String, String>.
+   * @param record          An encoded record that holds its identity itself
+   * @param identity        User identity
+   * @param encodedIdentity The identity as encoded in query strings
+   * @return true if the record was recorded for the identity or aliases to or from it.
    */
-  @SuppressWarnings("unchecked")
-  private void unarchiveSendQueue() {
-    // Not synch'd as should always be called inside of a synch block !!
+  private boolean isRecordOf(byte[] record, String identity, String encodedIdentity) {
+    // Not synch'd as should always be called inside of a sync block !!
+    QueueRecord decoded;
     try {
-      FileInputStream fis = this.context.openFileInput(ACTIONS_FILE);
-      ObjectInputStream ois = new ObjectInputStream(fis);
-      this.sendQueue = (List<String>) ois.readObject();
-      ois.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we define mSavedProperites as a new
-      // List<String> and carry on.
-      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive data", e);
+      decoded = QueueRecord.decode(record, this.identities);
+    } catch (IOException e) {
+      // Left to be dropped when sent
+      return false;
     }
 
-    if (this.sendQueue == null) {
-      this.sendQueue = new ArrayList<String>();
-      this.archiveSendQueue();
+    switch (decoded.type) {
+      case QueueRecord.TYPE_ALIAS:
+        return identity.equals(decoded.identity) || identity.equals(decoded.name);
+      case QueueRecord.TYPE_RAW:
+        // Query strings migrated from a previous SDK version
+        String query = decoded.name;
+        return hasParameter(query, "_p", encodedIdentity) ||
+                (query.startsWith(ALIAS_QUERY_PREFIX) && hasParameter(query, "_n", encodedIdentity));
+      default:
+        return identity.equals(decoded.identity);
     }
   }
 
   /**
-   * Archives mSendQueue to Internal Storage.
+   * @param query A query string
+   * @param name  Parameter name
+   * @param value Encoded parameter value
+   * @return true if the query string holds the parameter with exactly the value.
    */
-  private void archiveSendQueue() {
-    // Not synch'd as should always be called inside of a sync block !!
-    try {
-      FileOutputStream fos = this.context.openFileOutput(ACTIONS_FILE, Context.MODE_PRIVATE);
-      ObjectOutputStream oos = new ObjectOutputStream(fos);
-      oos.writeObject(this.sendQueue);
-      oos.flush();
-      oos.close();
-    } catch (Exception e) {
-      // The KISSmetrics SDK should not cause a customer's app to crash.
-      // If a FileNotFoundException or IOException arises we ignore it.
-      Log.w(KISSmetricsAPI.TAG, "Unable to archive data", e);
+  private static boolean hasParameter(String query, String name, String value) {
+    String parameter = name + "=" + value;
+    int start = query.indexOf(parameter);
+    while (start >= 0) {
+      int end = start + parameter.length();
+      boolean bounded = start > 0 && (query.charAt(start - 1) == '?' ||
+              query.charAt(start - 1) == '&');
+      if (bounded && (end == query.length() || query.charAt(end) == '&')) {
+        return true;
+      }
+      start = query.indexOf(parameter, start + 1);
     }
+    return false;
   }
 
   /**
@@ -423,7 +1364,7 @@ public class ArchiverImpl implements Archiver {
 
     synchronized (this) {
       this.settings.put(INSTALL_UUID_KEY, installUuid);
-      this.archiveSettings();
+      this.archiveState();
     }
   }
 
@@ -435,7 +1376,7 @@ public class ArchiverImpl implements Archiver {
   public void archiveDoTrack(boolean doTrack) {
     synchronized (this) {
       this.settings.put(DO_TRACK_KEY, doTrack);
-      this.archiveSettings();
+      this.archiveState();
     }
   }
 
@@ -447,7 +1388,7 @@ public class ArchiverImpl implements Archiver {
   public void archiveDoSend(boolean doSend) {
     synchronized (this) {
       this.settings.put(DO_SEND_KEY, doSend);
-      this.archiveSettings();
+      this.archiveState();
     }
   }
 
@@ -465,7 +1406,7 @@ public class ArchiverImpl implements Archiver {
 
     synchronized (this) {
       this.settings.put(BASE_URL_KEY, baseUrl);
-      this.archiveSettings();
+      this.archiveState();
     }
   }
 
@@ -477,7 +1418,7 @@ public class ArchiverImpl implements Archiver {
   public void archiveVerificationExpDate(long expDate) {
     synchronized (this) {
       this.settings.put(VERIFICATION_EXP_DATE_KEY, expDate);
-      this.archiveSettings();
+      this.archiveState();
     }
   }
 
@@ -500,12 +1441,12 @@ public class ArchiverImpl implements Archiver {
   public void archiveAppVersion(String appVersion) {
     synchronized (this) {
       this.settings.put(APP_VERSION_KEY, appVersion);
-      this.archiveSettings();
+      this.archiveState();
     }
   }
 
   /**
-   * Archives first identity to Shared Preferences.
+   * Archives first identity to the StateStore.
    * Used when establishing a new identity that is not aliased to any other identity.
    * Nothing is passed to KISSmetrics as a result of archiving a first identity.
    *
@@ -519,11 +1460,7 @@ public class ArchiverImpl implements Archiver {
     synchronized (this) {
       this.lastIdentity = identity;
       this.archiveHasGenericIdentity(true);
-      SharedPreferences pref = this.context.getSharedPreferences(IDENTITY_PREF,
-              Context.MODE_PRIVATE);
-      SharedPreferences.Editor prefEditor = pref.edit();
-      prefEditor.putString("identity", this.lastIdentity);
-      prefEditor.commit();
+      this.archiveState();
     }
   }
 
@@ -541,25 +1478,21 @@ public class ArchiverImpl implements Archiver {
 
       case RECORD_ONCE_PER_IDENTITY:
         synchronized (this) {
-          if (this.savedIdEvents != null && this.savedIdEvents.contains(name)) {
+          if (!this.savedIdEvents.add(name)) {
             // Recorded event already exists
             return;
-          } else {
-            this.savedIdEvents.add(name);
-            archiveSavedIdEvents();
           }
+          markSavedIndexesDirty();
         }
         break;
 
       case RECORD_ONCE_PER_INSTALL:
         synchronized (this) {
-          if (this.savedInstallEvents != null && this.savedInstallEvents.contains(name)) {
+          if (!this.savedInstallEvents.add(name)) {
             // Recorded event already exists
             return;
-          } else {
-            this.savedInstallEvents.add(name);
-            archiveSavedInstallEvents();
           }
+          markSavedIndexesDirty();
         }
         break;
 
@@ -574,24 +1507,22 @@ public class ArchiverImpl implements Archiver {
 
   /**
    * Adds an event (with or without properties) to the sendQueue.
-   * Archives the updated sendQueue to Internal Storage.
+   * Appends the new record to the sendQueue in Internal Storage.
    *
    * @param name       Name of the event to record
    * @param properties A HashMap of 1 or more properties, or null
    */
   private void archiveEvent(String name, Map<String, String> properties) {
     synchronized (this) {
-      String theUrl = this.queryEncoder.createEventQuery(name, properties,
-              this.lastIdentity,
+      QueueRecord record = QueueRecord.event(name, properties, this.lastIdentity,
               currentTimeSeconds());
-      this.sendQueue.add(theUrl);
-      archiveSendQueue();
+      addToSendQueue(record);
     }
   }
 
   /**
    * Adds 1 or more properties to the sendQueue.
-   * Archives the updated sendQueue to Internal Storage.
+   * Appends the new record to the sendQueue in Internal Storage.
    *
    * @param properties HashMap of 1 or more properties.
    */
@@ -603,32 +1534,28 @@ public class ArchiverImpl implements Archiver {
     }
 
     synchronized (this) {
-      String theUrl = this.queryEncoder.createPropertiesQuery(properties, this.lastIdentity,
+      QueueRecord record = QueueRecord.properties(properties, this.lastIdentity,
               currentTimeSeconds());
-      this.sendQueue.add(theUrl);
-      archiveSendQueue();
+      addToSendQueue(record);
     }
   }
 
   /**
    * Adds 1 property to the sendQueue if the value is different than
    * the current value for the provided name(key).
-   * Archives the updated sendQueue to Internal Storage.
-   * Adds this property to mSavedProperties and archives to savedProperties.
+   * Appends the new record to the sendQueue in Internal Storage.
+   * Adds this property to savedProperties and appends it to its log in Internal Storage.
    *
    * @param name  Property name(key)
    * @param value Property value for name(key)
    */
   public void archiveDistinctProperty(String name, String value) {
     synchronized (this) {
-      String propertyValue = this.savedProperties.get(name);
-      if (propertyValue != null && propertyValue.equals(value)) {
+      if (!this.savedProperties.put(name, value)) {
         //Log.w(KISSmetricsAPI.TAG, "Distinct property already set with same value");
         return;
-      } else {
-        this.savedProperties.put(name, value);
-        archiveSavedProperties();
       }
+      markSavedIndexesDirty();
     }
 
     // Pass it to the archive method
@@ -638,11 +1565,50 @@ public class ArchiverImpl implements Archiver {
     archiveProperties(propertyHashMap);
   }
 
+  /**
+   * Checks whether archiveEvent would skip an event already recorded for its condition.
+   * Does not lock the Archiver, or wait on writes to the saved index files, so it can be called
+   * from an app's main thread.
+   *
+   * @param name      Event name
+   * @param condition RecordCondition of the event
+   * @return true if the event has already been recorded once per identity or install.
+   */
+  public boolean isEventSaved(String name, RecordCondition condition) {
+    if (condition == null) {
+      return false;
+    }
+
+    switch (condition) {
+      case RECORD_ONCE_PER_IDENTITY:
+        return this.savedIdEvents.contains(name);
+
+      case RECORD_ONCE_PER_INSTALL:
+        return this.savedInstallEvents.contains(name);
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Checks whether archiveDistinctProperty would skip a property already set to the value.
+   * Does not lock the Archiver, or wait on writes to the saved index files, so it can be called
+   * from an app's main thread.
+   *
+   * @param name  Property name(key)
+   * @param value Property value for name(key)
+   * @return true if the property was last set to the same value.
+   */
+  public boolean isDistinctPropertySaved(String name, String value) {
+    return this.savedProperties.containsEntry(name, value);
+  }
+
   /**
    * Sets value of mLastIdentity.
-   * Archives mLastIdentity to Shared Preferences.
+   * Archives mLastIdentity to the StateStore.
    * Adds an alias query to the sendQueue.
-   * Archives the updated sendQueue to Internal Storage.
+   * Appends the new record to the sendQueue in Internal Storage.
    *
    * @param identity A new user identity
    */
@@ -652,36 +1618,39 @@ public class ArchiverImpl implements Archiver {
       return;
     }
 
-    String theUrl = this.queryEncoder.createAliasQuery(identity, this.lastIdentity);
+    QueueRecord record = QueueRecord.alias(identity, this.lastIdentity);
 
     synchronized (this) {
       // Now we must update the identity on disk. No need to wait until the alias has been
       // accepted on the server, as calls are FIFO and encoded with current identity.
       this.lastIdentity = identity;
 
-      SharedPreferences pref = this.context.getSharedPreferences(IDENTITY_PREF,
-              Context.MODE_PRIVATE);
-      SharedPreferences.Editor prefEditor = pref.edit();
-      prefEditor.putString("identity", this.lastIdentity);
-      prefEditor.commit();
-
       // Only add the alias query if the current identity is a generic identity
-      if (this.hasGenericIdentity()) {
+      boolean hadGenericIdentity = this.hasGenericIdentity();
+      if (hadGenericIdentity) {
         this.archiveHasGenericIdentity(false);
-        this.sendQueue.add(theUrl);
-        archiveSendQueue();
       } else {
         // This is expected to be an entirely different user.
         // Clear saved Events and Properties just as we would when clearing an Identity
-        this.clearSavedIdEvents();
-        this.clearSavedProperties();
+        // Saved events are cleared first, so a process killed before the identity is archived
+        // can only cause events to be recorded again for the previous identity.
+        this.savedIdEvents.clear();
+        this.savedProperties.clear();
+        markSavedIndexesDirty();
+      }
+
+      // The identity and settings are archived in a single write
+      this.archiveState();
+
+      if (hadGenericIdentity) {
+        addToSendQueue(record);
       }
     }
   }
 
   /**
    * Adds an alias query to the sendQueue.
-   * Archives the updated sendQueue to Internal Storage.
+   * Appends the new record to the sendQueue in Internal Storage.
    *
    * @param alias    An alias to an identity
    * @param identity A known user identity
@@ -694,62 +1663,170 @@ public class ArchiverImpl implements Archiver {
       return;
     }
 
-    String theUrl = this.queryEncoder.createAliasQuery(alias, identity);
+    QueueRecord record = QueueRecord.alias(alias, identity);
 
     synchronized (this) {
-      this.sendQueue.add(theUrl);
-      archiveSendQueue();
+      addToSendQueue(record);
     }
   }
 
   /**
-   * Replaces mSendQueue with a new(empty) List.
-   * Archives the updated sendQueue to Internal Storage.
+   * Empties the sendQueue and its journal in Internal Storage.
    */
   public void clearSendQueue() {
     synchronized (this) {
-      this.sendQueue = new ArrayList<String>();
-      archiveSendQueue();
+      this.sendQueue.clear();
+      compactIdentities();
+      for (InFlightRequest request : this.inFlight) {
+        request.count = 0;
+      }
+    }
+  }
+
+
+  /**
+   * Removes every record of an identity from the sendQueue, along with aliases to or from it,
+   * in a single rewrite of the sendQueue in Internal Storage. Records interned in the identity
+   * table are matched by their identity id without being decoded.
+   *
+   * <p/>
+   * Only the process that sends a SHARED_JOURNAL sendQueue removes its records. Any other
+   * process leaves the purge to it, as replacing the shared file would move the records it
+   * has in flight.
+   *
+   * @param identity User identity to purge
+   * @return The number of records removed, or 0 if the purge is left to another process.
+   */
+  public int purgeIdentity(final String identity) {
+    if (identity == null || identity.length() == 0) {
+      Log.w(KISSmetricsAPI.TAG, "Attempted to purge a null or empty identity. Ignoring");
+      return 0;
+    }
+
+    synchronized (this) {
+      boolean draining = isDraining();
+      if (!canSend()) {
+        this.sharedQueue.requestPurge(identity);
+        return 0;
+      }
+
+      int purged = purge(identity);
+      if (!draining) {
+        finishSending();
+      }
+      return purged;
+    }
+  }
+
+
+  /**
+   * Purges the identities whose purge was requested by processes that do not send the shared
+   * sendQueue.
+   */
+  private void purgeRequestedIdentities() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.sharedQueue == null) {
+      return;
+    }
+
+    for (String identity : this.sharedQueue.takePurges()) {
+      purge(identity);
+    }
+  }
+
+
+  /**
+   * Removes every record of an identity from the sendQueue, untracking those in flight.
+   *
+   * @param identity User identity to purge
+   * @return The number of records removed.
+   */
+  private int purge(final String identity) {
+    // Not synch'd as should always be called inside of a sync block !!
+    final long identityId = this.identities.idOf(identity);
+    final String encodedIdentity = this.queryEncoder.encodeIdentity(identity);
+
+    SendQueue.RecordFilter filter = new SendQueue.RecordFilter() {
+      public boolean matches(int index, byte[] record) {
+        long recordIdentityId = QueueRecord.identityIdOf(record);
+        if (recordIdentityId >= 0) {
+          return recordIdentityId == identityId;
+        }
+        return isRecordOf(record, identity, encodedIdentity);
+      }
+    };
+
+    // Records being sent are no longer held by their requests once they have been purged
+    List<Integer> purgedSending = new ArrayList<Integer>();
+    int sendingCount = sendingCount();
+    for (int i = 0; i < sendingCount && i < this.sendQueue.size(); i++) {
+      byte[] record = this.sendQueue.get(i);
+      if (record != null && filter.matches(i, record)) {
+        purgedSending.add(i);
+      }
+    }
+
+    int removed = this.sendQueue.removeAll(filter);
+    for (int i = purgedSending.size() - 1; i >= 0; i--) {
+      untrack(purgedSending.get(i));
+    }
+
+    // No queued record refers to the identity any longer
+    if (identityId >= 0) {
+      this.sendQueue.flush();
+      this.identities.forget(identity);
     }
+    compactIdentities();
+    if (removed > 0 && this.writeBehind) {
+      markDirty(DIRTY_SEND_QUEUE);
+    }
+    return removed;
   }
 
 
   /**
-   * Replaces mSavedIdEvents with a new(empty) List.
-   * Archives the updated savedIdEvents to Internal Storage.
+   * Empties mSavedIdEvents and its file in Internal Storage.
    */
   public void clearSavedIdEvents() {
     synchronized (this) {
-      this.savedIdEvents = new ArrayList<String>();
-      archiveSavedProperties();
+      this.savedIdEvents.clear();
+      markSavedIndexesDirty();
     }
   }
 
 
   /**
-   * Replaces mSavedProperties with a new(empty) HashMap.
-   * Archives the updated savedProperties to Internal Storage.
+   * Empties savedProperties and its file in Internal Storage.
    */
   public void clearSavedProperties() {
     synchronized (this) {
-      this.savedProperties = new HashMap<String, String>();
-      archiveSavedProperties();
+      this.savedProperties.clear();
+      markSavedIndexesDirty();
     }
   }
 
 
   /**
-   * Returns the query string from the sendQueue at the specified index.
+   * Returns the query string for the record in the sendQueue at the specified index.
+   * The query string is assembled from the stored record when requested.
+   * Records that cannot be decoded are removed, as are expired records at the head.
+   * When nothing is in flight, the head record is put in flight until it is acknowledged by
+   * removeQueryString(0).
    *
    * @param index Query string index in the sendQueue.
    * @return Query string of the requested index.
    */
   public String getQueryString(int index) {
     synchronized (this) {
-      if (sendQueue.isEmpty()) {
-        return null;
+      if (index == 0 && this.inFlight.isEmpty()) {
+        SendRequest request = openRequest(1, Integer.MAX_VALUE);
+        if (request == null) {
+          return null;
+        }
+        this.headSequence = request.sequence;
+        return request.queries.get(0);
       }
-      return sendQueue.get(index);
+      return queryStringAt(index);
     }
   }
 
@@ -763,12 +1840,92 @@ public class ArchiverImpl implements Archiver {
    */
   public void removeQueryString(int index) {
     synchronized (this) {
+      if (index == 0 && this.headSequence >= 0) {
+        // Not removed again if it was evicted to make room while being sent
+        long sequence = this.headSequence;
+        this.headSequence = -1;
+        completeRequest(sequence, true);
+        return;
+      }
+
       // As an added precaution we check the length of the sendQueue before removing.
       if (sendQueue.size() > 0) {
-        sendQueue.remove(index);
-        // Persist the shorter queue
-        archiveSendQueue();
+        // Only advances the journal read cursor when removing the head
+        untrack(index);
+        removeFromSendQueue(index);
+      }
+    }
+  }
+
+
+  /**
+   * Puts the next records waiting to be sent in flight, as a request of up to the most records
+   * and bytes. The first record is always taken however long it is. Requests may be put in
+   * flight before earlier ones complete, except that an alias is sent alone once every
+   * request before it has completed, and nothing is sent behind it until it is accepted.
+   *
+   * @param maxRecords Most query strings in the request.
+   * @param maxBytes   Most bytes of query strings in the request, counting a separator after
+   *                   each.
+   * @return The request, or null if no record can be put in flight now.
+   */
+  public SendRequest nextSendRequest(int maxRecords, int maxBytes) {
+    synchronized (this) {
+      // Another process may have taken over sending a shared sendQueue since sending began
+      if (!canSend()) {
+        return null;
+      }
+      purgeRequestedIdentities();
+      return openRequest(maxRecords, maxBytes);
+    }
+  }
+
+
+  /**
+   * Completes a request returned by nextSendRequest. The records of acknowledged requests are
+   * removed from the head of the sendQueue once every request before them has completed.
+   * Records of a failed request are sent again, before any record behind them.
+   *
+   * @param sequence     The request's sequence number.
+   * @param acknowledged True if the request's records were sent, or can never be sent.
+   */
+  public void completeSendRequest(long sequence, boolean acknowledged) {
+    synchronized (this) {
+      completeRequest(sequence, acknowledged);
+    }
+  }
+
+
+  /**
+   * Writes all changes held by the write-behind flusher to Internal Storage.
+   * State is copied while synchronized and written outside of the sync block, so recording
+   * carries on while files are written.
+   */
+  public void flush() {
+    synchronized (this.flushLock) {
+      StateStore.State stateCopy = null;
+
+      synchronized (this) {
+        if ((this.dirtyState & DIRTY_STATE) != 0) {
+          stateCopy = copyState();
+        }
+
+        this.dirtyState = 0;
+        this.pendingMutations = 0;
+        this.flushScheduled = false;
+      }
+
+      // Saved events and properties are written before the identity they were cleared for
+      this.savedIdEvents.flush();
+      this.savedInstallEvents.flush();
+      this.savedProperties.flush();
+
+      if (stateCopy != null) {
+        this.stateStore.write(stateCopy);
       }
+
+      // The sendQueue synchronizes its own writes
+      this.sendQueue.flush();
     }
   }
 
@@ -785,6 +1942,62 @@ public class ArchiverImpl implements Archiver {
     }
   }
 
+  /**
+   * Takes over sending a shared sendQueue if no other process sends its records.
+   *
+   * @return false if the sendQueue is shared and another process sends its records.
+   */
+  public boolean canSend() {
+    return this.sharedQueue == null || this.sharedQueue.tryDrain();
+  }
+
+  /**
+   * @return true if the sendQueue is not shared, or this process sends its records.
+   */
+  private boolean isDraining() {
+    return this.sharedQueue == null || this.sharedQueue.isDraining();
+  }
+
+  /**
+   * Called once nothing is left in flight. Stops sending a shared sendQueue so that another
+   * process with records to send can take over, as this process is not told of the records
+   * other processes append.
+   */
+  public void finishSending() {
+    synchronized (this) {
+      if (this.sharedQueue != null && this.inFlight.isEmpty()) {
+        this.sharedQueue.releaseDrain();
+      }
+    }
+  }
+
+  /**
+   * @return Number of queued records removed this session to make room for newer records.
+   */
+  public long getEvictedRecordCount() {
+    synchronized (this) {
+      return this.evictedRecords;
+    }
+  }
+
+  /**
+   * @return Number of new records dropped this session as the sendQueue was over quota.
+   */
+  public long getDroppedRecordCount() {
+    synchronized (this) {
+      return this.droppedRecords;
+    }
+  }
+
+  /**
+   * @return Number of records dropped this session as they waited longer than the time to live.
+   */
+  public long getExpiredRecordCount() {
+    synchronized (this) {
+      return this.expiredRecords;
+    }
+  }
+
   public String getInstallUuid() {
     return (String) settings.get(INSTALL_UUID_KEY);
   }
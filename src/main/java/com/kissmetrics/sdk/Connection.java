@@ -17,6 +17,8 @@
 
 package com.kissmetrics.sdk;
 
+import java.util.List;
+
 /**
  * Connection interface
  */
@@ -31,4 +33,14 @@ interface Connection {
    * @param delegate Object implementing the ConnectionDelegate interface
    */
   void sendRecord(String urlString, ConnectionDelegate delegate);
+
+  /**
+   * Posts several API query strings together to the provided batch urlString.
+   * Notifies the provided ConnectionDelegate's batchComplete on completion.
+   *
+   * @param urlString URL of the batch endpoint
+   * @param queries URL encoded API query strings, in the order they were queued
+   * @param delegate Object implementing the ConnectionDelegate interface
+   */
+  void sendBatch(String urlString, List<String> queries, ConnectionDelegate delegate);
 }
@@ -21,12 +21,79 @@ package com.kissmetrics.sdk;
  * Connection Delegate interface
  */
 public interface ConnectionDelegate {
+  /**
+   * How a request completed, and so what should happen to its records.
+   */
+  enum Outcome {
+    /**
+     * The records were accepted.
+     */
+    SUCCESS,
+
+    /**
+     * The records will never be accepted, and should not be sent again.
+     */
+    PERMANENT_FAILURE,
+
+    /**
+     * The request failed, likely due to connectivity issues, and should be sent again later.
+     */
+    RETRYABLE_FAILURE,
+
+    /**
+     * The endpoint is overloaded and asks for nothing more to be sent for a while.
+     */
+    THROTTLED
+  }
+
+  /**
+   * Why a batch request was refused, and so how its queries should be sent again.
+   */
+  enum BatchRejection {
+    /**
+     * The batch was not refused.
+     */
+    NONE,
+
+    /**
+     * The batch was too large, so its queries should be sent again in smaller batches.
+     */
+    TOO_LARGE,
+
+    /**
+     * The batch could not be read, likely because of one of its queries, so its queries
+     * should be sent again one at a time.
+     */
+    MALFORMED,
+
+    /**
+     * The endpoint does not accept batches, so queries should be sent one at a time.
+     */
+    UNSUPPORTED
+  }
+
   /**
    * Callback method for completed HttpURLConnections of KISSmetrics API queries
    *
-   * @param urlString URL encoded API query string of the completed connection.
-   * @param success   True for acceptable query response codes.
-   * @param malformed True if the provided query string was malformed.
+   * @param urlString  URL encoded API query string of the completed connection.
+   * @param outcome    How the request completed.
+   * @param retryAfter Milliseconds the endpoint asked to wait before sending again, or -1 if it
+   *                   did not say.
+   */
+  void connectionComplete(String urlString, Outcome outcome, long retryAfter);
+
+  /**
+   * Callback method for completed batch requests of several KISSmetrics API queries
+   *
+   * @param urlString   URL of the batch endpoint.
+   * @param recordCount Number of query strings in the batch.
+   * @param outcome     How the request completed. SUCCESS if every query in the batch was
+   *                    accepted.
+   * @param rejection   Why the batch was refused, or NONE. The outcome of a refused batch is
+   *                    not that of its queries, which should be sent again.
+   * @param retryAfter  Milliseconds the endpoint asked to wait before sending again, or -1 if
+   *                    it did not say.
    */
-  void connectionComplete(String urlString, boolean success, boolean malformed);
+  void batchComplete(String urlString, int recordCount, Outcome outcome,
+                     BatchRejection rejection, long retryAfter);
 }
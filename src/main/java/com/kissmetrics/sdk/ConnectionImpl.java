@@ -17,21 +17,60 @@
 
 package com.kissmetrics.sdk;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
+
+import com.kissmetrics.sdk.ConnectionDelegate.BatchRejection;
+import com.kissmetrics.sdk.ConnectionDelegate.Outcome;
 
 import android.os.Build;
 import android.util.Log;
 
 /**
  * Handles HttpURLConnections for KISSmetrics API queries.
+ * Holds no per request state, so a single instance is shared by every Sender.
+ * <p/>
+ * By default each request asks the server to close its connection, which avoids the
+ * EOFExceptions some Android versions throw when reusing a pooled connection the server has
+ * already closed. With keep-alive, response bodies are drained and connections are left open
+ * to be reused by the next request, and a request failing with an EOFException is retried once.
  */
 public class ConnectionImpl implements Connection {
   private static final Integer CONNECTION_TIMEOUT = 20;
+  private static final String BATCH_CONTENT_TYPE = "text/plain; charset=utf-8";
+  private static final int DRAIN_BUFFER_SIZE = 1024;
+
+  private final boolean keepAlive;
+
+  /**
+   * Status of a response, and how long the endpoint asked to wait before sending again.
+   */
+  private static final class Response {
+    final int code;
+    final long retryAfter;
+
+    Response(int code, long retryAfter) {
+      this.code = code;
+      this.retryAfter = retryAfter;
+    }
+  }
 
-  private HttpURLConnection connection;
+  public ConnectionImpl() {
+    this(false);
+  }
+
+  /**
+   * @param keepAlive True to reuse connections across requests.
+   */
+  public ConnectionImpl(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
 
   /**
    * Opens a connection from a URL.
@@ -53,54 +92,253 @@ public class ConnectionImpl implements Connection {
    * @param delegate Object implementing the ConnectionDelegate interface
    */
   public void sendRecord(String urlString, ConnectionDelegate delegate) {
-    URL url = null;
-    connection = null;
+    Outcome outcome = Outcome.RETRYABLE_FAILURE;
+    Response response = null;
 
-    boolean success = false;
-    boolean malformed = false;
-    int responseCode = -1;
+    try {
+      response = request(new URL(urlString), null);
+      outcome = classify(response.code, response.code == 200 || response.code == 304);
+    } catch (MalformedURLException e) {
+      Log.w(KISSmetricsAPI.TAG, "Connection URL was malformed", e);
+      outcome = Outcome.PERMANENT_FAILURE;
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Connection experienced an Exception", e);
+    } finally {
+      // Callback to delegate
+      if (delegate != null) {
+        delegate.connectionComplete(urlString, outcome,
+                response != null ? response.retryAfter : -1);
+      } else {
+        Log.w(KISSmetricsAPI.TAG, "Connection delegate not available");
+      }
+    }
+  }
+
+  /**
+   * Posts several API query strings together to the provided batch urlString, one query
+   * string per line of the request body.
+   * Handles the response and notifies the provided ConnectionDelgate on completion.
+   *
+   * @param urlString URL of the batch endpoint
+   * @param queries URL encoded API query strings, in the order they were queued
+   * @param delegate Object implementing the ConnectionDelegate interface
+   */
+  public void sendBatch(String urlString, List<String> queries, ConnectionDelegate delegate) {
+    Outcome outcome = Outcome.RETRYABLE_FAILURE;
+    BatchRejection rejection = BatchRejection.NONE;
+    Response response = null;
 
     try {
-      url = new URL(urlString);
+      StringBuilder body = new StringBuilder();
+      for (String query : queries) {
+        body.append(query).append('\n');
+      }
+
+      response = request(new URL(urlString), body.toString().getBytes("UTF-8"));
+      rejection = batchRejection(response.code);
+      if (rejection != BatchRejection.NONE) {
+        outcome = Outcome.PERMANENT_FAILURE;
+      } else {
+        outcome = classify(response.code,
+                response.code == 200 || response.code == 202 || response.code == 204);
+      }
+    } catch (MalformedURLException e) {
+      // Sent one at a time, each query string is found to be malformed
+      Log.w(KISSmetricsAPI.TAG, "Batch URL was malformed", e);
+      outcome = Outcome.PERMANENT_FAILURE;
+      rejection = BatchRejection.UNSUPPORTED;
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Connection experienced an Exception", e);
+    } finally {
+      // Callback to delegate
+      if (delegate != null) {
+        delegate.batchComplete(urlString, queries.size(), outcome, rejection,
+                response != null ? response.retryAfter : -1);
+      } else {
+        Log.w(KISSmetricsAPI.TAG, "Connection delegate not available");
+      }
+    }
+  }
 
-      connection = createHttpURLConnection(url);
+  /**
+   * Makes a request, retrying once on a new connection if a reused connection turns out to
+   * have been closed by the server.
+   *
+   * @param url  Request URL
+   * @param body POST request body, or null for a GET request
+   * @return The response.
+   * @throws IOException
+   */
+  private Response request(URL url, byte[] body) throws IOException {
+    try {
+      return attempt(url, body);
+    } catch (EOFException e) {
+      if (!this.keepAlive) {
+        throw e;
+      }
+
+      // addressing java.io.EOFException
+      // The failed connection is not returned to the pool, so the retry is not made on it.
+      Log.w(KISSmetricsAPI.TAG, "Reused connection was closed. Retrying", e);
+      return attempt(url, body);
+    }
+  }
+
+  /**
+   * Makes a single request. With keep-alive the connection is left open for reuse once its
+   * response has been read in full, otherwise it is closed.
+   *
+   * @param url  Request URL
+   * @param body POST request body, or null for a GET request
+   * @return The response.
+   * @throws IOException
+   */
+  private Response attempt(URL url, byte[] body) throws IOException {
+    HttpURLConnection connection = createHttpURLConnection(url);
+    boolean reusable = false;
+
+    try {
       connection.setUseCaches(false);
-      connection.setRequestMethod("GET");
+      connection.setRequestMethod(body != null ? "POST" : "GET");
       connection.setConnectTimeout(CONNECTION_TIMEOUT * 1000);
       connection.setRequestProperty("User-Agent", USER_AGENT);
       // TODO: Apply any easily obtainable device/OS info to the user agent value
 
       // addressing java.io.EOFException
-      if (Build.VERSION.SDK != null && Build.VERSION.SDK_INT > 13) {
+      if (!this.keepAlive && Build.VERSION.SDK != null && Build.VERSION.SDK_INT > 13) {
         connection.setRequestProperty("Connection", "close");
       }
 
-      responseCode = connection.getResponseCode();
-      connection.connect();
+      if (body != null) {
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", BATCH_CONTENT_TYPE);
+        connection.setFixedLengthStreamingMode(body.length);
 
-    } catch (MalformedURLException e) {
-      Log.w(KISSmetricsAPI.TAG, "Connection URL was malformed", e);
-      malformed = true;
-    } catch (Exception e) {
-      Log.w(KISSmetricsAPI.TAG, "Connection experienced an Exception", e);
+        OutputStream out = connection.getOutputStream();
+        try {
+          out.write(body);
+        } finally {
+          out.close();
+        }
+      }
+
+      int responseCode = connection.getResponseCode();
+      long retryAfter = retryAfter(connection);
+      if (this.keepAlive) {
+        reusable = drain(connection, responseCode);
+      }
+      return new Response(responseCode, retryAfter);
     } finally {
-      if (connection != null) {
+      if (!reusable) {
         connection.disconnect();
-        connection = null;
       }
+    }
+  }
 
-      if (!malformed && (responseCode == 200 || responseCode == 304)) {
-        success = true;
-      } else {
-        success = false;
+  /**
+   * Reads a response body to its end, as a connection is only returned to the pool for reuse
+   * once its response has been read in full.
+   *
+   * @param connection   A connection whose response code has been read
+   * @param responseCode The response code
+   * @return false if the body could not be read, so the connection cannot be reused.
+   */
+  private static boolean drain(HttpURLConnection connection, int responseCode) {
+    try {
+      InputStream in = responseCode >= 400 ?
+              connection.getErrorStream() : connection.getInputStream();
+      if (in == null) {
+        return true;
       }
 
-      // Callback to delegate
-      if (delegate != null) {
-        delegate.connectionComplete(urlString, success, malformed);
-      } else {
-        Log.w(KISSmetricsAPI.TAG, "Connection delegate not available");
+      try {
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+          // Discarded, the response code is all that is used
+        }
+      } finally {
+        in.close();
       }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param responseCode HTTP response code
+   * @param success      True if the response code is one the request accepts
+   * @return How a request with the response completed.
+   */
+  private static Outcome classify(int responseCode, boolean success) {
+    if (success) {
+      return Outcome.SUCCESS;
+    }
+
+    switch (responseCode) {
+      case 429: // Too Many Requests
+      case 503: // Service Unavailable
+        return Outcome.THROTTLED;
+      case 400: // Bad Request
+      case 413: // Payload Too Large
+      case 414: // URI Too Long
+      case 422: // Unprocessable Entity
+        // The query itself is at fault. Other client errors, such as a 404 from a captive
+        // portal or a misconfigured base URL, are retried rather than dropping records.
+        return Outcome.PERMANENT_FAILURE;
+      default:
+        return Outcome.RETRYABLE_FAILURE;
+    }
+  }
+
+  /**
+   * Reads the Retry-After header, given either as a number of seconds or as an HTTP date.
+   *
+   * @param connection A connection whose response code has been read
+   * @return Milliseconds to wait before sending again, or -1 if the header is missing or
+   * cannot be read.
+   */
+  private static long retryAfter(HttpURLConnection connection) {
+    String value = connection.getHeaderField("Retry-After");
+    if (value == null) {
+      return -1;
+    }
+
+    value = value.trim();
+    try {
+      long seconds = Long.parseLong(value);
+      return seconds >= 0 ? seconds * 1000 : -1;
+    } catch (NumberFormatException e) {
+      // Not a number of seconds, may be a date
+    }
+
+    long date = connection.getHeaderFieldDate("Retry-After", -1);
+    if (date == -1) {
+      return -1;
+    }
+    return Math.max(date - System.currentTimeMillis(), 0);
+  }
+
+  /**
+   * @param responseCode HTTP response code of a batch request
+   * @return Why the response shows the batch was refused, or NONE.
+   */
+  private static BatchRejection batchRejection(int responseCode) {
+    switch (responseCode) {
+      case 413: // Payload Too Large
+        return BatchRejection.TOO_LARGE;
+      case 400: // Bad Request
+      case 411: // Length Required
+      case 415: // Unsupported Media Type
+        // This batch, not batching, is at fault. Sent one at a time, only a malformed query
+        // is dropped.
+        return BatchRejection.MALFORMED;
+      case 404: // Not Found
+      case 405: // Method Not Allowed
+      case 501: // Not Implemented
+        return BatchRejection.UNSUPPORTED;
+      default:
+        return BatchRejection.NONE;
     }
   }
 }
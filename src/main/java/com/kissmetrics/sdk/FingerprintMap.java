@@ -0,0 +1,449 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Map of string keys to string values, kept as pairs of 64-bit fingerprints and persisted as
+ * an append-only log.
+ * <p/>
+ * Key and value fingerprints are held in parallel open-addressing tables of longs, so checking
+ * whether a key holds a value takes constant time and compares no strings. Putting a changed
+ * value appends a 16-byte entry to the log, where later entries for a key replace earlier ones:
+ * <pre>
+ * [magic]([key fingerprint][value fingerprint])*
+ * </pre>
+ * The log is rewritten with only the current entries once replaced entries make up most of it.
+ * Fingerprints are those of FingerprintSet.
+ * <p/>
+ * Safe to call from multiple threads. The tables are guarded by the map's monitor and the log
+ * by a separate lock, so checking an entry never waits on a write or compaction of the log:
+ * changes are made to the tables and held as unwritten, then appended to the log once the
+ * monitor has been released.
+ */
+final class FingerprintMap {
+  static final int MAGIC = 0x4b4d5031; // "KMP1"
+  static final int HEADER_SIZE = 4;
+  static final int ENTRY_SIZE = 16;
+
+  // Replaced entries are only compacted away once the log holds at least this many entries
+  static final int COMPACT_MIN_ENTRIES = 64;
+
+  private static final int INITIAL_CAPACITY = 16; // Must be a power of 2
+
+  // Marks an empty slot in the key table, and a null value in the value table
+  private static final long EMPTY = 0L;
+
+  private final File file;
+  private final boolean writeBehind;
+  private long[] keys = new long[INITIAL_CAPACITY];
+  private long[] values = new long[INITIAL_CAPACITY];
+  private int size;
+
+  // Guards the log. Taken before the map's monitor, never while holding it.
+  private final Object fileLock = new Object();
+  private final byte[] entry = new byte[ENTRY_SIZE];
+  private int logEntries;
+  private RandomAccessFile raf;
+
+  // Changes not yet appended to the log, as key and value pairs. Held by write-behind until
+  // flushed.
+  private long[] unwritten = new long[INITIAL_CAPACITY * 2];
+  private int unwrittenCount;
+  private boolean clearUnwritten;
+
+  /**
+   * @param file        The map's log file
+   * @param writeBehind Holds changes in memory until flush is called
+   */
+  FingerprintMap(File file, boolean writeBehind) {
+    this.file = file;
+    this.writeBehind = writeBehind;
+  }
+
+  /**
+   * Replays the log persisted by a previous session into the map.
+   */
+  void load() {
+    synchronized (this.fileLock) {
+      synchronized (this) {
+        loadFile();
+      }
+    }
+  }
+
+  private void loadFile() {
+    // Not synch'd as should always be called inside of a sync block !!
+    try {
+      this.raf = new RandomAccessFile(this.file, "rw");
+      long length = this.raf.length();
+
+      if (length < HEADER_SIZE || this.raf.readInt() != MAGIC) {
+        reset();
+        return;
+      }
+
+      int count = (int) ((length - HEADER_SIZE) / ENTRY_SIZE);
+      byte[] bytes = new byte[count * ENTRY_SIZE];
+      this.raf.readFully(bytes);
+
+      for (int i = 0; i < count; i++) {
+        int offset = i * ENTRY_SIZE;
+        insert(FingerprintSet.readLong(bytes, offset),
+                FingerprintSet.readLong(bytes, offset + FingerprintSet.ENTRY_SIZE));
+      }
+      this.logEntries = count;
+
+      // An entry cut short by a process killed part way through appending it
+      long end = HEADER_SIZE + (long) count * ENTRY_SIZE;
+      if (end != length) {
+        this.raf.setLength(end);
+      }
+      this.raf.seek(end);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to load " + this.file.getName(), e);
+      clearTables();
+      reset();
+    }
+  }
+
+  /**
+   * @param key   A key
+   * @param value A value
+   * @return true if the key holds the value. Never true for a null value.
+   */
+  synchronized boolean containsEntry(String key, String value) {
+    if (value == null) {
+      return false;
+    }
+
+    int slot = find(FingerprintSet.fingerprint(key));
+    return slot >= 0 && this.values[slot] == FingerprintSet.fingerprint(value);
+  }
+
+  /**
+   * Sets the value held by a key.
+   *
+   * @param key   A key
+   * @param value A value, or null
+   * @return true if the key did not already hold the value. Always true for a null value.
+   */
+  boolean put(String key, String value) {
+    long keyFingerprint = FingerprintSet.fingerprint(key);
+    long valueFingerprint = value != null ? FingerprintSet.fingerprint(value) : EMPTY;
+
+    synchronized (this) {
+      if (!insert(keyFingerprint, valueFingerprint) && valueFingerprint != EMPTY) {
+        return false;
+      }
+
+      if (this.unwrittenCount == this.unwritten.length) {
+        long[] grown = new long[this.unwritten.length * 2];
+        System.arraycopy(this.unwritten, 0, grown, 0, this.unwrittenCount);
+        this.unwritten = grown;
+      }
+      this.unwritten[this.unwrittenCount++] = keyFingerprint;
+      this.unwritten[this.unwrittenCount++] = valueFingerprint;
+    }
+
+    if (!this.writeBehind) {
+      flush();
+    }
+    return true;
+  }
+
+  /**
+   * Empties the map.
+   */
+  void clear() {
+    synchronized (this) {
+      clearTables();
+      this.unwrittenCount = 0;
+      this.clearUnwritten = true;
+    }
+
+    if (!this.writeBehind) {
+      flush();
+    }
+  }
+
+  /**
+   * @return The number of keys in the map.
+   */
+  synchronized int size() {
+    return this.size;
+  }
+
+  /**
+   * @return The number of entries in the log, including replaced entries.
+   */
+  int logSize() {
+    synchronized (this.fileLock) {
+      return this.logEntries;
+    }
+  }
+
+  /**
+   * Writes any unwritten changes to the log, or the current entries in place of the log once
+   * replaced entries would make up most of it. The changes, or the current entries, are taken
+   * while holding the map's monitor and written once it has been released.
+   */
+  void flush() {
+    synchronized (this.fileLock) {
+      boolean clearLog;
+      long[] pending;
+      long[] currentKeys = null;
+      long[] currentValues = null;
+      int currentSize = 0;
+
+      synchronized (this) {
+        clearLog = this.clearUnwritten;
+        pending = Arrays.copyOf(this.unwritten, this.unwrittenCount);
+        this.clearUnwritten = false;
+        this.unwrittenCount = 0;
+
+        int logged = (clearLog ? 0 : this.logEntries) + pending.length / 2;
+        if (this.raf != null && logged >= COMPACT_MIN_ENTRIES && logged > this.size * 2) {
+          currentKeys = this.keys.clone();
+          currentValues = this.values.clone();
+          currentSize = this.size;
+        }
+      }
+
+      if (clearLog) {
+        reset();
+      }
+      // The current entries already hold every pending change
+      if (currentKeys != null && compact(currentKeys, currentValues, currentSize)) {
+        return;
+      }
+      for (int i = 0; i < pending.length; i += 2) {
+        append(pending[i], pending[i + 1]);
+      }
+    }
+  }
+
+  /**
+   * Flushes and releases the log.
+   */
+  void close() {
+    synchronized (this.fileLock) {
+      flush();
+
+      if (this.raf != null) {
+        try {
+          this.raf.close();
+        } catch (IOException e) {
+          // Nothing more we can do
+        }
+        this.raf = null;
+      }
+    }
+  }
+
+  /**
+   * @param keyFingerprint A key fingerprint
+   * @return The key's slot in the tables, or -1.
+   */
+  private int find(long keyFingerprint) {
+    // Not synch'd as should always be called inside of a sync block !!
+    int mask = this.keys.length - 1;
+
+    for (int i = FingerprintSet.mix(keyFingerprint) & mask; ; i = (i + 1) & mask) {
+      long slot = this.keys[i];
+      if (slot == keyFingerprint) {
+        return i;
+      }
+      if (slot == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * @param keyFingerprint   A key fingerprint
+   * @param valueFingerprint A value fingerprint
+   * @return true if the key did not already hold the value.
+   */
+  private boolean insert(long keyFingerprint, long valueFingerprint) {
+    // Not synch'd as should always be called inside of a sync block !!
+    // Kept at most half full so probe sequences stay short
+    if ((this.size + 1) * 2 > this.keys.length) {
+      grow();
+    }
+
+    int mask = this.keys.length - 1;
+    for (int i = FingerprintSet.mix(keyFingerprint) & mask; ; i = (i + 1) & mask) {
+      long slot = this.keys[i];
+      if (slot == keyFingerprint) {
+        if (this.values[i] == valueFingerprint) {
+          return false;
+        }
+        this.values[i] = valueFingerprint;
+        return true;
+      }
+      if (slot == EMPTY) {
+        this.keys[i] = keyFingerprint;
+        this.values[i] = valueFingerprint;
+        this.size++;
+        return true;
+      }
+    }
+  }
+
+  private void grow() {
+    // Not synch'd as should always be called inside of a sync block !!
+    long[] oldKeys = this.keys;
+    long[] oldValues = this.values;
+    this.keys = new long[oldKeys.length * 2];
+    this.values = new long[oldKeys.length * 2];
+    this.size = 0;
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        insert(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  private void clearTables() {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.keys = new long[INITIAL_CAPACITY];
+    this.values = new long[INITIAL_CAPACITY];
+    this.size = 0;
+  }
+
+  /**
+   * Truncates the log to an empty map.
+   */
+  private void reset() {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.logEntries = 0;
+    if (this.raf == null) {
+      return;
+    }
+
+    try {
+      this.raf.setLength(0);
+      this.raf.seek(0);
+      this.raf.writeInt(MAGIC);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to clear " + this.file.getName(), e);
+    }
+  }
+
+  private void append(long keyFingerprint, long valueFingerprint) {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.raf == null) {
+      return;
+    }
+
+    writeEntry(this.entry, 0, keyFingerprint, valueFingerprint);
+
+    try {
+      this.raf.write(this.entry);
+      this.logEntries++;
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // The value stays in the map for this session.
+      Log.w(KISSmetricsAPI.TAG, "Unable to append to " + this.file.getName(), e);
+    }
+  }
+
+  /**
+   * Rewrites the log with only the current entries. The new log is written to a temporary file
+   * and renamed over the old one, so a process killed part way through leaves the old log
+   * intact.
+   *
+   * @param keys   Copy of the key table
+   * @param values Copy of the value table
+   * @param size   Number of keys in the tables
+   * @return true if the log was replaced.
+   */
+  private boolean compact(long[] keys, long[] values, int size) {
+    // Not synch'd as should always be called inside of a sync block !!
+    boolean compacted = false;
+    byte[] bytes = new byte[HEADER_SIZE + size * ENTRY_SIZE];
+    for (int i = 0; i < HEADER_SIZE; i++) {
+      bytes[i] = (byte) (MAGIC >>> (24 - i * 8));
+    }
+
+    int offset = HEADER_SIZE;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        writeEntry(bytes, offset, keys[i], values[i]);
+        offset += ENTRY_SIZE;
+      }
+    }
+
+    File tmpFile = new File(this.file.getPath() + ".tmp");
+    try {
+      FileOutputStream fos = new FileOutputStream(tmpFile);
+      try {
+        fos.write(bytes);
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+
+      this.raf.close();
+      this.raf = null;
+      if (!tmpFile.renameTo(this.file)) {
+        throw new IOException("Unable to rename " + tmpFile.getName());
+      }
+      this.logEntries = size;
+      compacted = true;
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // The uncompacted log is kept and still replays to the same map.
+      Log.w(KISSmetricsAPI.TAG, "Unable to compact " + this.file.getName(), e);
+      tmpFile.delete();
+    }
+
+    try {
+      if (this.raf == null) {
+        this.raf = new RandomAccessFile(this.file, "rw");
+      }
+      this.raf.seek(this.raf.length());
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // Changes are kept in the map for this session.
+      Log.w(KISSmetricsAPI.TAG, "Unable to reopen " + this.file.getName(), e);
+      this.raf = null;
+    }
+    return compacted;
+  }
+
+  private static void writeEntry(byte[] bytes, int offset, long keyFingerprint,
+                                 long valueFingerprint) {
+    for (int i = 0; i < FingerprintSet.ENTRY_SIZE; i++) {
+      int shift = 56 - i * 8;
+      bytes[offset + i] = (byte) (keyFingerprint >>> shift);
+      bytes[offset + FingerprintSet.ENTRY_SIZE + i] = (byte) (valueFingerprint >>> shift);
+    }
+  }
+}
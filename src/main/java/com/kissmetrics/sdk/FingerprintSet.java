@@ -0,0 +1,350 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Set of strings, kept as 64-bit fingerprints and persisted as an append-only file.
+ * <p/>
+ * Fingerprints are held in an open-addressing table of longs with linear probing, so checking
+ * membership takes constant time and allocates nothing. Adding a string appends its 8-byte
+ * fingerprint to the file; the file is only rewritten when the set is cleared:
+ * <pre>
+ * [magic]([fingerprint])*
+ * </pre>
+ * Fingerprints are 64-bit FNV-1a hashes of a string's chars. Two different strings share a
+ * fingerprint with negligible probability; if they do, the second is treated as already added.
+ * <p/>
+ * Safe to call from multiple threads. The table is guarded by the set's monitor and the file
+ * by a separate lock, so checking membership never waits on a write to the file: additions are
+ * made to the table and held as unwritten, then appended to the file once the monitor has been
+ * released.
+ */
+final class FingerprintSet {
+  static final int MAGIC = 0x4b4d4631; // "KMF1"
+  static final int HEADER_SIZE = 4;
+  static final int ENTRY_SIZE = 8;
+
+  private static final int INITIAL_CAPACITY = 16; // Must be a power of 2
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  // Marks an empty slot in the table
+  private static final long EMPTY = 0L;
+
+  private final File file;
+  private final boolean writeBehind;
+  private long[] table = new long[INITIAL_CAPACITY];
+  private int size;
+
+  // Guards the file. Taken before the set's monitor, never while holding it.
+  private final Object fileLock = new Object();
+  private final byte[] entry = new byte[ENTRY_SIZE];
+  private RandomAccessFile raf;
+
+  // Additions not yet appended to the file. Held by write-behind until flushed.
+  private long[] unwritten = new long[INITIAL_CAPACITY];
+  private int unwrittenCount;
+  private boolean clearUnwritten;
+
+  /**
+   * @param file        The set's file
+   * @param writeBehind Holds additions in memory until flush is called
+   */
+  FingerprintSet(File file, boolean writeBehind) {
+    this.file = file;
+    this.writeBehind = writeBehind;
+  }
+
+  /**
+   * @param string A string, or null
+   * @return The string's fingerprint, never EMPTY.
+   */
+  static long fingerprint(String string) {
+    if (string == null) {
+      return 1L;
+    }
+
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      hash ^= c & 0xff;
+      hash *= FNV_PRIME;
+      hash ^= c >>> 8;
+      hash *= FNV_PRIME;
+    }
+    return hash != EMPTY ? hash : 1L;
+  }
+
+  /**
+   * Reads the fingerprints persisted by a previous session into the set.
+   */
+  void load() {
+    synchronized (this.fileLock) {
+      synchronized (this) {
+        loadFile();
+      }
+    }
+  }
+
+  private void loadFile() {
+    // Not synch'd as should always be called inside of a sync block !!
+    try {
+      this.raf = new RandomAccessFile(this.file, "rw");
+      long length = this.raf.length();
+
+      if (length < HEADER_SIZE || this.raf.readInt() != MAGIC) {
+        reset();
+        return;
+      }
+
+      int count = (int) ((length - HEADER_SIZE) / ENTRY_SIZE);
+      byte[] bytes = new byte[count * ENTRY_SIZE];
+      this.raf.readFully(bytes);
+
+      for (int i = 0; i < count; i++) {
+        insert(readLong(bytes, i * ENTRY_SIZE));
+      }
+
+      // An entry cut short by a process killed part way through appending it
+      long end = HEADER_SIZE + (long) count * ENTRY_SIZE;
+      if (end != length) {
+        this.raf.setLength(end);
+      }
+      this.raf.seek(end);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to load " + this.file.getName(), e);
+      clearTable();
+      reset();
+    }
+  }
+
+  /**
+   * @param string A string
+   * @return true if the string has been added to the set.
+   */
+  synchronized boolean contains(String string) {
+    long fingerprint = fingerprint(string);
+    int mask = this.table.length - 1;
+
+    for (int i = mix(fingerprint) & mask; ; i = (i + 1) & mask) {
+      long slot = this.table[i];
+      if (slot == fingerprint) {
+        return true;
+      }
+      if (slot == EMPTY) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Adds a string to the set.
+   *
+   * @param string A string
+   * @return true if the string was not already in the set.
+   */
+  boolean add(String string) {
+    long fingerprint = fingerprint(string);
+    synchronized (this) {
+      if (!insert(fingerprint)) {
+        return false;
+      }
+
+      if (this.unwrittenCount == this.unwritten.length) {
+        long[] grown = new long[this.unwritten.length * 2];
+        System.arraycopy(this.unwritten, 0, grown, 0, this.unwrittenCount);
+        this.unwritten = grown;
+      }
+      this.unwritten[this.unwrittenCount++] = fingerprint;
+    }
+
+    if (!this.writeBehind) {
+      flush();
+    }
+    return true;
+  }
+
+  /**
+   * Empties the set.
+   */
+  void clear() {
+    synchronized (this) {
+      clearTable();
+      this.unwrittenCount = 0;
+      this.clearUnwritten = true;
+    }
+
+    if (!this.writeBehind) {
+      flush();
+    }
+  }
+
+  /**
+   * @return The number of strings in the set.
+   */
+  synchronized int size() {
+    return this.size;
+  }
+
+  /**
+   * Writes any unwritten changes to the file. The changes are taken while holding the set's
+   * monitor and written once it has been released.
+   */
+  void flush() {
+    synchronized (this.fileLock) {
+      boolean clearFile;
+      long[] pending;
+      synchronized (this) {
+        clearFile = this.clearUnwritten;
+        pending = Arrays.copyOf(this.unwritten, this.unwrittenCount);
+        this.clearUnwritten = false;
+        this.unwrittenCount = 0;
+      }
+
+      if (clearFile) {
+        reset();
+      }
+      for (long fingerprint : pending) {
+        append(fingerprint);
+      }
+    }
+  }
+
+  /**
+   * Flushes and releases the file.
+   */
+  void close() {
+    synchronized (this.fileLock) {
+      flush();
+
+      if (this.raf != null) {
+        try {
+          this.raf.close();
+        } catch (IOException e) {
+          // Nothing more we can do
+        }
+        this.raf = null;
+      }
+    }
+  }
+
+  /**
+   * @param fingerprint A fingerprint
+   * @return true if the fingerprint was not already in the table.
+   */
+  private boolean insert(long fingerprint) {
+    // Not synch'd as should always be called inside of a sync block !!
+    // Kept at most half full so probe sequences stay short
+    if ((this.size + 1) * 2 > this.table.length) {
+      grow();
+    }
+
+    int mask = this.table.length - 1;
+    for (int i = mix(fingerprint) & mask; ; i = (i + 1) & mask) {
+      long slot = this.table[i];
+      if (slot == fingerprint) {
+        return false;
+      }
+      if (slot == EMPTY) {
+        this.table[i] = fingerprint;
+        this.size++;
+        return true;
+      }
+    }
+  }
+
+  private void grow() {
+    // Not synch'd as should always be called inside of a sync block !!
+    long[] old = this.table;
+    this.table = new long[old.length * 2];
+    this.size = 0;
+
+    for (long fingerprint : old) {
+      if (fingerprint != EMPTY) {
+        insert(fingerprint);
+      }
+    }
+  }
+
+  private void clearTable() {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.table = new long[INITIAL_CAPACITY];
+    this.size = 0;
+  }
+
+  /**
+   * Truncates the file to an empty set.
+   */
+  private void reset() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.raf == null) {
+      return;
+    }
+
+    try {
+      this.raf.setLength(0);
+      this.raf.seek(0);
+      this.raf.writeInt(MAGIC);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to clear " + this.file.getName(), e);
+    }
+  }
+
+  private void append(long fingerprint) {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.raf == null) {
+      return;
+    }
+
+    for (int i = 0; i < ENTRY_SIZE; i++) {
+      this.entry[i] = (byte) (fingerprint >>> (56 - i * 8));
+    }
+
+    try {
+      this.raf.write(this.entry);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // The string stays in the set for this session.
+      Log.w(KISSmetricsAPI.TAG, "Unable to append to " + this.file.getName(), e);
+    }
+  }
+
+  static long readLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = 0; i < ENTRY_SIZE; i++) {
+      value = (value << 8) | (bytes[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * Spreads a fingerprint's bits over the low bits used to pick a slot.
+   */
+  static int mix(long fingerprint) {
+    return (int) (fingerprint ^ (fingerprint >>> 32));
+  }
+}
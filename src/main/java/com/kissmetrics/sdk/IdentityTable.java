@@ -0,0 +1,297 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Identities of queued records, each interned once and referred to by records by its id,
+ * persisted as an append-only file.
+ * <p/>
+ * An identity's id is its position in the file. Entries are length-prefixed and CRC32
+ * checksummed UTF-8 strings:
+ * <pre>
+ * [magic]([length][crc][identity])*
+ * </pre>
+ * New identities are rare, so each is written as it is interned whatever the durability, and
+ * is always stored before any record that refers to it. The table is only emptied once no
+ * queued record refers to it. A forgotten identity is replaced by an empty entry, so the ids of
+ * the identities after it do not change.
+ * <p/>
+ * Safe to call from multiple threads.
+ */
+final class IdentityTable {
+  static final int MAGIC = 0x4b4d4931; // "KMI1"
+  static final int HEADER_SIZE = 4;
+  static final int ENTRY_HEADER_SIZE = 8; // length + CRC32
+
+  private final File file;
+  private final List<String> identities = new ArrayList<String>();
+  private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+  private RandomAccessFile raf;
+
+  /**
+   * @param file The table's file
+   */
+  IdentityTable(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Reads the identities interned by a previous session.
+   */
+  synchronized void load() {
+    this.identities.clear();
+    this.ids.clear();
+
+    try {
+      this.raf = new RandomAccessFile(this.file, "rw");
+      long length = this.raf.length();
+
+      if (length < HEADER_SIZE || this.raf.readInt() != MAGIC) {
+        reset();
+        return;
+      }
+
+      long position = HEADER_SIZE;
+      while (position + ENTRY_HEADER_SIZE <= length) {
+        int entryLength = this.raf.readInt();
+        long crc = this.raf.readInt() & 0xffffffffL;
+        if (entryLength < 0 || entryLength > length - position - ENTRY_HEADER_SIZE) {
+          break;
+        }
+
+        byte[] bytes = new byte[entryLength];
+        this.raf.readFully(bytes);
+        if (crc != crc32(bytes)) {
+          break;
+        }
+
+        // An empty entry is a forgotten identity
+        insert(entryLength > 0 ? new String(bytes, "UTF-8") : null);
+        position += ENTRY_HEADER_SIZE + entryLength;
+      }
+
+      // An entry cut short by a process killed part way through appending it. No record
+      // refers to it, as records are only stored once their identity is.
+      if (position != length) {
+        this.raf.setLength(position);
+      }
+      this.raf.seek(position);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // Records referring to identities that could not be read are dropped when sent.
+      Log.w(KISSmetricsAPI.TAG, "Unable to load " + this.file.getName(), e);
+      this.identities.clear();
+      this.ids.clear();
+      closeFile();
+    }
+  }
+
+  /**
+   * Returns the id of an identity, adding it to the table if it is new.
+   *
+   * @param identity User identity
+   * @return The identity's id, or -1 if it could not be stored.
+   */
+  synchronized int intern(String identity) {
+    Integer id = this.ids.get(identity);
+    if (id != null) {
+      return id;
+    }
+
+    if (this.raf == null) {
+      return -1;
+    }
+
+    try {
+      this.raf.write(entry(identity));
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // Records for this identity keep the identity itself.
+      Log.w(KISSmetricsAPI.TAG, "Unable to append to " + this.file.getName(), e);
+      closeFile();
+      return -1;
+    }
+
+    return insert(identity);
+  }
+
+  /**
+   * @param identity User identity
+   * @return The identity's id, or -1 if it has not been interned.
+   */
+  synchronized int idOf(String identity) {
+    Integer id = this.ids.get(identity);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * Removes an identity from the table and its file. Only called once no queued record
+   * refers to it. The file is replaced rather than rewritten in place, so a process killed part
+   * way through keeps every other identity.
+   *
+   * @param identity User identity
+   */
+  synchronized void forget(String identity) {
+    Integer id = this.ids.remove(identity);
+    if (id == null) {
+      return;
+    }
+    this.identities.set(id, null);
+
+    File tmpFile = new File(this.file.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(tmpFile);
+      try {
+        byte[] header = new byte[HEADER_SIZE];
+        writeInt(header, 0, MAGIC);
+        out.write(header);
+        for (String interned : this.identities) {
+          out.write(entry(interned));
+        }
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+
+      closeFile();
+      if (!tmpFile.renameTo(this.file)) {
+        throw new IOException("Unable to replace " + this.file.getName());
+      }
+      this.raf = new RandomAccessFile(this.file, "rw");
+      this.raf.seek(this.raf.length());
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to remove identity from " + this.file.getName(), e);
+      tmpFile.delete();
+      closeFile();
+    }
+  }
+
+  /**
+   * @param id An identity's id
+   * @return The identity, or null if the id is unknown.
+   */
+  synchronized String identityOf(long id) {
+    if (id < 0 || id >= this.identities.size()) {
+      return null;
+    }
+    return this.identities.get((int) id);
+  }
+
+  /**
+   * @return The number of interned identities.
+   */
+  synchronized int size() {
+    return this.identities.size();
+  }
+
+  /**
+   * Empties the table. Only called once no queued record refers to it.
+   */
+  synchronized void clear() {
+    this.identities.clear();
+    this.ids.clear();
+    reset();
+  }
+
+  /**
+   * Releases the file.
+   */
+  synchronized void close() {
+    closeFile();
+  }
+
+  private int insert(String identity) {
+    // Not synch'd as should always be called inside of a sync block !!
+    int id = this.identities.size();
+    this.identities.add(identity);
+    if (identity != null) {
+      this.ids.put(identity, id);
+    }
+    return id;
+  }
+
+  /**
+   * @param identity An identity, or null for a forgotten one
+   * @return The identity's entry.
+   */
+  private static byte[] entry(String identity) throws IOException {
+    byte[] bytes = identity != null ? identity.getBytes("UTF-8") : new byte[0];
+    byte[] entry = new byte[ENTRY_HEADER_SIZE + bytes.length];
+    writeInt(entry, 0, bytes.length);
+    writeInt(entry, 4, (int) crc32(bytes));
+    System.arraycopy(bytes, 0, entry, ENTRY_HEADER_SIZE, bytes.length);
+    return entry;
+  }
+
+  /**
+   * Truncates the file to an empty table.
+   */
+  private void reset() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.raf == null) {
+      return;
+    }
+
+    try {
+      this.raf.setLength(0);
+      this.raf.seek(0);
+      this.raf.writeInt(MAGIC);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to clear " + this.file.getName(), e);
+      closeFile();
+    }
+  }
+
+  private void closeFile() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.raf != null) {
+      try {
+        this.raf.close();
+      } catch (IOException e) {
+        // Nothing more we can do
+      }
+      this.raf = null;
+    }
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static long crc32(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+}
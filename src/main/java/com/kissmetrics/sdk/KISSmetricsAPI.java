@@ -17,10 +17,16 @@
 
 package com.kissmetrics.sdk;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -40,8 +46,14 @@ public final class KISSmetricsAPI implements VerificationDelegate {
   }
 
   private static final long FAILSAFE_MAX_VERIFICATION_DUR = 1209600000L; // 14 days
+  private static final int PRE_INIT_BUFFER_MAX = 500;
+  // Longest a call waits for initialization once the pre-init buffer is full
+  private static final long PRE_INIT_WAIT_MAX = 1000L;
 
   private static KISSmetricsAPI sharedAPI = null;
+  // Instances for products other than the sharedAPI's, by product key
+  private static final HashMap<String, KISSmetricsAPI> productAPIs =
+          new HashMap<String, KISSmetricsAPI>();
   private static VerificationImpl verificationImpl = null;
   private static ExecutorService dataExecutor = Executors.newFixedThreadPool(2);
 
@@ -49,6 +61,24 @@ public final class KISSmetricsAPI implements VerificationDelegate {
 
   private String key;
   private Context context;
+  // False for an instance created by productAPI, even once adopted as the sharedAPI
+  private final boolean shared;
+  private volatile ArchiverImpl archiver;
+  // Sender of an instance created by productAPI. Other instances use the static sender.
+  private Sender productSender;
+
+  // Calls made before the archive is loaded. Null once initialized, or once initializing failed.
+  private List<Runnable> preInitBuffer = new ArrayList<Runnable>();
+  private final Object initLock = new Object();
+  private final CountDownLatch initLatch = new CountDownLatch(1);
+  // Thread running initialize, whose calls are never made to wait on it
+  private volatile Thread initThread;
+  private volatile boolean initialized = false;
+  // Set if initialize failed. Calls made since are ignored.
+  private volatile boolean initFailed = false;
+
+  // Queued calls that may change which events and distinct properties are saved
+  private final AtomicInteger pendingSavedChanges = new AtomicInteger();
 
   protected static Sender sender;
 
@@ -77,45 +107,206 @@ public final class KISSmetricsAPI implements VerificationDelegate {
   }
 
   /**
-   * Initializes the private singleton.
+   * Initializes the private singleton or a product's instance.
+   * The archive is loaded on a background thread so that initializing from an application's
+   * main thread does not wait on storage.
    *
    * @param productKey KISSmetrics product key.
    * @param appContext Android application context.
+   * @param options    SDK configuration.
+   * @param shared     True for the singleton.
    */
-  private KISSmetricsAPI(final String productKey, final Context appContext) {
+  private KISSmetricsAPI(final String productKey, final Context appContext,
+                         final KISSmetricsOptions options, boolean shared) {
     key = productKey;
     context = appContext;
+    this.shared = shared;
 
-    ArchiverImpl.sharedArchiver(this.key, this.context);
+    dataExecutor.execute(new Runnable() {
+      public void run() {
+        initThread = Thread.currentThread();
+        try {
+          initialize(options);
+        } catch (Exception e) {
+          // The KISSmetrics SDK should not cause a customer's app to crash.
+          Log.w(TAG, "Unable to initialize KISSmetricsAPI. Ignoring calls to it", e);
+          failInitialization();
+        } finally {
+          initLatch.countDown();
+        }
+      }
+    });
+  }
+
+  /**
+   * Loads the archive, establishes the install UUID, identity and tracking state, then runs
+   * the calls made while loading in the order they were made.
+   *
+   * @param options SDK configuration.
+   */
+  private void initialize(KISSmetricsOptions options) {
+    if (this.shared) {
+      this.archiver = ArchiverImpl.sharedArchiver(this.key, this.context, options);
+    } else {
+      this.archiver = ArchiverImpl.productArchiver(this.key, this.context, options);
+    }
 
     // Ensure an Install UUID exists
-    String installUuid = ArchiverImpl.sharedArchiver().getInstallUuid();
+    String installUuid = this.archiver.getInstallUuid();
 
     if (installUuid == null || installUuid.length() == 0) {
       // No install id has been set. Make and archive a new one.
-      ArchiverImpl.sharedArchiver()
-              .archiveInstallUuid(generateID());
+      this.archiver.archiveInstallUuid(generateID());
     }
 
     // Ensure an Identity exists
-    String archIdentity = ArchiverImpl.sharedArchiver().getIdentity();
+    String archIdentity = this.archiver.getIdentity();
 
     if (archIdentity == null || archIdentity.length() == 0) {
       // No identity has been set. Make and archive a new one.
-      ArchiverImpl.sharedArchiver().archiveFirstIdentity(
+      this.archiver.archiveFirstIdentity(
               generateID());
     }
 
-    if (sender == null) {
-      sender = new Sender(!ArchiverImpl.sharedArchiver().getDoSend());
+    if (!this.shared) {
+      this.productSender = new Sender(!this.archiver.getDoSend(), this.archiver, options);
+    } else if (sender == null) {
+      sender = new Sender(!this.archiver.getDoSend(), null, options);
     }
 
     // Set the TrackingRunnables state
-    if (ArchiverImpl.sharedArchiver().getDoTrack()) {
+    if (this.archiver.getDoTrack()) {
       trackingRunnables = new TrackingRunnablesTrackingState();
     } else {
       trackingRunnables = new TrackingRunnablesNonTrackingState();
     }
+
+    // Calls made by buffered calls are buffered behind them, so the buffer is drained until
+    // it stays empty.
+    while (true) {
+      List<Runnable> buffered;
+      synchronized (this.initLock) {
+        if (this.preInitBuffer.isEmpty()) {
+          this.preInitBuffer = null;
+          break;
+        }
+        buffered = this.preInitBuffer;
+        this.preInitBuffer = new ArrayList<Runnable>();
+      }
+
+      for (Runnable runnable : buffered) {
+        runnable.run();
+      }
+    }
+
+    this.initialized = true;
+  }
+
+  /**
+   * Drops the calls made while initializing, and has every later call ignored.
+   */
+  private void failInitialization() {
+    synchronized (this.initLock) {
+      this.initFailed = true;
+      this.preInitBuffer = null;
+    }
+  }
+
+  /**
+   * Runs a call now if the archive has been loaded, or once it is loaded otherwise.
+   * Once PRE_INIT_BUFFER_MAX calls are buffered, a call waits briefly for the archive to load
+   * so that a burst of calls is slowed rather than buffered without bound, and is then
+   * buffered anyway rather than dropped. Calls are ignored once initializing has failed.
+   *
+   * @param runnable The call
+   */
+  private void whenInitialized(Runnable runnable) {
+    boolean waited = false;
+
+    while (true) {
+      synchronized (this.initLock) {
+        if (this.initFailed) {
+          return;
+        }
+        if (this.preInitBuffer == null) {
+          break;
+        }
+        if (waited || this.preInitBuffer.size() < PRE_INIT_BUFFER_MAX ||
+                Thread.currentThread() == this.initThread) {
+          this.preInitBuffer.add(runnable);
+          return;
+        }
+      }
+
+      if (!awaitInitialization(PRE_INIT_WAIT_MAX)) {
+        Log.w(TAG, "KISSmetricsAPI has not finished initializing. Buffering more calls " +
+                "than usual");
+      }
+      waited = true;
+    }
+
+    runnable.run();
+  }
+
+  /**
+   * Queues a call that may change which events and distinct properties are saved. While any
+   * such call is queued, repeated calls are not skipped on the calling thread.
+   *
+   * @param runnable The call
+   */
+  private void executeSavedChange(final Runnable runnable) {
+    this.pendingSavedChanges.incrementAndGet();
+
+    dataExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          runnable.run();
+        } finally {
+          pendingSavedChanges.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * Most setDistinct and once only record calls repeat a value or event that has already been
+   * saved. Those calls return on the calling thread, without queueing any work, once the
+   * archive is loaded and while no queued call may change what is saved.
+   *
+   * @return true if saved events and distinct properties can be checked on the calling thread.
+   */
+  private boolean savedStateIsSettled() {
+    return this.initialized && this.pendingSavedChanges.get() == 0;
+  }
+
+  /**
+   * Blocks until the archive has been loaded.
+   *
+   * @return false if interrupted while waiting, or if initializing failed.
+   */
+  private boolean awaitInitialization() {
+    try {
+      this.initLatch.await();
+      return !this.initFailed;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Blocks until the archive has been loaded or the timeout elapses.
+   *
+   * @param timeout Milliseconds to wait.
+   * @return false if the archive was not loaded in time, or if interrupted while waiting.
+   */
+  private boolean awaitInitialization(long timeout) {
+    try {
+      return this.initLatch.await(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
   }
 
   /**
@@ -128,17 +319,106 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    */
   public static synchronized KISSmetricsAPI sharedAPI(String productKey,
                                                       Context applicationContext) {
+    return sharedAPI(productKey, applicationContext, new KISSmetricsOptions());
+  }
+
+  /**
+   * Initializes and/or returns the KISSmetricsAPI singleton instance. This
+   * method must be called before making any other calls.
+   *
+   * @param productKey         KISSmetrics product key.
+   * @param applicationContext Android application context.
+   * @param options            SDK configuration. Ignored if the singleton already exists.
+   * @return KISSmetricsAPI singleton instance.
+   */
+  public static synchronized KISSmetricsAPI sharedAPI(String productKey,
+                                                      Context applicationContext,
+                                                      KISSmetricsOptions options) {
     if (sharedAPI == null) {
-      sharedAPI = new KISSmetricsAPI(productKey, applicationContext);
+      sharedAPI = newSharedAPI(productKey, applicationContext,
+              options != null ? options : new KISSmetricsOptions());
     }
 
     // Verifying tracking here will allow for checks from the Android app's
     // state has been cached with the SDK already initialized.
-    sharedAPI.verifyForTracking();
+    final KISSmetricsAPI api = sharedAPI;
+    sharedAPI.whenInitialized(new Runnable() {
+      public void run() {
+        api.verifyForTracking();
+      }
+    });
 
     return sharedAPI;
   }
 
+  /**
+   * Creates the singleton, or adopts the product's instance if productAPI already created one,
+   * so that a product never has two instances recording to separate files.
+   *
+   * @param productKey KISSmetrics product key.
+   * @param appContext Android application context.
+   * @param options    SDK configuration. Ignored if the instance is adopted.
+   * @return The singleton instance.
+   */
+  private static KISSmetricsAPI newSharedAPI(String productKey, Context appContext,
+                                             KISSmetricsOptions options) {
+    // Not synch'd as should always be called inside of a sync block !!
+    KISSmetricsAPI api = productAPIs.remove(productKey);
+    if (api != null) {
+      return api;
+    }
+    return new KISSmetricsAPI(productKey, appContext, options, true);
+  }
+
+  /**
+   * Initializes and/or returns the instance for a product reported to alongside the
+   * sharedAPI's. Each product keeps its own identity, settings and records waiting to be sent
+   * in storage files of its own, while the records of every product are sent over the same
+   * connection and thread pool.
+   *
+   * @param productKey         KISSmetrics product key.
+   * @param applicationContext Android application context.
+   * @param options            SDK configuration. Ignored if the instance already exists.
+   * @return The product's KISSmetricsAPI instance, or the singleton if it reports to the
+   * product.
+   */
+  public static synchronized KISSmetricsAPI productAPI(String productKey,
+                                                       Context applicationContext,
+                                                       KISSmetricsOptions options) {
+    if (sharedAPI != null && sharedAPI.key.equals(productKey)) {
+      return sharedAPI(productKey, applicationContext, options);
+    }
+
+    KISSmetricsAPI api = productAPIs.get(productKey);
+    if (api == null) {
+      api = new KISSmetricsAPI(productKey, applicationContext,
+              options != null ? options : new KISSmetricsOptions(), false);
+      productAPIs.put(productKey, api);
+    }
+
+    final KISSmetricsAPI verifiedApi = api;
+    api.whenInitialized(new Runnable() {
+      public void run() {
+        verifiedApi.verifyForTracking();
+      }
+    });
+
+    return api;
+  }
+
+  /**
+   * Initializes and/or returns the instance for a product reported to alongside the
+   * sharedAPI's.
+   *
+   * @param productKey         KISSmetrics product key.
+   * @param applicationContext Android application context.
+   * @return The product's KISSmetricsAPI instance.
+   */
+  public static synchronized KISSmetricsAPI productAPI(String productKey,
+                                                       Context applicationContext) {
+    return productAPI(productKey, applicationContext, new KISSmetricsOptions());
+  }
+
   /**
    * @return KISSmetricsAPI singleton instance.
    */
@@ -164,20 +444,26 @@ public final class KISSmetricsAPI implements VerificationDelegate {
     return UUID.randomUUID().toString();
   }
 
+  /**
+   * @return The Sender of this instance's product.
+   */
+  private Sender sender() {
+    return this.shared ? sender : this.productSender;
+  }
+
   /**
    * Verifies the KISSmetricsAPI product for tracking asynchronously.
    */
   private void verifyForTracking() {
-    if (System.currentTimeMillis() < ArchiverImpl.sharedArchiver()
-            .getVerificationExpDate()) {
+    if (System.currentTimeMillis() < archiver.getVerificationExpDate()) {
       return;
     }
 
     new Thread(new Runnable() {
       public void run() {
-        String installUuid = ArchiverImpl.sharedArchiver().getInstallUuid();
+        String installUuid = archiver.getInstallUuid();
         VerificationImpl verification = verificationImpl();
-        verification.verifyTracking(key, installUuid, sharedAPI());
+        verification.verifyTracking(key, installUuid, KISSmetricsAPI.this);
       }
     }).start();
   }
@@ -200,7 +486,7 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * ready state.
    */
   protected void sendRecords() {
-    sender.startSending();
+    sender().startSending();
   }
 
   /************************************************
@@ -213,20 +499,29 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * @param identity user identity
    */
   public void identify(final String identity) {
-    // Pass this call onto the mDataExecutor ExecutorService
-    // as a Runnable object to be run on a background thread.
-    dataExecutor.execute(trackingRunnables.identify(identity, ArchiverImpl.sharedArchiver(), this));
+    whenInitialized(new Runnable() {
+      public void run() {
+        // Pass this call onto the mDataExecutor ExecutorService
+        // as a Runnable object to be run on a background thread.
+        executeSavedChange(trackingRunnables.identify(identity, archiver,
+                KISSmetricsAPI.this));
+      }
+    });
   }
 
   /**
    * This getter does not lock on the Archiver instance to prevent locking of
    * an application's main thread. All writes to identity lock on the
-   * singleton instance of sharedArchiver.
+   * product's archiver. Waits for the archive to be loaded if called
+   * right after sharedAPI is first initialized.
    *
    * @return Last provided identity string for the current user
    */
   public String identity() {
-    return ArchiverImpl.sharedArchiver().getIdentity();
+    if (!awaitInitialization()) {
+      return null;
+    }
+    return archiver.getIdentity();
   }
 
   /**
@@ -235,9 +530,31 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * @param alias
    * @param identity
    */
-  public void alias(String alias, String identity) {
-    dataExecutor.execute(trackingRunnables.alias(alias, identity,
-            ArchiverImpl.sharedArchiver(), this));
+  public void alias(final String alias, final String identity) {
+    whenInitialized(new Runnable() {
+      public void run() {
+        dataExecutor.execute(trackingRunnables.alias(alias, identity,
+                archiver, KISSmetricsAPI.this));
+      }
+    });
+  }
+
+  /**
+   * Removes every event, property and alias of an identity waiting to be sent, whether or not
+   * tracking is enabled.
+   *
+   * @param identity User identity to purge
+   */
+  public void purgeIdentity(final String identity) {
+    whenInitialized(new Runnable() {
+      public void run() {
+        dataExecutor.execute(new Runnable() {
+          public void run() {
+            archiver.purgeIdentity(identity);
+          }
+        });
+      }
+    });
   }
 
   /**
@@ -245,8 +562,12 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * previous identity.
    */
   public void clearIdentity() {
-    dataExecutor.execute(trackingRunnables.clearIdentity(generateID(),
-            ArchiverImpl.sharedArchiver()));
+    whenInitialized(new Runnable() {
+      public void run() {
+        executeSavedChange(trackingRunnables.clearIdentity(generateID(),
+                archiver));
+      }
+    });
   }
 
   /**
@@ -284,14 +605,31 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    *                   event has already been recorded, any properties passed will also be
    *                   ignored.
    */
-  public void record(String name, Map<String, String> properties, RecordCondition condition) {
-    dataExecutor.execute(trackingRunnables.record(name, properties, condition,
-            ArchiverImpl.sharedArchiver(), this));
+  public void record(final String name, final Map<String, String> properties,
+                     final RecordCondition condition) {
+    if (condition != RecordCondition.RECORD_ALWAYS && savedStateIsSettled() &&
+            archiver.isEventSaved(name, condition)) {
+      // Already recorded, still re-verify as the call would have.
+      verifyForTracking();
+      return;
+    }
 
-    // The main activity's onCreate method will likely not be called
-    // frequently enough to re-verify.
-    // In most cases this will only be checking the expiration date.
-    verifyForTracking();
+    whenInitialized(new Runnable() {
+      public void run() {
+        Runnable runnable = trackingRunnables.record(name, properties, condition,
+                archiver, KISSmetricsAPI.this);
+        if (condition == RecordCondition.RECORD_ALWAYS) {
+          dataExecutor.execute(runnable);
+        } else {
+          executeSavedChange(runnable);
+        }
+
+        // The main activity's onCreate method will likely not be called
+        // frequently enough to re-verify.
+        // In most cases this will only be checking the expiration date.
+        verifyForTracking();
+      }
+    });
   }
 
   /**
@@ -317,9 +655,13 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * @param properties User properties
    */
   // TODO: We should allow for recording properties as numbers or strings.
-  public void set(Map<String, String> properties) {
-    dataExecutor.execute(trackingRunnables.set(properties,
-            ArchiverImpl.sharedArchiver(), this));
+  public void set(final Map<String, String> properties) {
+    whenInitialized(new Runnable() {
+      public void run() {
+        dataExecutor.execute(trackingRunnables.set(properties,
+                archiver, KISSmetricsAPI.this));
+      }
+    });
   }
 
   /**
@@ -329,15 +671,37 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * @param value
    */
   // TODO: We should allow for recording properties as numbers or strings.
-  public void setDistinct(String propertyName, String value) {
-    dataExecutor.execute(trackingRunnables.setDistinct(propertyName,
-            value, ArchiverImpl.sharedArchiver(), this));
+  public void setDistinct(final String propertyName, final String value) {
+    if (savedStateIsSettled() &&
+            archiver.isDistinctPropertySaved(propertyName, value)) {
+      // Already set to this value
+      return;
+    }
+
+    whenInitialized(new Runnable() {
+      public void run() {
+        executeSavedChange(trackingRunnables.setDistinct(propertyName,
+                value, archiver, KISSmetricsAPI.this));
+      }
+    });
   }
 
   /**
    * Automatically records the following events "Installed App" "Updated App"
    */
   public void autoRecordInstalls() {
+    whenInitialized(new Runnable() {
+      public void run() {
+        recordInstalls();
+      }
+    });
+  }
+
+  /**
+   * Records "Installed App" or "Updated App" when the app version differs from the archived
+   * app version.
+   */
+  private void recordInstalls() {
     String versionName = appVersionName();
 
     if (versionName == null) {
@@ -348,14 +712,14 @@ public final class KISSmetricsAPI implements VerificationDelegate {
 
     // There is no reliable place to store data that will persist between
     // app install and uninstall. We use Archiver's settings store.
-    String lastAppVersion = ArchiverImpl.sharedArchiver().getAppVersion();
+    String lastAppVersion = archiver.getAppVersion();
 
     if (versionName.equals(lastAppVersion)) {
       // Most common case. No action required.
       return;
     }
 
-    ArchiverImpl.sharedArchiver().archiveAppVersion(versionName);
+    archiver.archiveAppVersion(versionName);
 
     if (lastAppVersion == null) {
       // This is a fresh install
@@ -403,6 +767,55 @@ public final class KISSmetricsAPI implements VerificationDelegate {
     }
   }
 
+  /**
+   * Writes recorded data and settings held in memory by the WRITE_BEHIND durability option to
+   * storage. Call before the app is stopped, e.g. from onStop. Has no effect with the default
+   * IMMEDIATE durability.
+   */
+  public void flush() {
+    whenInitialized(new Runnable() {
+      public void run() {
+        archiver.flush();
+      }
+    });
+  }
+
+  /**
+   * Records waiting to be sent are limited by the maxQueuedRecords and maxQueuedBytes options.
+   *
+   * @return Number of queued records removed this session to make room for newer records.
+   */
+  public long evictedRecordCount() {
+    if (!awaitInitialization()) {
+      return 0;
+    }
+    return archiver.getEvictedRecordCount();
+  }
+
+  /**
+   * Records waiting to be sent are limited by the maxQueuedRecords and maxQueuedBytes options.
+   *
+   * @return Number of new records dropped this session instead of being queued.
+   */
+  public long droppedRecordCount() {
+    if (!awaitInitialization()) {
+      return 0;
+    }
+    return archiver.getDroppedRecordCount();
+  }
+
+  /**
+   * Records waiting to be sent expire after the timeToLive option.
+   *
+   * @return Number of records dropped this session as they waited longer than the time to live.
+   */
+  public long expiredRecordCount() {
+    if (!awaitInitialization()) {
+      return 0;
+    }
+    return archiver.getExpiredRecordCount();
+  }
+
   /*
    * *********************************************
    * VerificationDelegateInterface methods
@@ -422,11 +835,11 @@ public final class KISSmetricsAPI implements VerificationDelegate {
     if (!success) {
       // Do Track by default.
       trackingRunnables = new TrackingRunnablesTrackingState();
-      ArchiverImpl.sharedArchiver().archiveDoTrack(true);
+      archiver.archiveDoTrack(true);
 
       // Do not send by default.
-      sender.disableSending();
-      ArchiverImpl.sharedArchiver().archiveDoSend(false);
+      sender().disableSending();
+      archiver.archiveDoSend(false);
 
       // Do not modify baseUrl.
       return;
@@ -434,20 +847,20 @@ public final class KISSmetricsAPI implements VerificationDelegate {
 
     long maxExpDate = (System.currentTimeMillis() + FAILSAFE_MAX_VERIFICATION_DUR);
 
-    ArchiverImpl.sharedArchiver().archiveVerificationExpDate(
+    archiver.archiveVerificationExpDate(
             Math.min(expirationDate, maxExpDate));
     if (!doTrack) {
       trackingRunnables = new TrackingRunnablesNonTrackingState();
-      sender.disableSending();
+      sender().disableSending();
     } else {
       trackingRunnables = new TrackingRunnablesTrackingState();
       // If we should be tracking, then we should be sending
-      sender.enableSending();
-      ArchiverImpl.sharedArchiver().archiveDoSend(true);
+      sender().enableSending();
+      archiver.archiveDoSend(true);
     }
 
-    ArchiverImpl.sharedArchiver().archiveDoTrack(doTrack);
-    ArchiverImpl.sharedArchiver().archiveBaseUrl(baseUrl);
+    archiver.archiveDoTrack(doTrack);
+    archiver.archiveBaseUrl(baseUrl);
   }
 
   /************************************************
@@ -471,7 +884,7 @@ public final class KISSmetricsAPI implements VerificationDelegate {
                                                       Context context,
                                                       boolean secure) {
     if (sharedAPI == null) {
-      sharedAPI = new KISSmetricsAPI(apiKey, context);
+      sharedAPI = newSharedAPI(apiKey, context, new KISSmetricsOptions());
     }
     return sharedAPI;
   }
@@ -497,9 +910,20 @@ public final class KISSmetricsAPI implements VerificationDelegate {
    * identity.
    */
   @Deprecated
-  public void recordOnce(String name) {
-    Runnable runnable = trackingRunnables.recordOnce(name, ArchiverImpl.sharedArchiver(), this);
-    dataExecutor.execute(runnable);
+  public void recordOnce(final String name) {
+    if (savedStateIsSettled() &&
+            archiver.isEventSaved(name, RecordCondition.RECORD_ONCE_PER_IDENTITY)) {
+      // Already recorded for this identity
+      return;
+    }
+
+    whenInitialized(new Runnable() {
+      public void run() {
+        Runnable runnable = trackingRunnables.recordOnce(name, archiver,
+                KISSmetricsAPI.this);
+        executeSavedChange(runnable);
+      }
+    });
   }
 
   /**
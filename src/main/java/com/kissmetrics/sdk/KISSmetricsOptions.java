@@ -0,0 +1,491 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.util.HashMap;
+
+/**
+ * Optional configuration passed to
+ * {@link KISSmetricsAPI#sharedAPI(String, android.content.Context, KISSmetricsOptions)}.
+ * Options only take effect when the singleton is first initialized.
+ */
+public final class KISSmetricsOptions {
+
+  public enum QueueEngine {
+    /**
+     * Segmented append-only journal. Unbounded; each record is written to storage as it is
+     * added.
+     */
+    JOURNAL,
+
+    /**
+     * Fixed-capacity ring in a memory mapped file. Adding and sending records cost no file
+     * system calls, but the oldest records are dropped once the ring is full.
+     */
+    MAPPED_RING,
+
+    /**
+     * Append-only journal shared by every process of the app. Each record is appended under a
+     * file lock, and only one process at a time sends the queued records.
+     */
+    SHARED_JOURNAL
+  }
+
+  public enum Durability {
+    /**
+     * Every change is written to storage before the call that made it returns.
+     */
+    IMMEDIATE,
+
+    /**
+     * Changes are held in memory and written together by a background flusher once per flush
+     * interval, or sooner once the flush mutation count is reached. Changes made since the last
+     * flush are lost if the app's process is killed. Call {@link KISSmetricsAPI#flush()} before
+     * the app is stopped.
+     */
+    WRITE_BEHIND
+  }
+
+  public enum EvictionPolicy {
+    /**
+     * The oldest queued records are removed to make room for new ones.
+     */
+    DROP_OLDEST,
+
+    /**
+     * New records are dropped until queued records are sent.
+     */
+    DROP_NEWEST,
+
+    /**
+     * A new record removes the queued records of lowest priority, oldest first, that are not
+     * being sent. The new record is dropped if every such record has a higher priority. See
+     * {@link #setEventPriority(String, int)}.
+     */
+    DROP_BY_PRIORITY,
+
+    /**
+     * Only one in every downsample rate new records is kept, removing the oldest queued record
+     * to make room for it. See {@link #setDownsampleRate(int)}.
+     */
+    DOWNSAMPLE
+  }
+
+  public static final int RING_CAPACITY_DEFAULT = 1024 * 1024; // 1 MB
+  public static final long FLUSH_INTERVAL_DEFAULT = 2000L; // 2 seconds
+  public static final int FLUSH_MUTATIONS_DEFAULT = 64;
+  public static final int MEMORY_WINDOW_DEFAULT = 0; // Every record
+  public static final int MAX_QUEUED_RECORDS_DEFAULT = 0; // No limit
+  public static final long MAX_QUEUED_BYTES_DEFAULT = 0L; // No limit
+  public static final int DOWNSAMPLE_RATE_DEFAULT = 10;
+  public static final int EVENT_PRIORITY_DEFAULT = 0;
+  public static final long TIME_TO_LIVE_DEFAULT = 0L; // Records never expire
+  public static final int BATCH_MAX_RECORDS_DEFAULT = 1; // One record per request
+  public static final int BATCH_MAX_BYTES_DEFAULT = 64 * 1024; // 64 KB
+  public static final int MAX_IN_FLIGHT_REQUESTS_DEFAULT = 1; // Stop-and-wait
+  public static final long RETRY_BASE_DELAY_DEFAULT = 1000L; // 1 second
+  public static final long RETRY_MAX_DELAY_DEFAULT = 5 * 60 * 1000L; // 5 minutes
+
+  private QueueEngine queueEngine = QueueEngine.JOURNAL;
+  private int ringCapacity = RING_CAPACITY_DEFAULT;
+  private Durability durability = Durability.IMMEDIATE;
+  private long flushInterval = FLUSH_INTERVAL_DEFAULT;
+  private int flushMutations = FLUSH_MUTATIONS_DEFAULT;
+  private int memoryWindow = MEMORY_WINDOW_DEFAULT;
+  private int maxQueuedRecords = MAX_QUEUED_RECORDS_DEFAULT;
+  private long maxQueuedBytes = MAX_QUEUED_BYTES_DEFAULT;
+  private EvictionPolicy evictionPolicy = EvictionPolicy.DROP_OLDEST;
+  private int downsampleRate = DOWNSAMPLE_RATE_DEFAULT;
+  private final HashMap<String, Integer> eventPriorities = new HashMap<String, Integer>();
+  private long timeToLive = TIME_TO_LIVE_DEFAULT;
+  private int batchMaxRecords = BATCH_MAX_RECORDS_DEFAULT;
+  private int batchMaxBytes = BATCH_MAX_BYTES_DEFAULT;
+  private boolean keepAlive = false;
+  private int maxInFlightRequests = MAX_IN_FLIGHT_REQUESTS_DEFAULT;
+  private long retryBaseDelay = RETRY_BASE_DELAY_DEFAULT;
+  private long retryMaxDelay = RETRY_MAX_DELAY_DEFAULT;
+
+  /**
+   * @param engine The storage engine for recorded events and properties waiting to be sent.
+   * @return These options.
+   */
+  public KISSmetricsOptions setQueueEngine(QueueEngine engine) {
+    if (engine != null) {
+      queueEngine = engine;
+    }
+    return this;
+  }
+
+  /**
+   * @return The storage engine for recorded events and properties waiting to be sent.
+   */
+  public QueueEngine getQueueEngine() {
+    return queueEngine;
+  }
+
+  /**
+   * @param bytes Size of the MAPPED_RING queue in bytes.
+   * @return These options.
+   */
+  public KISSmetricsOptions setRingCapacity(int bytes) {
+    if (bytes > 0) {
+      ringCapacity = bytes;
+    }
+    return this;
+  }
+
+  /**
+   * @return Size of the MAPPED_RING queue in bytes.
+   */
+  public int getRingCapacity() {
+    return ringCapacity;
+  }
+
+  /**
+   * @param durability When changes to recorded data and settings are written to storage.
+   * @return These options.
+   */
+  public KISSmetricsOptions setDurability(Durability durability) {
+    if (durability != null) {
+      this.durability = durability;
+    }
+    return this;
+  }
+
+  /**
+   * @return When changes to recorded data and settings are written to storage.
+   */
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * @param millis Longest time a WRITE_BEHIND change is held before being written.
+   * @return These options.
+   */
+  public KISSmetricsOptions setFlushInterval(long millis) {
+    if (millis > 0) {
+      flushInterval = millis;
+    }
+    return this;
+  }
+
+  /**
+   * @return Longest time in milliseconds a WRITE_BEHIND change is held before being written.
+   */
+  public long getFlushInterval() {
+    return flushInterval;
+  }
+
+  /**
+   * @param count Number of WRITE_BEHIND changes that triggers a write before the flush
+   *              interval ends.
+   * @return These options.
+   */
+  public KISSmetricsOptions setFlushMutations(int count) {
+    if (count > 0) {
+      flushMutations = count;
+    }
+    return this;
+  }
+
+  /**
+   * @return Number of WRITE_BEHIND changes that triggers a write before the flush interval ends.
+   */
+  public int getFlushMutations() {
+    return flushMutations;
+  }
+
+  /**
+   * Keeps only the records at the head of a JOURNAL queue in memory. Records queued behind
+   * them are read back from storage as the head is sent, so memory use stays the same however
+   * large the backlog grows.
+   *
+   * @param records Number of records held in memory, or 0 to hold every record.
+   * @return These options.
+   */
+  public KISSmetricsOptions setMemoryWindow(int records) {
+    if (records >= 0) {
+      memoryWindow = records;
+    }
+    return this;
+  }
+
+  /**
+   * @return Number of JOURNAL records held in memory, or 0 if every record is held.
+   */
+  public int getMemoryWindow() {
+    return memoryWindow;
+  }
+
+  /**
+   * Limits the number of records waiting to be sent. Once it is reached the eviction policy
+   * decides which records are kept.
+   *
+   * @param records Number of queued records, or 0 for no limit.
+   * @return These options.
+   */
+  public KISSmetricsOptions setMaxQueuedRecords(int records) {
+    if (records >= 0) {
+      maxQueuedRecords = records;
+    }
+    return this;
+  }
+
+  /**
+   * @return Number of records that may wait to be sent, or 0 for no limit.
+   */
+  public int getMaxQueuedRecords() {
+    return maxQueuedRecords;
+  }
+
+  /**
+   * Limits the storage used by records waiting to be sent. Once it is reached the eviction
+   * policy decides which records are kept.
+   *
+   * @param bytes Bytes of queued records, or 0 for no limit.
+   * @return These options.
+   */
+  public KISSmetricsOptions setMaxQueuedBytes(long bytes) {
+    if (bytes >= 0) {
+      maxQueuedBytes = bytes;
+    }
+    return this;
+  }
+
+  /**
+   * @return Bytes of queued records that may wait to be sent, or 0 for no limit.
+   */
+  public long getMaxQueuedBytes() {
+    return maxQueuedBytes;
+  }
+
+  /**
+   * @param policy Which records are kept once a queue limit is reached.
+   * @return These options.
+   */
+  public KISSmetricsOptions setEvictionPolicy(EvictionPolicy policy) {
+    if (policy != null) {
+      evictionPolicy = policy;
+    }
+    return this;
+  }
+
+  /**
+   * @return Which records are kept once a queue limit is reached.
+   */
+  public EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  /**
+   * @param rate Keep one in every rate new records once a queue limit is reached, under the
+   *             DOWNSAMPLE policy.
+   * @return These options.
+   */
+  public KISSmetricsOptions setDownsampleRate(int rate) {
+    if (rate > 0) {
+      downsampleRate = rate;
+    }
+    return this;
+  }
+
+  /**
+   * @return One in every this many new records is kept under the DOWNSAMPLE policy.
+   */
+  public int getDownsampleRate() {
+    return downsampleRate;
+  }
+
+  /**
+   * Sets the priority of an event under the DROP_BY_PRIORITY policy. Events default to
+   * EVENT_PRIORITY_DEFAULT. Properties and aliases are never removed in favour of an event.
+   *
+   * @param name     Event name.
+   * @param priority Higher priority events are kept over lower priority ones.
+   * @return These options.
+   */
+  public KISSmetricsOptions setEventPriority(String name, int priority) {
+    if (name != null) {
+      eventPriorities.put(name, priority);
+    }
+    return this;
+  }
+
+  /**
+   * @param name Event name.
+   * @return Priority of the event under the DROP_BY_PRIORITY policy.
+   */
+  public int getEventPriority(String name) {
+    Integer priority = eventPriorities.get(name);
+    return priority != null ? priority : EVENT_PRIORITY_DEFAULT;
+  }
+
+  /**
+   * Drops records that have waited longer than the time to live to be sent. Expired records at
+   * the head of a JOURNAL queue are skipped when it is loaded, and expired records of either
+   * queue engine are dropped instead of sent.
+   *
+   * @param millis Longest time a record waits to be sent, or 0 to keep records until sent.
+   * @return These options.
+   */
+  public KISSmetricsOptions setTimeToLive(long millis) {
+    if (millis >= 0) {
+      timeToLive = millis;
+    }
+    return this;
+  }
+
+  /**
+   * @return Longest time in milliseconds a record waits to be sent, or 0 if records are kept
+   * until sent.
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * Sends up to this many queued records together in the body of a single POST request,
+   * rather than one GET request per record. Records are sent one at a time again if the
+   * endpoint rejects batches.
+   *
+   * @param records Most records per request, or 1 to send one record per request.
+   * @return These options.
+   */
+  public KISSmetricsOptions setBatchMaxRecords(int records) {
+    if (records > 0) {
+      batchMaxRecords = records;
+    }
+    return this;
+  }
+
+  /**
+   * @return Most records sent per request.
+   */
+  public int getBatchMaxRecords() {
+    return batchMaxRecords;
+  }
+
+  /**
+   * Limits the size of a batch request body. A record longer than the limit is still sent, in
+   * a batch of its own.
+   *
+   * @param bytes Most bytes of query strings per batch request.
+   * @return These options.
+   */
+  public KISSmetricsOptions setBatchMaxBytes(int bytes) {
+    if (bytes > 0) {
+      batchMaxBytes = bytes;
+    }
+    return this;
+  }
+
+  /**
+   * @return Most bytes of query strings per batch request.
+   */
+  public int getBatchMaxBytes() {
+    return batchMaxBytes;
+  }
+
+  /**
+   * Reuses connections to the tracking endpoint across requests, rather than opening a new
+   * connection, and repeating its TCP and TLS handshakes, for every request.
+   * Off by default, in which case each request asks the server to close its connection. This
+   * works around the EOFExceptions some Android versions throw when reusing a pooled
+   * connection the server has closed. With keep-alive such a request is retried once instead.
+   *
+   * @param keepAlive True to reuse connections.
+   * @return These options.
+   */
+  public KISSmetricsOptions setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+    return this;
+  }
+
+  /**
+   * @return True if connections are reused across requests.
+   */
+  public boolean getKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Sends up to this many requests at once, each starting before the ones before it have
+   * completed. Records are still removed from the queue in the order they were recorded, and an
+   * alias is only sent once every request before it has completed, with nothing sent behind it
+   * until it is accepted.
+   *
+   * @param requests Most requests in flight, or 1 to wait for each request to complete before
+   *                 sending the next.
+   * @return These options.
+   */
+  public KISSmetricsOptions setMaxInFlightRequests(int requests) {
+    if (requests > 0) {
+      maxInFlightRequests = requests;
+    }
+    return this;
+  }
+
+  /**
+   * @return Most requests in flight at once.
+   */
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  /**
+   * Once sending fails it is retried after a delay that doubles with each consecutive failure,
+   * starting from the base delay, and is reset once a request succeeds. A longer wait asked for
+   * by a throttled (429 or 503) response's Retry-After header is honored instead. Records
+   * recorded while waiting are sent by the retry rather than straight away.
+   *
+   * @param millis Delay before retrying after the first failure.
+   * @return These options.
+   */
+  public KISSmetricsOptions setRetryBaseDelay(long millis) {
+    if (millis > 0) {
+      retryBaseDelay = millis;
+    }
+    return this;
+  }
+
+  /**
+   * @return Delay in milliseconds before retrying after the first failure.
+   */
+  public long getRetryBaseDelay() {
+    return retryBaseDelay;
+  }
+
+  /**
+   * @param millis Longest delay before retrying, however many times sending has failed.
+   * @return These options.
+   */
+  public KISSmetricsOptions setRetryMaxDelay(long millis) {
+    if (millis > 0) {
+      retryMaxDelay = millis;
+    }
+    return this;
+  }
+
+  /**
+   * @return Longest delay in milliseconds before retrying.
+   */
+  public long getRetryMaxDelay() {
+    return retryMaxDelay;
+  }
+}
@@ -0,0 +1,211 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Moves a send queue archived by SDK versions that serialized it as a List of query strings
+ * into the sendQueue, off of the thread that loads the archive.
+ * <p/>
+ * The legacy records are first written a chunk at a time to a staging journal, which also
+ * serves as the migration's progress: a migration interrupted by the app's process being
+ * killed resumes after the records already staged. The legacy file is only deleted once the
+ * staging journal has been read back and matches it. Staged records are then moved to the
+ * sendQueue a chunk at a time, and each chunk is only acknowledged in the staging journal once
+ * the sendQueue has stored it, so a process killed part way through sends at most one chunk
+ * twice rather than losing it.
+ */
+final class LegacyQueueMigrator implements Runnable {
+  // Records staged or moved between writes.
+  static final int CHUNK_SIZE = 256;
+
+  private final File legacyFile;
+  private final SendQueueJournal staging;
+  private final ArchiverImpl archiver;
+
+  /**
+   * @param legacyFile Send queue serialized by a previous SDK version, which may not exist.
+   * @param staging    Journal holding the records staged by earlier runs.
+   * @param archiver   Archiver whose sendQueue receives the records.
+   */
+  LegacyQueueMigrator(File legacyFile, SendQueueJournal staging, ArchiverImpl archiver) {
+    this.legacyFile = legacyFile;
+    this.staging = staging;
+    this.archiver = archiver;
+  }
+
+  public void run() {
+    try {
+      this.staging.load();
+
+      if (this.legacyFile.exists() && !stage()) {
+        // Retried on the next launch
+        return;
+      }
+
+      moveStaged();
+    } catch (Exception e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // Whatever has not been moved is kept and retried on the next launch.
+      Log.w(KISSmetricsAPI.TAG, "Unable to migrate legacy send queue", e);
+    } finally {
+      this.staging.close();
+    }
+  }
+
+  /**
+   * Writes the legacy records not staged by an earlier run to the staging journal, then
+   * deletes the legacy file once every record has been read back from the staging journal.
+   *
+   * @return false if the legacy file could not be read or the staged records could not be
+   * verified.
+   */
+  private boolean stage() {
+    List<String> legacyQueue;
+    try {
+      legacyQueue = readLegacyQueue();
+    } catch (IOException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to read legacy send queue. Retrying on next launch", e);
+      return false;
+    }
+
+    if (legacyQueue == null) {
+      // Can never be read, carry on with the staged records alone.
+      this.legacyFile.delete();
+      return true;
+    }
+
+    if (this.staging.size() > legacyQueue.size()) {
+      // Not staged from this legacy file
+      this.staging.clear();
+    }
+
+    for (int i = this.staging.size(); i < legacyQueue.size(); i++) {
+      this.staging.add(QueueRecord.raw(legacyQueue.get(i)).encode());
+      if ((i + 1) % CHUNK_SIZE == 0) {
+        this.staging.flush();
+      }
+    }
+    this.staging.flush();
+
+    if (!verifyStaged(legacyQueue)) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to verify migrated send queue. Retrying on next launch");
+      this.staging.clear();
+      return false;
+    }
+
+    this.legacyFile.delete();
+    return true;
+  }
+
+  /**
+   * Reads the staging journal back from storage and compares it with the legacy records.
+   *
+   * @param legacyQueue Legacy query strings
+   * @return true if the staging journal holds every legacy record in order.
+   */
+  private boolean verifyStaged(List<String> legacyQueue) {
+    this.staging.load();
+    if (this.staging.size() != legacyQueue.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < legacyQueue.size(); i++) {
+      byte[] record = this.staging.get(i);
+      if (record == null) {
+        return false;
+      }
+
+      try {
+        if (!legacyQueue.get(i).equals(QueueRecord.decode(record).name)) {
+          return false;
+        }
+      } catch (IOException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the staged records to the sendQueue a chunk at a time.
+   */
+  private void moveStaged() {
+    List<byte[]> chunk = new ArrayList<byte[]>(CHUNK_SIZE);
+
+    while (this.staging.size() > 0) {
+      chunk.clear();
+      for (int i = 0; i < CHUNK_SIZE && i < this.staging.size(); i++) {
+        byte[] record = this.staging.get(i);
+        if (record == null) {
+          // Dropped as it could not be read back from storage
+          break;
+        }
+        chunk.add(record);
+      }
+
+      this.archiver.addMigratedRecords(chunk);
+
+      for (int i = 0; i < chunk.size(); i++) {
+        this.staging.remove(0);
+      }
+      this.staging.flush();
+    }
+
+    this.staging.clear();
+  }
+
+  /**
+   * Suppresses warnings for ObjectInputStream readObject cast to List<String>.
+   *
+   * @return The legacy query strings, or null if the legacy file is corrupt.
+   * @throws IOException if the legacy file could not be read.
+   */
+  @SuppressWarnings("unchecked")
+  private List<String> readLegacyQueue() throws IOException {
+    FileInputStream fis = new FileInputStream(this.legacyFile);
+    try {
+      ObjectInputStream ois = new ObjectInputStream(fis);
+      return (List<String>) ois.readObject();
+    } catch (ObjectStreamException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive legacy send queue", e);
+      return null;
+    } catch (EOFException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive legacy send queue", e);
+      return null;
+    } catch (ClassNotFoundException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive legacy send queue", e);
+      return null;
+    } catch (ClassCastException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive legacy send queue", e);
+      return null;
+    } finally {
+      fis.close();
+    }
+  }
+}
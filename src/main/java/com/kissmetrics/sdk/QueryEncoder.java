@@ -215,6 +215,29 @@ public class QueryEncoder {
     return theUrl;
   }
 
+  /**
+   * Assembles a queued record into an encoded URL string.
+   *
+   * @param record Event, properties, alias or raw query record
+   * @return the URL encoded query string
+   */
+  public String createQuery(QueueRecord record) {
+    switch (record.type) {
+      case QueueRecord.TYPE_EVENT:
+        return createEventQuery(record.name, record.properties, record.identity,
+                record.timestamp);
+
+      case QueueRecord.TYPE_PROPERTIES:
+        return createPropertiesQuery(record.properties, record.identity, record.timestamp);
+
+      case QueueRecord.TYPE_ALIAS:
+        return createAliasQuery(record.identity, record.name);
+
+      default:
+        return record.name;
+    }
+  }
+
   /**
    * Assembles an alias query into and encoded URL string.
    *
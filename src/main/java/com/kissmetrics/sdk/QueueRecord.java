@@ -0,0 +1,384 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A recorded event, properties or alias as stored in the send queue.
+ * <p/>
+ * Records hold only what differs between queries; the product key, client type and user agent
+ * are added by QueryEncoder when the record is sent. The binary form is a type byte followed by
+ * the record's fields, with numbers as unsigned varints and strings as a varint of
+ * (UTF-8 length + 1) followed by the UTF-8 bytes, where 0 marks a null string:
+ * <pre>
+ * EVENT            [type][timestamp][identity][name][count]([key][value])*
+ * PROPERTIES       [type][timestamp][identity][count]([key][value])*
+ * ALIAS            [type][alias][identity]
+ * RAW              [type][query string]
+ * EVENT_BY_ID      [type][timestamp][identity id][name][count]([key][value])*
+ * PROPERTIES_BY_ID [type][timestamp][identity id][count]([key][value])*
+ * </pre>
+ * Event and properties records encoded with an IdentityTable refer to their identity by its
+ * id in the table rather than repeating it in every record.
+ * Query strings queued by earlier SDK versions are kept as RAW records, and plain UTF-8 query
+ * strings are also read as RAW records.
+ */
+final class QueueRecord {
+  static final int TYPE_EVENT = 1;
+  static final int TYPE_PROPERTIES = 2;
+  static final int TYPE_ALIAS = 3;
+  static final int TYPE_RAW = 4;
+  static final int TYPE_EVENT_BY_ID = 5;
+  static final int TYPE_PROPERTIES_BY_ID = 6;
+
+  final int type;
+  final long timestamp;
+  final String identity;
+  final String name;
+  final Map<String, String> properties;
+
+  private QueueRecord(int type, long timestamp, String identity, String name,
+                      Map<String, String> properties) {
+    this.type = type;
+    this.timestamp = timestamp;
+    this.identity = identity;
+    this.name = name;
+    this.properties = properties;
+  }
+
+  /**
+   * @param name       Event name
+   * @param properties Event properties, or null
+   * @param identity   User identity
+   * @param timestamp  A unix epoch timestamp to apply if _t &amp; _d have not been set in properties
+   * @return An event record
+   */
+  static QueueRecord event(String name, Map<String, String> properties, String identity,
+                           long timestamp) {
+    return new QueueRecord(TYPE_EVENT, timestamp, identity, name, properties);
+  }
+
+  /**
+   * @param properties User properties
+   * @param identity   User identity
+   * @param timestamp  A unix epoch timestamp to apply if _t &amp; _d have not been set in properties
+   * @return A properties record
+   */
+  static QueueRecord properties(Map<String, String> properties, String identity,
+                                long timestamp) {
+    return new QueueRecord(TYPE_PROPERTIES, timestamp, identity, null, properties);
+  }
+
+  /**
+   * @param alias    User alias to apply to an identity, stored as the record's identity
+   * @param identity User identity, stored as the record's name
+   * @return An alias record
+   */
+  static QueueRecord alias(String alias, String identity) {
+    return new QueueRecord(TYPE_ALIAS, 0, alias, identity, null);
+  }
+
+  /**
+   * @param queryString A fully encoded query string
+   * @return A record sent as is
+   */
+  static QueueRecord raw(String queryString) {
+    return new QueueRecord(TYPE_RAW, 0, null, queryString, null);
+  }
+
+  /**
+   * @return The binary form of this record.
+   */
+  byte[] encode() {
+    return encode(null);
+  }
+
+  /**
+   * @param identities Table to intern the identity of event and properties records in, or
+   *                   null to store the identity in the record.
+   * @return The binary form of this record.
+   */
+  byte[] encode(IdentityTable identities) {
+    int identityId = -1;
+    if (identities != null && identity != null && identity.length() > 0 &&
+            (type == TYPE_EVENT || type == TYPE_PROPERTIES)) {
+      identityId = identities.intern(identity);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+    if (identityId >= 0) {
+      out.write(type == TYPE_EVENT ? TYPE_EVENT_BY_ID : TYPE_PROPERTIES_BY_ID);
+      writeVarint(out, timestamp);
+      writeVarint(out, identityId);
+      if (type == TYPE_EVENT) {
+        writeString(out, name);
+      }
+      writeProperties(out, properties);
+      return out.toByteArray();
+    }
+
+    out.write(type);
+
+    switch (type) {
+      case TYPE_EVENT:
+        writeVarint(out, timestamp);
+        writeString(out, identity);
+        writeString(out, name);
+        writeProperties(out, properties);
+        break;
+
+      case TYPE_PROPERTIES:
+        writeVarint(out, timestamp);
+        writeString(out, identity);
+        writeProperties(out, properties);
+        break;
+
+      case TYPE_ALIAS:
+        writeString(out, identity);
+        writeString(out, name);
+        break;
+
+      default:
+        writeString(out, name);
+        break;
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * @param bytes The binary form of a record.
+   * @return The decoded record.
+   * @throws IOException if the record is truncated or of an unknown type.
+   */
+  static QueueRecord decode(byte[] bytes) throws IOException {
+    return decode(bytes, null);
+  }
+
+  /**
+   * @param bytes      The binary form of a record.
+   * @param identities Table the record's identity was interned in, if any.
+   * @return The decoded record.
+   * @throws IOException if the record is truncated, of an unknown type or refers to an
+   *                     identity not in the table.
+   */
+  static QueueRecord decode(byte[] bytes, IdentityTable identities) throws IOException {
+    Reader in = new Reader(bytes);
+    int type = in.readByte();
+
+    switch (type) {
+      case TYPE_EVENT: {
+        long timestamp = in.readVarint();
+        String identity = in.readString();
+        String name = in.readString();
+        return event(name, in.readProperties(), identity, timestamp);
+      }
+
+      case TYPE_PROPERTIES: {
+        long timestamp = in.readVarint();
+        String identity = in.readString();
+        return properties(in.readProperties(), identity, timestamp);
+      }
+
+      case TYPE_ALIAS: {
+        String alias = in.readString();
+        return alias(alias, in.readString());
+      }
+
+      case TYPE_RAW:
+        return raw(in.readString());
+
+      case TYPE_EVENT_BY_ID: {
+        long timestamp = in.readVarint();
+        String identity = identityOf(in.readVarint(), identities);
+        String name = in.readString();
+        return event(name, in.readProperties(), identity, timestamp);
+      }
+
+      case TYPE_PROPERTIES_BY_ID: {
+        long timestamp = in.readVarint();
+        String identity = identityOf(in.readVarint(), identities);
+        return properties(in.readProperties(), identity, timestamp);
+      }
+
+      case '/':
+        // A query string queued before records were stored in binary form
+        return raw(new String(bytes, "UTF-8"));
+
+      default:
+        throw new IOException("Unknown send queue record type " + type);
+    }
+  }
+
+  /**
+   * Reads a record's timestamp without decoding the rest of the record.
+   *
+   * @param bytes The binary form of a record.
+   * @return The record's timestamp, or 0 for alias and raw records and malformed records.
+   */
+  static long timestampOf(byte[] bytes) {
+    if (bytes.length == 0 || (bytes[0] != TYPE_EVENT && bytes[0] != TYPE_PROPERTIES &&
+            bytes[0] != TYPE_EVENT_BY_ID && bytes[0] != TYPE_PROPERTIES_BY_ID)) {
+      return 0;
+    }
+
+    try {
+      Reader in = new Reader(bytes);
+      in.readByte();
+      return in.readVarint();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Reads the identity id of a record encoded with an IdentityTable without decoding the rest
+   * of the record.
+   *
+   * @param bytes The binary form of a record.
+   * @return The record's identity id, or -1 if the record holds its identity itself.
+   */
+  static long identityIdOf(byte[] bytes) {
+    if (bytes.length == 0 || (bytes[0] != TYPE_EVENT_BY_ID && bytes[0] != TYPE_PROPERTIES_BY_ID)) {
+      return -1;
+    }
+
+    try {
+      Reader in = new Reader(bytes);
+      in.readByte();
+      in.readVarint();
+      return in.readVarint();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  private static String identityOf(long id, IdentityTable identities) throws IOException {
+    String identity = identities != null ? identities.identityOf(id) : null;
+    if (identity == null) {
+      throw new IOException("Unknown identity id " + id + " in send queue record");
+    }
+    return identity;
+  }
+
+  private static void writeProperties(ByteArrayOutputStream out, Map<String, String> properties) {
+    if (properties == null) {
+      writeVarint(out, 0);
+      return;
+    }
+
+    // Written in iteration order so the query string matches one built from the original map.
+    writeVarint(out, properties.size());
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      writeString(out, property.getKey());
+      writeString(out, property.getValue());
+    }
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String string) {
+    if (string == null) {
+      writeVarint(out, 0);
+      return;
+    }
+
+    try {
+      byte[] bytes = string.getBytes("UTF-8");
+      writeVarint(out, bytes.length + 1);
+      out.write(bytes, 0, bytes.length);
+    } catch (UnsupportedEncodingException e) {
+      // UTF-8 is always supported
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * Reads the fields of a record's binary form in order.
+   */
+  private static final class Reader {
+    private final byte[] bytes;
+    private int position;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    int readByte() throws IOException {
+      if (position >= bytes.length) {
+        throw new IOException("Truncated send queue record");
+      }
+      return bytes[position++] & 0xff;
+    }
+
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in send queue record");
+    }
+
+    String readString() throws IOException {
+      long length = readVarint() - 1;
+      if (length < 0) {
+        return null;
+      }
+      if (length > bytes.length - position) {
+        throw new IOException("Truncated send queue record");
+      }
+
+      String string = new String(bytes, position, (int) length, "UTF-8");
+      position += length;
+      return string;
+    }
+
+    Map<String, String> readProperties() throws IOException {
+      long count = readVarint();
+      if (count == 0) {
+        return null;
+      }
+      if (count > bytes.length - position) {
+        throw new IOException("Truncated send queue record");
+      }
+
+      Map<String, String> properties = new LinkedHashMap<String, String>();
+      for (long i = 0; i < count; i++) {
+        String key = readString();
+        properties.put(key, readString());
+      }
+      return properties;
+    }
+  }
+}
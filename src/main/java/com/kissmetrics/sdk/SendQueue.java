@@ -0,0 +1,104 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+/**
+ * Persistent FIFO of encoded QueueRecords waiting to be sent.
+ * Implementations must be safe to call from multiple threads.
+ */
+interface SendQueue {
+
+  /**
+   * Selects records to remove from the queue.
+   */
+  interface RecordFilter {
+    /**
+     * @param index  Record index in the queue, before any record is removed.
+     * @param record Encoded QueueRecord
+     * @return true if the record should be removed.
+     */
+    boolean matches(int index, byte[] record);
+  }
+
+  /**
+   * Reads any records persisted by a previous session into the queue.
+   */
+  void load();
+
+  /**
+   * Appends a record to the end of the queue.
+   *
+   * @param record Encoded QueueRecord
+   */
+  void add(byte[] record);
+
+  /**
+   * @param index Record index in the queue.
+   * @return Encoded record at the index, or null if it could not be read from storage. Records
+   * that are corrupt are dropped from the queue, while those that could not be read for now are
+   * kept to be read again.
+   */
+  byte[] get(int index);
+
+  /**
+   * Removes a record from the queue.
+   *
+   * @param index Record index in the queue.
+   */
+  void remove(int index);
+
+  /**
+   * Removes every record matched by a filter, rewriting storage at most once.
+   *
+   * @param filter Selects the records to remove.
+   * @return The number of records removed.
+   */
+  int removeAll(RecordFilter filter);
+
+  /**
+   * Empties the queue.
+   */
+  void clear();
+
+  /**
+   * @return The number of records in the queue.
+   */
+  int size();
+
+  /**
+   * @return Bytes of storage used by the records in the queue.
+   */
+  long byteSize();
+
+  /**
+   * @param length Length of an encoded record
+   * @return false if the queue's storage has no room left for the record until records are
+   * removed. A record added without room is dropped.
+   */
+  boolean hasRoomFor(int length);
+
+  /**
+   * Writes any changes the queue is holding in memory to storage.
+   */
+  void flush();
+
+  /**
+   * Releases any open files.
+   */
+  void close();
+}
@@ -0,0 +1,1240 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append-only, segmented journal backing the send queue.
+ * <p/>
+ * Records are appended as length-prefixed, CRC32 checksummed entries to the newest of a set of numbered segment
+ * files (name.0001, name.0002, ...). A segment is closed to appends once it reaches
+ * SEGMENT_SIZE and a new one is started. Each segment header holds a read cursor; acknowledging
+ * the record at the head of the queue only advances the cursor of the oldest segment, and a
+ * segment is deleted outright once all of its records have been acknowledged. A partially
+ * acknowledged segment found on load is compacted on a background thread.
+ * <p/>
+ * Each write touches at most one segment, so its cost and the damage a bad write can do are
+ * bounded by the segment size rather than the queue length.
+ * <p/>
+ * On load every valid entry of a segment up to its first truncated or corrupt entry is
+ * recovered, and the rest of that segment is dropped.
+ * <p/>
+ * In write-behind mode new entries and cursor updates are held in memory until flush(), which
+ * appends the held entries with one write per segment.
+ * <p/>
+ * With a memory window only the records at the head of the queue, up to the window size, are
+ * held in memory. Records queued behind them stay in their segments and are read back a window
+ * at a time as the head is acknowledged, so heap use does not grow with the backlog.
+ * <p/>
+ * With a time to live, records at the head of the queue recorded before it are skipped on load
+ * by advancing the read cursor past them, using the timestamp at the start of each record
+ * rather than decoding it. Alias and raw records carry no timestamp and expire with the next
+ * expired record of the same segment. Expired records are then removed from storage with the
+ * rest of the acknowledged records by compaction.
+ */
+class SendQueueJournal implements SendQueue {
+  private static final int MAGIC = 0x4b4d4a32; // "KMJ2"
+  private static final int MAGIC_UNCHECKED = 0x4b4d4a31; // "KMJ1", entries without a CRC
+  private static final int HEADER_SIZE = 12; // magic + head offset
+  private static final int ENTRY_HEADER_SIZE = 8; // length + CRC32
+
+  // Segments are rolled once they reach this many bytes.
+  static final long SEGMENT_SIZE = 128 * 1024;
+
+  // Minimum number of acknowledged records before the in memory list is trimmed.
+  private static final int TRIM_THRESHOLD = 1024;
+
+  /**
+   * A single segment file and the number of its records not yet acknowledged.
+   */
+  private static final class Segment {
+    final File file;
+    RandomAccessFile raf;
+    int pending;
+    long length = HEADER_SIZE;
+    boolean checked = true;
+
+    Segment(File file) {
+      this.file = file;
+    }
+  }
+
+  private final File directory;
+  private final String name;
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private final List<byte[]> records = new ArrayList<byte[]>();
+  private final List<Integer> entrySizes = new ArrayList<Integer>();
+
+  private int head;
+  private long headOffset = HEADER_SIZE;
+  private int nextNumber = 1;
+
+  private final boolean writeBehind;
+  // Entries of the newest records not yet appended to a segment, oldest first.
+  private final List<byte[]> unwritten = new ArrayList<byte[]>();
+  private boolean cursorDirty;
+
+  // Records held in memory from the head of the queue, or 0 to hold every record.
+  private final int window;
+  // Seconds a record is kept before it expires on load, or 0 to keep records until sent.
+  private final long timeToLive;
+  // Records recorded before this time are dropped while expiring.
+  private long expireBefore;
+  // True while the records read on load have all expired.
+  private boolean expiring;
+  private int expiredOnLoad;
+
+  // Records queued behind those held in memory.
+  private int spilled;
+  private long queuedBytes;
+
+  // True when a write failed and the segments no longer match the records held in memory.
+  private boolean outOfSync;
+
+  // True when a segment without checksums was read and should be rewritten.
+  private boolean uncheckedSegmentRead;
+
+  /**
+   * @param directory Directory holding the segment files.
+   * @param name      Segment file name prefix.
+   */
+  SendQueueJournal(File directory, String name) {
+    this(directory, name, false);
+  }
+
+  /**
+   * @param directory   Directory holding the segment files.
+   * @param name        Segment file name prefix.
+   * @param writeBehind True to hold appends and acknowledgements until flush().
+   */
+  SendQueueJournal(File directory, String name, boolean writeBehind) {
+    this(directory, name, writeBehind, 0);
+  }
+
+  /**
+   * @param directory   Directory holding the segment files.
+   * @param name        Segment file name prefix.
+   * @param writeBehind True to hold appends and acknowledgements until flush().
+   * @param window      Records held in memory from the head of the queue, or 0 for all.
+   */
+  SendQueueJournal(File directory, String name, boolean writeBehind, int window) {
+    this(directory, name, writeBehind, window, 0);
+  }
+
+  /**
+   * @param directory   Directory holding the segment files.
+   * @param name        Segment file name prefix.
+   * @param writeBehind True to hold appends and acknowledgements until flush().
+   * @param window      Records held in memory from the head of the queue, or 0 for all.
+   * @param timeToLive  Seconds a record is kept before it expires on load, or 0 to keep
+   *                    records until they are sent.
+   */
+  SendQueueJournal(File directory, String name, boolean writeBehind, int window,
+                   long timeToLive) {
+    this.directory = directory;
+    this.name = name;
+    this.writeBehind = writeBehind;
+    this.window = window;
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * Reads the unacknowledged records of every segment into memory, up to the memory window.
+   * A truncated trailing entry, as left by a process killed mid-write, is dropped, as are the
+   * expired records at the head of the queue.
+   */
+  public synchronized void load() {
+    closeSegments();
+    segments.clear();
+    records.clear();
+    entrySizes.clear();
+    head = 0;
+    headOffset = HEADER_SIZE;
+    nextNumber = 1;
+    outOfSync = false;
+    unwritten.clear();
+    cursorDirty = false;
+    uncheckedSegmentRead = false;
+    spilled = 0;
+    queuedBytes = 0;
+    expiring = timeToLive > 0;
+    expireBefore = System.currentTimeMillis() / 1000L - timeToLive;
+    expiredOnLoad = 0;
+
+    for (Integer number : segmentNumbers()) {
+      Segment segment = new Segment(segmentFile(number));
+      long cursor = readSegment(segment);
+      nextNumber = number + 1;
+
+      if (segment.pending == 0) {
+        // Fully acknowledged
+        closeQuietly(segment.raf);
+        segment.file.delete();
+        continue;
+      }
+
+      if (segments.isEmpty()) {
+        headOffset = cursor;
+      }
+      segments.add(segment);
+    }
+
+    if (uncheckedSegmentRead) {
+      // Written by an earlier version, replace with checksummed segments
+      rewrite();
+      return;
+    }
+
+    if (expiredOnLoad > 0 && !segments.isEmpty()) {
+      // Acknowledge the expired records
+      try {
+        RandomAccessFile raf = open(segments.getFirst());
+        raf.seek(4);
+        raf.writeLong(headOffset);
+      } catch (Exception e) {
+        Log.w(KISSmetricsAPI.TAG, "Unable to advance send queue journal head", e);
+        // Retried by the next flush
+        cursorDirty = true;
+      }
+    }
+
+    if (segments.size() > 1 && headOffset - HEADER_SIZE > segments.getFirst().length / 2) {
+      compactInBackground(segments.getFirst(), headOffset);
+    }
+  }
+
+  /**
+   * Appends a record to the end of the queue.
+   *
+   * @param record Encoded QueueRecord
+   */
+  public synchronized void add(byte[] record) {
+    byte[] entry = entry(record);
+
+    if (window > 0) {
+      addSpillable(record, entry);
+      return;
+    }
+
+    records.add(record);
+
+    try {
+      entrySizes.add(entry.length);
+      queuedBytes += entry.length;
+
+      if (writeBehind) {
+        unwritten.add(entry);
+        return;
+      }
+
+      if (outOfSync) {
+        rewrite();
+        return;
+      }
+
+      List<byte[]> entries = new ArrayList<byte[]>(1);
+      entries.add(entry);
+      append(entries);
+    } catch (Exception e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // The record stays queued in memory and is persisted by the next rewrite.
+      Log.w(KISSmetricsAPI.TAG, "Unable to append to send queue journal", e);
+      outOfSync = true;
+    }
+  }
+
+  /**
+   * Appends a record with a memory window. The record is only held in memory if nothing is
+   * queued behind the window and the window has room. Its entry is written, or held until
+   * flush() in write-behind mode, through the unwritten entries; an entry that cannot be
+   * written stays there and is retried by the next write.
+   *
+   * @param record Encoded QueueRecord
+   * @param entry  The record's entry
+   */
+  private void addSpillable(byte[] record, byte[] entry) {
+    if (spilled == 0 && records.size() - head < window) {
+      records.add(record);
+      entrySizes.add(entry.length);
+    } else {
+      spilled++;
+    }
+    queuedBytes += entry.length;
+    unwritten.add(entry);
+
+    if (outOfSync) {
+      rewrite();
+    } else if (!writeBehind) {
+      writeUnwritten();
+    }
+  }
+
+  /**
+   * @param index Record index in the queue.
+   * @return Encoded record at the index, or null if it could not be read from its segment.
+   */
+  public synchronized byte[] get(int index) {
+    if (index >= records.size() - head) {
+      fill(Math.max(index + 1, window));
+      if (index >= records.size() - head) {
+        return null;
+      }
+    }
+    return records.get(head + index);
+  }
+
+  /**
+   * Removes a record from the queue.
+   * Removing the head of the queue only advances the read cursor of the oldest segment, and
+   * deletes that segment once all of its records have been acknowledged. In write-behind mode
+   * a head that has not been written yet is simply dropped.
+   *
+   * @param index Record index in the queue.
+   */
+  public synchronized void remove(int index) {
+    if (index >= records.size() - head) {
+      fill(Math.max(index + 1, window));
+      if (index >= records.size() - head) {
+        Log.w(KISSmetricsAPI.TAG, "Unable to read send queue record to remove");
+        return;
+      }
+    }
+
+    if (index != 0 || outOfSync) {
+      // Rewrites the journal. Records removed together, such as those the Sender acknowledges
+      // behind a failed request, are removed by removeAll to rewrite it once.
+      if (spilledOnDisk() > 0) {
+        // Records not held in memory are copied from the segments without this one
+        if (rewriteFromDisk(index, null, null)) {
+          records.remove(head + index);
+          entrySizes.remove(head + index);
+        }
+        return;
+      }
+
+      queuedBytes -= entrySizes.get(head + index);
+      records.remove(head + index);
+      entrySizes.remove(head + index);
+      rewrite();
+      return;
+    }
+
+    boolean headUnwritten = size() == unwritten.size();
+    int entrySize = entrySizes.get(head);
+    records.set(head, null);
+    head++;
+    queuedBytes -= entrySize;
+
+    if (head >= TRIM_THRESHOLD && head > records.size() - head) {
+      records.subList(0, head).clear();
+      entrySizes.subList(0, head).clear();
+      head = 0;
+    }
+
+    if (headUnwritten) {
+      unwritten.remove(0);
+      return;
+    }
+
+    headOffset += entrySize;
+    Segment segment = segments.getFirst();
+    segment.pending--;
+
+    if (segment.pending == 0 && segments.size() > 1) {
+      dropHeadSegment();
+      return;
+    }
+
+    if (writeBehind) {
+      cursorDirty = true;
+      return;
+    }
+
+    try {
+      RandomAccessFile raf = open(segment);
+      raf.seek(4);
+      raf.writeLong(headOffset);
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to advance send queue journal head", e);
+      if (window > 0) {
+        // Retried by the next flush
+        cursorDirty = true;
+      } else {
+        outOfSync = true;
+      }
+    }
+  }
+
+  /**
+   * Removes every record matched by a filter. Records held in memory are filtered in place;
+   * records queued behind them are filtered as they are copied a segment at a time, so they are
+   * never all read into memory at once. The segments are then replaced in one rewrite.
+   *
+   * @param filter Selects the records to remove.
+   * @return The number of records removed.
+   */
+  public synchronized int removeAll(RecordFilter filter) {
+    if (spilled > 0) {
+      List<Integer> removed = new ArrayList<Integer>();
+      if (!rewriteFromDisk(-1, filter, removed)) {
+        return 0;
+      }
+
+      int held = records.size() - head;
+      for (int i = removed.size() - 1; i >= 0; i--) {
+        int index = removed.get(i);
+        if (index < held) {
+          records.remove(head + index);
+          entrySizes.remove(head + index);
+        } else {
+          spilled--;
+        }
+      }
+      return removed.size();
+    }
+
+    int removed = 0;
+    for (int i = records.size() - 1; i >= head; i--) {
+      if (filter.matches(i - head, records.get(i))) {
+        queuedBytes -= entrySizes.get(i);
+        records.remove(i);
+        entrySizes.remove(i);
+        removed++;
+      }
+    }
+
+    if (removed > 0) {
+      rewrite();
+    }
+    return removed;
+  }
+
+  /**
+   * Empties the queue and deletes every segment.
+   */
+  public synchronized void clear() {
+    records.clear();
+    entrySizes.clear();
+    head = 0;
+    spilled = 0;
+    unwritten.clear();
+    rewrite();
+  }
+
+  /**
+   * @return The number of records in the queue.
+   */
+  public synchronized int size() {
+    return records.size() - head + spilled;
+  }
+
+  /**
+   * @return The number of records held in memory.
+   */
+  synchronized int heldInMemory() {
+    return records.size() - head;
+  }
+
+  /**
+   * @return Number of records dropped by the last load as they had expired.
+   */
+  synchronized int expiredOnLoad() {
+    return expiredOnLoad;
+  }
+
+  /**
+   * @return Bytes of the entries of every record in the queue.
+   */
+  public synchronized long byteSize() {
+    return queuedBytes;
+  }
+
+  /**
+   * @param length Length of an encoded record
+   * @return true, as the journal grows to hold any record.
+   */
+  public boolean hasRoomFor(int length) {
+    return true;
+  }
+
+  /**
+   * Writes the entries and cursor update held in write-behind mode.
+   */
+  public synchronized void flush() {
+    if (outOfSync) {
+      rewrite();
+      return;
+    }
+
+    if (window > 0 && !writeUnwritten()) {
+      return;
+    }
+
+    try {
+      if (!unwritten.isEmpty()) {
+        append(unwritten);
+      }
+
+      if (cursorDirty && !segments.isEmpty()) {
+        RandomAccessFile raf = open(segments.getFirst());
+        raf.seek(4);
+        raf.writeLong(headOffset);
+      }
+      cursorDirty = false;
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to flush send queue journal", e);
+      outOfSync = true;
+    }
+  }
+
+  /**
+   * Writes any held entries and releases the open segment files.
+   */
+  public synchronized void close() {
+    flush();
+    closeSegments();
+  }
+
+  /**
+   * Appends entries to the newest segment, starting a new segment when it is full.
+   * Entries bound for the same segment are written together, and removed from the list once
+   * written, so the entries left after a failed write are those not yet written.
+   *
+   * @param entries Length-prefixed records.
+   */
+  private void append(List<byte[]> entries) throws IOException {
+    while (!entries.isEmpty()) {
+      Segment tail = segments.isEmpty() ? null : segments.getLast();
+
+      if (tail == null || tail.length >= SEGMENT_SIZE) {
+        if (tail != null && tail.pending == 0) {
+          // The only segment, and fully acknowledged
+          dropHeadSegment();
+        }
+        tail = newSegment();
+      }
+
+      // Gather the entries that fit before the segment rolls
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      int count = 0;
+      while (count < entries.size() && tail.length + batch.size() < SEGMENT_SIZE) {
+        byte[] entry = entries.get(count);
+        batch.write(entry, 0, entry.length);
+        count++;
+      }
+
+      RandomAccessFile raf = open(tail);
+      raf.seek(tail.length);
+      raf.write(batch.toByteArray());
+      tail.length += batch.size();
+      tail.pending += count;
+      entries.subList(0, count).clear();
+    }
+  }
+
+  /**
+   * Appends the entries held in unwritten. Entries that cannot be written are kept there and
+   * retried by the next write.
+   *
+   * @return false if an entry could not be written.
+   */
+  private boolean writeUnwritten() {
+    try {
+      append(unwritten);
+      return true;
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to append to send queue journal", e);
+      return false;
+    }
+  }
+
+  /**
+   * @return The number of records queued behind those held in memory that have been written to
+   * a segment. Those not yet written are the newest of the unwritten entries.
+   */
+  private int spilledOnDisk() {
+    return spilled - Math.min(spilled, unwritten.size());
+  }
+
+  /**
+   * Reads records queued behind those held in memory until count records are held, or none are
+   * left. Records that could not be read from their segment are read by a later call, while
+   * corrupt records are dropped.
+   *
+   * @param count Number of records to hold in memory.
+   */
+  private void fill(int count) {
+    int onDisk = spilledOnDisk();
+    if (onDisk > 0 && records.size() - head < count) {
+      readSpilled(Math.min(count - (records.size() - head), onDisk));
+    }
+
+    // Then those only held as unwritten entries
+    while (records.size() - head < count && spilled > 0 && spilledOnDisk() == 0) {
+      byte[] entry = unwritten.get(unwritten.size() - spilled);
+      records.add(Arrays.copyOfRange(entry, ENTRY_HEADER_SIZE, entry.length));
+      entrySizes.add(entry.length);
+      spilled--;
+    }
+  }
+
+  /**
+   * Reads records queued behind those held in memory from their segments. Every record held in
+   * memory has been written when any record behind them has, so the first record to read
+   * follows the entries of those held in memory.
+   * Records that could not be read stay queued on disk and are read again by the next call. A
+   * corrupt entry is dropped with the rest of its segment, as on load.
+   *
+   * @param count Number of records to read.
+   */
+  private void readSpilled(int count) {
+    DataInputStream in = null;
+
+    try {
+      // Find the segment and offset of the first record not held in memory
+      int skipped = records.size() - head;
+      Iterator<Segment> iterator = segments.iterator();
+      Segment segment = iterator.next();
+      long offset = headOffset;
+      while (skipped >= segment.pending) {
+        skipped -= segment.pending;
+        segment = iterator.next();
+        offset = HEADER_SIZE;
+      }
+      for (int i = records.size() - skipped; i < records.size(); i++) {
+        offset += entrySizes.get(i);
+      }
+
+      while (true) {
+        in = openAt(segment.file, offset);
+        for (int i = skipped; i < segment.pending && count > 0; i++, count--) {
+          byte[] bytes = readEntry(in, segment.checked, segment.length - offset);
+          if (bytes == null) {
+            dropSegmentTail(segment, offset, segment.pending - i);
+            if (segment.pending == 0) {
+              iterator.remove();
+            }
+            break;
+          }
+
+          int entrySize = (segment.checked ? ENTRY_HEADER_SIZE : 4) + bytes.length;
+          records.add(bytes);
+          entrySizes.add(entrySize);
+          spilled--;
+          offset += entrySize;
+        }
+        closeQuietly(in);
+        in = null;
+
+        if (count == 0 || spilledOnDisk() == 0) {
+          return;
+        }
+        segment = iterator.next();
+        offset = HEADER_SIZE;
+        skipped = 0;
+      }
+    } catch (Exception e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // The records left on disk are read again by the next call.
+      Log.w(KISSmetricsAPI.TAG, "Unable to read send queue records", e);
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Drops the records of a segment from a corrupt entry on, truncating the segment so that
+   * appends never follow the entry.
+   *
+   * @param segment Segment holding the corrupt entry.
+   * @param offset  Offset of the corrupt entry.
+   * @param count   Number of records from the corrupt entry to the end of the segment.
+   */
+  private void dropSegmentTail(Segment segment, long offset, int count) {
+    Log.w(KISSmetricsAPI.TAG, "Send queue journal entry is corrupt. Dropping " + count
+            + " records");
+    spilled -= count;
+    queuedBytes -= segment.length - offset;
+    segment.pending -= count;
+    segment.length = offset;
+
+    if (segment.pending == 0) {
+      closeQuietly(segment.raf);
+      segment.raf = null;
+      segment.file.delete();
+      if (segment == segments.getFirst()) {
+        headOffset = HEADER_SIZE;
+      }
+      return;
+    }
+
+    try {
+      open(segment).setLength(offset);
+    } catch (IOException e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to truncate send queue segment", e);
+    }
+  }
+
+  /**
+   * Replaces every segment with new ones holding only the records in memory.
+   * The new segments are written before the old ones are deleted, so a process killed part way
+   * through replays records twice rather than losing them.
+   */
+  private void rewrite() {
+    if (spilledOnDisk() > 0) {
+      // Records not held in memory must be copied from the segments
+      rewriteFromDisk(-1, null, null);
+      return;
+    }
+
+    closeSegments();
+    List<Segment> replaced = new ArrayList<Segment>(segments);
+    long from = headOffset;
+    boolean wasCursorDirty = cursorDirty;
+    segments.clear();
+
+    if (head > 0) {
+      records.subList(0, head).clear();
+      entrySizes.subList(0, head).clear();
+      head = 0;
+    }
+    headOffset = HEADER_SIZE;
+    // Records queued behind those held in memory are only held as unwritten entries
+    List<byte[]> spilledEntries = new ArrayList<byte[]>(
+            unwritten.subList(unwritten.size() - spilled, unwritten.size()));
+    unwritten.clear();
+    cursorDirty = false;
+
+    List<byte[]> entries = new ArrayList<byte[]>(records.size() + spilled);
+    queuedBytes = 0;
+    for (int i = 0; i < records.size(); i++) {
+      byte[] entry = entry(records.get(i));
+      entrySizes.set(i, entry.length);
+      entries.add(entry);
+      queuedBytes += entry.length;
+    }
+    for (byte[] entry : spilledEntries) {
+      entries.add(entry);
+      queuedBytes += entry.length;
+    }
+
+    try {
+      append(entries);
+      outOfSync = false;
+    } catch (Exception e) {
+      // The old segments stay the copy on disk, and the next write retries the rewrite
+      Log.w(KISSmetricsAPI.TAG, "Unable to rewrite send queue journal", e);
+      closeSegments();
+      for (Segment segment : segments) {
+        segment.file.delete();
+      }
+      segments.clear();
+      segments.addAll(replaced);
+      unwritten.addAll(spilledEntries);
+      headOffset = from;
+      cursorDirty = wasCursorDirty;
+      outOfSync = true;
+      return;
+    }
+
+    for (Segment segment : replaced) {
+      segment.file.delete();
+    }
+  }
+
+  /**
+   * Replaces every segment with new ones holding the records of the old segments, copied a
+   * segment at a time so that records not held in memory are never all read at once, followed
+   * by the unwritten entries.
+   * The old segments are only deleted once every record has been copied, and are kept as they
+   * were if copying fails.
+   *
+   * @param skip    Index of a record to leave out, or -1.
+   * @param filter  Selects further records to leave out, or null.
+   * @param removed Receives the indexes of the records left out, or null.
+   * @return true if the segments were replaced.
+   */
+  private boolean rewriteFromDisk(int skip, RecordFilter filter, List<Integer> removed) {
+    closeSegments();
+    List<Segment> replaced = new ArrayList<Segment>(segments);
+    List<byte[]> held = new ArrayList<byte[]>(unwritten);
+    long from = headOffset;
+    boolean wasCursorDirty = cursorDirty;
+    segments.clear();
+    unwritten.clear();
+    headOffset = HEADER_SIZE;
+    cursorDirty = false;
+
+    int index = 0;
+    long bytes = 0;
+    List<byte[]> batch = new ArrayList<byte[]>();
+    long batchSize = 0;
+    DataInputStream in = null;
+
+    try {
+      for (Segment segment : replaced) {
+        long position = segment == replaced.get(0) ? from : HEADER_SIZE;
+        in = openAt(segment.file, position);
+        for (int i = 0; i < segment.pending; i++, index++) {
+          byte[] record = readEntry(in, segment.checked, segment.length - position);
+          if (record == null) {
+            throw new IOException("Send queue journal entry is corrupt");
+          }
+          position += (segment.checked ? ENTRY_HEADER_SIZE : 4) + record.length;
+
+          if (index == skip || (filter != null && filter.matches(index, record))) {
+            if (removed != null) {
+              removed.add(index);
+            }
+            continue;
+          }
+          byte[] entry = entry(record);
+          batch.add(entry);
+          batchSize += entry.length;
+          bytes += entry.length;
+
+          if (batchSize >= SEGMENT_SIZE) {
+            append(batch);
+            batchSize = 0;
+          }
+        }
+        closeQuietly(in);
+        in = null;
+      }
+
+      for (byte[] entry : held) {
+        if (index == skip || (filter != null && filter.matches(index,
+                Arrays.copyOfRange(entry, ENTRY_HEADER_SIZE, entry.length)))) {
+          if (removed != null) {
+            removed.add(index);
+          }
+        } else {
+          batch.add(entry);
+          bytes += entry.length;
+        }
+        index++;
+      }
+      append(batch);
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to rewrite send queue journal", e);
+      closeQuietly(in);
+      closeSegments();
+      for (Segment segment : segments) {
+        segment.file.delete();
+      }
+      segments.clear();
+      segments.addAll(replaced);
+      unwritten.addAll(held);
+      headOffset = from;
+      cursorDirty = wasCursorDirty;
+      return false;
+    }
+
+    for (Segment segment : replaced) {
+      segment.file.delete();
+    }
+    queuedBytes = bytes;
+    outOfSync = false;
+
+    // Every entry now carries a checksum
+    for (int i = head; i < records.size(); i++) {
+      entrySizes.set(i, ENTRY_HEADER_SIZE + records.get(i).length);
+    }
+    return true;
+  }
+
+  private void dropHeadSegment() {
+    Segment segment = segments.removeFirst();
+    closeQuietly(segment.raf);
+    segment.raf = null;
+    segment.file.delete();
+    headOffset = HEADER_SIZE;
+  }
+
+  /**
+   * Copies the unacknowledged part of a segment into a replacement file without holding the
+   * lock, then swaps it in if the segment is still the head of the queue.
+   *
+   * @param segment A partially acknowledged segment that no longer receives appends.
+   * @param from    Read cursor of the segment when compaction was scheduled.
+   */
+  private void compactInBackground(final Segment segment, final long from) {
+    new Thread(new Runnable() {
+      public void run() {
+        File tmp = new File(segment.file.getPath() + ".tmp");
+        DataInputStream in = null;
+        DataOutputStream out = null;
+
+        try {
+          // Only the header of a segment that no longer receives appends changes.
+          long end = segment.file.length();
+          in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+          out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+          out.writeInt(MAGIC);
+          out.writeLong(HEADER_SIZE);
+          skipFully(in, from);
+
+          byte[] buffer = new byte[8192];
+          long remaining = end - from;
+          while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+              throw new EOFException();
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+          }
+          out.close();
+          out = null;
+
+          synchronized (SendQueueJournal.this) {
+            if (segments.size() < 2 || segments.getFirst() != segment || segment.length != end) {
+              // Drained, cleared or reloaded while copying
+              tmp.delete();
+              return;
+            }
+
+            // Carry over anything acknowledged while copying
+            long compactedHead = HEADER_SIZE + (headOffset - from);
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            raf.seek(4);
+            raf.writeLong(compactedHead);
+            raf.close();
+
+            closeQuietly(segment.raf);
+            segment.raf = null;
+
+            if (!tmp.renameTo(segment.file)) {
+              throw new IOException("Unable to replace " + segment.file);
+            }
+
+            segment.length = HEADER_SIZE + (end - from);
+            headOffset = compactedHead;
+          }
+        } catch (Exception e) {
+          Log.w(KISSmetricsAPI.TAG, "Unable to compact send queue segment", e);
+          tmp.delete();
+        } finally {
+          closeQuietly(in);
+          closeQuietly(out);
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Reads the unacknowledged records of a segment into memory. While every record read so far
+   * has expired, expired records are skipped by advancing the segment's read cursor past them.
+   *
+   * @param segment Segment to read.
+   * @return The segment's read cursor.
+   */
+  private long readSegment(Segment segment) {
+    DataInputStream in = null;
+    long cursor = HEADER_SIZE;
+    long end = HEADER_SIZE;
+    long fileLength = segment.file.length();
+    // Records without a timestamp read while expiring, kept unless a later record has expired
+    List<byte[]> untimed = new ArrayList<byte[]>();
+    int entryHeaderSize = ENTRY_HEADER_SIZE;
+
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+
+      int magic = in.readInt();
+      boolean checked = magic == MAGIC;
+      if (!checked && magic != MAGIC_UNCHECKED) {
+        throw new IOException("Unrecognized send queue segment " + segment.file);
+      }
+      uncheckedSegmentRead |= !checked;
+      segment.checked = checked;
+
+      cursor = in.readLong();
+      if (cursor < HEADER_SIZE || cursor > fileLength) {
+        throw new IOException("Send queue segment head out of range");
+      }
+
+      skipFully(in, cursor - HEADER_SIZE);
+      end = cursor;
+
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+
+        entryHeaderSize = checked ? ENTRY_HEADER_SIZE : 4;
+        if (length < 0 || length > fileLength - end - entryHeaderSize) {
+          throw new EOFException("Send queue journal entry exceeds segment length");
+        }
+
+        long crc = checked ? in.readInt() & 0xffffffffL : 0;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        if (checked && crc != crc32(bytes)) {
+          throw new IOException("Send queue journal entry failed its checksum");
+        }
+
+        end += entryHeaderSize + length;
+
+        if (expiring) {
+          long timestamp = QueueRecord.timestampOf(bytes);
+          if (timestamp == 0) {
+            untimed.add(bytes);
+            continue;
+          }
+          if (timestamp < expireBefore) {
+            expiredOnLoad += 1 + untimed.size();
+            untimed.clear();
+            cursor = end;
+            continue;
+          }
+          expiring = false;
+          keepLoaded(segment, untimed, entryHeaderSize);
+        }
+
+        keepLoaded(segment, bytes, entryHeaderSize + length);
+      }
+    } catch (Exception e) {
+      Log.w(KISSmetricsAPI.TAG, "Unable to fully read send queue segment", e);
+    } finally {
+      closeQuietly(in);
+    }
+
+    if (!untimed.isEmpty()) {
+      // Only expired together with records of the same segment
+      expiring = false;
+      keepLoaded(segment, untimed, entryHeaderSize);
+    }
+
+    segment.length = end;
+
+    if (end != fileLength && segment.pending > 0) {
+      // Drop the partial or corrupt entries so that appends never follow them.
+      try {
+        open(segment).setLength(end);
+      } catch (IOException e) {
+        Log.w(KISSmetricsAPI.TAG, "Unable to truncate send queue segment", e);
+      }
+    }
+
+    return cursor;
+  }
+
+  /**
+   * Adds a record read on load to the queue.
+   *
+   * @param segment   Segment the record was read from.
+   * @param bytes     Encoded record.
+   * @param entrySize Size of the record's entry in the segment.
+   */
+  private void keepLoaded(Segment segment, byte[] bytes, int entrySize) {
+    if (window == 0 || (spilled == 0 && records.size() < window)) {
+      records.add(bytes);
+      entrySizes.add(entrySize);
+    } else {
+      // Read back when the memory window reaches it
+      spilled++;
+    }
+    queuedBytes += entrySize;
+    segment.pending++;
+  }
+
+  private void keepLoaded(Segment segment, List<byte[]> entries, int entryHeaderSize) {
+    for (byte[] bytes : entries) {
+      keepLoaded(segment, bytes, entryHeaderSize + bytes.length);
+    }
+    entries.clear();
+  }
+
+  private Segment newSegment() throws IOException {
+    Segment segment = new Segment(segmentFile(nextNumber));
+    nextNumber++;
+
+    RandomAccessFile raf = open(segment);
+    raf.setLength(0);
+    raf.writeInt(MAGIC);
+    raf.writeLong(HEADER_SIZE);
+    segments.add(segment);
+
+    return segment;
+  }
+
+  private RandomAccessFile open(Segment segment) throws IOException {
+    if (segment.raf == null) {
+      segment.raf = new RandomAccessFile(segment.file, "rw");
+    }
+    return segment.raf;
+  }
+
+  private void closeSegments() {
+    for (Segment segment : segments) {
+      closeQuietly(segment.raf);
+      segment.raf = null;
+    }
+  }
+
+  private File segmentFile(int number) {
+    return new File(directory, String.format("%s.%04d", name, number));
+  }
+
+  /**
+   * @return Numbers of the segment files on disk in ascending order.
+   */
+  private List<Integer> segmentNumbers() {
+    List<Integer> numbers = new ArrayList<Integer>();
+    String[] fileNames = directory.list();
+
+    if (fileNames == null) {
+      return numbers;
+    }
+
+    String prefix = name + ".";
+    for (String fileName : fileNames) {
+      if (!fileName.startsWith(prefix)) {
+        continue;
+      }
+
+      try {
+        numbers.add(Integer.parseInt(fileName.substring(prefix.length())));
+      } catch (NumberFormatException e) {
+        // Not a segment, such as a leftover .tmp file
+      }
+    }
+
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * @param file   A segment file.
+   * @param offset Offset of the first entry to read.
+   * @return A stream positioned at the offset.
+   */
+  private static DataInputStream openAt(File file, long offset) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      skipFully(in, offset);
+    } catch (IOException e) {
+      closeQuietly(in);
+      throw e;
+    }
+    return in;
+  }
+
+  /**
+   * Reads an entry validated when its segment was loaded.
+   *
+   * @param in      Stream positioned at the entry.
+   * @param checked True if the entry carries a CRC32.
+   * @param limit   Bytes of the segment from the entry on.
+   * @return The entry's record, or null if the entry is corrupt.
+   */
+  private static byte[] readEntry(DataInputStream in, boolean checked, long limit)
+          throws IOException {
+    int entryHeaderSize = checked ? ENTRY_HEADER_SIZE : 4;
+    if (limit < entryHeaderSize) {
+      return null;
+    }
+
+    int length = in.readInt();
+    long crc = checked ? in.readInt() & 0xffffffffL : 0;
+    if (length < 0 || length > limit - entryHeaderSize) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    try {
+      in.readFully(bytes);
+    } catch (EOFException e) {
+      // Cut short since the segment was loaded
+      return null;
+    }
+    if (checked && crc != crc32(bytes)) {
+      return null;
+    }
+    return bytes;
+  }
+
+  private static byte[] entry(byte[] bytes) {
+    byte[] entry = new byte[ENTRY_HEADER_SIZE + bytes.length];
+    writeInt(entry, 0, bytes.length);
+    writeInt(entry, 4, (int) crc32(bytes));
+    System.arraycopy(bytes, 0, entry, ENTRY_HEADER_SIZE, bytes.length);
+    return entry;
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static long crc32(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+  private static void skipFully(DataInputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      count -= skipped;
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more we can do
+    }
+  }
+}
@@ -0,0 +1,518 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Send queue kept in a fixed-capacity ring inside a memory mapped file.
+ * <p/>
+ * The file holds a header with the head (consumer) and tail (producer) positions followed by
+ * length-prefixed, CRC32 checksummed records that wrap around the end of the body. Positions only ever grow;
+ * a position's offset in the body is the position modulo the capacity. Adding and acknowledging
+ * records are plain memory writes, and persistence is left to the OS page cache. Records survive
+ * the app's process being killed, but not the device losing power before the pages are written.
+ * <p/>
+ * The ring never drops records on its own, as records at its head may be in flight. Its
+ * capacity is a byte quota that the archiver makes room within. On load the records up to the
+ * first corrupt one are recovered.
+ */
+class SendQueueRing implements SendQueue {
+  private static final int MAGIC = 0x4b4d5232; // "KMR2"
+  private static final int MAGIC_UNCHECKED = 0x4b4d5231; // "KMR1", entries without a CRC
+  private static final int HEADER_SIZE = 24; // magic + capacity + head + tail
+  private static final int ENTRY_HEADER_SIZE = 8; // length + CRC32
+  private static final int HEAD_OFFSET = 8;
+  private static final int TAIL_OFFSET = 16;
+
+  // Minimum number of acknowledged records before the in memory index is trimmed.
+  private static final int TRIM_THRESHOLD = 1024;
+
+  private final File file;
+  private final int capacity;
+  private int entryHeaderSize = ENTRY_HEADER_SIZE;
+
+  private ByteBuffer buffer;
+  private long headPosition;
+  private long tailPosition;
+
+  // Positions of the records in the ring, oldest first, starting at index first.
+  private final List<Long> positions = new ArrayList<Long>();
+  private int first;
+
+  // True when the ring has been written since the last flush.
+  private boolean changed;
+
+  /**
+   * @param file     File to map the ring into.
+   * @param capacity Size of the ring body in bytes.
+   */
+  SendQueueRing(File file, int capacity) {
+    this.file = file;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Maps the ring file and indexes the records between its head and tail.
+   * A ring created with a different capacity or by an earlier version is rebuilt, keeping as
+   * many of the newest records as fit.
+   */
+  public synchronized void load() {
+    positions.clear();
+    first = 0;
+    headPosition = 0;
+    tailPosition = 0;
+
+    List<byte[]> resized = null;
+
+    try {
+      ByteBuffer existing = map(file.length());
+
+      int magic = existing != null ? existing.getInt(0) : 0;
+
+      if (magic == MAGIC || magic == MAGIC_UNCHECKED) {
+        int existingCapacity = existing.getInt(4);
+
+        if (magic == MAGIC && existingCapacity == capacity) {
+          buffer = existing;
+          headPosition = buffer.getLong(HEAD_OFFSET);
+          tailPosition = buffer.getLong(TAIL_OFFSET);
+          index();
+          return;
+        }
+
+        if (existingCapacity > 0 && file.length() == HEADER_SIZE + (long) existingCapacity) {
+          resized = readAll(existing, existingCapacity, magic == MAGIC);
+        }
+      }
+
+      buffer = map(HEADER_SIZE + (long) capacity);
+    } catch (Exception e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // Without a mapping the queue is kept in memory only.
+      Log.w(KISSmetricsAPI.TAG, "Unable to map send queue ring, records will not be persisted", e);
+      buffer = ByteBuffer.allocate(HEADER_SIZE + capacity);
+    }
+
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, capacity);
+    writeHead();
+    writeTail();
+
+    if (resized != null) {
+      // Nothing is in flight yet, so the oldest records that no longer fit are dropped
+      long length = 0;
+      int dropped = resized.size();
+      while (dropped > 0 && length + ENTRY_HEADER_SIZE + resized.get(dropped - 1).length <= capacity) {
+        dropped--;
+        length += ENTRY_HEADER_SIZE + resized.get(dropped).length;
+      }
+      if (dropped > 0) {
+        Log.w(KISSmetricsAPI.TAG, "Send queue ring was resized, dropped " + dropped + " oldest records");
+      }
+      for (byte[] record : resized.subList(dropped, resized.size())) {
+        add(record);
+      }
+    }
+  }
+
+  /**
+   * Appends a record to the ring. A record the ring has no room for is dropped, as room is
+   * only made by removing records.
+   *
+   * @param bytes Encoded QueueRecord
+   */
+  public synchronized void add(byte[] bytes) {
+    if (!hasRoomFor(bytes.length)) {
+      Log.w(KISSmetricsAPI.TAG, "Send queue ring is full, record was dropped");
+      return;
+    }
+
+    positions.add(tailPosition);
+    writeEntry(bytes);
+  }
+
+  /**
+   * @param index Record index in the ring.
+   * @return Encoded record at the index.
+   */
+  public synchronized byte[] get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+
+    long position = positions.get(first + index);
+    byte[] bytes = new byte[readInt(position)];
+    read(position + entryHeaderSize, bytes);
+    return bytes;
+  }
+
+  /**
+   * Removes a record from the ring.
+   * Removing the head of the ring only advances the head position.
+   *
+   * @param index Record index in the ring.
+   */
+  public synchronized void remove(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+
+    if (index == 0) {
+      advanceHead();
+      writeHead();
+      return;
+    }
+
+    // Rewrites the ring. Records removed together, such as those the Sender acknowledges
+    // behind a failed request, are removed by removeAll to rewrite it once.
+    boolean[] removing = new boolean[size()];
+    removing[index] = true;
+    rewrite(removing);
+  }
+
+  /**
+   * Removes every record matched by a filter, rewriting the ring once if any record matches.
+   *
+   * @param filter Selects the records to remove.
+   * @return The number of records removed.
+   */
+  public synchronized int removeAll(RecordFilter filter) {
+    boolean[] removing = new boolean[size()];
+    int removed = 0;
+    for (int i = 0; i < removing.length; i++) {
+      if (filter.matches(i, get(i))) {
+        removing[i] = true;
+        removed++;
+      }
+    }
+
+    if (removed > 0) {
+      rewrite(removing);
+    }
+    return removed;
+  }
+
+  /**
+   * Empties the ring.
+   */
+  public synchronized void clear() {
+    positions.clear();
+    first = 0;
+    headPosition = tailPosition;
+    writeHead();
+  }
+
+  /**
+   * @return The number of records in the ring.
+   */
+  public synchronized int size() {
+    return positions.size() - first;
+  }
+
+  /**
+   * @return Bytes of the ring body used by the entries of every record in the ring.
+   */
+  public synchronized long byteSize() {
+    return tailPosition - headPosition;
+  }
+
+  /**
+   * @param length Length of an encoded record
+   * @return false if the record's entry does not fit in the ring body left between the tail
+   * and the head.
+   */
+  public synchronized boolean hasRoomFor(int length) {
+    return tailPosition - headPosition + ENTRY_HEADER_SIZE + length <= capacity;
+  }
+
+  /**
+   * Forces the mapped pages written since the last flush to storage.
+   */
+  public synchronized void flush() {
+    if (changed && buffer instanceof MappedByteBuffer) {
+      ((MappedByteBuffer) buffer).force();
+    }
+    changed = false;
+  }
+
+  /**
+   * Forces the mapped pages to storage.
+   */
+  public synchronized void close() {
+    flush();
+  }
+
+  /**
+   * Removes records by copying every record kept past the tail in order, moving the head past
+   * each original once it is copied. Each step leaves a valid ring behind it, so a process
+   * killed part way through keeps every record, at worst sending the one being copied twice.
+   * <p/>
+   * Needs room past the tail for the record being copied. Without it, as when a full ring is
+   * only freed by removing a later record, the kept records are staged in memory and added
+   * back, which loses them if the process is killed before they are.
+   *
+   * @param removing Whether each record, by index, is removed.
+   */
+  private void rewrite(boolean[] removing) {
+    // Not synch'd as should always be called inside of a sync block !!
+    int count = removing.length;
+    long[] original = new long[count + 1];
+    for (int i = 0; i < count; i++) {
+      original[i] = positions.get(first + i);
+    }
+    original[count] = tailPosition;
+
+    int lastRemoved = -1;
+    for (int i = 0; i < count; i++) {
+      if (removing[i]) {
+        lastRemoved = i;
+      }
+    }
+
+    // Only removed records lead the ring until the first kept record is copied
+    boolean copying = false;
+    boolean fits = true;
+    long free = capacity - (tailPosition - headPosition);
+    for (int i = 0; i < count; i++) {
+      long entryLength = original[i + 1] - original[i];
+      if (removing[i]) {
+        free += entryLength;
+      } else if (copying || i < lastRemoved) {
+        copying = true;
+        fits = fits && free >= entryLength;
+      }
+    }
+
+    if (!fits) {
+      Log.w(KISSmetricsAPI.TAG, "Send queue ring is too full to remove records in place");
+      List<byte[]> remaining = new ArrayList<byte[]>();
+      for (int i = 0; i < count; i++) {
+        if (!removing[i]) {
+          remaining.add(get(i));
+        }
+      }
+      clear();
+      for (byte[] record : remaining) {
+        add(record);
+      }
+      return;
+    }
+
+    List<Long> copies = new ArrayList<Long>();
+    int next = 0;
+    // Records after the last removed one stay in place unless an earlier record was copied
+    while (next < count && (next <= lastRemoved || !copies.isEmpty())) {
+      if (!removing[next]) {
+        copies.add(tailPosition);
+        // Publishing the tail commits the copy before the head moves past the original
+        writeEntry(get(next));
+      }
+      next++;
+      headPosition = original[next];
+      writeHead();
+    }
+
+    List<Long> kept = new ArrayList<Long>();
+    for (int i = next; i < count; i++) {
+      kept.add(original[i]);
+    }
+    kept.addAll(copies);
+    positions.clear();
+    positions.addAll(kept);
+    first = 0;
+  }
+
+  /**
+   * Writes a record's entry at the tail. Publishing the tail last commits the record.
+   */
+  private void writeEntry(byte[] bytes) {
+    byte[] entryHeader = new byte[ENTRY_HEADER_SIZE];
+    writeInt(entryHeader, 0, bytes.length);
+    writeInt(entryHeader, 4, (int) crc32(bytes));
+    write(tailPosition, entryHeader);
+    write(tailPosition + ENTRY_HEADER_SIZE, bytes);
+
+    tailPosition += ENTRY_HEADER_SIZE + bytes.length;
+    writeTail();
+  }
+
+  /**
+   * Builds the in memory index of record positions between the head and tail.
+   * A record that runs past the tail or fails its checksum ends the ring, dropping it and
+   * anything after it.
+   */
+  private void index() {
+    if (headPosition < 0 || tailPosition < headPosition
+        || tailPosition - headPosition > capacity) {
+      Log.w(KISSmetricsAPI.TAG, "Send queue ring positions are invalid, emptying the ring");
+      headPosition = 0;
+      tailPosition = 0;
+      writeHead();
+      writeTail();
+      return;
+    }
+
+    long position = headPosition;
+    while (position < tailPosition) {
+      long entryLength = tailPosition - position < entryHeaderSize
+          ? -1 : (long) entryHeaderSize + readInt(position);
+
+      if (entryLength < entryHeaderSize || position + entryLength > tailPosition
+          || !checksumMatches(position, entryLength)) {
+        Log.w(KISSmetricsAPI.TAG, "Send queue ring entry is invalid, dropping the ring tail");
+        tailPosition = position;
+        writeTail();
+        break;
+      }
+
+      positions.add(position);
+      position += entryLength;
+    }
+  }
+
+  /**
+   * @return True if the entry's record matches its CRC32, or the entry has no CRC.
+   */
+  private boolean checksumMatches(long position, long entryLength) {
+    if (entryHeaderSize < ENTRY_HEADER_SIZE) {
+      return true;
+    }
+
+    byte[] bytes = new byte[(int) (entryLength - entryHeaderSize)];
+    read(position + entryHeaderSize, bytes);
+    return (readInt(position + 4) & 0xffffffffL) == crc32(bytes);
+  }
+
+  /**
+   * Reads every record of a ring mapped with another capacity or format.
+   */
+  private List<byte[]> readAll(ByteBuffer existing, int existingCapacity, boolean checked) {
+    SendQueueRing ring = new SendQueueRing(file, existingCapacity);
+    ring.entryHeaderSize = checked ? ENTRY_HEADER_SIZE : 4;
+    ring.buffer = existing;
+    ring.headPosition = existing.getLong(HEAD_OFFSET);
+    ring.tailPosition = existing.getLong(TAIL_OFFSET);
+    ring.index();
+
+    List<byte[]> records = new ArrayList<byte[]>();
+    for (int i = 0; i < ring.size(); i++) {
+      records.add(ring.get(i));
+    }
+    return records;
+  }
+
+  private void advanceHead() {
+    first++;
+    headPosition = first < positions.size() ? positions.get(first) : tailPosition;
+
+    if (first >= TRIM_THRESHOLD && first > size()) {
+      positions.subList(0, first).clear();
+      first = 0;
+    }
+  }
+
+  private void writeHead() {
+    buffer.putLong(HEAD_OFFSET, headPosition);
+    changed = true;
+  }
+
+  private void writeTail() {
+    buffer.putLong(TAIL_OFFSET, tailPosition);
+    changed = true;
+  }
+
+  private int readInt(long position) {
+    byte[] value = new byte[4];
+    read(position, value);
+    return ((value[0] & 0xff) << 24) | ((value[1] & 0xff) << 16)
+        | ((value[2] & 0xff) << 8) | (value[3] & 0xff);
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static long crc32(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+  private void write(long position, byte[] bytes) {
+    int offset = (int) (position % capacity);
+    int beforeWrap = Math.min(bytes.length, capacity - offset);
+
+    buffer.position(HEADER_SIZE + offset);
+    buffer.put(bytes, 0, beforeWrap);
+
+    if (beforeWrap < bytes.length) {
+      buffer.position(HEADER_SIZE);
+      buffer.put(bytes, beforeWrap, bytes.length - beforeWrap);
+    }
+  }
+
+  private void read(long position, byte[] bytes) {
+    int offset = (int) (position % capacity);
+    int beforeWrap = Math.min(bytes.length, capacity - offset);
+
+    buffer.position(HEADER_SIZE + offset);
+    buffer.get(bytes, 0, beforeWrap);
+
+    if (beforeWrap < bytes.length) {
+      buffer.position(HEADER_SIZE);
+      buffer.get(bytes, beforeWrap, bytes.length - beforeWrap);
+    }
+  }
+
+  /**
+   * Maps the ring file at the given size, growing or truncating it as needed.
+   *
+   * @param size Size of the mapping in bytes.
+   * @return The mapping, or null if size is smaller than the header.
+   */
+  private ByteBuffer map(long size) throws IOException {
+    if (size < HEADER_SIZE) {
+      return null;
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() != size) {
+        raf.setLength(size);
+      }
+      // The mapping stays valid after the file is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,762 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Send queue shared by every process of an app, kept in a single append-only file.
+ * <p/>
+ * The file holds a header with a retired flag and the head offset, followed by
+ * length-prefixed, CRC32 checksummed entries:
+ * <pre>
+ * [magic][retired][head]([length][crc][record])*
+ * </pre>
+ * Every operation holds an exclusive FileChannel lock on a separate lock file, so appends from
+ * any number of processes are serialized. Each process indexes the entries appended by the
+ * others when it next takes the lock; an entry left partly written by a process killed while
+ * appending is truncated by the next process to take it.
+ * <p/>
+ * Only one process at a time drains the queue, the one holding the drain lock (see
+ * tryDrain()). Other processes only append, so the records the drainer sends and then
+ * acknowledges at the head of the queue are never moved by another process. The drainer
+ * releases the lock once it has nothing in flight (see releaseDrain()), so that whichever
+ * process next has records to send takes it.
+ * <p/>
+ * Identities purged by a process that does not drain the queue are appended to a purge file
+ * beside it, and only removed from the queue by the drainer (see requestPurge()).
+ * <p/>
+ * Acknowledging the head only advances the head offset. Once acknowledged entries make up most
+ * of the file the remaining entries are copied to a new file that replaces it, and the old
+ * file is marked retired so that processes still holding it open reopen the new one before
+ * their next append.
+ */
+class SendQueueShared implements SendQueue {
+  private static final int MAGIC = 0x4b4d4d31; // "KMM1"
+  private static final int HEADER_SIZE = 16; // magic + retired + head
+  private static final int ENTRY_HEADER_SIZE = 8; // length + CRC32
+  private static final int RETIRED_OFFSET = 4;
+  private static final int HEAD_OFFSET = 8;
+
+  // Acknowledged entries are only compacted away once they take up at least this many bytes.
+  static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+  // Minimum number of acknowledged records before the in memory index is trimmed.
+  private static final int TRIM_THRESHOLD = 1024;
+
+  // FileChannel locks are held by the process, so instances in the same process take this
+  // lock before taking a file lock.
+  private static final Object processLock = new Object();
+
+  // Drain locks held by this process, by queue file path. Held until released or the process
+  // exits.
+  private static final HashMap<String, FileLock> drainLocks = new HashMap<String, FileLock>();
+
+  private final File file;
+  private final File lockFile;
+  private final File drainFile;
+  private final File tmpFile;
+  private final File purgeFile;
+
+  private RandomAccessFile raf;
+  private RandomAccessFile lockRaf;
+  private long headOffset = HEADER_SIZE;
+  // Offset up to which entries have been indexed.
+  private long indexed = HEADER_SIZE;
+
+  // Offsets of the entries in the file, oldest first, starting at index first.
+  private final List<Long> offsets = new ArrayList<Long>();
+  private int first;
+
+  /**
+   * @param file The queue file. Lock files are kept beside it.
+   */
+  SendQueueShared(File file) {
+    this.file = file;
+    this.lockFile = new File(file.getPath() + ".lock");
+    this.drainFile = new File(file.getPath() + ".drain");
+    this.tmpFile = new File(file.getPath() + ".tmp");
+    this.purgeFile = new File(file.getPath() + ".purge");
+  }
+
+  /**
+   * Opens the queue file and indexes its entries.
+   */
+  public synchronized void load() {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        // Left by a process killed part way through compacting
+        this.tmpFile.delete();
+        reopen();
+      } catch (Exception e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to load shared send queue", e);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * Appends a record to the end of the queue.
+   *
+   * @param record Encoded QueueRecord
+   */
+  public synchronized void add(byte[] record) {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        refresh();
+
+        byte[] entry = entry(record);
+        this.raf.seek(this.indexed);
+        this.raf.write(entry);
+        this.offsets.add(this.indexed);
+        this.indexed += entry.length;
+      } catch (Exception e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to append to shared send queue. Dropping record", e);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * @param index Record index in the queue.
+   * @return Encoded record at the index, or null if it could not be read. A record that fails
+   * its checksum is dropped, while one that could not be read for now is kept to be read again.
+   */
+  public synchronized byte[] get(int index) {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        refresh();
+        if (index < 0 || index >= count()) {
+          throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count());
+        }
+
+        long offset = this.offsets.get(this.first + index);
+        this.raf.seek(offset);
+        int entryLength = this.raf.readInt();
+        long crc = this.raf.readInt() & 0xffffffffL;
+        if (entryLength < 0 || entryLength > this.indexed - offset - ENTRY_HEADER_SIZE) {
+          Log.w(KISSmetricsAPI.TAG, "Shared send queue record is invalid. Dropping it");
+          removeLocked(index);
+          return null;
+        }
+
+        byte[] bytes = new byte[entryLength];
+        this.raf.readFully(bytes);
+        if (crc != crc32(bytes)) {
+          Log.w(KISSmetricsAPI.TAG, "Shared send queue record is invalid. Dropping it");
+          removeLocked(index);
+          return null;
+        }
+        return bytes;
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to read shared send queue record", e);
+        return null;
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * Removes a record from the queue.
+   * Removing the head of the queue only advances the head offset.
+   *
+   * @param index Record index in the queue.
+   */
+  public synchronized void remove(int index) {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        refresh();
+        if (index < 0 || index >= count()) {
+          throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count());
+        }
+        removeLocked(index);
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to remove shared send queue record", e);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * Removes every record matched by a filter for every process, replacing the file once if any
+   * record matches.
+   *
+   * @param filter Selects the records to remove.
+   * @return The number of records removed.
+   */
+  public synchronized int removeAll(RecordFilter filter) {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        refresh();
+
+        List<byte[]> remaining = new ArrayList<byte[]>();
+        for (int i = 0; i < count(); i++) {
+          byte[] record = readRecord(this.offsets.get(this.first + i));
+          if (!filter.matches(i, record)) {
+            remaining.add(record);
+          }
+        }
+
+        int removed = count() - remaining.size();
+        if (removed > 0) {
+          replace(remaining);
+        }
+        return removed;
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to remove shared send queue records", e);
+        return 0;
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * Empties the queue for every process.
+   */
+  public synchronized void clear() {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        refresh();
+        replace(new ArrayList<byte[]>());
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to clear shared send queue", e);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * @return The number of records queued by every process.
+   */
+  public synchronized int size() {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+        refresh();
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to read shared send queue", e);
+      } finally {
+        release(lock);
+      }
+      return count();
+    }
+  }
+
+  /**
+   * @return Bytes of the entries of every record in the queue, as last indexed.
+   */
+  public synchronized long byteSize() {
+    return this.indexed - this.headOffset;
+  }
+
+  /**
+   * @param length Length of an encoded record
+   * @return true, as the shared file grows to hold any record.
+   */
+  public boolean hasRoomFor(int length) {
+    return true;
+  }
+
+  /**
+   * Every change is written to the file as it is made.
+   */
+  public synchronized void flush() {
+  }
+
+  /**
+   * Releases the queue and lock files. The drain lock is held until released.
+   */
+  public synchronized void close() {
+    closeQuietly(this.raf);
+    closeQuietly(this.lockRaf);
+    this.raf = null;
+    this.lockRaf = null;
+  }
+
+  /**
+   * Makes this process the one that drains the queue if no other process does.
+   * The process to succeed drains the queue until it releases the drain lock or exits.
+   *
+   * @return true if this process drains the queue.
+   */
+  boolean tryDrain() {
+    synchronized (processLock) {
+      String key = this.file.getPath();
+      if (drainLocks.containsKey(key)) {
+        return true;
+      }
+
+      RandomAccessFile drainRaf = null;
+      try {
+        drainRaf = new RandomAccessFile(this.drainFile, "rw");
+        FileLock drainLock = drainRaf.getChannel().tryLock();
+        if (drainLock == null) {
+          // Held by another process
+          drainRaf.close();
+          return false;
+        }
+        drainLocks.put(key, drainLock);
+        return true;
+      } catch (Exception e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to take shared send queue drain lock", e);
+        closeQuietly(drainRaf);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return true if this process drains the queue.
+   */
+  boolean isDraining() {
+    synchronized (processLock) {
+      return drainLocks.containsKey(this.file.getPath());
+    }
+  }
+
+  /**
+   * Stops draining the queue, so that another process may take over. Must only be called with
+   * nothing in flight, as the next drainer sends from the head of the queue.
+   */
+  void releaseDrain() {
+    synchronized (processLock) {
+      FileLock drainLock = drainLocks.remove(this.file.getPath());
+      if (drainLock == null) {
+        return;
+      }
+
+      try {
+        drainLock.release();
+      } catch (IOException e) {
+        // Released when its channel is closed
+      }
+      closeQuietly(drainLock.channel());
+    }
+  }
+
+  /**
+   * Records an identity whose records are to be removed by the process that drains the queue.
+   * A process that does not drain the queue must not remove records itself, as replacing the
+   * file would move the records the drainer has in flight.
+   *
+   * @param identity User identity to purge
+   */
+  synchronized void requestPurge(String identity) {
+    synchronized (processLock) {
+      FileLock lock = null;
+      try {
+        lock = lock();
+
+        FileOutputStream out = new FileOutputStream(this.purgeFile, true);
+        try {
+          out.write(entry(identity.getBytes("UTF-8")));
+          out.getFD().sync();
+        } finally {
+          out.close();
+        }
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to request purge of shared send queue records", e);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * Takes the identities whose purge has been requested by other processes, emptying the purge
+   * file. Only called by the process that drains the queue.
+   *
+   * @return Identities to purge, oldest request first.
+   */
+  synchronized List<String> takePurges() {
+    List<String> identities = new ArrayList<String>();
+    // Checked before taking the lock, as purges are rare and this is checked for every request
+    if (!this.purgeFile.exists()) {
+      return identities;
+    }
+
+    synchronized (processLock) {
+      FileLock lock = null;
+      RandomAccessFile purgeRaf = null;
+      try {
+        lock = lock();
+
+        purgeRaf = new RandomAccessFile(this.purgeFile, "r");
+        long length = purgeRaf.length();
+        long position = 0;
+        // An entry cut short by a process killed part way through appending it is dropped
+        while (position + ENTRY_HEADER_SIZE <= length) {
+          int entryLength = purgeRaf.readInt();
+          long crc = purgeRaf.readInt() & 0xffffffffL;
+          if (entryLength < 0 || entryLength > length - position - ENTRY_HEADER_SIZE) {
+            break;
+          }
+
+          byte[] bytes = new byte[entryLength];
+          purgeRaf.readFully(bytes);
+          if (crc != crc32(bytes)) {
+            break;
+          }
+          identities.add(new String(bytes, "UTF-8"));
+          position += ENTRY_HEADER_SIZE + entryLength;
+        }
+
+        closeQuietly(purgeRaf);
+        purgeRaf = null;
+        this.purgeFile.delete();
+      } catch (IOException e) {
+        // The KISSmetrics SDK should not cause a customer's app to crash.
+        Log.w(KISSmetricsAPI.TAG, "Unable to read shared send queue purges", e);
+      } finally {
+        closeQuietly(purgeRaf);
+        release(lock);
+      }
+    }
+    return identities;
+  }
+
+  private int count() {
+    // Not synch'd as should always be called inside of a sync block !!
+    return this.offsets.size() - this.first;
+  }
+
+  private FileLock lock() throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.lockRaf == null) {
+      this.lockRaf = new RandomAccessFile(this.lockFile, "rw");
+    }
+    return this.lockRaf.getChannel().lock();
+  }
+
+  private static void release(FileLock lock) {
+    if (lock == null) {
+      return;
+    }
+
+    try {
+      lock.release();
+    } catch (IOException e) {
+      // Released when the lock file is closed
+    }
+  }
+
+  /**
+   * Catches up with the changes made by other processes since the lock was last held: reopens
+   * the file if it has been replaced, drops entries acknowledged by the drainer and indexes
+   * entries appended since.
+   */
+  private void refresh() throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.raf == null || this.raf.length() < HEADER_SIZE) {
+      reopen();
+      return;
+    }
+
+    this.raf.seek(RETIRED_OFFSET);
+    if (this.raf.readInt() != 0) {
+      // Replaced by a compacted file
+      reopen();
+      return;
+    }
+
+    long head = this.raf.readLong();
+    long length = this.raf.length();
+    if (head < this.headOffset || head > length) {
+      Log.w(KISSmetricsAPI.TAG, "Shared send queue head is invalid, reindexing");
+      reopen();
+      return;
+    }
+
+    while (this.first < this.offsets.size() && this.offsets.get(this.first) < head) {
+      this.first++;
+    }
+    this.headOffset = head;
+    this.indexed = Math.max(this.indexed, head);
+    trim();
+    index(length);
+  }
+
+  /**
+   * Opens the file at the queue's path and indexes it from its head.
+   */
+  private void reopen() throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    closeQuietly(this.raf);
+    this.raf = new RandomAccessFile(this.file, "rw");
+    this.offsets.clear();
+    this.first = 0;
+
+    long length = this.raf.length();
+    if (length < HEADER_SIZE || this.raf.readInt() != MAGIC) {
+      this.raf.setLength(0);
+      this.raf.writeInt(MAGIC);
+      this.raf.writeInt(0);
+      this.raf.writeLong(HEADER_SIZE);
+      this.headOffset = HEADER_SIZE;
+      this.indexed = HEADER_SIZE;
+      return;
+    }
+
+    if (this.raf.readInt() != 0) {
+      // Marked retired by a process killed before it could replace the file
+      this.raf.seek(RETIRED_OFFSET);
+      this.raf.writeInt(0);
+    }
+
+    long head = this.raf.readLong();
+    if (head < HEADER_SIZE || head > length) {
+      Log.w(KISSmetricsAPI.TAG, "Shared send queue head is invalid, emptying the queue");
+      head = length;
+      this.raf.seek(HEAD_OFFSET);
+      this.raf.writeLong(head);
+    }
+
+    this.headOffset = head;
+    this.indexed = head;
+    index(length);
+  }
+
+  /**
+   * Indexes the entries between the last indexed entry and the end of the file. An entry that
+   * runs past the end of the file or fails its checksum was left partly written, and is
+   * truncated.
+   */
+  private void index(long length) throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    long position = this.indexed;
+
+    while (position + ENTRY_HEADER_SIZE <= length) {
+      this.raf.seek(position);
+      int entryLength = this.raf.readInt();
+      long crc = this.raf.readInt() & 0xffffffffL;
+      if (entryLength < 0 || entryLength > length - position - ENTRY_HEADER_SIZE) {
+        break;
+      }
+
+      byte[] bytes = new byte[entryLength];
+      this.raf.readFully(bytes);
+      if (crc != crc32(bytes)) {
+        break;
+      }
+
+      this.offsets.add(position);
+      position += ENTRY_HEADER_SIZE + entryLength;
+    }
+
+    if (position != length) {
+      Log.w(KISSmetricsAPI.TAG, "Shared send queue entry is invalid, dropping the queue tail");
+      this.raf.setLength(position);
+    }
+    this.indexed = position;
+  }
+
+  private void removeLocked(int index) {
+    // Not synch'd as should always be called inside of a sync block !!
+    try {
+      if (index == 0) {
+        this.first++;
+        this.headOffset = this.first < this.offsets.size() ? this.offsets.get(this.first) : this.indexed;
+        this.raf.seek(HEAD_OFFSET);
+        this.raf.writeLong(this.headOffset);
+        trim();
+        compactIfNeeded();
+        return;
+      }
+
+      // Replaces the file. Records removed together, such as those the Sender acknowledges
+      // behind a failed request, are removed by removeAll to replace it once.
+      List<byte[]> remaining = new ArrayList<byte[]>();
+      for (int i = 0; i < count(); i++) {
+        if (i != index) {
+          remaining.add(readRecord(this.offsets.get(this.first + i)));
+        }
+      }
+      replace(remaining);
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to remove shared send queue record", e);
+    }
+  }
+
+  private byte[] readRecord(long offset) throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.raf.seek(offset);
+    byte[] bytes = new byte[this.raf.readInt()];
+    this.raf.readInt();
+    this.raf.readFully(bytes);
+    return bytes;
+  }
+
+  private void trim() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (this.first >= TRIM_THRESHOLD && this.first > count()) {
+      this.offsets.subList(0, this.first).clear();
+      this.first = 0;
+    }
+  }
+
+  /**
+   * Copies the unacknowledged entries into a new file once acknowledged entries make up most
+   * of the file.
+   */
+  private void compactIfNeeded() throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    long acknowledged = this.headOffset - HEADER_SIZE;
+    if (acknowledged < COMPACT_MIN_BYTES || acknowledged <= this.indexed - this.headOffset) {
+      return;
+    }
+
+    FileOutputStream out = new FileOutputStream(this.tmpFile);
+    try {
+      out.write(header());
+      byte[] buffer = new byte[8192];
+      long remaining = this.indexed - this.headOffset;
+      this.raf.seek(this.headOffset);
+      while (remaining > 0) {
+        int read = this.raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          throw new IOException("Shared send queue ended while compacting");
+        }
+        out.write(buffer, 0, read);
+        remaining -= read;
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    swapInTmpFile();
+  }
+
+  /**
+   * Replaces the file with one holding only the given records.
+   */
+  private void replace(List<byte[]> records) throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    FileOutputStream out = new FileOutputStream(this.tmpFile);
+    try {
+      out.write(header());
+      for (byte[] record : records) {
+        out.write(entry(record));
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    swapInTmpFile();
+  }
+
+  /**
+   * Retires the current file, then renames the temporary file over it. A process killed in
+   * between leaves the retired file in place, which the next process to open it reinstates.
+   */
+  private void swapInTmpFile() throws IOException {
+    // Not synch'd as should always be called inside of a sync block !!
+    this.raf.seek(RETIRED_OFFSET);
+    this.raf.writeInt(1);
+
+    if (!this.tmpFile.renameTo(this.file)) {
+      this.raf.seek(RETIRED_OFFSET);
+      this.raf.writeInt(0);
+      this.tmpFile.delete();
+      throw new IOException("Unable to replace " + this.file);
+    }
+
+    reopen();
+  }
+
+  private static byte[] header() {
+    byte[] header = new byte[HEADER_SIZE];
+    writeInt(header, 0, MAGIC);
+    writeInt(header, HEAD_OFFSET + 4, HEADER_SIZE);
+    return header;
+  }
+
+  private static byte[] entry(byte[] bytes) {
+    byte[] entry = new byte[ENTRY_HEADER_SIZE + bytes.length];
+    writeInt(entry, 0, bytes.length);
+    writeInt(entry, 4, (int) crc32(bytes));
+    System.arraycopy(bytes, 0, entry, ENTRY_HEADER_SIZE, bytes.length);
+    return entry;
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static long crc32(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more we can do
+    }
+  }
+}
@@ -0,0 +1,39 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.util.List;
+
+/**
+ * Query strings of consecutive queued records put in flight together, sent as a single GET
+ * request or a batch POST request. The Archiver acknowledges the records by the request's
+ * sequence number, so requests may complete in any order.
+ */
+final class SendRequest {
+  final long sequence;
+  final List<String> queries;
+
+  /**
+   * @param sequence Number of the request, increasing in the order requests are taken.
+   * @param queries  Query strings of the records, in the order they were queued.
+   */
+  SendRequest(long sequence, List<String> queries) {
+    this.sequence = sequence;
+    this.queries = queries;
+  }
+}
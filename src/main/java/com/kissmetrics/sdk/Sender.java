@@ -17,16 +17,62 @@
 
 package com.kissmetrics.sdk;
 
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.kissmetrics.sdk.ConnectionDelegate.BatchRejection;
+import com.kissmetrics.sdk.ConnectionDelegate.Outcome;
+
+import android.util.Log;
+
+public class Sender {
+  static final String BATCH_PATH = "/batch";
+
+  // Shared by the Senders of every product
+  private static ExecutorService sharedExecutor;
+  private static ScheduledExecutorService sharedScheduler;
+  private static final Random jitter = new Random();
+  private static final ConnectionImpl sharedConnection = new ConnectionImpl();
+  private static final ConnectionImpl keepAliveConnection = new ConnectionImpl(true);
 
-public class Sender implements ConnectionDelegate {
   SenderState state;
   ExecutorService executorService;
   ConnectionImpl injectedConnection;
 
+  // Null to send the records of the ArchiverImpl singleton
+  private final Archiver archiver;
+  private final int batchMaxRecords;
+  private final int batchMaxBytes;
+  private final boolean keepAlive;
+  private final int maxInFlight;
+  private final long retryBaseDelay;
+  private final long retryMaxDelay;
+  // Set once the endpoint shows it does not accept batches, records are then sent one at a time
+  private boolean batchesRejected;
+  // Most records per batch, halved each time a batch is too large
+  private int batchLimit;
+  // Records of a malformed batch still to be sent one at a time
+  private int singlesRemaining;
+  // Set once a request succeeds after a batch was refused, so batching is tried again
+  private boolean succeededSinceRejection;
+  // Requests put in flight and not yet completed
+  int inFlightCount;
+  // Consecutive failed attempts to send, reset once a request succeeds
+  int failureCount;
+  // The attempt scheduled while backing off, or null
+  private ScheduledFuture<?> retry;
+  // Longest wait asked for by a throttled request since sending last backed off, or -1
+  private long retryAfter = -1;
+
   private SenderState readyState;
   private SenderState sendingState;
   private SenderState disabledState;
+  private SenderState backoffState;
 
   /*
    * Sender constructor
@@ -35,9 +81,44 @@ public class Sender implements ConnectionDelegate {
    * 			Used to determine initialized state.
    */
   public Sender(boolean disabled) {
+    this(disabled, null);
+  }
+
+  /*
+   * Sender constructor
+   *
+   * @param disabled
+   * 			Used to determine initialized state.
+   * @param archiver
+   * 			Archiver of the records to send, or null for the ArchiverImpl singleton.
+   */
+  public Sender(boolean disabled, Archiver archiver) {
+    this(disabled, archiver, new KISSmetricsOptions());
+  }
+
+  /*
+   * Sender constructor
+   *
+   * @param disabled
+   * 			Used to determine initialized state.
+   * @param archiver
+   * 			Archiver of the records to send, or null for the ArchiverImpl singleton.
+   * @param options
+   * 			SDK configuration of requests and their retries.
+   */
+  public Sender(boolean disabled, Archiver archiver, KISSmetricsOptions options) {
+    this.archiver = archiver;
+    this.batchMaxRecords = options.getBatchMaxRecords();
+    this.batchLimit = this.batchMaxRecords;
+    this.batchMaxBytes = options.getBatchMaxBytes();
+    this.keepAlive = options.getKeepAlive();
+    this.maxInFlight = options.getMaxInFlightRequests();
+    this.retryBaseDelay = options.getRetryBaseDelay();
+    this.retryMaxDelay = Math.max(options.getRetryMaxDelay(), this.retryBaseDelay);
     readyState = new SenderReadyState(this);
     sendingState = new SenderSendingState(this);
     disabledState = new SenderDisabledState(this);
+    backoffState = new SenderBackoffState(this);
 
     if (disabled) {
       state = disabledState;
@@ -46,12 +127,290 @@ public class Sender implements ConnectionDelegate {
     }
   }
 
-  // Allow use of injectedConnection over new()
-  ConnectionImpl getNewConnection() {
+  /**
+   * @return Thread pool shared by the Senders of every product. A thread is added for each
+   * request in flight beyond those already running, up to the in-flight windows of every
+   * Sender, and exits once idle. Shut down when the app's process exits.
+   */
+  static synchronized ExecutorService sharedExecutor() {
+    if (sharedExecutor == null) {
+      final ExecutorService es = Executors.newCachedThreadPool();
+
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          es.shutdown();
+
+          try {
+            if (!es.awaitTermination(60, TimeUnit.SECONDS)) {
+              es.shutdownNow();
+            }
+          } catch (InterruptedException e) {
+            // (Re-)Cancel if current thread also interrupted
+            es.shutdownNow();
+            // Preserve interrupt status
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      sharedExecutor = es;
+    }
+    return sharedExecutor;
+  }
+
+  /**
+   * @return Single daemon thread shared by the Senders of every product, on which retries
+   * are scheduled.
+   */
+  static synchronized ScheduledExecutorService sharedScheduler() {
+    if (sharedScheduler == null) {
+      sharedScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "KISSmetrics retry");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return sharedScheduler;
+  }
+
+  // Allow use of injectedConnection over the shared connection
+  ConnectionImpl getConnection() {
     if (injectedConnection != null) {
       return injectedConnection;
     }
-    return new ConnectionImpl();
+    return keepAlive ? keepAliveConnection : sharedConnection;
+  }
+
+  Archiver getArchiver() {
+    if (archiver != null) {
+      return archiver;
+    }
+    return ArchiverImpl.sharedArchiver();
+  }
+
+  /**
+   * Puts requests in flight until the in-flight window is full or no record can be sent yet.
+   * Each request is sent on the executorService.
+   *
+   * @return false if a request could not be executed.
+   */
+  boolean fillWindow() {
+    // Not synch'd as should always be called inside of a sync block !!
+    Archiver archiver = getArchiver();
+
+    while (inFlightCount < maxInFlight) {
+      final SendRequest request = archiver.nextSendRequest(
+              batchesRejected || singlesRemaining > 0 ? 1 : batchLimit, batchMaxBytes);
+      if (request == null) {
+        return true;
+      }
+      if (singlesRemaining > 0) {
+        singlesRemaining--;
+      }
+
+      inFlightCount++;
+      try {
+        executorService.execute(new Runnable() {
+          @Override
+          public void run() {
+            send(request);
+          }
+        });
+      } catch (Exception e) {
+        inFlightCount--;
+        archiver.completeSendRequest(request.sequence, false);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sends a request, as a batch request if it holds more than one record.
+   * The full URL is assembled by prepending the current baseUrl as last archived.
+   *
+   * @param request A request in flight
+   */
+  private void send(final SendRequest request) {
+    Archiver archiver = getArchiver();
+    ConnectionImpl connection = getConnection();
+
+    ConnectionDelegate delegate = new ConnectionDelegate() {
+      public void connectionComplete(String urlString, Outcome outcome, long retryAfter) {
+        requestComplete(request, outcome, retryAfter);
+      }
+
+      public void batchComplete(String urlString, int recordCount, Outcome outcome,
+                                BatchRejection rejection, long retryAfter) {
+        if (rejection != BatchRejection.NONE) {
+          batchRejected(request, rejection, retryAfter);
+        } else {
+          requestComplete(request, outcome, retryAfter);
+        }
+      }
+    };
+
+    if (request.queries.size() > 1) {
+      connection.sendBatch(archiver.getBaseUrl() + BATCH_PATH, request.queries, delegate);
+    } else {
+      connection.sendRecord(archiver.getBaseUrl() + request.queries.get(0), delegate);
+    }
+  }
+
+  /**
+   * @param request    A completed request
+   * @param outcome    How the request completed, or null if its records are to be sent again
+   *                   straight away.
+   * @param retryAfter Milliseconds the endpoint asked to wait before sending again, or -1.
+   */
+  private void requestComplete(SendRequest request, Outcome outcome, long retryAfter) {
+    // Permanently failed queries are acknowledged, as they will never succeed
+    boolean acknowledged = outcome == Outcome.SUCCESS || outcome == Outcome.PERMANENT_FAILURE;
+    boolean failed = outcome == Outcome.RETRYABLE_FAILURE || outcome == Outcome.THROTTLED;
+
+    synchronized (this) {
+      inFlightCount--;
+      if (acknowledged) {
+        // The endpoint is reachable again
+        failureCount = 0;
+      }
+      if (outcome == Outcome.SUCCESS) {
+        succeededSinceRejection = true;
+      }
+      if (outcome == Outcome.THROTTLED && state == sendingState) {
+        // Honored by the next retry, pausing every request of the Sender
+        this.retryAfter = Math.max(this.retryAfter, retryAfter);
+      }
+
+      // Completed whatever the state, so that the records of requests in flight when sending
+      // was disabled are released
+      getArchiver().completeSendRequest(request.sequence, acknowledged);
+      state.requestComplete(failed);
+    }
+  }
+
+  /**
+   * Completes a refused batch request so that its records are sent again straight away, in
+   * smaller batches or one at a time depending on why it was refused.
+   *
+   * @param request    A completed batch request
+   * @param rejection  Why the batch was refused
+   * @param retryAfter Milliseconds the endpoint asked to wait before sending again, or -1.
+   */
+  private void batchRejected(SendRequest request, BatchRejection rejection, long retryAfter) {
+    synchronized (this) {
+      switch (rejection) {
+        case TOO_LARGE:
+          batchLimit = Math.max(Math.min(batchLimit, request.queries.size() / 2), 1);
+          break;
+        case MALFORMED:
+          // Sent first, as records of the failed request are sent again from the head of the
+          // queue. The other records are still batched.
+          singlesRemaining = Math.max(singlesRemaining, request.queries.size());
+          break;
+        default:
+          batchesRejected = true;
+          break;
+      }
+      succeededSinceRejection = false;
+      requestComplete(request, null, retryAfter);
+    }
+  }
+
+  /**
+   * Tries full batches again once a request has succeeded since a batch was refused, so that a
+   * refusal, such as a 404 from a captive portal, does not last for the life of the Sender.
+   */
+  private void expireBatchRejection() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (succeededSinceRejection) {
+      batchesRejected = false;
+      batchLimit = batchMaxRecords;
+    }
+  }
+
+  /**
+   * Switches to the backoff state and schedules the next attempt to send, after a delay that
+   * grows with each consecutive failure, or after the wait a throttled request asked for if
+   * that is longer.
+   */
+  void scheduleRetry() {
+    // Not synch'd as should always be called inside of a sync block !!
+    failureCount++;
+    long delay = retryDelay(failureCount, retryAfter);
+    retryAfter = -1;
+    setState(backoffState);
+
+    try {
+      retry = sharedScheduler().schedule(new Runnable() {
+        @Override
+        public void run() {
+          retryNow();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      // The next record sends instead.
+      Log.w(KISSmetricsAPI.TAG, "Unable to schedule retry", e);
+      retry = null;
+      setState(readyState);
+    }
+  }
+
+  /**
+   * Cancels the attempt scheduled while backing off.
+   */
+  void cancelRetry() {
+    // Not synch'd as should always be called inside of a sync block !!
+    if (retry != null) {
+      retry.cancel(false);
+      retry = null;
+    }
+  }
+
+  /**
+   * Exponential backoff with jitter. The delay doubles with each failure up to the max
+   * delay, and is then spread between half and all of it so that clients that failed together
+   * do not all retry together.
+   *
+   * <p/>
+   * A Retry-After wait is honored in full, with up to the base delay added so that clients
+   * throttled together do not all retry together either.
+   *
+   * @param failures   Consecutive failed attempts to send
+   * @param retryAfter Milliseconds the endpoint asked to wait, or -1
+   * @return Milliseconds to wait before the next attempt.
+   */
+  long retryDelay(int failures, long retryAfter) {
+    int doublings = Math.max(failures - 1, 0);
+    long delay = retryMaxDelay;
+    // Shifts that would overflow are past the max delay anyway
+    if (doublings < Long.numberOfLeadingZeros(retryBaseDelay) - 1) {
+      delay = Math.min(retryBaseDelay << doublings, retryMaxDelay);
+    }
+
+    long half = delay / 2;
+    synchronized (jitter) {
+      delay = half + (long) (jitter.nextDouble() * (delay - half));
+      if (retryAfter >= 0) {
+        delay = Math.max(delay, retryAfter + (long) (jitter.nextDouble() * retryBaseDelay));
+      }
+    }
+    return delay;
+  }
+
+  private void retryNow() {
+    synchronized (this) {
+      // Cancelled by disableSending
+      if (state != backoffState) {
+        return;
+      }
+
+      retry = null;
+      setState(readyState);
+      state.startSending();
+    }
   }
 
   SenderState getReadyState() {
@@ -66,6 +425,10 @@ public class Sender implements ConnectionDelegate {
     return disabledState;
   }
 
+  SenderState getBackoffState() {
+    return backoffState;
+  }
+
   void setState(SenderState state) {
     this.state = state;
   }
@@ -73,6 +436,9 @@ public class Sender implements ConnectionDelegate {
   // Forwarded methods
   public void startSending() {
     synchronized (this) {
+      if (state == readyState) {
+        expireBatchRejection();
+      }
       state.startSending();
     }
   }
@@ -88,11 +454,4 @@ public class Sender implements ConnectionDelegate {
       state.enableSending();
     }
   }
-
-  // ConnectionDelegate method
-  public void connectionComplete(String urlString, boolean success, boolean malformed) {
-    synchronized (this) {
-      state.connectionComplete(urlString, success, malformed);
-    }
-  }
 }
@@ -0,0 +1,51 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+public class SenderBackoffState implements SenderState {
+  private Sender sender;
+
+  public SenderBackoffState(Sender sender) {
+    this.sender = sender;
+  }
+
+  public void startSending() {
+    // Ignored. Records recorded while backing off are sent by the scheduled retry.
+  }
+
+  public void disableSending() {
+    sender.cancelRetry();
+
+    // Switch to disabled state first so that the completion of requests in flight
+    // is handled by the disabled state while we clear the send queue.
+    sender.setState(sender.getDisabledState());
+
+    // Empty the archived send queue
+    sender.getArchiver().clearSendQueue();
+  }
+
+  public void enableSending() {
+    // Ignored, already enabled
+  }
+
+  public void requestComplete(boolean failed) {
+    // Ignored, nothing is put in flight while backing off. The only way that this method
+    // could be called in this state is if a record was being sent at the time that the Sender
+    // was disabled and re-enabled.
+  }
+}
@@ -36,7 +36,7 @@ public class SenderDisabledState implements SenderState {
     sender.setState(sender.getReadyState());
   }
 
-  public void connectionComplete(String urlString, boolean success, boolean malformed) {
+  public void requestComplete(boolean failed) {
     // Ignored, the queue should already be emptied as a result of switching to a disabled state.
   }
 }
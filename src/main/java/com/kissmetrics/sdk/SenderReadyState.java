@@ -17,8 +17,6 @@
 
 package com.kissmetrics.sdk;
 
-import java.util.concurrent.Executors;
-
 public class SenderReadyState implements SenderState {
   private Sender sender;
 
@@ -26,57 +24,41 @@ public class SenderReadyState implements SenderState {
     this.sender = sender;
   }
 
-  private void sendTopRecord() {
-    // Assemble the full query string by prepending the current baseUrl as last archived.
-    String apiQuery = ArchiverImpl.sharedArchiver().getBaseUrl() + ArchiverImpl.sharedArchiver().getQueryString(0);
-    ConnectionImpl connection = sender.getNewConnection();
-    connection.sendRecord(apiQuery, sender);
-  }
-
   public void startSending() {
     // Ignore if we have nothing to send
-    if (ArchiverImpl.sharedArchiver().getQueueCount() == 0) {
+    if (sender.getArchiver().getQueueCount() == 0) {
+      return;
+    }
+
+    // Another process sends the records of a shared sendQueue
+    if (!sender.getArchiver().canSend()) {
       return;
     }
 
     // Change to sendingState first so that sendingState is ready
-    // to handle ConnectionDelegate's connectionComplete.
+    // to handle the completion of the requests it puts in flight.
     sender.setState(sender.getSendingState());
 
     // Begin sending
-    Runnable runnable = new Runnable() {
-      @Override
-      public void run() {
-        sendTopRecord();
-      }
-    };
-
-    sender.executorService = Executors.newFixedThreadPool(1);
-
-    try {
-      sender.executorService.execute(runnable);
-    } catch (Exception e) {
-      // Any failure to execute must place the Sender in a ready state;
-      sender.setState(sender.getReadyState());
-    }
+    sender.executorService = Sender.sharedExecutor();
+    sender.getSendingState().startSending();
   }
 
   public void disableSending() {
-    // Switch to disabled state first so that ConnectionDelegate's
-    // connectionComplete is handled by the disabled state while we
-    // clear the send queue.
+    // Switch to disabled state first so that the completion of requests in flight
+    // is handled by the disabled state while we clear the send queue.
     sender.setState(sender.getDisabledState());
 
     // Empty the archived send queue
-    ArchiverImpl.sharedArchiver().clearSendQueue();
+    sender.getArchiver().clearSendQueue();
   }
 
   public void enableSending() {
     // Ignored, already enabled
   }
 
-  public void connectionComplete(String urlString, boolean success, boolean malformed) {
-    // Ignored, connectionComplete should only be handled by the sending state.
+  public void requestComplete(boolean failed) {
+    // Ignored, requestComplete should only be handled by the sending state.
     // The only way that this method could be called in this state is if a record
     // is being sent at the time that the Sender is disabled and re-enabled.
     // We take no action because the queue would have already been emptied when
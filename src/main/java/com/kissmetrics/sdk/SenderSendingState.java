@@ -17,97 +17,76 @@
 
 package com.kissmetrics.sdk;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
-
 public class SenderSendingState implements SenderState {
   private Sender sender;
+  // Set once a request fails, until every request in flight has completed
+  private boolean failed;
+  // Set while sending is restarted once idle, so that records that cannot be put in flight
+  // yet do not restart it again
+  private boolean restarting;
 
   public SenderSendingState(Sender sender) {
     this.sender = sender;
   }
 
-  private void sendTopRecord() {
-    // Assemble the full query string by prepending the current baseUrl as last archived.
-    Archiver archiver = ArchiverImpl.sharedArchiver();
-    String apiQuery = archiver.getBaseUrl() + archiver.getQueryString(0);
-    ConnectionImpl connection = sender.getNewConnection();
-    connection.sendRecord(apiQuery, sender);
-  }
-
-  private void shutdownExecutor(final ExecutorService es) {
-    Runtime.getRuntime().addShutdownHook(new Thread() {
-      public void run() {
-        es.shutdown();
-
-        try {
-          if (!es.awaitTermination(60, TimeUnit.SECONDS)) {
-            es.shutdownNow();
-          }
-        } catch (InterruptedException e) {
-          // (Re-)Cancel if current thread also interrupted
-          es.shutdownNow();
-          // Preserve interrupt status
-          Thread.currentThread().interrupt();
-        }
-      }
-    });
-  }
-
   public void startSending() {
-    // Ignored. We're already sending.
+    // Records queued since sending began may be put in flight alongside those being sent
+    if (!failed && !sender.fillWindow()) {
+      // Any failure to execute must place the Sender in a ready state;
+      failed = true;
+    }
+    finishIfIdle();
   }
 
   public void disableSending() {
-    shutdownExecutor(sender.executorService);
-
-    // Switch to disabled state first so that ConnectionDelegate's
-    // connectionComplete is handled by the disabled state while we
-    // clear the send queue.
+    // Switch to disabled state first so that the completion of requests in flight
+    // is handled by the disabled state while we clear the send queue.
     sender.setState(sender.getDisabledState());
+    failed = false;
 
     // Empty the archived send queue
-    ArchiverImpl.sharedArchiver().clearSendQueue();
+    sender.getArchiver().clearSendQueue();
   }
 
   public void enableSending() {
     // Ignored, already enabled.
   }
 
-  public void connectionComplete(String urlString, boolean success, boolean malformed) {
-    if (success || malformed) {
-      ArchiverImpl.sharedArchiver().removeQueryString(0);
+  public void requestComplete(boolean failed) {
+    if (failed) {
+      // Failure to succeed will likely be due to connectivity issues.
+      // Stop sending once the requests in flight complete, and retry later.
+      this.failed = true;
     }
 
-    if (success) {
-      // If there's nothing left to send, switch to the ready state
-      if (ArchiverImpl.sharedArchiver().getQueueCount() == 0) {
-        shutdownExecutor(sender.executorService);
-        sender.setState(sender.getReadyState());
-
-        return;
-      }
-
-      // Begin sending the next record by adding it to executorService
-      Runnable runnable = new Runnable() {
-        @Override
-        public void run() {
-          sendTopRecord();
-        }
-      };
+    // Keep the in-flight window full
+    startSending();
+  }
 
-      try {
-        sender.executorService.execute(runnable);
-      } catch (Exception e) {
-        // Any failure to execute must place the Sender in a ready state;
-        sender.setState(sender.getReadyState());
-      }
+  private void finishIfIdle() {
+    if (sender.inFlightCount != 0) {
+      return;
+    }
 
+    // If there's nothing left in flight, switch to the ready state, or back off before
+    // retrying if sending failed
+    if (failed) {
+      failed = false;
+      sender.scheduleRetry();
     } else {
-      // Failure to succeed will likely be due to connectivity issues.
-      // Stop sending and place the Sender in the ready state.
-      shutdownExecutor(sender.executorService);
       sender.setState(sender.getReadyState());
+      sender.getArchiver().finishSending();
+
+      // Records another process appended while this one was sending are sent now, or by
+      // the process that takes over sending them
+      if (!restarting) {
+        restarting = true;
+        try {
+          sender.state.startSending();
+        } finally {
+          restarting = false;
+        }
+      }
     }
   }
 }
@@ -17,7 +17,7 @@
 
 package com.kissmetrics.sdk;
 
-public interface SenderState extends ConnectionDelegate {
+public interface SenderState {
   /**
    * Switches to sendingState and starts sending from
    * the top of the send queue if appropriate.
@@ -33,4 +33,12 @@ public interface SenderState extends ConnectionDelegate {
    * Switches to an enabled state if appropriate
    */
   void enableSending();
+
+  /**
+   * Handles the completion of a request, once its records have been acknowledged or released
+   * to be sent again.
+   *
+   * @param failed True if the request failed in a way that sending should stop.
+   */
+  void requestComplete(boolean failed);
 }
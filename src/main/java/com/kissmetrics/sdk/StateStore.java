@@ -0,0 +1,435 @@
+//
+// KISSmetricsSDK
+//
+// Copyright 2014 KISSmetrics
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.kissmetrics.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Settings and identity, stored together in a single file.
+ * <p/>
+ * The whole store is replaced by each write, through a temp file that is synced and renamed
+ * over the store, so every section is updated by one atomic write. The file is a header
+ * followed by typed sections and a CRC32 of everything before it:
+ * <pre>
+ * [magic][version][section count]([section id][payload length][payload])*[crc]
+ * </pre>
+ * Sections with an unknown id are skipped, so stores written by a later version can still be
+ * read.
+ */
+final class StateStore {
+  static final int MAGIC = 0x4b4d5331; // "KMS1"
+  static final int VERSION = 1;
+
+  static final int SECTION_SETTINGS = 1;
+  static final int SECTION_IDENTITY = 2;
+  // Saved events and properties are now kept in a FingerprintSet or FingerprintMap; these
+  // sections are only read to migrate them
+  static final int SECTION_SAVED_ID_EVENTS = 3;
+  static final int SECTION_SAVED_INSTALL_EVENTS = 4;
+  static final int SECTION_SAVED_PROPERTIES = 5;
+
+  private static final int HEADER_SIZE = 12;
+  private static final int CRC_SIZE = 4;
+  private static final String TMP_FILE_SUFFIX = ".tmp";
+
+  // Types of settings values
+  private static final int VALUE_NULL = 0;
+  private static final int VALUE_STRING = 1;
+  private static final int VALUE_BOOLEAN = 2;
+  private static final int VALUE_LONG = 3;
+  private static final int VALUE_INTEGER = 4;
+
+  /**
+   * The contents of the store. Sections missing from the store are null.
+   */
+  static final class State {
+    HashMap<String, Object> settings;
+    String identity;
+    List<String> savedIdEvents;
+    List<String> savedInstallEvents;
+    HashMap<String, String> savedProperties;
+  }
+
+  private final File file;
+  private final File tmpFile;
+
+  /**
+   * @param file The store file
+   */
+  StateStore(File file) {
+    this.file = file;
+    this.tmpFile = new File(file.getPath() + TMP_FILE_SUFFIX);
+  }
+
+  /**
+   * @return The stored state, or null if the store does not exist or cannot be read.
+   */
+  State read() {
+    if (!this.file.exists()) {
+      return null;
+    }
+
+    try {
+      return decode(readFully(this.file));
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to unarchive state", e);
+      return null;
+    }
+  }
+
+  /**
+   * Replaces the store with the given state.
+   *
+   * @param state State to store
+   * @return true if the state was stored.
+   */
+  boolean write(State state) {
+    FileOutputStream fos = null;
+
+    try {
+      byte[] bytes = encode(state);
+      fos = new FileOutputStream(this.tmpFile);
+      fos.write(bytes);
+      fos.getFD().sync();
+      fos.close();
+      fos = null;
+
+      if (!this.tmpFile.renameTo(this.file)) {
+        throw new IOException("Unable to replace " + this.file.getName());
+      }
+      return true;
+    } catch (IOException e) {
+      // The KISSmetrics SDK should not cause a customer's app to crash.
+      Log.w(KISSmetricsAPI.TAG, "Unable to archive state", e);
+      closeQuietly(fos);
+      this.tmpFile.delete();
+      return false;
+    }
+  }
+
+  private static byte[] encode(State state) throws IOException {
+    List<Integer> ids = new ArrayList<Integer>();
+    List<byte[]> payloads = new ArrayList<byte[]>();
+
+    if (state.settings != null) {
+      ids.add(SECTION_SETTINGS);
+      payloads.add(encodeSettings(state.settings));
+    }
+    if (state.identity != null) {
+      ids.add(SECTION_IDENTITY);
+      payloads.add(encodeString(state.identity));
+    }
+    if (state.savedIdEvents != null) {
+      ids.add(SECTION_SAVED_ID_EVENTS);
+      payloads.add(encodeStrings(state.savedIdEvents));
+    }
+    if (state.savedInstallEvents != null) {
+      ids.add(SECTION_SAVED_INSTALL_EVENTS);
+      payloads.add(encodeStrings(state.savedInstallEvents));
+    }
+    if (state.savedProperties != null) {
+      ids.add(SECTION_SAVED_PROPERTIES);
+      payloads.add(encodeProperties(state.savedProperties));
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      out.writeInt(ids.get(i));
+      out.writeInt(payloads.get(i).length);
+      out.write(payloads.get(i));
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeInt((int) crc.getValue());
+    return bytes.toByteArray();
+  }
+
+  private static State decode(byte[] bytes) throws IOException {
+    if (bytes.length < HEADER_SIZE + CRC_SIZE) {
+      throw new IOException("Truncated state store");
+    }
+
+    int bodyLength = bytes.length - CRC_SIZE;
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bodyLength);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, bodyLength, CRC_SIZE));
+    if (in.readInt() != (int) crc.getValue()) {
+      throw new IOException("State store failed its checksum");
+    }
+
+    in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bodyLength));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a state store");
+    }
+    in.readInt(); // Version, sections are read by id
+
+    State state = new State();
+    int sectionCount = in.readInt();
+    for (int i = 0; i < sectionCount; i++) {
+      int id = in.readInt();
+      int length = in.readInt();
+      if (length < 0 || length > in.available()) {
+        throw new IOException("Truncated state store section " + id);
+      }
+
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      DataInputStream section = new DataInputStream(new ByteArrayInputStream(payload));
+
+      switch (id) {
+        case SECTION_SETTINGS:
+          state.settings = readSettings(section);
+          break;
+
+        case SECTION_IDENTITY:
+          state.identity = readString(section);
+          break;
+
+        case SECTION_SAVED_ID_EVENTS:
+          state.savedIdEvents = readStrings(section);
+          break;
+
+        case SECTION_SAVED_INSTALL_EVENTS:
+          state.savedInstallEvents = readStrings(section);
+          break;
+
+        case SECTION_SAVED_PROPERTIES:
+          state.savedProperties = readProperties(section);
+          break;
+
+        default:
+          // Written by a later version
+          break;
+      }
+    }
+
+    return state;
+  }
+
+  private static byte[] encodeSettings(Map<String, Object> settings) throws IOException {
+    List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>();
+    for (Map.Entry<String, Object> entry : settings.entrySet()) {
+      Object value = entry.getValue();
+      if (value == null || value instanceof String || value instanceof Boolean ||
+              value instanceof Long || value instanceof Integer) {
+        entries.add(entry);
+      } else {
+        Log.w(KISSmetricsAPI.TAG, "Unable to archive setting " + entry.getKey());
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(entries.size());
+
+    for (Map.Entry<String, Object> entry : entries) {
+      writeString(out, entry.getKey());
+      Object value = entry.getValue();
+
+      if (value == null) {
+        out.writeByte(VALUE_NULL);
+      } else if (value instanceof String) {
+        out.writeByte(VALUE_STRING);
+        writeString(out, (String) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(VALUE_BOOLEAN);
+        out.writeBoolean((Boolean) value);
+      } else if (value instanceof Long) {
+        out.writeByte(VALUE_LONG);
+        out.writeLong((Long) value);
+      } else {
+        out.writeByte(VALUE_INTEGER);
+        out.writeInt((Integer) value);
+      }
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private static HashMap<String, Object> readSettings(DataInputStream in) throws IOException {
+    int count = readCount(in);
+    HashMap<String, Object> settings = new HashMap<String, Object>();
+
+    for (int i = 0; i < count; i++) {
+      String key = readString(in);
+      int type = in.readUnsignedByte();
+
+      switch (type) {
+        case VALUE_NULL:
+          settings.put(key, null);
+          break;
+
+        case VALUE_STRING:
+          settings.put(key, readString(in));
+          break;
+
+        case VALUE_BOOLEAN:
+          settings.put(key, in.readBoolean());
+          break;
+
+        case VALUE_LONG:
+          settings.put(key, in.readLong());
+          break;
+
+        case VALUE_INTEGER:
+          settings.put(key, in.readInt());
+          break;
+
+        default:
+          throw new IOException("Unknown setting type " + type);
+      }
+    }
+
+    return settings;
+  }
+
+  private static byte[] encodeString(String string) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    writeString(new DataOutputStream(bytes), string);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] encodeStrings(List<String> strings) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      writeString(out, string);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = readCount(in);
+    List<String> strings = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(readString(in));
+    }
+    return strings;
+  }
+
+  private static byte[] encodeProperties(Map<String, String> properties) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(properties.size());
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      writeString(out, property.getKey());
+      writeString(out, property.getValue());
+    }
+    return bytes.toByteArray();
+  }
+
+  private static HashMap<String, String> readProperties(DataInputStream in) throws IOException {
+    int count = readCount(in);
+    HashMap<String, String> properties = new HashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      String key = readString(in);
+      properties.put(key, readString(in));
+    }
+    return properties;
+  }
+
+  /**
+   * Strings are written as their UTF-8 length and bytes, with a length of -1 for null.
+   */
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = string.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Truncated state store string");
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    // Every entry takes at least 4 bytes
+    if (count < 0 || count > in.available() / 4) {
+      throw new IOException("Malformed state store section");
+    }
+    return count;
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      int offset = 0;
+      while (offset < bytes.length) {
+        int read = in.read(bytes, offset, bytes.length - offset);
+        if (read < 0) {
+          throw new IOException("Truncated state store");
+        }
+        offset += read;
+      }
+      return bytes;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more we can do
+    }
+  }
+}